@@ -0,0 +1,119 @@
+package org.opendatakit.tables.test.perf.data;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.opendatakit.tables.data.DataUtil;
+import org.opendatakit.tables.test.perf.util.Timer;
+import android.test.InstrumentationTestCase;
+import android.test.PerformanceTestCase;
+import android.util.Log;
+
+
+/**
+ * Compares parsing and printing date-times in the storage format with
+ * {@link DataUtil} against doing it with a Joda formatter for the same
+ * pattern, which is what DataUtil used to do for every value, and checks that
+ * both give the same results.
+ */
+public class DateCodecBenchmark extends InstrumentationTestCase
+        implements PerformanceTestCase {
+
+    private static final String TAG = "DateCodecBenchmark";
+
+    private static final int VALUES = 20000;
+    private static final int RUNS = 5;
+
+    private static final DateTimeFormatter JODA_DB_FORMATTER =
+        DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ").withZoneUTC();
+
+    private final Timer timer;
+    private final DataUtil du;
+    private final DateTime[] dateTimes;
+    private final String[] dbStrings;
+
+    public DateCodecBenchmark() {
+        timer = new Timer();
+        du = new DataUtil(Locale.ENGLISH, TimeZone.getDefault());
+        dateTimes = new DateTime[VALUES];
+        dbStrings = new String[VALUES];
+        // a reading every 17 minutes or so from the start of 2013
+        long millis = new DateTime(2013, 1, 1, 0, 0, 0, 0,
+                DateTimeZone.UTC).getMillis();
+        for (int i = 0; i < VALUES; i++) {
+            dateTimes[i] = new DateTime(millis, DateTimeZone.getDefault());
+            dbStrings[i] = JODA_DB_FORMATTER.print(dateTimes[i]);
+            millis += 1020123L;
+        }
+    }
+
+    public boolean isPerformanceOnly() {
+        return true;
+    }
+
+    public int startPerformance(
+            PerformanceTestCase.Intermediates intermediates) {
+        return 1;
+    }
+
+    public void testResultsMatchJoda() {
+        for (int i = 0; i < VALUES; i++) {
+            assertEquals(dbStrings[i], du.formatDateTimeForDb(dateTimes[i]));
+            assertEquals(dateTimes[i].getMillis(),
+                    du.parseDateTimeFromDb(dbStrings[i]).getMillis());
+            assertEquals(dateTimes[i].getMillis(),
+                    du.tryParseInstant(dbStrings[i]).getMillis());
+        }
+    }
+
+    public void testParse() {
+        long joda = 0;
+        long fast = 0;
+        for (int run = 0; run < RUNS; run++) {
+            timer.start();
+            for (int i = 0; i < VALUES; i++) {
+                JODA_DB_FORMATTER.parseDateTime(dbStrings[i]);
+            }
+            timer.end();
+            joda += timer.getDuration();
+            timer.start();
+            for (int i = 0; i < VALUES; i++) {
+                du.parseDateTimeFromDb(dbStrings[i]);
+            }
+            timer.end();
+            fast += timer.getDuration();
+        }
+        report("parse", joda, fast);
+    }
+
+    public void testFormat() {
+        long joda = 0;
+        long fast = 0;
+        for (int run = 0; run < RUNS; run++) {
+            timer.start();
+            for (int i = 0; i < VALUES; i++) {
+                JODA_DB_FORMATTER.print(dateTimes[i]);
+            }
+            timer.end();
+            joda += timer.getDuration();
+            timer.start();
+            for (int i = 0; i < VALUES; i++) {
+                du.formatDateTimeForDb(dateTimes[i]);
+            }
+            timer.end();
+            fast += timer.getDuration();
+        }
+        report("format", joda, fast);
+    }
+
+    private void report(String label, long joda, long fast) {
+        Log.d(TAG, "<timing> joda " + label + " of " + VALUES +
+                " values average: " + (joda / RUNS) + "ms");
+        Log.d(TAG, "<timing> DataUtil " + label + " of " + VALUES +
+                " values average: " + (fast / RUNS) + "ms");
+    }
+}
@@ -0,0 +1,263 @@
+package org.opendatakit.tables.test.perf.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesKeyValueStoreEntry;
+import org.opendatakit.tables.data.ColumnType;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.KeyValueStoreManager;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.test.perf.util.DbUtil;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+
+/**
+ * Checks the copies between key value stores made by
+ * {@link KeyValueStoreManager}, in both the diff-only and the full modes,
+ * against what the old per-entry copies gave: the target's entries for the
+ * table cleared and the source's added back one at a time, or for the merge,
+ * the union of the server and default entries with the server's value kept
+ * for each key in both.
+ */
+public class KeyValueStoreManagerTest extends InstrumentationTestCase {
+
+    private static final String PARTITION = "KeyValueStoreManagerTest";
+    private static final String ASPECT = "default";
+    /** The keys put in the test partition by setUp. */
+    private static final String[] KEYS = {"same", "changed", "retyped",
+        "empty", "activeOnly", "defaultOnly", "serverOnly"};
+
+    private static final KeyValueStore.Type ACTIVE = KeyValueStore.Type.ACTIVE;
+    private static final KeyValueStore.Type DEFAULT =
+        KeyValueStore.Type.DEFAULT;
+    private static final KeyValueStore.Type SERVER = KeyValueStore.Type.SERVER;
+
+    private DbHelper dbh;
+    private SQLiteDatabase db;
+    private KeyValueStoreManager kvsm;
+    private TableProperties tp;
+    private String tableId;
+    /** A table whose entries are in the same stores and must not change. */
+    private String otherTableId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbh = DbHelper.getDbHelper(getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+        db = dbh.getWritableDatabase();
+        kvsm = KeyValueStoreManager.getKVSManager(dbh);
+        tp = DbUtil.addScratchTable(dbh, new String[] {"score"},
+                new ColumnType[] {ColumnType.INTEGER});
+        tableId = tp.getTableId();
+        otherTableId = "kvsm_test_" + UUID.randomUUID().toString();
+        // give every store the table's properties, as a synced table has, so
+        // that the server properties can be read back.
+        for (KeyValueStore.Type type : new KeyValueStore.Type[] {DEFAULT,
+                SERVER}) {
+            store(tableId, type).clearKeyValuePairs(db);
+            store(tableId, type).addEntriesToStore(db,
+                    store(tableId, ACTIVE).getEntries(db));
+        }
+        put(tableId, ACTIVE, "same", "string", "a");
+        put(tableId, DEFAULT, "same", "string", "a");
+        put(tableId, SERVER, "same", "string", "a");
+        put(tableId, ACTIVE, "changed", "string", "active");
+        put(tableId, DEFAULT, "changed", "string", "default");
+        put(tableId, SERVER, "changed", "string", "server");
+        put(tableId, ACTIVE, "retyped", "integer", "1");
+        put(tableId, DEFAULT, "retyped", "string", "1");
+        put(tableId, SERVER, "retyped", "number", "1");
+        put(tableId, ACTIVE, "empty", "string", "");
+        put(tableId, DEFAULT, "empty", "string", "not empty");
+        put(tableId, SERVER, "empty", "string", "");
+        put(tableId, ACTIVE, "activeOnly", "string", "active");
+        put(tableId, DEFAULT, "defaultOnly", "string", "default");
+        put(tableId, SERVER, "serverOnly", "string", "server");
+        for (KeyValueStore.Type type : KeyValueStore.Type.values()) {
+            put(otherTableId, type, "same", "string", "other");
+            put(otherTableId, type, "changed", "string", type.name());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (KeyValueStore.Type type : KeyValueStore.Type.values()) {
+            store(otherTableId, type).clearKeyValuePairs(db);
+        }
+        tp.deleteTableActual();
+        super.tearDown();
+    }
+
+    public void testCopyDefaultToActive() {
+        checkCopy(DEFAULT, ACTIVE, new Runnable() {
+            @Override
+            public void run() {
+                kvsm.copyDefaultToActiveForTable(tableId);
+            }
+        });
+    }
+
+    public void testCopyDefaultToActiveFull() {
+        checkCopy(DEFAULT, ACTIVE, new Runnable() {
+            @Override
+            public void run() {
+                kvsm.copyDefaultToActiveForTable(tableId, false);
+            }
+        });
+    }
+
+    public void testSetCurrentAsDefault() {
+        checkCopy(ACTIVE, DEFAULT, new Runnable() {
+            @Override
+            public void run() {
+                kvsm.setCurrentAsDefaultPropertiesForTable(tableId);
+            }
+        });
+    }
+
+    public void testSetCurrentAsDefaultFull() {
+        checkCopy(ACTIVE, DEFAULT, new Runnable() {
+            @Override
+            public void run() {
+                kvsm.setCurrentAsDefaultPropertiesForTable(tableId, false);
+            }
+        });
+    }
+
+    public void testCopyDefaultToServer() {
+        checkCopy(DEFAULT, SERVER, new Runnable() {
+            @Override
+            public void run() {
+                kvsm.copyDefaultToServerForTable(tableId);
+            }
+        });
+    }
+
+    public void testCopyDefaultToServerFull() {
+        checkCopy(DEFAULT, SERVER, new Runnable() {
+            @Override
+            public void run() {
+                kvsm.copyDefaultToServerForTable(tableId, false);
+            }
+        });
+    }
+
+    public void testMergeServerToDefault() {
+        checkMerge(new Runnable() {
+            @Override
+            public void run() {
+                kvsm.mergeServerToDefaultForTable(tableId);
+            }
+        });
+    }
+
+    public void testMergeServerToDefaultFull() {
+        checkMerge(new Runnable() {
+            @Override
+            public void run() {
+                kvsm.mergeServerToDefaultForTable(tableId, false);
+            }
+        });
+    }
+
+    public void testMergeKeepsServerValuesAndDefaultOnlyKeys() {
+        kvsm.mergeServerToDefaultForTable(tableId);
+        assertEntry(DEFAULT, "same", "string", "a");
+        assertEntry(DEFAULT, "changed", "string", "server");
+        assertEntry(DEFAULT, "retyped", "number", "1");
+        assertEntry(DEFAULT, "empty", "string", "");
+        assertEntry(DEFAULT, "defaultOnly", "string", "default");
+        assertEntry(DEFAULT, "serverOnly", "string", "server");
+        assertNull(cached(DEFAULT, "activeOnly"));
+    }
+
+    /**
+     * Run a copy, checking that the target then holds exactly the source's
+     * entries for the table, both in the database and as read through the
+     * cache, and that nothing else changed.
+     */
+    private void checkCopy(KeyValueStore.Type from, KeyValueStore.Type to,
+            Runnable copy) {
+        checkWrite(from, to, snapshot(tableId, from), copy);
+    }
+
+    /**
+     * As {@link #checkCopy}, for the merge of the server store into the
+     * default store.
+     */
+    private void checkMerge(Runnable merge) {
+        Map<String, String> expected = snapshot(tableId, DEFAULT);
+        expected.putAll(snapshot(tableId, SERVER));
+        checkWrite(SERVER, DEFAULT, expected, merge);
+    }
+
+    private void checkWrite(KeyValueStore.Type from, KeyValueStore.Type to,
+            Map<String, String> expected, Runnable write) {
+        Map<String, String> source = snapshot(tableId, from);
+        Map<String, String> other = snapshot(otherTableId, to);
+        // fill the cache, so that a stale cache would show.
+        for (String key : KEYS) {
+            cached(to, key);
+        }
+        write.run();
+        assertEquals(expected, snapshot(tableId, to));
+        assertEquals(source, snapshot(tableId, from));
+        assertEquals(other, snapshot(otherTableId, to));
+        for (String key : KEYS) {
+            OdkTablesKeyValueStoreEntry entry = cached(to, key);
+            String inDb = expected.get(entryKey(PARTITION, ASPECT, key));
+            assertEquals(key, inDb,
+                    (entry == null) ? null : entry.type + "=" + entry.value);
+        }
+    }
+
+    private void assertEntry(KeyValueStore.Type type, String key,
+            String valueType, String value) {
+        OdkTablesKeyValueStoreEntry entry = cached(type, key);
+        assertNotNull(key, entry);
+        assertEquals(key, valueType, entry.type);
+        assertEquals(key, value, entry.value);
+        assertEquals(key, valueType + "=" + value,
+                snapshot(tableId, type).get(entryKey(PARTITION, ASPECT, key)));
+    }
+
+    private OdkTablesKeyValueStoreEntry cached(KeyValueStore.Type type,
+            String key) {
+        return store(tableId, type).getCachedEntry(db, PARTITION, ASPECT, key);
+    }
+
+    /**
+     * @return the entries of the table in the store, read from the database,
+     * as type=value by partition/aspect/key
+     */
+    private Map<String, String> snapshot(String id, KeyValueStore.Type type) {
+        Map<String, String> entries = new HashMap<String, String>();
+        for (OdkTablesKeyValueStoreEntry entry :
+                store(id, type).getEntries(db)) {
+            entries.put(entryKey(entry.partition, entry.aspect, entry.key),
+                    entry.type + "=" + entry.value);
+        }
+        return entries;
+    }
+
+    private static String entryKey(String partition, String aspect,
+            String key) {
+        return partition + "/" + aspect + "/" + key;
+    }
+
+    private void put(String id, KeyValueStore.Type type, String key,
+            String valueType, String value) {
+        store(id, type).insertOrUpdateKey(db, PARTITION, ASPECT, key,
+                valueType, value);
+    }
+
+    private KeyValueStore store(String id, KeyValueStore.Type type) {
+        return kvsm.getStoreForTable(id, type);
+    }
+}
@@ -0,0 +1,116 @@
+package org.opendatakit.tables.test.perf.query;
+
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.data.UserTable;
+import org.opendatakit.tables.test.perf.util.DbUtil;
+import org.opendatakit.tables.test.perf.util.Timer;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+import android.test.PerformanceTestCase;
+import android.util.Log;
+
+
+/**
+ * Checks that the queries behind the table screens are not blocked while a
+ * sync is writing. A writer thread holds a transaction open on the
+ * temperature table for {@link #WRITE_MILLIS}, rewriting its rows as a large
+ * sync would, while the test thread keeps loading the table. Without
+ * write-ahead logging every load waits for the transaction to end. The
+ * transaction is rolled back, so the table is left as it was.
+ */
+public class ConcurrentReadStressTest extends InstrumentationTestCase
+        implements PerformanceTestCase {
+
+    private static final String TAG = "ConcurrentReadStressTest";
+
+    private static final long WRITE_MILLIS = 5000;
+
+    private final Timer timer;
+
+    private volatile boolean writing = false;
+    private volatile Throwable writerError = null;
+
+    public ConcurrentReadStressTest() {
+        timer = new Timer();
+    }
+
+    public boolean isPerformanceOnly() {
+        return true;
+    }
+
+    public int startPerformance(
+            PerformanceTestCase.Intermediates intermediates) {
+        return 1;
+    }
+
+    public void testReadsDuringSync() throws InterruptedException {
+        final DbHelper dbh = DbHelper.getDbHelper(
+                getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+        final TableProperties tp = TableProperties.getTablePropertiesForTable(
+                dbh, DbUtil.TEMPERATURE_TABLE_ID, KeyValueStore.Type.ACTIVE);
+        assertNotNull("temperature table is missing", tp);
+        DbTable dbt = DbTable.getDbTable(dbh, tp);
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+        // warm up, and open the database before the writer does.
+        dbt.getUserTable(query);
+        Log.d(TAG, "write-ahead logging: " + dbh.isWriteAheadLoggingEnabled());
+
+        Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                SQLiteDatabase db = dbh.getWritableDatabase();
+                db.beginTransaction();
+                writing = true;
+                try {
+                    long end = System.currentTimeMillis() + WRITE_MILLIS;
+                    while (System.currentTimeMillis() < end) {
+                        db.execSQL("UPDATE " + tp.getDbTableName() + " SET " +
+                                DataTableColumns.SYNC_STATE + " = " +
+                                DataTableColumns.SYNC_STATE);
+                    }
+                } catch (Throwable t) {
+                    writerError = t;
+                } finally {
+                    // never marked successful, so it is rolled back.
+                    db.endTransaction();
+                    writing = false;
+                }
+            }
+        }, TAG + " writer");
+        writer.start();
+        while (!writing && writer.isAlive()) {
+            Thread.sleep(10);
+        }
+
+        int loads = 0;
+        long longest = 0;
+        UserTable table = null;
+        while (writing) {
+            dbh.getQueryResultCache().clear();
+            timer.start();
+            table = dbt.getUserTable(query);
+            timer.end();
+            loads++;
+            longest = Math.max(longest, timer.getDuration());
+        }
+        writer.join();
+        assertNull("writer failed: " + writerError, writerError);
+        assertNotNull(table);
+        Log.d(TAG, "<timing> " + loads + " loads of " +
+                table.getNumberOfRows() + " rows during a " + WRITE_MILLIS +
+                "ms write, longest: " + longest + "ms");
+        if (dbh.isWriteAheadLoggingEnabled()) {
+            assertTrue("reads were blocked by the write", loads > 1);
+            assertTrue("a read waited for the write: " + longest + "ms",
+                    longest < WRITE_MILLIS / 2);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.opendatakit.tables.test.perf.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opendatakit.common.android.provider.DataTableColumns;
+import org.opendatakit.tables.data.ColumnType;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.HashJoinCache;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.data.UserTable;
+import org.opendatakit.tables.test.perf.util.DbUtil;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.InstrumentationTestCase;
+
+
+/**
+ * Checks that the joins {@link DbTable} evaluates in memory with the
+ * {@link HashJoinCache} return the same rows, as many times each, as the
+ * SQL join built by the {@link Query}.
+ */
+public class HashJoinTest extends InstrumentationTestCase {
+    
+    /**
+     * HashJoinCache.MAX_JOIN_KEYS: a join side with more distinct values
+     * than this is left to SQLite.
+     */
+    private static final int MAX_JOIN_KEYS = 20000;
+    
+    private static final String[] MAIN_KEYS = {"owner"};
+    private static final String[] JOIN_KEYS = {"person", "kind"};
+    
+    private DbHelper dbh;
+    private TableProperties mainTp;
+    private TableProperties joinTp;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbh = DbHelper.getDbHelper(getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+        mainTp = DbUtil.addScratchTable(dbh, MAIN_KEYS,
+                new ColumnType[] {ColumnType.STRING});
+        joinTp = DbUtil.addScratchTable(dbh, JOIN_KEYS,
+                new ColumnType[] {ColumnType.STRING, ColumnType.STRING});
+        // a matches three rows, c two and b one; null and d match none.
+        for (String owner : new String[] {"a", "a", "b", null, "c", "d"}) {
+            DbUtil.addScratchRow(dbh, mainTp, MAIN_KEYS, owner);
+        }
+        String[][] people = {{"a", "x"}, {"a", "y"}, {"a", "x"}, {"b", "x"},
+            {null, "x"}, {"c", "y"}, {"c", "x"}};
+        for (String[] person : people) {
+            DbUtil.addScratchRow(dbh, joinTp, JOIN_KEYS, person);
+        }
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        mainTp.deleteTableActual();
+        joinTp.deleteTableActual();
+        super.tearDown();
+    }
+    
+    public void testOneToManyAndNulls() {
+        String join = "join:" + joinTp.getDisplayName() + " owner/person";
+        List<String> rowIds = assertSameAsSqlJoin(join);
+        assertEquals(9, rowIds.size());
+        assertHashJoined(join);
+    }
+    
+    public void testJoinWithQuery() {
+        String join = "join:" + joinTp.getDisplayName() +
+                " (kind:x) owner/person";
+        List<String> rowIds = assertSameAsSqlJoin(join);
+        assertEquals(6, rowIds.size());
+        assertHashJoined(join);
+    }
+    
+    public void testTooManyJoinKeysFallsBackToSql() {
+        SQLiteDatabase db = dbh.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < MAX_JOIN_KEYS; i++) {
+                DbUtil.addScratchRow(dbh, joinTp, JOIN_KEYS, "p" + i, "x");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        DbUtil.addScratchRow(dbh, mainTp, MAIN_KEYS, "p0");
+        DbUtil.addScratchRow(dbh, mainTp, MAIN_KEYS,
+                "p" + (MAX_JOIN_KEYS - 1));
+        String join = "join:" + joinTp.getDisplayName() + " owner/person";
+        List<String> rowIds = assertSameAsSqlJoin(join);
+        assertEquals(11, rowIds.size());
+        // the side is too big to keep, so it is not found the second time.
+        HashJoinCache cache = dbh.getHashJoinCache();
+        long hits = cache.getHitCount();
+        assertSameAsSqlJoin(join);
+        assertEquals(hits, cache.getHitCount());
+    }
+    
+    /**
+     * Run the query the second time; if its join side was kept, it is
+     * found in the cache.
+     */
+    private void assertHashJoined(String userQuery) {
+        HashJoinCache cache = dbh.getHashJoinCache();
+        long hits = cache.getHitCount();
+        assertSameAsSqlJoin(userQuery);
+        assertTrue(cache.getHitCount() > hits);
+    }
+    
+    /**
+     * @return the sorted ids of the rows of the query, which are asserted
+     * to be those of the SQL join
+     */
+    private List<String> assertSameAsSqlJoin(String userQuery) {
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, mainTp);
+        assertTrue(query.loadFromUserQuery(userQuery));
+        assertEquals(1, query.getJoinCount());
+        dbh.getQueryResultCache().clear();
+        UserTable table = DbTable.getDbTable(dbh, mainTp).getUserTable(query);
+        List<String> hashJoined = new ArrayList<String>();
+        for (int i = 0; i < table.getNumberOfRows(); i++) {
+            hashJoined.add(table.getRowAtIndex(i).getRowId());
+        }
+        Collections.sort(hashJoined);
+        assertEquals(sqlJoin(query), hashJoined);
+        return hashJoined;
+    }
+    
+    private List<String> sqlJoin(Query query) {
+        Query.SqlData sd = query.toSql(MAIN_KEYS);
+        List<String> rowIds = new ArrayList<String>();
+        Cursor c = dbh.getReadableDatabase().rawQuery(sd.getSql(),
+                sd.getArgs());
+        try {
+            int index = c.getColumnIndexOrThrow(DataTableColumns.ID);
+            while (c.moveToNext()) {
+                rowIds.add(c.getString(index));
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(rowIds);
+        return rowIds;
+    }
+}
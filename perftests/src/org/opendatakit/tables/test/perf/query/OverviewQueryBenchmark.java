@@ -0,0 +1,102 @@
+package org.opendatakit.tables.test.perf.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.data.UserTable;
+import org.opendatakit.tables.test.perf.util.DbUtil;
+import org.opendatakit.tables.test.perf.util.Timer;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.test.InstrumentationTestCase;
+import android.test.PerformanceTestCase;
+import android.util.Log;
+
+
+/**
+ * Compares the strategies for finding the latest row of each group in the
+ * overview of the temperature table. If the table has no prime and sort
+ * columns, its first two columns are used for the duration of the test.
+ */
+public class OverviewQueryBenchmark extends InstrumentationTestCase
+        implements PerformanceTestCase {
+    
+    private static final String TAG = "OverviewQueryBenchmark";
+    
+    private static final int RUNS = 5;
+    
+    private final Timer timer;
+    
+    public OverviewQueryBenchmark() {
+        timer = new Timer();
+    }
+    
+    public boolean isPerformanceOnly() {
+        return true;
+    }
+    
+    public int startPerformance(
+            PerformanceTestCase.Intermediates intermediates) {
+        return 1;
+    }
+    
+    public void testOverviewStrategies() {
+        DbHelper dbh = DbHelper.getDbHelper(
+                getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+        TableProperties tp = TableProperties.getTablePropertiesForTable(dbh,
+                DbUtil.TEMPERATURE_TABLE_ID, KeyValueStore.Type.ACTIVE);
+        assertNotNull("temperature table is missing", tp);
+        List<String> oldPrimes = tp.getPrimeColumns();
+        String oldSort = tp.getSortColumn();
+        try {
+            if (oldPrimes.isEmpty() || oldSort == null) {
+                List<String> columns = tp.getColumnOrder();
+                assertTrue("need two columns", columns.size() >= 2);
+                List<String> primes = new ArrayList<String>();
+                primes.add(columns.get(0));
+                tp.setPrimeColumns(primes);
+                tp.setSortColumn(columns.get(1));
+            }
+            DbTable dbt = DbTable.getDbTable(dbh, tp);
+            Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+            Set<String> selfJoinIds = time(dbh, dbt, query,
+                    Query.OverviewStrategy.SELF_JOIN);
+            Set<String> latestIds = time(dbh, dbt, query,
+                    Query.OverviewStrategy.LATEST_PER_GROUP);
+            assertEquals(selfJoinIds, latestIds);
+        } finally {
+            tp.setPrimeColumns(oldPrimes);
+            tp.setSortColumn(oldSort);
+        }
+    }
+    
+    private Set<String> time(DbHelper dbh, DbTable dbt, Query query,
+            Query.OverviewStrategy strategy) {
+        UserTable table = null;
+        long total = 0;
+        for (int i = 0; i < RUNS; i++) {
+            // otherwise every run after the first is a cache hit.
+            dbh.getQueryResultCache().clear();
+            timer.start();
+            table = dbt.getUserOverviewTable(query, strategy);
+            timer.end();
+            total += timer.getDuration();
+        }
+        timer.print(strategy + " overview (last of " + RUNS + ", " +
+                table.getNumberOfRows() + " rows)");
+        Log.d(TAG, "<timing> " + strategy +
+                " overview average: " + (total / RUNS) + "ms");
+        Set<String> rowIds = new HashSet<String>();
+        for (int i = 0; i < table.getNumberOfRows(); i++) {
+            rowIds.add(table.getRowAtIndex(i).getRowId());
+        }
+        return rowIds;
+    }
+}
@@ -0,0 +1,144 @@
+package org.opendatakit.tables.test.perf.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opendatakit.tables.data.ColumnProperties;
+import org.opendatakit.tables.data.ColumnType;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.FooterMode;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.QueryResultCache;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.data.UserTable;
+import org.opendatakit.tables.test.perf.util.DbUtil;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.content.ContentValues;
+import android.test.InstrumentationTestCase;
+
+
+/**
+ * Checks that a table served from the query result cache shows the column
+ * properties as they are now, not as they were when it was cached, and that
+ * each way of writing rows drops the cached result.
+ */
+public class QueryResultCacheTest extends InstrumentationTestCase {
+    
+    private static final String[] KEYS = {"score"};
+    private static final ColumnType[] TYPES = {ColumnType.INTEGER};
+    
+    private DbHelper dbh;
+    private TableProperties tp;
+    private String firstRowId;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbh = DbHelper.getDbHelper(getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+        tp = DbUtil.addScratchTable(dbh, KEYS, TYPES);
+        firstRowId = DbUtil.addScratchRow(dbh, tp, KEYS, "1");
+        DbUtil.addScratchRow(dbh, tp, KEYS, "2");
+        DbUtil.addScratchRow(dbh, tp, KEYS, "4");
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        tp.deleteTableActual();
+        super.tearDown();
+    }
+    
+    public void testFooterModeChange() {
+        ColumnProperties cp = tp.getColumnByElementKey(KEYS[0]);
+        cp.setFooterMode(FooterMode.count);
+        assertEquals("3", query().getFooter(0));
+        cp.setFooterMode(FooterMode.maximum);
+        assertEquals("4", query().getFooter(0));
+        cp.setFooterMode(FooterMode.none);
+        assertNull(query().getFooter(0));
+    }
+    
+    public void testDisplayNameChange() {
+        ColumnProperties cp = tp.getColumnByElementKey(KEYS[0]);
+        assertEquals(KEYS[0], query().getHeader(0));
+        cp.setDisplayName("Score");
+        assertEquals("Score", query().getHeader(0));
+    }
+    
+    public void testActualAddRowDropsCachedResult() {
+        assertCached();
+        ContentValues values = DbTable.getInsertingRowValues(null, null,
+                null, null, null, Collections.singletonMap(KEYS[0], "8"));
+        DbTable.getDbTable(dbh, tp).actualAddRow(values);
+        assertRequeried(4, "15");
+    }
+    
+    public void testActualUpdateRowByRowIdDropsCachedResult() {
+        assertCached();
+        ContentValues values = new ContentValues();
+        values.put(KEYS[0], "16");
+        DbTable.getDbTable(dbh, tp).actualUpdateRowByRowId(firstRowId,
+                values);
+        assertRequeried(3, "22");
+    }
+    
+    public void testMarkDeletedDropsCachedResult() {
+        assertCached();
+        DbTable.getDbTable(dbh, tp).markDeleted(firstRowId);
+        assertRequeried(2, "6");
+    }
+    
+    public void testDeleteRowActualDropsCachedResult() {
+        assertCached();
+        DbTable.getDbTable(dbh, tp).deleteRowActual(firstRowId);
+        assertRequeried(2, "6");
+    }
+    
+    public void testAddRowsDropsCachedResult() {
+        assertCached();
+        List<ContentValues> rows = new ArrayList<ContentValues>();
+        for (String score : new String[] {"8", "16"}) {
+            rows.add(DbTable.getInsertingRowValues(null, null, null, null,
+                    null, Collections.singletonMap(KEYS[0], score)));
+        }
+        assertEquals(2,
+                DbTable.getDbTable(dbh, tp).addRows(rows.iterator(), 1, null));
+        assertRequeried(5, "31");
+    }
+    
+    /**
+     * Query the table twice, checking that the second query is served from
+     * the cache.
+     */
+    private void assertCached() {
+        tp.getColumnByElementKey(KEYS[0]).setFooterMode(FooterMode.sum);
+        query();
+        QueryResultCache cache = dbh.getQueryResultCache();
+        long hits = cache.getHitCount();
+        UserTable table = query();
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(3, table.getNumberOfRows());
+        assertEquals("7", table.getFooter(0));
+    }
+    
+    /**
+     * Query the table after a write, checking that the cached result was not
+     * used and that the new result shows the write.
+     */
+    private void assertRequeried(int rows, String sum) {
+        QueryResultCache cache = dbh.getQueryResultCache();
+        long hits = cache.getHitCount();
+        UserTable table = query();
+        assertEquals(hits, cache.getHitCount());
+        assertEquals(rows, table.getNumberOfRows());
+        assertEquals(sum, table.getFooter(0));
+    }
+    
+    private UserTable query() {
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+        return DbTable.getDbTable(dbh, tp).getUserTable(query);
+    }
+}
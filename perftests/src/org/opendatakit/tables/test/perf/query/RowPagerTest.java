@@ -0,0 +1,175 @@
+package org.opendatakit.tables.test.perf.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opendatakit.tables.data.ColumnType;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.data.UserTable;
+import org.opendatakit.tables.test.perf.util.DbUtil;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.test.InstrumentationTestCase;
+
+
+/**
+ * Checks that {@link DbTable.RowPager} returns every row of a query exactly
+ * once and in the query's order, whatever the page size, when the sort
+ * values tie across page boundaries and include nulls.
+ */
+public class RowPagerTest extends InstrumentationTestCase {
+    
+    private static final String GROUP = "grp";
+    private static final String LABEL = "label";
+    private static final String[] KEYS = {GROUP, LABEL};
+    private static final ColumnType[] TYPES =
+        {ColumnType.INTEGER, ColumnType.STRING};
+    
+    private static final int ROWS = 23;
+    private static final int[] PAGE_SIZES = {1, 2, 5, ROWS, 50};
+    
+    private DbHelper dbh;
+    private TableProperties tp;
+    /** The rows as {id, group, label}, in the order they were added. */
+    private List<String[]> rows;
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dbh = DbHelper.getDbHelper(getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+        tp = DbUtil.addScratchTable(dbh, KEYS, TYPES);
+        rows = new ArrayList<String[]>();
+        for (int i = 0; i < ROWS; i++) {
+            String group = (i % 4 == 3) ? null : Integer.toString(i % 3);
+            String label = (i % 5 == 0) ? null : "l" + (i % 2);
+            String rowId = DbUtil.addScratchRow(dbh, tp, KEYS, group, label);
+            rows.add(new String[] {rowId, group, label});
+        }
+    }
+    
+    @Override
+    protected void tearDown() throws Exception {
+        tp.deleteTableActual();
+        super.tearDown();
+    }
+    
+    public void testUnordered() {
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+        for (int pageSize : PAGE_SIZES) {
+            assertPages(expected(), query, pageSize);
+        }
+    }
+    
+    public void testAscendingWithTiesAndNulls() {
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+        query.setOrderBy(Query.SortOrder.ASCENDING,
+                tp.getColumnByElementKey(GROUP));
+        for (int pageSize : PAGE_SIZES) {
+            assertPages(expected(1, false), query, pageSize);
+        }
+    }
+    
+    public void testDescendingWithTiesAndNulls() {
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+        query.setOrderBy(Query.SortOrder.DESCENDING,
+                tp.getColumnByElementKey(GROUP));
+        for (int pageSize : PAGE_SIZES) {
+            assertPages(expected(1, true), query, pageSize);
+        }
+    }
+    
+    public void testTwoColumnsDescending() {
+        Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+        query.setOrderBy(Query.SortOrder.DESCENDING,
+                tp.getColumnByElementKey(GROUP),
+                tp.getColumnByElementKey(LABEL));
+        for (int pageSize : PAGE_SIZES) {
+            assertPages(expected(2, true), query, pageSize);
+        }
+    }
+    
+    public void testRawAscending() {
+        DbTable dbt = DbTable.getDbTable(dbh, tp);
+        for (int pageSize : PAGE_SIZES) {
+            DbTable.RowPager pager = dbt.getRawRowPager(null, null, null,
+                    LABEL, pageSize);
+            assertEquals("page size " + pageSize, ids(expected(1, false, 1)),
+                    read(pager));
+        }
+    }
+    
+    private void assertPages(List<String[]> expected, Query query,
+            int pageSize) {
+        DbTable.RowPager pager =
+            DbTable.getDbTable(dbh, tp).getRowPager(query, pageSize);
+        assertEquals("page size " + pageSize, ids(expected), read(pager));
+    }
+    
+    private List<String> read(DbTable.RowPager pager) {
+        List<String> ids = new ArrayList<String>();
+        UserTable page;
+        while ((page = pager.nextPage()) != null) {
+            assertTrue(page.getNumberOfRows() > 0);
+            for (int i = 0; i < page.getNumberOfRows(); i++) {
+                ids.add(page.getRowAtIndex(i).getRowId());
+            }
+        }
+        return ids;
+    }
+    
+    private List<String[]> expected() {
+        return new ArrayList<String[]>(rows);
+    }
+    
+    private List<String[]> expected(int sortColumns, boolean descending) {
+        return expected(sortColumns, descending, 0);
+    }
+    
+    /**
+     * @return the rows sorted as SQLite sorts them: by the given number of
+     * columns from the first, nulls first, with only the last column
+     * descending if any is, and ties left in the order the rows were added
+     * (that of their row keys)
+     */
+    private List<String[]> expected(final int sortColumns,
+            final boolean descending, final int firstColumn) {
+        List<String[]> sorted = expected();
+        Collections.sort(sorted, new Comparator<String[]>() {
+            
+            @Override
+            public int compare(String[] a, String[] b) {
+                for (int i = firstColumn; i < firstColumn + sortColumns;
+                        i++) {
+                    int c = compareValues(a[i + 1], b[i + 1]);
+                    if (c != 0) {
+                        boolean last = (i == firstColumn + sortColumns - 1);
+                        return (descending && last) ? -c : c;
+                    }
+                }
+                return 0;
+            }
+        });
+        return sorted;
+    }
+    
+    private static int compareValues(String a, String b) {
+        if (a == null || b == null) {
+            return (a == null) ? ((b == null) ? 0 : -1) : 1;
+        }
+        return a.compareTo(b);
+    }
+    
+    private static List<String> ids(List<String[]> rows) {
+        List<String> ids = new ArrayList<String>();
+        for (String[] row : rows) {
+            ids.add(row[0]);
+        }
+        return ids;
+    }
+}
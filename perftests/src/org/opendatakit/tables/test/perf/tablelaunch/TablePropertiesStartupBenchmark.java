@@ -0,0 +1,104 @@
+package org.opendatakit.tables.test.perf.tablelaunch;
+
+import org.opendatakit.tables.data.ColumnProperties;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.test.perf.util.Timer;
+import org.opendatakit.tables.utils.TableFileUtils;
+import android.test.InstrumentationTestCase;
+import android.test.PerformanceTestCase;
+import android.util.Log;
+
+
+/**
+ * Times loading the properties of every table, as the app does on startup,
+ * against loading them one table at a time, which is what startup used to
+ * do, and checks that both give the same tables and columns.
+ */
+public class TablePropertiesStartupBenchmark extends InstrumentationTestCase
+        implements PerformanceTestCase {
+
+    private static final String TAG = "TablePropertiesStartupBenchmark";
+
+    private static final int RUNS = 5;
+
+    private final Timer timer;
+
+    public TablePropertiesStartupBenchmark() {
+        timer = new Timer();
+    }
+
+    public boolean isPerformanceOnly() {
+        return true;
+    }
+
+    public int startPerformance(
+            PerformanceTestCase.Intermediates intermediates) {
+        return 1;
+    }
+
+    private DbHelper getDbHelper() {
+        return DbHelper.getDbHelper(getInstrumentation().getTargetContext(),
+                TableFileUtils.ODK_TABLES_APP_NAME);
+    }
+
+    public void testLoadAll() {
+        DbHelper dbh = getDbHelper();
+        TableProperties[] all = null;
+        long bulk = 0;
+        long perTable = 0;
+        for (int run = 0; run < RUNS; run++) {
+            TableProperties.markStaleCache(dbh, null);
+            timer.start();
+            all = TableProperties.getTablePropertiesForAll(dbh,
+                    KeyValueStore.Type.ACTIVE);
+            timer.end();
+            bulk += timer.getDuration();
+            timer.start();
+            for (TableProperties tp : all) {
+                TableProperties.refreshTablePropertiesForTable(dbh,
+                        tp.getTableId(), KeyValueStore.Type.ACTIVE);
+            }
+            timer.end();
+            perTable += timer.getDuration();
+        }
+        int columns = 0;
+        for (TableProperties tp : all) {
+            columns += tp.getAllColumns().size();
+        }
+        Log.d(TAG, "<timing> bulk load of " + all.length + " tables with " +
+                columns + " columns average: " + (bulk / RUNS) + "ms");
+        Log.d(TAG, "<timing> per-table load of " + all.length +
+                " tables average: " + (perTable / RUNS) + "ms");
+    }
+
+    public void testResultsMatchPerTable() {
+        DbHelper dbh = getDbHelper();
+        TableProperties.markStaleCache(dbh, null);
+        TableProperties[] all = TableProperties.getTablePropertiesForAll(dbh,
+                KeyValueStore.Type.ACTIVE);
+        for (TableProperties bulk : all) {
+            TableProperties single =
+                    TableProperties.refreshTablePropertiesForTable(dbh,
+                            bulk.getTableId(), KeyValueStore.Type.ACTIVE);
+            assertNotNull(single);
+            assertEquals(single.getDbTableName(), bulk.getDbTableName());
+            assertEquals(single.getDisplayName(), bulk.getDisplayName());
+            assertEquals(single.getTableType(), bulk.getTableType());
+            assertEquals(single.getColumnOrder(), bulk.getColumnOrder());
+            assertEquals(single.getSyncState(), bulk.getSyncState());
+            assertEquals(single.getAllColumns().keySet(),
+                    bulk.getAllColumns().keySet());
+            for (ColumnProperties cp : single.getAllColumns().values()) {
+                ColumnProperties other =
+                        bulk.getColumnByElementKey(cp.getElementKey());
+                assertEquals(cp.getColumnType(), other.getColumnType());
+                assertEquals(cp.getDisplayName(), other.getDisplayName());
+                assertEquals(cp.isUnitOfRetention(),
+                        other.isUnitOfRetention());
+                assertEquals(cp.getDisplayVisible(), other.getDisplayVisible());
+            }
+        }
+    }
+}
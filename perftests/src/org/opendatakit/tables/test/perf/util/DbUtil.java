@@ -1,8 +1,58 @@
 package org.opendatakit.tables.test.perf.util;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.opendatakit.tables.data.ColumnDefinitions;
+import org.opendatakit.tables.data.ColumnType;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.KeyValueStore;
+import org.opendatakit.tables.data.TableProperties;
+import org.opendatakit.tables.data.TableType;
+
 
 public class DbUtil {
     
     public static final String TEMPERATURE_TABLE_ID =
         "769d744d-0f39-4023-9309-099e20479b89";
+    
+    /**
+     * Adds an empty data table with a unique name, for a test to fill and
+     * then delete with {@link TableProperties#deleteTableActual()}. The
+     * element keys are also used as the display names of the columns.
+     */
+    public static TableProperties addScratchTable(DbHelper dbh,
+            String[] elementKeys, ColumnType[] types) {
+        String name = "scratch_" +
+                UUID.randomUUID().toString().replace("-", "");
+        TableProperties tp = TableProperties.addTable(dbh, name, name,
+                TableType.data, KeyValueStore.Type.ACTIVE);
+        for (int i = 0; i < elementKeys.length; i++) {
+            tp.addColumn(elementKeys[i], elementKeys[i], elementKeys[i],
+                    types[i], null,
+                    ColumnDefinitions.DEFAULT_DB_IS_UNIT_OF_RETENTION);
+        }
+        return tp;
+    }
+    
+    /**
+     * Adds a row to a scratch table. The values are given in the order of
+     * the element keys; a null value leaves the cell null.
+     * @return the id of the row
+     */
+    public static String addScratchRow(DbHelper dbh, TableProperties tp,
+            String[] elementKeys, String... values) {
+        Map<String, String> row = new HashMap<String, String>();
+        for (int i = 0; i < elementKeys.length; i++) {
+            if (values[i] != null) {
+                row.put(elementKeys[i], values[i]);
+            }
+        }
+        String rowId = UUID.randomUUID().toString();
+        DbTable.getDbTable(dbh, tp).addRow(rowId, null, null, null, null,
+                row);
+        return rowId;
+    }
 }
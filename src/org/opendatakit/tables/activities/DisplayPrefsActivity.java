@@ -5,6 +5,7 @@ import org.opendatakit.tables.data.DbHelper;
 import org.opendatakit.tables.data.KeyValueStore;
 import org.opendatakit.tables.data.KeyValueStoreHelper;
 import org.opendatakit.tables.data.Preferences;
+import org.opendatakit.tables.data.SlowQueryLog;
 import org.opendatakit.tables.data.TableProperties;
 import org.opendatakit.tables.preferences.SliderPreference;
 import org.opendatakit.tables.utils.OutputUtil;
@@ -19,6 +20,7 @@ import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
+import android.widget.Toast;
 
 public class DisplayPrefsActivity extends PreferenceActivity {
   public static final String INTENT_KEY_TABLE_ID = "tableId";
@@ -133,9 +135,42 @@ public class DisplayPrefsActivity extends PreferenceActivity {
     });
     developerCategory.addPreference(writeDebugObjectsPref);
 
+    // the timings of the queries run so far, for diagnosing slow screens.
+    Preference queryStatisticsPref = new Preference(this);
+    queryStatisticsPref.setTitle(getString(R.string.query_statistics));
+    queryStatisticsPref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+      @Override
+      public boolean onPreferenceClick(Preference preference) {
+        showQueryStatistics();
+        return true;
+      }
+    });
+    developerCategory.addPreference(queryStatisticsPref);
+
     setPreferenceScreen(root);
   }
 
+  private void showQueryStatistics() {
+    final SlowQueryLog log = DbHelper.getDbHelper(this,
+        TableFileUtils.ODK_TABLES_APP_NAME).getSlowQueryLog();
+    AlertDialog.Builder builder = new AlertDialog.Builder(this);
+    builder.setTitle(getString(R.string.query_statistics));
+    builder.setMessage(log.getSummary() + "\n" + TableProperties.getCacheStatistics());
+    builder.setCancelable(true);
+    builder.setPositiveButton(getString(R.string.export), new DialogInterface.OnClickListener() {
+      @Override
+      public void onClick(DialogInterface dialog, int which) {
+        String path = log.exportSummary();
+        String message = (path == null) ?
+            getString(R.string.query_statistics_not_exported) :
+            getString(R.string.query_statistics_exported, path);
+        Toast.makeText(DisplayPrefsActivity.this, message, Toast.LENGTH_LONG).show();
+      }
+    });
+    builder.setNegativeButton(getString(R.string.cancel), null);
+    builder.create().show();
+  }
+
   // set a custom font size for this table that overrides the general font size
   private void customPreferences() {
     PreferenceScreen root = getPreferenceManager().createPreferenceScreen(this);
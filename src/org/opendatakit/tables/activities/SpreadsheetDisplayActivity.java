@@ -29,6 +29,7 @@ import org.opendatakit.tables.data.DbTable;
 import org.opendatakit.tables.data.JoinColumn;
 import org.opendatakit.tables.data.KeyValueStore;
 import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.QueryExecutor;
 import org.opendatakit.tables.data.TableProperties;
 import org.opendatakit.tables.data.UserTable;
 import org.opendatakit.tables.utils.TableFileUtils;
@@ -50,6 +51,7 @@ import android.widget.TextView;
 
 import com.actionbarsherlock.app.SherlockActivity;
 import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.Window;
 
 public class SpreadsheetDisplayActivity extends SherlockActivity
         implements DisplayActivity, SpreadsheetView.Controller {
@@ -94,6 +96,7 @@ public class SpreadsheetDisplayActivity extends SherlockActivity
     private Controller c;
     private UserTable table;
     private int indexedCol;
+    private boolean isResumed = false;
 
     private int lastDataCellMenued;
     private int lastHeaderCellMenued;
@@ -101,6 +104,7 @@ public class SpreadsheetDisplayActivity extends SherlockActivity
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
 
         // remove a title
         setTitle("");
@@ -112,39 +116,104 @@ public class SpreadsheetDisplayActivity extends SherlockActivity
     @Override
     public void onResume() {
       super.onResume();
+      isResumed = true;
       init();
     }
 
+    @Override
+    public void onPause() {
+      super.onPause();
+      isResumed = false;
+      if (table != null) {
+        table.cancelPrecomputeDisplayText();
+      }
+    }
+
+    @Override
+    protected void onDestroy() {
+      super.onDestroy();
+      dbh.getQueryExecutor().cancel(this);
+    }
+
+    /**
+     * Load the table for the current search on a worker thread, and then
+     * show it. Any load that is still running is cancelled. Until it
+     * finishes, the table shown before stays up.
+     */
     @Override
     public void init() {
-      TableProperties tp = c.getTableProperties();
-      Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
-        query.loadFromUserQuery(c.getSearchText());
-        // There are two options here. The first is that we get the data using
-        // the {@link Query} object. The other is that we use a sql where
-        // clause. The two currently don't play nice together, so figure out
-        // which one. The sql statement gets precedence.
-        String sqlWhereClause =
-            getIntent().getExtras().getString(Controller.INTENT_KEY_SQL_WHERE);
-        if (sqlWhereClause != null) {
-          String[] sqlSelectionArgs = getIntent().getExtras().getStringArray(
-              Controller.INTENT_KEY_SQL_SELECTION_ARGS);
-          DbTable dbTable = DbTable.getDbTable(dbh,
-              c.getTableProperties());
-          table = dbTable.rawSqlQuery(sqlWhereClause, sqlSelectionArgs);
-        } else {
-          // We use the query.
-          table = c.getIsOverview() ?
-              c.getDbTable().getUserOverviewTable(query) :
-              c.getDbTable().getUserTable(query);
+      final TableProperties tp = c.getTableProperties();
+      final DbTable dbTable = c.getDbTable();
+      final boolean isOverview = c.getIsOverview();
+      final String searchText = c.getSearchText();
+      final UserTable previous = table;
+      // There are two options here. The first is that we get the data using
+      // the {@link Query} object. The other is that we use a sql where
+      // clause. The two currently don't play nice together, so figure out
+      // which one. The sql statement gets precedence.
+      final String sqlWhereClause =
+          getIntent().getExtras().getString(Controller.INTENT_KEY_SQL_WHERE);
+      final String[] sqlSelectionArgs = getIntent().getExtras().getStringArray(
+          Controller.INTENT_KEY_SQL_SELECTION_ARGS);
+      onLoading();
+      int priority = isResumed ? QueryExecutor.PRIORITY_VISIBLE :
+          QueryExecutor.PRIORITY_BACKGROUND;
+      dbh.getQueryExecutor().submit(this, priority, new QueryExecutor.Loader() {
+
+        @Override
+        public UserTable load() {
+          if (sqlWhereClause != null) {
+            return dbTable.rawSqlQuery(sqlWhereClause, sqlSelectionArgs);
+          }
+          // We use the query. The table shown before is refreshed by
+          // re-reading just the rows that have changed since, if there are
+          // only a few, e.g. after editing a row in Collect. The refresh
+          // patches a copy, so the table shown is not changed under the UI.
+          Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
+          query.loadFromUserQuery(searchText);
+          return isOverview ? dbTable.getUserOverviewTable(query) :
+              dbTable.refreshUserTable(previous, query);
         }
+      }, new QueryExecutor.Callback() {
 
-        String indexedColElementKey = c.getTableProperties().getIndexColumn();
-        indexedCol =
-            c.getTableProperties().getColumnIndex(indexedColElementKey);
-        // setting up the view
-        c.setDisplayView(buildView(tp));
-        setContentView(c.getContainerView());
+        @Override
+        public void onQueryFinished(UserTable result) {
+          setSupportProgressBarIndeterminateVisibility(false);
+          if (result == null) {
+            Log.e(TAG, "could not load table " + tp.getTableId());
+            return;
+          }
+          onLoaded(tp, result);
+        }
+      });
+    }
+
+    /**
+     * Called when the table starts loading in the background. The table
+     * shown before, if any, stays up until the new one is ready, but stops
+     * rendering its display text.
+     */
+    private void onLoading() {
+      setSupportProgressBarIndeterminateVisibility(true);
+      if (table != null) {
+        table.cancelPrecomputeDisplayText();
+      }
+    }
+
+    /**
+     * Show the newly loaded table.
+     */
+    private void onLoaded(TableProperties tp, UserTable loaded) {
+      table = loaded;
+      // render the dates and file names shown in the cells before they are
+      // scrolled to.
+      table.precomputeDisplayTextInBackground(this);
+
+      String indexedColElementKey = tp.getIndexColumn();
+      indexedCol = tp.getColumnIndex(indexedColElementKey);
+      // setting up the view
+      c.setDisplayView(buildView(tp));
+      setContentView(c.getContainerView());
     }
 
     private View buildView(TableProperties tp) {
@@ -14,6 +14,7 @@ import org.opendatakit.tables.data.KeyValueStore;
 import org.opendatakit.tables.data.KeyValueStoreHelper;
 import org.opendatakit.tables.data.Query;
 import org.opendatakit.tables.data.Query.Constraint;
+import org.opendatakit.tables.data.QueryExecutor;
 import org.opendatakit.tables.data.TableProperties;
 import org.opendatakit.tables.data.TableViewType;
 import org.opendatakit.tables.data.UserTable;
@@ -47,6 +48,7 @@ import com.actionbarsherlock.app.SherlockFragmentActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.view.SubMenu;
+import com.actionbarsherlock.view.Window;
 
 /**
  * Base activity for all fragments that display information about a database.
@@ -101,8 +103,6 @@ public class TableActivity extends SherlockFragmentActivity
     return mTableProperties;
   }
 
-  private Query mQuery;
-
   private String mRowId;
 
   private DataUtil mDataUtil;
@@ -110,6 +110,7 @@ public class TableActivity extends SherlockFragmentActivity
   private DbTable mDbTable;
   private Stack<String> mSearchText;
   private boolean mIsOverview;
+  private boolean mIsResumed = false;
   private Activity mActivity;
 
   private String mAppName = TableFileUtils.ODK_TABLES_APP_NAME;
@@ -117,6 +118,7 @@ public class TableActivity extends SherlockFragmentActivity
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
     setContentView(R.layout.standard_table_layout);
 
     mActivity = this;
@@ -147,32 +149,11 @@ public class TableActivity extends SherlockFragmentActivity
     // Initialize data objects.
     mDbh = DbHelper.getDbHelper(this, mAppName);
     refreshDbTable(tableId);
-    mQuery = new Query(mDbh, KeyValueStore.Type.ACTIVE,
-        mTableProperties);
 
     // Initialize layout fields.
     setSearchFieldText(mSearchText.peek());
     setInfoBarText("Table: " + mTableProperties.getDisplayName());
 
-    mQuery.clear();
-    mQuery.loadFromUserQuery(mSearchText.peek());
-
-    // There are two options here. The first is that we get the data using the
-    // {@link Query} object. The other is that we use a sql where clause. The
-    // two currently don't play nice together, so figure out which one. The
-    // sql statement gets precedence.
-    String sqlWhereClause =
-        getIntent().getExtras().getString(Controller.INTENT_KEY_SQL_WHERE);
-    if (sqlWhereClause != null) {
-      String[] sqlSelectionArgs = getIntent().getExtras().getStringArray(
-          Controller.INTENT_KEY_SQL_SELECTION_ARGS);
-      mTable = mDbTable.rawSqlQuery(sqlWhereClause, sqlSelectionArgs);
-    } else {
-      // We use the query.
-      mTable = mIsOverview ? mDbTable.getUserOverviewTable(mQuery) :
-        mDbTable.getUserTable(mQuery);
-    }
-
     // Create the map fragment.
     if (savedInstanceState == null) {
       mMapFragment = new TableMapFragment();
@@ -183,16 +164,96 @@ public class TableActivity extends SherlockFragmentActivity
 
     // Set the current fragment.
     mCurrentFragment = mMapFragment;
+
+    // The table is loaded in the background; the fragment is initialized
+    // again once it is ready.
+    loadTable(true);
+  }
+
+  @Override
+  protected void onResume() {
+    super.onResume();
+    mIsResumed = true;
+  }
+
+  @Override
+  protected void onPause() {
+    super.onPause();
+    mIsResumed = false;
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mDbh.getQueryExecutor().cancel(this);
   }
 
   public void init() {
     refreshDbTable(mTableProperties.getTableId());
-    mQuery = new Query(mDbh, KeyValueStore.Type.ACTIVE,
-        mTableProperties);
-    mQuery.clear();
-    mQuery.loadFromUserQuery(mSearchText.peek());
-    mTable = mIsOverview ? mDbTable.getUserOverviewTable(mQuery) : mDbTable.getUserTable(mQuery);
-    mCurrentFragment.init();
+    loadTable(false);
+  }
+
+  /**
+   * Load the table for the current search on a worker thread, and then
+   * initialize the current fragment with it. Any load that is still running
+   * is cancelled. Until it finishes, {@link #getTable()} returns the
+   * previous table, or null if there is none yet.
+   *
+   * @param useSqlWhereClause
+   *          true to use the sql where clause passed in the intent, if any,
+   *          rather than the search text
+   */
+  private void loadTable(boolean useSqlWhereClause) {
+    final DbTable dbTable = mDbTable;
+    final TableProperties tp = mTableProperties;
+    final boolean isOverview = mIsOverview;
+    final String searchText = mSearchText.peek();
+    // There are two options here. The first is that we get the data using the
+    // {@link Query} object. The other is that we use a sql where clause. The
+    // two currently don't play nice together, so figure out which one. The
+    // sql statement gets precedence.
+    final String sqlWhereClause = !useSqlWhereClause ? null :
+        getIntent().getExtras().getString(Controller.INTENT_KEY_SQL_WHERE);
+    final String[] sqlSelectionArgs = getIntent().getExtras().getStringArray(
+        Controller.INTENT_KEY_SQL_SELECTION_ARGS);
+    setSupportProgressBarIndeterminateVisibility(true);
+    mCurrentFragment.onLoading();
+    int priority = mIsResumed ? QueryExecutor.PRIORITY_VISIBLE :
+        QueryExecutor.PRIORITY_BACKGROUND;
+    mDbh.getQueryExecutor().submit(this, priority, new QueryExecutor.Loader() {
+
+      @Override
+      public UserTable load() {
+        if (sqlWhereClause != null) {
+          return dbTable.rawSqlQuery(sqlWhereClause, sqlSelectionArgs);
+        }
+        // We use the query.
+        Query query = new Query(mDbh, KeyValueStore.Type.ACTIVE, tp);
+        query.clear();
+        query.loadFromUserQuery(searchText);
+        return isOverview ? dbTable.getWindowedUserOverviewTable(query) :
+            dbTable.getWindowedUserTable(query);
+      }
+    }, new QueryExecutor.Callback() {
+
+      @Override
+      public void onQueryFinished(UserTable table) {
+        setSupportProgressBarIndeterminateVisibility(false);
+        if (table == null) {
+          Log.e(t, "could not load table " + tp.getTableId());
+          return;
+        }
+        mTable = table;
+        mCurrentFragment.init();
+      }
+    });
+  }
+
+  /**
+   * @return True if the table for the current search is still being loaded.
+   */
+  public boolean isLoading() {
+    return mDbh.getQueryExecutor().isLoading(this);
   }
 
   public void onSearchButtonClick(View v) {
@@ -221,22 +221,22 @@ public class ColorRule {
       } else {
         columnType = cp.getColumnType();
       }
-      // Get the value we're testing against.
-      String testValue = row.getDataOrMetadataByElementKey(mElementKey);
-      if (testValue == null) {
-        testValue = "";
-      }
       int compVal;
         if((columnType == ColumnType.NUMBER ||
             columnType == ColumnType.INTEGER)){
-          if (testValue.equals("")) {
+          // read the number directly rather than via its String form.
+          if (row.isEmptyByElementKey(mElementKey)) {
             return false;
           }
-            double doubleValue = Double.parseDouble(testValue);
+            double doubleValue = row.getDataAsDoubleByElementKey(mElementKey);
             double doubleRule = Double.parseDouble(mValue);
-            compVal = (Double.valueOf(doubleValue))
-                .compareTo(Double.valueOf(doubleRule));
+            compVal = Double.compare(doubleValue, doubleRule);
         } else {
+            // Get the value we're testing against.
+            String testValue = row.getDataOrMetadataByElementKey(mElementKey);
+            if (testValue == null) {
+              testValue = "";
+            }
             compVal = testValue.compareTo(mValue);
         }
         switch(mOperator) {
@@ -195,6 +195,62 @@ public class ColumnDefinitions {
     return columnDefMap;
   }
 
+  /**
+   * Return the maps of columnName->Value of
+   * {@link #getColumnDefinitionFields(String, String, SQLiteDatabase)} for
+   * every column of every table in a single query, keyed by table id and then
+   * by element key.
+   * <p>
+   * Does not close the database.
+   * @param db
+   * @return
+   */
+  public static Map<String, Map<String, Map<String, String>>>
+      getColumnDefinitionFieldsForAllTables(SQLiteDatabase db) {
+    Cursor c = null;
+    Map<String, Map<String, Map<String, String>>> allFields =
+        new HashMap<String, Map<String, Map<String, String>>>();
+    try {
+      c = db.query(DB_BACKING_NAME,
+          columnNames.toArray(new String[columnNames.size()]), null, null,
+          null, null, null);
+      int dbTableIdIndex = c.getColumnIndexOrThrow(ColumnDefinitionsColumns.TABLE_ID);
+      int dbElementKeyIndex = c.getColumnIndexOrThrow(ColumnDefinitionsColumns.ELEMENT_KEY);
+      int dbElementNameIndex = c.getColumnIndexOrThrow(ColumnDefinitionsColumns.ELEMENT_NAME);
+      int dbElementTypeIndex = c.getColumnIndexOrThrow(ColumnDefinitionsColumns.ELEMENT_TYPE);
+      int dbListChildElementKeysIndex =
+          c.getColumnIndexOrThrow(ColumnDefinitionsColumns.LIST_CHILD_ELEMENT_KEYS);
+      int dbUnitOfRetentionIndex = c.getColumnIndexOrThrow(ColumnDefinitionsColumns.IS_UNIT_OF_RETENTION);
+      while (c.moveToNext()) {
+        String tableId = c.getString(dbTableIdIndex);
+        String elementKey = c.getString(dbElementKeyIndex);
+        Map<String, Map<String, String>> tableColumns = allFields.get(tableId);
+        if (tableColumns == null) {
+          tableColumns = new HashMap<String, Map<String, String>>();
+          allFields.put(tableId, tableColumns);
+        }
+        Map<String, String> columnDefMap = new HashMap<String, String>();
+        columnDefMap.put(ColumnDefinitionsColumns.TABLE_ID, tableId);
+        columnDefMap.put(ColumnDefinitionsColumns.ELEMENT_KEY, elementKey);
+        columnDefMap.put(ColumnDefinitionsColumns.ELEMENT_NAME, c.getString(dbElementNameIndex));
+        columnDefMap.put(ColumnDefinitionsColumns.ELEMENT_TYPE, c.getString(dbElementTypeIndex));
+        columnDefMap.put(ColumnDefinitionsColumns.LIST_CHILD_ELEMENT_KEYS,
+            c.getString(dbListChildElementKeysIndex));
+        columnDefMap.put(ColumnDefinitionsColumns.IS_UNIT_OF_RETENTION, Boolean.toString(
+            c.getInt(dbUnitOfRetentionIndex) == 1));
+        if (tableColumns.put(elementKey, columnDefMap) != null) {
+          Log.e(TAG, "query for tableId: " + tableId + " and elementKey: " +
+              elementKey + " returned >1 row in ColumnDefinitions");
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return allFields;
+  }
+
   /**
    * Set the value for the given column name for the row that matches the
    * passed in tableId and the passed in element Key.
@@ -514,6 +514,40 @@ public class ColumnProperties {
     }
   }
 
+  /**
+   * Construct the ColumnProperties for all the columns in a table from values
+   * already read from the database, as by
+   * {@link ColumnDefinitions#getColumnDefinitionFieldsForAllTables(SQLiteDatabase)}
+   * and
+   * {@link KeyValueStoreManager#getKeyValuesForAllTables(SQLiteDatabase, KeyValueStore.Type, String)}.
+   *
+   * @param dbh
+   * @param tableId
+   * @param columnDefinitions
+   *          the column definition fields of the table's columns, by element
+   *          key
+   * @param kvsProps
+   *          the key values of the column partition of the table, by element
+   *          key (the aspect), or null if there are none
+   * @param typeOfStore
+   * @return a map of elementKey to ColumnProperties for all columns.
+   */
+  static Map<String, ColumnProperties> constructColumnPropertiesForTable(DbHelper dbh,
+      String tableId, Map<String, Map<String, String>> columnDefinitions,
+      Map<String, Map<String, String>> kvsProps, KeyValueStore.Type typeOfStore) {
+    Map<String, ColumnProperties> elementKeyToColumnProperties = new HashMap<String, ColumnProperties>();
+    for (Map.Entry<String, Map<String, String>> column : columnDefinitions.entrySet()) {
+      String elementKey = column.getKey();
+      Map<String, String> kvsMap = (kvsProps == null) ? null : kvsProps.get(elementKey);
+      if (kvsMap == null) {
+        kvsMap = new HashMap<String, String>();
+      }
+      elementKeyToColumnProperties.put(elementKey, constructPropertiesFromMap(dbh, tableId,
+          elementKey, column.getValue(), kvsMap, typeOfStore));
+    }
+    return elementKeyToColumnProperties;
+  }
+
   /**
    * Retrieve the ColumnProperties for the column specified by the given table
    * id and the given dbElementKey.
@@ -959,6 +993,8 @@ public class ColumnProperties {
       if ( displayName == null || displayName.length() == 0 ) {
         throw new IllegalArgumentException("displayName is not valid: " + displayName);
       }
+      // user queries name columns by their display names.
+      dbh.getQueryPlanCache().clear();
       // parse the existing jsonStringifyDisplayName value...
       if (jsonStringifyDisplayName != null && jsonStringifyDisplayName.length() > 0) {
         Object displayObject = mapper.readValue(jsonStringifyDisplayName, Object.class);
@@ -982,6 +1018,8 @@ public class ColumnProperties {
         this.jsonStringifyDisplayName = newJsonStringifyDisplayName;
         this.displayName = displayName;
       }
+      // cached tables have the old name in their headers.
+      dbh.getQueryResultCache().noteTableModified(tableId);
     } catch (JsonParseException e) {
       e.printStackTrace();
       throw new IllegalArgumentException("displayName is not JSON.stringify() content: " + jsonStringifyDisplayName);
@@ -1028,6 +1066,8 @@ public class ColumnProperties {
   public void setFooterMode(FooterMode footerMode) {
     setStringProperty(KEY_FOOTER_MODE, footerMode.name());
     this.footerMode = footerMode;
+    // cached tables have footers computed with the old mode.
+    dbh.getQueryResultCache().noteTableModified(tableId);
   }
 
   /**
@@ -1079,6 +1119,8 @@ public class ColumnProperties {
   public void setSmsLabel(String abbreviation) {
     setStringProperty(KEY_SMS_LABEL, abbreviation);
     this.smsLabel = abbreviation;
+    // user queries may name columns by their sms labels.
+    dbh.getQueryPlanCache().clear();
   }
 
   /**
@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.annotation.SuppressLint;
+import android.database.Cursor;
+
+/**
+ * Column-oriented storage for the values of a {@link UserTable}.
+ * <p>
+ * {@link ColumnType#INTEGER} and {@link ColumnType#NUMBER} columns are kept
+ * in primitive arrays with a null bitmap. All other columns are
+ * dictionary-encoded, so repeated values (sync states, choices, etc) are held
+ * only once. This replaces the two String arrays and one String per cell that
+ * a row-oriented table would need.
+ * <p>
+ * SQLite does not enforce column types, so a value that does not match the
+ * type of its column is kept verbatim. {@link #getString(int, int)} therefore
+ * always returns exactly what reading the cursor as a String would have.
+ * <p>
+ * Rows can be inserted and removed in place, so that a table can be patched
+ * after a few of its rows change. Each costs time linear in the number of
+ * rows after the one inserted or removed.
+ */
+class ColumnStore {
+
+  private final Column[] mColumns;
+  private int mRowCount;
+
+  /**
+   * @param types the type of each column. Anything other than INTEGER or
+   * NUMBER (including null) is stored as a string.
+   * @param rowCount the number of rows the store will hold
+   */
+  ColumnStore(ColumnType[] types, int rowCount) {
+    this.mRowCount = rowCount;
+    this.mColumns = new Column[types.length];
+    for (int i = 0; i < types.length; i++) {
+      if (types[i] == ColumnType.INTEGER) {
+        mColumns[i] = new LongColumn(rowCount);
+      } else if (types[i] == ColumnType.NUMBER) {
+        mColumns[i] = new DoubleColumn(rowCount);
+      } else {
+        mColumns[i] = new StringColumn(rowCount);
+      }
+    }
+  }
+
+  private ColumnStore(ColumnStore store) {
+    this.mRowCount = store.mRowCount;
+    this.mColumns = new Column[store.mColumns.length];
+    for (int i = 0; i < mColumns.length; i++) {
+      mColumns[i] = store.mColumns[i].copy();
+    }
+  }
+
+  /**
+   * @return a copy of the store, which can be changed without changing this
+   * one
+   */
+  ColumnStore copy() {
+    return new ColumnStore(this);
+  }
+
+  int getRowCount() {
+    return mRowCount;
+  }
+
+  int getColumnCount() {
+    return mColumns.length;
+  }
+
+  /**
+   * Read the row the cursor is currently positioned on into the given row.
+   * @param c
+   * @param cursorIndices the cursor index of each column in the store
+   * @param rowNum
+   */
+  void read(Cursor c, int[] cursorIndices, int rowNum) {
+    for (int i = 0; i < mColumns.length; i++) {
+      mColumns[i].read(c, cursorIndices[i], rowNum);
+    }
+  }
+
+  /**
+   * Set a value from its String representation.
+   */
+  void set(int rowNum, int colNum, String value) {
+    mColumns[colNum].set(rowNum, value);
+  }
+
+  String getString(int rowNum, int colNum) {
+    return mColumns[colNum].getString(rowNum);
+  }
+
+  boolean isNull(int rowNum, int colNum) {
+    return mColumns[colNum].isNull(rowNum);
+  }
+
+  /**
+   * @throws NumberFormatException if the value is null or not an integer
+   */
+  long getLong(int rowNum, int colNum) {
+    return mColumns[colNum].getLong(rowNum);
+  }
+
+  /**
+   * @throws NumberFormatException if the value is null or not a number
+   */
+  double getDouble(int rowNum, int colNum) {
+    return mColumns[colNum].getDouble(rowNum);
+  }
+
+  /**
+   * Forget the values of the row, so that it can be read or set again. Its
+   * values are undefined until then.
+   */
+  void resetRow(int rowNum) {
+    for (Column column : mColumns) {
+      column.reset(rowNum);
+    }
+  }
+
+  /**
+   * Insert a row at rowNum, moving the rows from rowNum on down by one. The
+   * values of the new row are undefined until they are read or set.
+   */
+  void insertRow(int rowNum) {
+    if (rowNum < 0 || rowNum > mRowCount) {
+      throw new IndexOutOfBoundsException("Invalid row index " + rowNum +
+          ", size is " + mRowCount);
+    }
+    for (Column column : mColumns) {
+      column.insertRow(rowNum, mRowCount);
+    }
+    mRowCount++;
+  }
+
+  /**
+   * Remove the row at rowNum, moving the rows after it up by one.
+   */
+  void removeRow(int rowNum) {
+    if (rowNum < 0 || rowNum >= mRowCount) {
+      throw new IndexOutOfBoundsException("Invalid row index " + rowNum +
+          ", size is " + mRowCount);
+    }
+    for (Column column : mColumns) {
+      column.removeRow(rowNum, mRowCount);
+    }
+    mRowCount--;
+  }
+
+  /**
+   * The capacity to grow an array of the given length to, so that it holds
+   * at least minCapacity values.
+   */
+  private static int grownCapacity(int length, int minCapacity) {
+    return Math.max(minCapacity, length + (length >> 1) + 1);
+  }
+
+  /**
+   * A single column. Values that cannot be held in the column's native
+   * representation go in mOther, keyed by row number.
+   */
+  private static abstract class Column {
+
+    protected final BitSet mNulls;
+    private Map<Integer, String> mOther = null;
+
+    Column(int rowCount) {
+      this.mNulls = new BitSet(rowCount);
+    }
+
+    Column(Column column) {
+      this.mNulls = (BitSet) column.mNulls.clone();
+      if (column.mOther != null) {
+        this.mOther = new HashMap<Integer, String>(column.mOther);
+      }
+    }
+
+    abstract Column copy();
+
+    @SuppressLint("NewApi")
+    void read(Cursor c, int cursorIndex, int rowNum) {
+      if (android.os.Build.VERSION.SDK_INT < 11) {
+        // getType() is not yet supported.
+        set(rowNum, UserTable.getIndexAsString(c, cursorIndex));
+        return;
+      }
+      switch (c.getType(cursorIndex)) {
+      case Cursor.FIELD_TYPE_NULL:
+        mNulls.set(rowNum);
+        break;
+      case Cursor.FIELD_TYPE_INTEGER:
+        readLong(c.getLong(cursorIndex), rowNum);
+        break;
+      case Cursor.FIELD_TYPE_FLOAT:
+        readDouble(c.getDouble(cursorIndex), rowNum);
+        break;
+      case Cursor.FIELD_TYPE_STRING:
+        set(rowNum, c.getString(cursorIndex));
+        break;
+      default:
+      case Cursor.FIELD_TYPE_BLOB:
+        throw new IllegalStateException("Unexpected data type in SQLite table");
+      }
+    }
+
+    void readLong(long value, int rowNum) {
+      setOther(rowNum, Long.toString(value));
+    }
+
+    void readDouble(double value, int rowNum) {
+      setOther(rowNum, Double.toString(value));
+    }
+
+    abstract void set(int rowNum, String value);
+
+    abstract String getNativeString(int rowNum);
+
+    abstract long getNativeLong(int rowNum);
+
+    abstract double getNativeDouble(int rowNum);
+
+    /**
+     * Move length native values from index from to index to, growing the
+     * native storage if need be.
+     */
+    abstract void moveNative(int from, int to, int length);
+
+    void reset(int rowNum) {
+      mNulls.clear(rowNum);
+      if (mOther != null) {
+        mOther.remove(rowNum);
+      }
+    }
+
+    void insertRow(int rowNum, int rowCount) {
+      moveNative(rowNum, rowNum + 1, rowCount - rowNum);
+      for (int i = rowCount; i > rowNum; i--) {
+        mNulls.set(i, mNulls.get(i - 1));
+      }
+      shiftOther(rowNum, 1);
+      reset(rowNum);
+    }
+
+    void removeRow(int rowNum, int rowCount) {
+      moveNative(rowNum + 1, rowNum, rowCount - rowNum - 1);
+      for (int i = rowNum; i < rowCount - 1; i++) {
+        mNulls.set(i, mNulls.get(i + 1));
+      }
+      mNulls.clear(rowCount - 1);
+      if (mOther != null) {
+        mOther.remove(rowNum);
+        shiftOther(rowNum + 1, -1);
+      }
+    }
+
+    /**
+     * Renumber the values in mOther from row from on by delta.
+     */
+    private void shiftOther(int from, int delta) {
+      if (mOther == null) {
+        return;
+      }
+      Map<Integer, String> shifted = new HashMap<Integer, String>();
+      for (Map.Entry<Integer, String> entry : mOther.entrySet()) {
+        int rowNum = entry.getKey();
+        shifted.put((rowNum >= from) ? rowNum + delta : rowNum,
+            entry.getValue());
+      }
+      mOther = shifted;
+    }
+
+    protected void setOther(int rowNum, String value) {
+      if (mOther == null) {
+        mOther = new HashMap<Integer, String>();
+      }
+      mOther.put(rowNum, value);
+    }
+
+    private String getOther(int rowNum) {
+      return (mOther == null) ? null : mOther.get(rowNum);
+    }
+
+    boolean isNull(int rowNum) {
+      return mNulls.get(rowNum);
+    }
+
+    String getString(int rowNum) {
+      if (mNulls.get(rowNum)) {
+        return null;
+      }
+      String other = getOther(rowNum);
+      return (other != null) ? other : getNativeString(rowNum);
+    }
+
+    long getLong(int rowNum) {
+      if (mNulls.get(rowNum)) {
+        throw new NumberFormatException("null value");
+      }
+      String other = getOther(rowNum);
+      return (other != null) ? Long.parseLong(other) : getNativeLong(rowNum);
+    }
+
+    double getDouble(int rowNum) {
+      if (mNulls.get(rowNum)) {
+        throw new NumberFormatException("null value");
+      }
+      String other = getOther(rowNum);
+      return (other != null) ? Double.parseDouble(other) :
+          getNativeDouble(rowNum);
+    }
+  }
+
+  private static final class LongColumn extends Column {
+
+    private long[] mValues;
+
+    LongColumn(int rowCount) {
+      super(rowCount);
+      this.mValues = new long[rowCount];
+    }
+
+    private LongColumn(LongColumn column) {
+      super(column);
+      this.mValues = column.mValues.clone();
+    }
+
+    @Override
+    Column copy() {
+      return new LongColumn(this);
+    }
+
+    @Override
+    void readLong(long value, int rowNum) {
+      mValues[rowNum] = value;
+    }
+
+    @Override
+    void set(int rowNum, String value) {
+      if (value == null) {
+        mNulls.set(rowNum);
+        return;
+      }
+      // only keep it natively if it will print back out identically.
+      try {
+        long l = Long.parseLong(value);
+        if (Long.toString(l).equals(value)) {
+          mValues[rowNum] = l;
+          return;
+        }
+      } catch (NumberFormatException e) {
+        // fall through
+      }
+      setOther(rowNum, value);
+    }
+
+    @Override
+    String getNativeString(int rowNum) {
+      return Long.toString(mValues[rowNum]);
+    }
+
+    @Override
+    void moveNative(int from, int to, int length) {
+      if (to + length > mValues.length) {
+        long[] grown = new long[grownCapacity(mValues.length, to + length)];
+        System.arraycopy(mValues, 0, grown, 0, mValues.length);
+        mValues = grown;
+      }
+      System.arraycopy(mValues, from, mValues, to, length);
+    }
+
+    @Override
+    long getNativeLong(int rowNum) {
+      return mValues[rowNum];
+    }
+
+    @Override
+    double getNativeDouble(int rowNum) {
+      return mValues[rowNum];
+    }
+  }
+
+  private static final class DoubleColumn extends Column {
+
+    private double[] mValues;
+
+    DoubleColumn(int rowCount) {
+      super(rowCount);
+      this.mValues = new double[rowCount];
+    }
+
+    private DoubleColumn(DoubleColumn column) {
+      super(column);
+      this.mValues = column.mValues.clone();
+    }
+
+    @Override
+    Column copy() {
+      return new DoubleColumn(this);
+    }
+
+    @Override
+    void readDouble(double value, int rowNum) {
+      mValues[rowNum] = value;
+    }
+
+    @Override
+    void set(int rowNum, String value) {
+      if (value == null) {
+        mNulls.set(rowNum);
+        return;
+      }
+      // only keep it natively if it will print back out identically.
+      try {
+        double d = Double.parseDouble(value);
+        if (Double.toString(d).equals(value)) {
+          mValues[rowNum] = d;
+          return;
+        }
+      } catch (NumberFormatException e) {
+        // fall through
+      }
+      setOther(rowNum, value);
+    }
+
+    @Override
+    String getNativeString(int rowNum) {
+      return Double.toString(mValues[rowNum]);
+    }
+
+    @Override
+    void moveNative(int from, int to, int length) {
+      if (to + length > mValues.length) {
+        double[] grown =
+            new double[grownCapacity(mValues.length, to + length)];
+        System.arraycopy(mValues, 0, grown, 0, mValues.length);
+        mValues = grown;
+      }
+      System.arraycopy(mValues, from, mValues, to, length);
+    }
+
+    @Override
+    long getNativeLong(int rowNum) {
+      return (long) mValues[rowNum];
+    }
+
+    @Override
+    double getNativeDouble(int rowNum) {
+      return mValues[rowNum];
+    }
+  }
+
+  private static final class StringColumn extends Column {
+
+    private int[] mCodes;
+    private final ArrayList<String> mDictionary;
+    private final Map<String, Integer> mCodeOfValue;
+
+    StringColumn(int rowCount) {
+      super(rowCount);
+      this.mCodes = new int[rowCount];
+      this.mDictionary = new ArrayList<String>();
+      this.mCodeOfValue = new HashMap<String, Integer>();
+    }
+
+    private StringColumn(StringColumn column) {
+      super(column);
+      this.mCodes = column.mCodes.clone();
+      this.mDictionary = new ArrayList<String>(column.mDictionary);
+      this.mCodeOfValue = new HashMap<String, Integer>(column.mCodeOfValue);
+    }
+
+    @Override
+    Column copy() {
+      return new StringColumn(this);
+    }
+
+    @Override
+    void set(int rowNum, String value) {
+      if (value == null) {
+        mNulls.set(rowNum);
+        return;
+      }
+      Integer code = mCodeOfValue.get(value);
+      if (code == null) {
+        code = mDictionary.size();
+        mDictionary.add(value);
+        mCodeOfValue.put(value, code);
+      }
+      mCodes[rowNum] = code;
+    }
+
+    @Override
+    String getNativeString(int rowNum) {
+      return mDictionary.get(mCodes[rowNum]);
+    }
+
+    @Override
+    void moveNative(int from, int to, int length) {
+      if (to + length > mCodes.length) {
+        int[] grown = new int[grownCapacity(mCodes.length, to + length)];
+        System.arraycopy(mCodes, 0, grown, 0, mCodes.length);
+        mCodes = grown;
+      }
+      System.arraycopy(mCodes, from, mCodes, to, length);
+    }
+
+    @Override
+    long getNativeLong(int rowNum) {
+      return Long.parseLong(getNativeString(rowNum));
+    }
+
+    @Override
+    double getNativeDouble(int rowNum) {
+      return Double.parseDouble(getNativeString(rowNum));
+    }
+  }
+}
@@ -46,6 +46,22 @@ public class DataUtil {
     private static final DateTimeFormatter DB_DATETIME_FORMATTER =
         DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ").withZoneUTC();
 
+    /**
+     * The length of a date-time in the storage format as it is written by
+     * {@link #formatDateTimeForDb(DateTime)}, e.g.
+     * "2013-04-05T13:05:00.000+0000". Strings of this shape are parsed and
+     * printed by hand, which is several times faster than going through
+     * {@link #DB_DATETIME_FORMATTER}; anything else is left to Joda.
+     */
+    private static final int DB_DATETIME_LENGTH = 28;
+    /** The length of a date in the form "yyyy-MM-dd". */
+    private static final int DB_DATE_LENGTH = 10;
+    /** Returned by the hand-written parser for strings it does not handle. */
+    private static final long NOT_PARSED = Long.MIN_VALUE;
+    private static final long MILLIS_PER_DAY = 86400000L;
+    private static final int[] DAYS_IN_MONTH =
+        {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
     private static final String[] USER_FULL_DATETIME_PATTERNS = {
         "yyyy-MM-dd'T'HH:mm:ss.SSSZ", // ODK Collect format
         "M/d/yy h:mm:ssa",
@@ -394,6 +410,11 @@ public class DataUtil {
 
     public DateTime tryParseInstant(String input) {
         input = input.trim();
+        // values copied from the database or from Collect
+        long millis = parseDbDateTimeMillis(input);
+        if (millis != NOT_PARSED) {
+          return new DateTime(millis, tz);
+        }
         if (input.equalsIgnoreCase("now")) {
           return new DateTime();
         }
@@ -418,6 +439,23 @@ public class DataUtil {
     }
 
     public Interval tryParseInterval(String input) {
+        // a "yyyy-MM-dd" date, as Collect writes them, is the day from
+        // midnight
+        int yearMonthDay = (input.length() == DB_DATE_LENGTH) ?
+            parseDbDate(input) : -1;
+        if (yearMonthDay >= 0) {
+            try {
+                DateTime start = new DateTime(yearMonthDay / 10000,
+                    yearMonthDay / 100 % 100, yearMonthDay % 100,
+                    0, 0, 0, 0, tz);
+                DateTime end = start.plusSeconds(
+                    USER_INTERVAL_DURATIONS[USER_INTERVAL_DURATIONS.length - 1]);
+                return new Interval(start, end);
+            } catch (IllegalArgumentException e) {
+                // midnight is skipped by a daylight saving change; leave it
+                // to the parsers below.
+            }
+        }
         for (int i = 0; i < userPartialParsers.length; i++) {
             try {
                 DateTime start = userPartialParsers[i].parseDateTime(input);
@@ -469,7 +507,31 @@ public class DataUtil {
     }
 
     public String formatDateTimeForDb(DateTime dt) {
-        return DB_DATETIME_FORMATTER.print(dt);
+        long millis = dt.getMillis();
+        long days = floorDiv(millis, MILLIS_PER_DAY);
+        int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+        long yearMonthDay = civilFromDays(days);
+        if (yearMonthDay < 0 || yearMonthDay > 99991231) {
+            // not a four-digit year
+            return DB_DATETIME_FORMATTER.print(dt);
+        }
+        char[] buf = new char[DB_DATETIME_LENGTH];
+        printDigits(buf, 0, 4, (int) (yearMonthDay / 10000));
+        buf[4] = '-';
+        printDigits(buf, 5, 2, (int) (yearMonthDay / 100 % 100));
+        buf[7] = '-';
+        printDigits(buf, 8, 2, (int) (yearMonthDay % 100));
+        buf[10] = 'T';
+        printDigits(buf, 11, 2, millisOfDay / 3600000);
+        buf[13] = ':';
+        printDigits(buf, 14, 2, millisOfDay / 60000 % 60);
+        buf[16] = ':';
+        printDigits(buf, 17, 2, millisOfDay / 1000 % 60);
+        buf[19] = '.';
+        printDigits(buf, 20, 3, millisOfDay % 1000);
+        buf[23] = '+';
+        printDigits(buf, 24, 4, 0);
+        return new String(buf);
     }
 
     public String formatIntervalForDb(Interval interval) {
@@ -482,14 +544,18 @@ public class DataUtil {
     }
 
     public DateTime parseDateTimeFromDb(String dbString) {
+        long millis = parseDbDateTimeMillis(dbString);
+        if (millis != NOT_PARSED) {
+            return new DateTime(millis, DateTimeZone.UTC);
+        }
         return DB_DATETIME_FORMATTER.parseDateTime(dbString);
     }
 
     public Interval parseIntervalFromDb(String dbString) {
     	// TODO: range should not be slash-separated but stored as two columns OR json in db...
         String[] split = dbString.split("/");
-        return new Interval(DB_DATETIME_FORMATTER.parseDateTime(split[0]),
-                DB_DATETIME_FORMATTER.parseDateTime(split[1]));
+        return new Interval(parseDateTimeFromDb(split[0]),
+                parseDateTimeFromDb(split[1]));
     }
 
     public String formatForUserDisplay(ColumnProperties cp, String value) {
@@ -533,4 +599,142 @@ public class DataUtil {
         return new double[] {Double.parseDouble(split[0]),
                 Double.parseDouble(split[1])};
     }
+
+    /**
+     * Parse a date-time in the storage format, i.e. exactly
+     * "yyyy-MM-ddTHH:mm:ss.SSS" followed by an offset of the form "+HHmm".
+     * @param s
+     * @return the instant in milliseconds, or {@link #NOT_PARSED} if the
+     * string is not of that form or is not a valid date-time
+     */
+    static long parseDbDateTimeMillis(String s) {
+        if (s.length() != DB_DATETIME_LENGTH || s.charAt(10) != 'T' ||
+                s.charAt(13) != ':' || s.charAt(16) != ':' ||
+                s.charAt(19) != '.') {
+            return NOT_PARSED;
+        }
+        int yearMonthDay = parseDbDate(s);
+        int hour = parseDigits(s, 11, 2);
+        int minute = parseDigits(s, 14, 2);
+        int second = parseDigits(s, 17, 2);
+        int millis = parseDigits(s, 20, 3);
+        char sign = s.charAt(23);
+        int offsetHours = parseDigits(s, 24, 2);
+        int offsetMinutes = parseDigits(s, 26, 2);
+        if (yearMonthDay < 0 || hour < 0 || hour > 23 || minute < 0 ||
+                minute > 59 || second < 0 || second > 59 || millis < 0 ||
+                (sign != '+' && sign != '-') || offsetHours < 0 ||
+                offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59) {
+            return NOT_PARSED;
+        }
+        long days = daysFromCivil(yearMonthDay / 10000,
+                yearMonthDay / 100 % 100, yearMonthDay % 100);
+        long offset = (offsetHours * 60 + offsetMinutes) * 60000L;
+        if (sign == '-') {
+            offset = -offset;
+        }
+        return days * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L +
+                second * 1000L + millis - offset;
+    }
+
+    /**
+     * Parse a date of the form "yyyy-MM-dd" at the start of the string. The
+     * whole string must be the date unless it is a full date-time.
+     * @param s
+     * @return year * 10000 + month * 100 + day, or -1 if there is no valid
+     * date
+     */
+    private static int parseDbDate(String s) {
+        if ((s.length() != DB_DATE_LENGTH &&
+                s.length() != DB_DATETIME_LENGTH) ||
+                s.charAt(4) != '-' || s.charAt(7) != '-') {
+            return -1;
+        }
+        int year = parseDigits(s, 0, 4);
+        int month = parseDigits(s, 5, 2);
+        int day = parseDigits(s, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1) {
+            return -1;
+        }
+        int monthLength = DAYS_IN_MONTH[month - 1];
+        if (month == 2 && (year % 4 == 0) &&
+                (year % 100 != 0 || year % 400 == 0)) {
+            monthLength = 29;
+        }
+        if (day > monthLength) {
+            return -1;
+        }
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * @return the value of the decimal digits, or -1 if any of the
+     * characters is not one
+     */
+    private static int parseDigits(String s, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void printDigits(char[] buf, int start, int length,
+            int value) {
+        for (int i = start + length - 1; i >= start; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * @return the number of days from 1970-01-01 to the date in the
+     * proleptic Gregorian calendar, as ISOChronology counts them
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) {
+            year--;
+        }
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        int shiftedMonth = (month > 2) ? month - 3 : month + 9;
+        long dayOfYear = (153 * shiftedMonth + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 +
+                dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * The inverse of {@link #daysFromCivil(int, int, int)}.
+     * @return year * 10000 + month * 100 + day
+     */
+    private static long civilFromDays(long days) {
+        days += 719468;
+        long era = (days >= 0 ? days : days - 146096) / 146097;
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 -
+                dayOfEra / 146096) / 365;
+        long year = yearOfEra + era * 400;
+        long dayOfYear = dayOfEra -
+                (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        long month = (shiftedMonth < 10) ? shiftedMonth + 3 : shiftedMonth - 9;
+        if (month <= 2) {
+            year++;
+        }
+        return year * 10000 + month * 100 + day;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
 }
@@ -15,28 +15,85 @@
  */
 package org.opendatakit.tables.data;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.opendatakit.tables.utils.TableFileUtils;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
 
 /**
  * A helper class for the database.
+ * <p>
+ * Where the platform supports it (API 11 and up), the database is put in
+ * write-ahead logging mode. SQLiteDatabase then runs queries that are not
+ * part of a transaction on a pool of read connections, separate from the
+ * connection used for writes, so table screens and the javascript interface
+ * can read while a sync or import is writing in a long transaction. Writers
+ * should not read through {@link #getReadableDatabase()} on another thread
+ * and wait for the result inside their transaction, and readers should not
+ * open transactions, or they will be serialized with the writes again.
  *
  * @author hkworden@gmail.com
  * @author sudar.sam@gmail.com
  */
 public class DbHelper {
 
+    private static final String TAG = "DbHelper";
+
+    /**
+     * The number of compiled statements SQLite keeps per connection. Raised
+     * from the default so that the SQL reused through {@link QuerySqlCache}
+     * is not recompiled. SQLiteDatabase caps this at 100.
+     */
+    static final int SQL_STATEMENT_CACHE_SIZE = 100;
+
     private DbHelperImpl impl;
 
+    private final QuerySqlCache mQuerySqlCache = new QuerySqlCache();
+
+    private final QueryResultCache mQueryResultCache = new QueryResultCache();
+
+    private final QueryPlanCache mQueryPlanCache = new QueryPlanCache();
+
+    private final HashJoinCache mHashJoinCache = new HashJoinCache();
+
+    private final KeyValueStoreCache mKeyValueStoreCache =
+        new KeyValueStoreCache();
+
+    private final SlowQueryLog mSlowQueryLog;
+
+    /**
+     * Created on first use, so that its threads are only started when they
+     * are needed.
+     */
+    private QueryExecutor mQueryExecutor = null;
+
+    /**
+     * The database whose statement cache size has been set, so that it is
+     * only done once per connection.
+     */
+    private SQLiteDatabase mConfiguredDb = null;
+
+    /**
+     * The database put in write-ahead logging mode, so that it is only done
+     * once per connection. Not set if that failed because a transaction was
+     * open, so that it is tried again.
+     */
+    private SQLiteDatabase mWalDb = null;
+    private boolean mWalEnabled = false;
+
     private static Map<String,DbHelper> dbhMap = new HashMap<String,DbHelper>();
 
     private DbHelper(Context context, String appName) {
         impl = DbHelperImpl.getDbHelper(context, appName);
+        mSlowQueryLog = new SlowQueryLog(TableFileUtils.getOutputFolder(appName)
+            + File.separator + TableFileUtils.DEBUG_FOLDER_NAME);
     }
 
     public static synchronized DbHelper getDbHelper(Context context, String appName) {
@@ -53,10 +110,107 @@ public class DbHelper {
     }
 
     public SQLiteDatabase getReadableDatabase() {
-      return impl.getReadableDatabase();
+      return configure(impl.getReadableDatabase());
     }
 
     public SQLiteDatabase getWritableDatabase() {
-      return impl.getWritableDatabase();
+      return configure(impl.getWritableDatabase());
+    }
+
+    /**
+     * @return the cache of SQL generated for queries against this database
+     */
+    public QuerySqlCache getQuerySqlCache() {
+      return mQuerySqlCache;
+    }
+
+    /**
+     * @return the cache of tables built for queries against this database
+     */
+    public QueryResultCache getQueryResultCache() {
+      return mQueryResultCache;
+    }
+
+    /**
+     * @return the cache of plans made from user queries against this database
+     */
+    public QueryPlanCache getQueryPlanCache() {
+      return mQueryPlanCache;
+    }
+
+    /**
+     * @return the cache of join sides for hash joins against this database
+     */
+    public HashJoinCache getHashJoinCache() {
+      return mHashJoinCache;
+    }
+
+    /**
+     * @return the cache of the key value store entries in this database
+     */
+    public KeyValueStoreCache getKeyValueStoreCache() {
+      return mKeyValueStoreCache;
+    }
+
+    /**
+     * @return the timings of the queries run against this database
+     */
+    public SlowQueryLog getSlowQueryLog() {
+      return mSlowQueryLog;
+    }
+
+    /**
+     * @return the executor that runs queries against this database off of
+     * the UI thread
+     */
+    public synchronized QueryExecutor getQueryExecutor() {
+      if (mQueryExecutor == null) {
+        mQueryExecutor = new QueryExecutor();
+      }
+      return mQueryExecutor;
+    }
+
+    private synchronized SQLiteDatabase configure(SQLiteDatabase db) {
+      if (db != null && db != mConfiguredDb) {
+        try {
+          db.setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
+        } catch (IllegalStateException e) {
+          Log.w(TAG, "unable to set the sql statement cache size: " +
+              e.toString());
+        }
+        mConfiguredDb = db;
+      }
+      if (db != null && db != mWalDb) {
+        enableWriteAheadLogging(db);
+      }
+      return db;
+    }
+
+    /**
+     * @return true if the database is in write-ahead logging mode, so that
+     * reads are not blocked by writes
+     */
+    public synchronized boolean isWriteAheadLoggingEnabled() {
+      return mWalEnabled && mWalDb != null && mWalDb.isOpen();
+    }
+
+    @SuppressLint("NewApi")
+    private void enableWriteAheadLogging(SQLiteDatabase db) {
+      if (Build.VERSION.SDK_INT < 11) {
+        return;
+      }
+      try {
+        mWalEnabled = db.enableWriteAheadLogging();
+        if (mWalEnabled) {
+          Log.i(TAG, "write-ahead logging enabled for " + db.getPath());
+        } else {
+          // e.g. an in-memory database; there is nothing to retry.
+          Log.w(TAG, "write-ahead logging not available for " + db.getPath());
+        }
+        mWalDb = db;
+      } catch (IllegalStateException e) {
+        // a transaction is open on another thread; try again next time.
+        Log.w(TAG, "unable to enable write-ahead logging: " + e.toString());
+      }
     }
 }
@@ -16,10 +16,13 @@
 package org.opendatakit.tables.data;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.opendatakit.aggregate.odktables.rest.TableConstants;
@@ -31,7 +34,11 @@ import org.opendatakit.tables.sync.SyncUtil;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -64,6 +71,63 @@ public class DbTable {
    private static final String SQL_WHERE_FOR_SINGLE_ROW = "WHERE " + 
        DataTableColumns.ID + " = ?";
 
+   /**
+    * The SQLite rowid of the data table. Unlike the row id, this is unique
+    * across conflicting versions of a row, so it is used as the key when
+    * paging rows into a windowed {@link UserTable}.
+    */
+   static final String ROW_KEY_COLUMN = "rowid";
+
+   /**
+    * The strategy used by {@link #getUserOverviewTable(Query)} and
+    * {@link #getWindowedUserOverviewTable(Query)}.
+    */
+   public static final Query.OverviewStrategy DEFAULT_OVERVIEW_STRATEGY =
+       Query.OverviewStrategy.LATEST_PER_GROUP;
+
+   /**
+    * The number of rows {@link #addRows(Iterator, int, BulkInsertListener)}
+    * commits at a time, if the caller has no reason to choose otherwise.
+    */
+   public static final int DEFAULT_BULK_INSERT_BATCH_SIZE = 500;
+
+   /**
+    * The most changed rows {@link #refreshUserTable(UserTable, Query)}
+    * patches into a table before it runs the whole query again instead.
+    */
+   static final int MAX_REFRESH_ROWS = 100;
+
+   /**
+    * The number of rows a {@link RowPager} reads at a time, if the caller has
+    * no reason to choose otherwise.
+    */
+   public static final int DEFAULT_PAGE_SIZE = 500;
+
+   /**
+    * Receives the rows of {@link DbTable#streamRows(Query, int, RowCallback)}
+    * a page at a time.
+    */
+   public interface RowCallback {
+
+     /**
+      * @param rows the next page of rows
+      * @return true to go on to the next page, false to stop
+      */
+     boolean onRows(UserTable rows);
+   }
+
+   /**
+    * Notified as {@link DbTable#addRows(Iterator, int, BulkInsertListener)}
+    * commits each batch of rows.
+    */
+   public interface BulkInsertListener {
+
+     /**
+      * @param rowsInserted the number of rows committed so far
+      */
+     void onRowsInserted(int rowsInserted);
+   }
+
 
     /*
      * These are the columns that are present in any row in the database.
@@ -141,6 +205,7 @@ public class DbTable {
     private final TableProperties tp;
 
     public static DbTable getDbTable(DbHelper dbh, TableProperties tp) {
+        DbTableIndexes.ensureIndexesOnce(dbh, tp);
         return new DbTable(dbh, tp);
     }
 
@@ -162,6 +227,21 @@ public class DbTable {
      * @param tp
      */
     static void createDbTable(SQLiteDatabase db, TableProperties tp) {
+        createDbTable(db, tp, true);
+    }
+
+    /**
+     * As {@link #createDbTable(SQLiteDatabase, TableProperties)}, but the
+     * indexes are only created if withIndexes is true. Callers about to copy
+     * in a lot of rows should create them afterwards using
+     * {@link DbTableIndexes}.
+     *
+     * @param db
+     * @param tp
+     * @param withIndexes
+     */
+    static void createDbTable(SQLiteDatabase db, TableProperties tp,
+        boolean withIndexes) {
         StringBuilder colListBuilder = new StringBuilder();
         for (ColumnProperties cp : tp.getDatabaseColumns().values()) {
             colListBuilder.append(", " + cp.getElementKey());
@@ -186,6 +266,9 @@ public class DbTable {
      colListBuilder.toString() +
      ")";
         db.execSQL(toExecute);
+        if (withIndexes) {
+          DbTableIndexes.ensureIndexes(db, tp);
+        }
     }
 
     /**
@@ -247,10 +330,15 @@ public class DbTable {
            if (sqlQuery == null) {
              sqlQuery = buildSelectionSql(selectionKeys);
            } // else we just use the provided one.
+           long start = SlowQueryLog.start();
            c = db.query(tp.getDbTableName(), colArr,
                    sqlQuery,
                    selectionArgs, null, null, orderBy);
            UserTable table = buildTable(c, tp, projection);
+           dbh.getSlowQueryLog().record(db, "getRaw",
+               SQLiteQueryBuilder.buildQueryString(false, tp.getDbTableName(),
+                   colArr, sqlQuery, null, null, orderBy, null),
+               selectionArgs, start, table.getNumberOfRows());
            return table;
        } finally {
          if ( c != null && !c.isClosed() ) {
@@ -297,8 +385,11 @@ public class DbTable {
         String sqlQuery = "SELECT * FROM " + this.tp.getDbTableName() + " " +
             whereClause;
         db = dbh.getReadableDatabase();
+        long start = SlowQueryLog.start();
         c = db.rawQuery(sqlQuery, selectionArgs);
         UserTable table = buildTable(c, tp, tp.getColumnOrder());
+        dbh.getSlowQueryLog().record(db, "rawSqlQuery", sqlQuery,
+            selectionArgs, start, table.getNumberOfRows());
         String[] emptyFooter = getEmptyFooter();
         table.setFooter(emptyFooter);
         return table;
@@ -320,30 +411,465 @@ public class DbTable {
     }
 
     public UserTable getRaw(Query query, String[] columns) {
+      prepareQuery(query);
       List<String> desiredColumns = tp.getColumnOrder();
       desiredColumns.addAll(getAdminColumns());
-        UserTable table = dataQuery(query.toSql(desiredColumns));
-        table.setFooter(footerQuery(query));
-        return table;
+        return cachedDataQuery(query,
+            dbh.getQuerySqlCache().getSql(query, desiredColumns));
     }
 
     public UserTable getUserTable(Query query) {
+      prepareQuery(query);
       List<String> desiredColumns = tp.getColumnOrder();
       desiredColumns.addAll(getAdminColumns());
-        UserTable table = dataQuery(query.toSql(desiredColumns));
-        table.setFooter(footerQuery(query));
-        return table;
+        return cachedDataQuery(query,
+            dbh.getQuerySqlCache().getSql(query, desiredColumns));
+    }
+
+    /**
+     * Return what {@link #getUserTable(Query)} would for the query, reusing a
+     * table it returned earlier. If every write to this table since then
+     * recorded the ids of the rows it changed (as adding, editing or deleting
+     * a single row does, e.g. on returning from Collect or Survey), only
+     * those rows are re-read, and they are replaced in, inserted into or
+     * removed from a copy of the old table. The footer is updated the same
+     * way: counts are adjusted, and only the other footers of columns whose
+     * values changed are recomputed. Otherwise the whole query is run again.
+     * <p>
+     * The old table is not changed, as it may be shared through the
+     * {@link QueryResultCache} (e.g., with another screen).
+     * @param table a table returned by getUserTable or this method for the
+     * same query, or null
+     * @param query
+     * @return the up to date table, which may or may not be the one passed in
+     */
+    public UserTable refreshUserTable(UserTable table, Query query) {
+      prepareQuery(query);
+      List<String> desiredColumns = tp.getColumnOrder();
+      desiredColumns.addAll(getAdminColumns());
+      SqlData sd = dbh.getQuerySqlCache().getSql(query, desiredColumns);
+      QueryResultCache cache = dbh.getQueryResultCache();
+      UserTable cached = cache.get(tp, sd);
+      if (cached != null) {
+        return cached;
+      }
+      if (table == null || table.isWindowed() ||
+          table.getTableProperties() != tp || !table.isBuiltFrom(sd) ||
+          table.getSourceStamp() == null) {
+        return uncachedDataQuery(query, sd);
+      }
+      // stamp before reading the rows, so that a concurrent write is not
+      // missed.
+      QueryResultCache.Stamp stamp = cache.getStamp(query);
+      Set<String> rowIds = cache.getRowsModifiedSince(table.getSourceStamp(),
+          tp.getTableId());
+      if (rowIds == null || rowIds.size() > MAX_REFRESH_ROWS) {
+        return uncachedDataQuery(query, sd);
+      }
+      UserTable refreshed = new UserTable(table);
+      if (!applyRowChanges(refreshed, query, sd, rowIds)) {
+        return uncachedDataQuery(query, sd);
+      }
+      refreshed.setSource(sd, stamp);
+      cache.put(tp, sd, stamp, refreshed);
+      return refreshed;
     }
 
     public UserTable getUserOverviewTable(Query query) {
+      return getUserOverviewTable(query, DEFAULT_OVERVIEW_STRATEGY);
+    }
+
+    /**
+     * Gets the overview table for the query, finding the latest row of each
+     * group with the given strategy.
+     * @param query
+     * @param strategy
+     * @return
+     * @see Query#toOverviewSql(List, Query.OverviewStrategy)
+     */
+    public UserTable getUserOverviewTable(Query query,
+        Query.OverviewStrategy strategy) {
+      prepareQuery(query);
       // The element keys of the columns we want. We want to select both the
       // user-defined and the admin columns--both the user-defined and
       // ODKTables-specified information, in other words.
       List<String> desiredColumns = tp.getColumnOrder();
       desiredColumns.addAll(getAdminColumns());
-        UserTable table = dataQuery(query.toOverviewSql(desiredColumns));
+        return cachedDataQuery(query,
+            dbh.getQuerySqlCache().getOverviewSql(query, desiredColumns,
+                strategy));
+    }
+
+    /**
+     * Gets a windowed {@link UserTable} for the query. Only the row ids are
+     * read up front; the rows are paged in from the database as they are
+     * accessed. Use this rather than {@link #getUserTable(Query)} for tables
+     * that may be too large to hold in memory.
+     * @param query
+     * @return the table, or null if the query failed
+     */
+    public UserTable getWindowedUserTable(Query query) {
+      prepareQuery(query);
+      UserTable table = windowedDataQuery(dbh.getQuerySqlCache().getSql(
+          query, Collections.singletonList(ROW_KEY_COLUMN)));
+      if (table != null) {
         table.setFooter(footerQuery(query));
-        return table;
+      }
+      return table;
+    }
+
+    /**
+     * The windowed equivalent of {@link #getUserOverviewTable(Query)}.
+     * @param query
+     * @return
+     * @see #getWindowedUserTable(Query)
+     */
+    public UserTable getWindowedUserOverviewTable(Query query) {
+      prepareQuery(query);
+      UserTable table = windowedDataQuery(
+          dbh.getQuerySqlCache().getOverviewSql(query,
+              Collections.singletonList(ROW_KEY_COLUMN),
+              DEFAULT_OVERVIEW_STRATEGY));
+      if (table != null) {
+        table.setFooter(footerQuery(query));
+      }
+      return table;
+    }
+
+    /**
+     * Aggregates the rows of the query by the values of the group columns,
+     * computing all of the aggregates in one query rather than fetching the
+     * rows and aggregating them in Java.
+     * @param query
+     * @param groupColumns the element keys of the columns to group by, which
+     * may be empty for a single group of all of the rows
+     * @param dataColumns the element keys of the columns to aggregate. A
+     * COUNT may have a null column to count the rows.
+     * @param types the aggregate for each of the data columns
+     * @return the groups, or null if the query failed
+     * @see Query#toGroupSql(List, List, List)
+     */
+    public GroupedTable getGroupedTable(Query query, List<String> groupColumns,
+        List<String> dataColumns, List<Query.GroupQueryType> types) {
+      checkGroupColumns(groupColumns, dataColumns);
+      prepareQuery(query);
+      SqlData sd = dbh.getQuerySqlCache().getGroupSql(query, groupColumns,
+          dataColumns, types);
+      return groupedQuery(sd.getSql(), sd.getArgs(), groupColumns,
+          dataColumns, types);
+    }
+
+    /**
+     * As {@link #getGroupedTable(Query, List, List, List)}, for the query a
+     * table was built from by {@link #getUserTable(Query)},
+     * {@link #getUserOverviewTable(Query)} or
+     * {@link #refreshUserTable(UserTable, Query)}. This is for callers that
+     * have the table but not the query, like the javascript interface. The
+     * rows are aggregated as they are now in the database.
+     * @param table
+     * @param groupColumns
+     * @param dataColumns
+     * @param types
+     * @return the groups, or null if the table was not built from a query of
+     * this table (e.g., it came from {@link #rawSqlQuery(String, String[])})
+     * or the query failed
+     */
+    public GroupedTable getGroupedTable(UserTable table,
+        List<String> groupColumns, List<String> dataColumns,
+        List<Query.GroupQueryType> types) {
+      checkGroupColumns(groupColumns, dataColumns);
+      String sourceSql = table.getSourceSql();
+      if (sourceSql == null || table.getTableProperties() != tp) {
+        return null;
+      }
+      String sql = "SELECT " + Query.buildGroupSelection("", groupColumns,
+          dataColumns, types) + " FROM (" + sourceSql + ")" +
+          Query.buildGroupBy("", groupColumns);
+      return groupedQuery(sql, table.getSourceArgs(), groupColumns,
+          dataColumns, types);
+    }
+
+    /**
+     * The columns may come from user input (e.g., a text message or a custom
+     * view) and go into the sql as they are, so they must be columns of the
+     * table.
+     */
+    private void checkGroupColumns(List<String> groupColumns,
+        List<String> dataColumns) {
+      List<String> columns = new ArrayList<String>(groupColumns);
+      columns.addAll(dataColumns);
+      for (String elementKey : columns) {
+        if (elementKey != null &&
+            tp.getColumnByElementKey(elementKey) == null) {
+          throw new IllegalArgumentException("no column " + elementKey +
+              " in table " + tp.getTableId());
+        }
+      }
+    }
+
+    private GroupedTable groupedQuery(String sql, String[] args,
+        List<String> groupColumns, List<String> dataColumns,
+        List<Query.GroupQueryType> types) {
+      SQLiteDatabase db = null;
+      Cursor c = null;
+      try {
+        db = dbh.getReadableDatabase();
+        long start = SlowQueryLog.start();
+        c = db.rawQuery(sql, args);
+        GroupedTable groups =
+            new GroupedTable(c, groupColumns, dataColumns, types);
+        dbh.getSlowQueryLog().record(db, "groupedQuery", sql, args, start,
+            groups.getNumberOfGroups());
+        return groups;
+      } catch (SQLException e) {
+        Log.e(TAG, "group query failed: " + sql);
+        e.printStackTrace();
+        return null;
+      } finally {
+        if ( c != null && !c.isClosed() ) {
+          c.close();
+        }
+      }
+    }
+
+    /**
+     * Get a {@link RowPager} over the rows of the query, in the query's
+     * order. Unlike {@link #getUserTable(Query)}, at most pageSize rows are
+     * held in memory at once, so this is what should be used to process
+     * every row of a table that may be large (e.g., to export it).
+     * <p>
+     * The pages have empty footers.
+     * @param query
+     * @param pageSize the most rows to read at a time
+     * @return
+     */
+    public RowPager getRowPager(Query query, int pageSize) {
+      prepareQuery(query);
+      List<String> userColumns = tp.getColumnOrder();
+      List<String> columns = new ArrayList<String>();
+      columns.add(ROW_KEY_COLUMN);
+      columns.addAll(userColumns);
+      columns.addAll(getAdminColumns());
+      Query.SqlData sd = query.toUnorderedSql(
+          columns.toArray(new String[columns.size()]));
+      String dbTn = tp.getDbTableName();
+      String[] sortColumns = new String[0];
+      String[] sortAliases = new String[0];
+      if (query.getOrderBy() != null) {
+        sortAliases = query.getOrderBy().split(",");
+        sortColumns = new String[sortAliases.length];
+        for (int i = 0; i < sortAliases.length; i++) {
+          sortAliases[i] = sortAliases[i].trim();
+          sortColumns[i] = dbTn + "." + sortAliases[i];
+        }
+      }
+      RowPager pager = new RowPager(sd.getSql(), sd.getArgs(),
+          dbTn + "." + ROW_KEY_COLUMN, sortColumns, sortAliases,
+          query.getSortOrder() == Query.SortOrder.DESCENDING, userColumns,
+          pageSize);
+      pager.setFooter(getEmptyFooter());
+      return pager;
+    }
+
+    /**
+     * Get a {@link RowPager} over the rows
+     * {@link #getRaw(List, String[], String[], String)} would return, for
+     * reading them a page at a time. The pages have no footers.
+     * @param columns the element keys of the user-defined columns to select
+     * (if null, all columns will be selected)
+     * @param selectionKeys the column names for the WHERE clause (can be null)
+     * @param selectionArgs the selection arguments (can be null)
+     * @param orderBy the column to order by (can be null)
+     * @param pageSize the most rows to read at a time
+     * @return
+     */
+    public RowPager getRawRowPager(List<String> columns,
+        String[] selectionKeys, String[] selectionArgs, String orderBy,
+        int pageSize) {
+      List<String> userColumns = (columns == null) ? tp.getColumnOrder() :
+          columns;
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT ").append(ROW_KEY_COLUMN).append(", ")
+          .append(DataTableColumns.ID);
+      for (String column : userColumns) {
+        b.append(", ").append(column);
+      }
+      for (String column : ADMIN_COLUMNS) {
+        b.append(", ").append(column);
+      }
+      if (orderBy != null && !userColumns.contains(orderBy) &&
+          !ADMIN_COLUMNS.contains(orderBy)) {
+        b.append(", ").append(orderBy);
+      }
+      b.append(" FROM ").append(tp.getDbTableName());
+      String selection = buildSelectionSql(selectionKeys);
+      b.append(" WHERE ").append((selection == null) ? "1" : selection);
+      String[] sortColumns = (orderBy == null) ? new String[0] :
+          new String[] { orderBy };
+      return new RowPager(b.toString(),
+          (selectionArgs == null) ? new String[0] : selectionArgs,
+          ROW_KEY_COLUMN, sortColumns, sortColumns, false, userColumns,
+          pageSize);
+    }
+
+    /**
+     * Pass every row of the query to the callback, a page at a time.
+     * @param query
+     * @param pageSize the most rows to read at a time
+     * @param callback
+     * @see #getRowPager(Query, int)
+     */
+    public void streamRows(Query query, int pageSize, RowCallback callback) {
+      RowPager pager = getRowPager(query, pageSize);
+      UserTable rows;
+      while ((rows = pager.nextPage()) != null) {
+        if (!callback.onRows(rows)) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Reads the rows of a query a page at a time, with keyset pagination:
+     * the rows are ordered by the sort columns and then by
+     * {@link #ROW_KEY_COLUMN}, and each page selects the rows after the last
+     * row of the one before. Unlike paging with OFFSET, each page is a seek,
+     * however far into the table it is, and rows written between pages are
+     * neither skipped nor read twice unless their sort values change.
+     */
+    public class RowPager {
+
+      private final String mSql;
+      private final String[] mArgs;
+      private final String mRowKeyColumn;
+      private final String[] mSortColumns;
+      private final String[] mSortAliases;
+      private final boolean mDescending;
+      private final List<String> mUserColumns;
+      private final int mPageSize;
+      private String[] mFooter = null;
+
+      private boolean mStarted = false;
+      private boolean mDone = false;
+      private final String[] mLastSortValues;
+      private long mLastRowKey;
+
+      /**
+       * @param sql the query, ending in its WHERE clause, selecting the row
+       * key, the row id, the user columns, the admin columns and the sort
+       * columns
+       * @param args
+       * @param rowKeyColumn the row key column, as it is named in the WHERE
+       * clause of sql
+       * @param sortColumns the columns to order by, as they are named in the
+       * WHERE clause of sql
+       * @param sortAliases the names of the sort columns in its result
+       * @param descending true if the last sort column is in descending
+       * order, as with {@link Query#toSql(String[])}
+       * @param userColumns the user columns of the pages
+       * @param pageSize
+       */
+      private RowPager(String sql, String[] args, String rowKeyColumn,
+          String[] sortColumns, String[] sortAliases, boolean descending,
+          List<String> userColumns, int pageSize) {
+        if (pageSize <= 0) {
+          throw new IllegalArgumentException("page size must be positive: " +
+              pageSize);
+        }
+        mSql = sql;
+        mArgs = args;
+        mRowKeyColumn = rowKeyColumn;
+        mSortColumns = sortColumns;
+        mSortAliases = sortAliases;
+        mDescending = descending;
+        mUserColumns = userColumns;
+        mPageSize = pageSize;
+        mLastSortValues = new String[sortColumns.length];
+      }
+
+      private void setFooter(String[] footer) {
+        mFooter = footer;
+      }
+
+      /**
+       * @return the next page of at most the page size rows, or null if
+       * there are no more rows
+       */
+      public UserTable nextPage() {
+        if (mDone) {
+          return null;
+        }
+        StringBuilder b = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+        b.append(mSql);
+        Collections.addAll(args, mArgs);
+        if (mStarted) {
+          b.append(" AND ").append(afterLastRow(0, args));
+        }
+        b.append(" ORDER BY ");
+        for (int i = 0; i < mSortColumns.length; i++) {
+          b.append(mSortColumns[i]);
+          b.append((mDescending && i == mSortColumns.length - 1) ?
+              " DESC, " : " ASC, ");
+        }
+        b.append(mRowKeyColumn).append(" ASC LIMIT ").append(mPageSize);
+        SQLiteDatabase db = null;
+        Cursor c = null;
+        try {
+          db = dbh.getReadableDatabase();
+          c = db.rawQuery(b.toString(), args.toArray(new String[args.size()]));
+          UserTable page = buildTable(c, tp, mUserColumns);
+          page.setFooter(mFooter);
+          mDone = (c.getCount() < mPageSize);
+          if (c.getCount() == 0) {
+            return null;
+          }
+          c.moveToLast();
+          mLastRowKey =
+              c.getLong(c.getColumnIndexOrThrow(ROW_KEY_COLUMN));
+          for (int i = 0; i < mSortAliases.length; i++) {
+            int index = c.getColumnIndexOrThrow(mSortAliases[i]);
+            mLastSortValues[i] = c.isNull(index) ? null : c.getString(index);
+          }
+          mStarted = true;
+          return page;
+        } finally {
+          if ( c != null && !c.isClosed() ) {
+            c.close();
+          }
+        }
+      }
+
+      /**
+       * @return the condition that a row comes after the last row read, in
+       * the order of the sort columns from the given one on and then of the
+       * row key
+       */
+      private String afterLastRow(int sortIndex, List<String> args) {
+        if (sortIndex == mSortColumns.length) {
+          // the row key is an integer, so it is safe to put inline.
+          return mRowKeyColumn + " > " + mLastRowKey;
+        }
+        String column = mSortColumns[sortIndex];
+        String value = mLastSortValues[sortIndex];
+        boolean descending =
+            mDescending && sortIndex == mSortColumns.length - 1;
+        // SQLite sorts nulls first, so they come last when descending.
+        String after;
+        String tie;
+        if (value == null) {
+          after = descending ? "0" : column + " IS NOT NULL";
+          tie = column + " IS NULL";
+        } else {
+          after = descending ? "(" + column + " < ? OR " + column +
+              " IS NULL)" : column + " > ?";
+          args.add(value);
+          tie = column + " = ?";
+          args.add(value);
+        }
+        return "(" + after + " OR (" + tie + " AND " +
+            afterLastRow(sortIndex + 1, args) + "))";
+      }
     }
 
     public ConflictTable getConflictTable() {
@@ -381,6 +907,300 @@ public class DbTable {
       return new ConflictTable(localTable, serverTable);
     }
 
+    /**
+     * Called with every query before its sql is built. Records the query for
+     * {@link DbTableIndexes}, and routes any free-text search to the
+     * table's {@link DbTableSearchIndex} if it is ready, starting to build it
+     * if not.
+     * @param query
+     */
+    private void prepareQuery(Query query) {
+      DbTableIndexes.recordQuery(dbh, tp, query);
+      if (query.getSearchText() != null) {
+        query.setSearchMode(DbTableSearchIndex.isSearchIndexReady(dbh, tp) ?
+            Query.SearchMode.FULL_TEXT : Query.SearchMode.LIKE);
+      }
+    }
+
+    /**
+     * Return the table for the query, with its footer, from the
+     * {@link QueryResultCache} if it is there and still current. Otherwise
+     * run the sql and cache the result.
+     * @param query
+     * @param sd the sql built from the query
+     * @return
+     */
+    private UserTable cachedDataQuery(Query query, SqlData sd) {
+        UserTable table = dbh.getQueryResultCache().get(tp, sd);
+        if (table != null) {
+          return table;
+        }
+        return uncachedDataQuery(query, sd);
+    }
+
+    /**
+     * Run the sql and build the table for the query, with its footer, and
+     * cache it.
+     * @param query
+     * @param sd the sql built from the query
+     * @return
+     */
+    private UserTable uncachedDataQuery(Query query, SqlData sd) {
+        QueryResultCache cache = dbh.getQueryResultCache();
+        // stamp before querying, so that a concurrent write is not missed.
+        QueryResultCache.Stamp stamp = cache.getStamp(query);
+        UserTable table = null;
+        if (query.getJoinCount() != 0) {
+          table = hashJoinQuery(query);
+        }
+        if (table == null) {
+          table = dataQuery(sd);
+        }
+        if (table != null) {
+          table.setFooter(footerQuery(query));
+          table.setSource(sd, stamp);
+          cache.put(tp, sd, stamp, table);
+        }
+        return table;
+    }
+
+    /**
+     * Re-read the rows with the given ids through the query the table was
+     * built from, and bring the table up to date with them. A row that no
+     * longer matches the query is removed, and one that now does is inserted
+     * where the query's ordering puts it (or at the end, if it has none).
+     * @param table
+     * @param query
+     * @param sd the sql the table was built from
+     * @param rowIds
+     * @return false, with the table untouched, if the rows cannot be matched
+     * up (e.g., a row id appears twice, as it can for rows in conflict)
+     */
+    private boolean applyRowChanges(UserTable table, Query query, SqlData sd,
+        Set<String> rowIds) {
+      if (rowIds.isEmpty()) {
+        return true;
+      }
+      if (table.hasDuplicateRowIds()) {
+        return false;
+      }
+      int[] sortColumns = null;
+      boolean[] numeric = null;
+      boolean[] descending = null;
+      if (query.getOrderBy() != null) {
+        String[] keys = query.getOrderBy().split(",");
+        sortColumns = new int[keys.length];
+        numeric = new boolean[keys.length];
+        descending = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+          String elementKey = keys[i].trim();
+          Integer index = table.getColumnIndexOfElementKey(elementKey);
+          if (index == null) {
+            return false;
+          }
+          ColumnType type =
+              tp.getColumnByElementKey(elementKey).getColumnType();
+          sortColumns[i] = index;
+          numeric[i] =
+              (type == ColumnType.INTEGER || type == ColumnType.NUMBER);
+        }
+        // the sort order only applies to the last column of the ORDER BY.
+        descending[keys.length - 1] =
+            (query.getSortOrder() == Query.SortOrder.DESCENDING);
+      }
+      UserTable rows = queryRows(sd, rowIds);
+      if (rows == null || rows.hasDuplicateRowIds()) {
+        return false;
+      }
+      boolean[] footerStale = new boolean[table.getWidth()];
+      long[] countDeltas = new long[table.getWidth()];
+      for (String rowId : rowIds) {
+        int oldRowNum = table.getRowNumFromId(rowId);
+        int newRowNum = rows.getRowNumFromId(rowId);
+        if (oldRowNum < 0 && newRowNum < 0) {
+          continue;
+        }
+        noteFooterChanges(table, oldRowNum, rows, newRowNum, footerStale,
+            countDeltas);
+        if (oldRowNum >= 0 && newRowNum >= 0 && (sortColumns == null ||
+            compareForSort(table, oldRowNum, rows, newRowNum, sortColumns,
+                numeric, descending) == 0)) {
+          table.replaceRow(oldRowNum, rows, newRowNum);
+          continue;
+        }
+        if (oldRowNum >= 0) {
+          table.removeRow(oldRowNum);
+        }
+        if (newRowNum >= 0) {
+          int position = (sortColumns == null) ? table.getNumberOfRows() :
+              findSortedPosition(table, rows, newRowNum, sortColumns, numeric,
+                  descending);
+          table.insertRow(position, rows, newRowNum);
+        }
+      }
+      updateFooter(table, query, footerStale, countDeltas);
+      return true;
+    }
+
+    /**
+     * @return the rows of the query with the given ids, or null if the query
+     * fails
+     */
+    private UserTable queryRows(SqlData sd, Collection<String> rowIds) {
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT * FROM (").append(sd.getSql()).append(") WHERE ")
+          .append(DataTableColumns.ID).append(" IN (");
+      List<String> args = new ArrayList<String>();
+      Collections.addAll(args, sd.getArgs());
+      boolean first = true;
+      for (String rowId : rowIds) {
+        if (!first) {
+          b.append(", ");
+        }
+        first = false;
+        b.append("?");
+        args.add(rowId);
+      }
+      b.append(")");
+      SQLiteDatabase db = null;
+      Cursor c = null;
+      try {
+        db = dbh.getReadableDatabase();
+        c = db.rawQuery(b.toString(), args.toArray(new String[args.size()]));
+        return buildTable(c, tp, tp.getColumnOrder());
+      } catch (SQLException e) {
+        Log.e(TAG, "error in queryRows");
+        e.printStackTrace();
+        return null;
+      } finally {
+        if ( c != null && !c.isClosed() ) {
+          c.close();
+        }
+      }
+    }
+
+    /**
+     * Record which footers a row change affects: the count of non-null
+     * values of each column changes by countDeltas, and the other footers of
+     * any column whose value changed are stale.
+     * @param oldRowNum the row in the table, or -1 if it is being inserted
+     * @param newRowNum the row in rows, or -1 if it is being removed
+     */
+    private static void noteFooterChanges(UserTable table, int oldRowNum,
+        UserTable rows, int newRowNum, boolean[] footerStale,
+        long[] countDeltas) {
+      for (int i = 0; i < table.getWidth(); i++) {
+        String oldValue = (oldRowNum < 0) ? null : table.getData(oldRowNum, i);
+        String newValue = (newRowNum < 0) ? null : rows.getData(newRowNum, i);
+        if ((oldValue == null) ? (newValue == null) :
+            oldValue.equals(newValue)) {
+          continue;
+        }
+        footerStale[i] = true;
+        countDeltas[i] += ((newValue == null) ? 0 : 1) -
+            ((oldValue == null) ? 0 : 1);
+      }
+    }
+
+    private void updateFooter(UserTable table, Query query,
+        boolean[] footerStale, long[] countDeltas) {
+      String[] footer = new String[table.getWidth()];
+      boolean[] recompute = new boolean[table.getWidth()];
+      boolean anyToRecompute = false;
+      for (int i = 0; i < footer.length; i++) {
+        footer[i] = table.getFooter(i);
+        if (!footerStale[i]) {
+          continue;
+        }
+        Query.GroupQueryType type = getFooterQueryType(tp.getColumnByIndex(i));
+        if (type == null) {
+          continue;
+        }
+        if (type == Query.GroupQueryType.COUNT) {
+          try {
+            footer[i] = Long.toString(Long.parseLong(footer[i]) +
+                countDeltas[i]);
+            continue;
+          } catch (NumberFormatException e) {
+            // recompute it below.
+          }
+        }
+        recompute[i] = true;
+        anyToRecompute = true;
+      }
+      if (anyToRecompute) {
+        String[] recomputed = footerQuery(query, recompute);
+        for (int i = 0; i < footer.length; i++) {
+          if (recompute[i]) {
+            footer[i] = recomputed[i];
+          }
+        }
+      }
+      table.setFooter(footer);
+    }
+
+    /**
+     * @return the position in the sorted table after the last row that sorts
+     * before or with the given row of rows
+     */
+    private static int findSortedPosition(UserTable table, UserTable rows,
+        int rowNum, int[] sortColumns, boolean[] numeric,
+        boolean[] descending) {
+      int low = 0;
+      int high = table.getNumberOfRows();
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (compareForSort(table, mid, rows, rowNum, sortColumns, numeric,
+            descending) <= 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    private static int compareForSort(UserTable a, int rowA, UserTable b,
+        int rowB, int[] sortColumns, boolean[] numeric, boolean[] descending) {
+      for (int i = 0; i < sortColumns.length; i++) {
+        int cmp = compareSortValues(a.getData(rowA, sortColumns[i]),
+            b.getData(rowB, sortColumns[i]), numeric[i]);
+        if (cmp != 0) {
+          return descending[i] ? -cmp : cmp;
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Compare two values of a column as SQLite orders them: nulls first,
+     * then numbers (only found in INTEGER and NUMBER columns), then text.
+     */
+    private static int compareSortValues(String x, String y,
+        boolean numeric) {
+      if (x == null || y == null) {
+        return ((x == null) ? 0 : 1) - ((y == null) ? 0 : 1);
+      }
+      if (numeric) {
+        Double dx = parseSortNumber(x);
+        Double dy = parseSortNumber(y);
+        if (dx != null && dy != null) {
+          return Double.compare(dx, dy);
+        } else if (dx != null || dy != null) {
+          return (dx != null) ? -1 : 1;
+        }
+      }
+      return x.compareTo(y);
+    }
+
+    private static Double parseSortNumber(String value) {
+      try {
+        return Double.valueOf(value);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
     private UserTable dataQuery(SqlData sd) {
         SQLiteDatabase db = null;
         Cursor c = null;
@@ -388,8 +1208,11 @@ public class DbTable {
         	db = dbh.getReadableDatabase();
         	String sqlStr = sd.getSql();
         	String[] selArgs = sd.getArgs();
-        	c = db.rawQuery(sd.getSql(), sd.getArgs());
+        	long start = SlowQueryLog.start();
+        	c = db.rawQuery(sqlStr, selArgs);
         	UserTable table = buildTable(c, tp, tp.getColumnOrder());
+        	dbh.getSlowQueryLog().record(db, "dataQuery", sqlStr, selArgs,
+        	    start, table.getNumberOfRows());
          return table;
         } catch (Exception e) {
           Log.e(TAG, "error in dataQuery");
@@ -402,6 +1225,134 @@ public class DbTable {
         }
     }
 
+    /**
+     * Evaluate the joins of the query as hash joins: read the join sides
+     * from the {@link HashJoinCache}, and keep each row of the query on this
+     * table, without its joins, as many times as they match. The result is
+     * the same as that of the SQL join built by the query.
+     * @param query
+     * @return the table, or null if the joins must be left to SQLite (see
+     * {@link HashJoinCache#canHashJoin(Query)})
+     */
+    private UserTable hashJoinQuery(Query query) {
+      if (!HashJoinCache.canHashJoin(query)) {
+        return null;
+      }
+      HashJoinCache cache = dbh.getHashJoinCache();
+      List<Map<String, Integer>> sides =
+          new ArrayList<Map<String, Integer>>();
+      for (int i = 0; i < query.getJoinCount(); i++) {
+        Map<String, Integer> side = cache.getJoinSide(dbh, query.getJoin(i));
+        if (side == null) {
+          return null;
+        }
+        sides.add(side);
+      }
+      List<String> columns = tp.getColumnOrder();
+      columns.addAll(getAdminColumns());
+      SqlData sd = query.toSqlWithoutJoins(
+          columns.toArray(new String[columns.size()]));
+      SQLiteDatabase db = null;
+      Cursor c = null;
+      try {
+        db = dbh.getReadableDatabase();
+        long start = SlowQueryLog.start();
+        c = db.rawQuery(sd.getSql(), sd.getArgs());
+        int[][] keyIndices = new int[sides.size()][];
+        for (int i = 0; i < keyIndices.length; i++) {
+          Query.Join join = query.getJoin(i);
+          keyIndices[i] = new int[join.getMatchCount()];
+          for (int j = 0; j < keyIndices[i].length; j++) {
+            keyIndices[i][j] = c.getColumnIndexOrThrow(join.getMatchKey(j));
+          }
+        }
+        int[] positions = new int[Math.max(16, c.getCount())];
+        int rowCount = 0;
+        while (c.moveToNext()) {
+          int matches = 1;
+          for (int i = 0; i < keyIndices.length && matches != 0; i++) {
+            String key = HashJoinCache.getMatchKey(c, keyIndices[i]);
+            Integer count = (key == null) ? null : sides.get(i).get(key);
+            matches *= (count == null) ? 0 : count;
+          }
+          for (int i = 0; i < matches; i++) {
+            if (rowCount == positions.length) {
+              int[] grown = new int[positions.length * 2];
+              System.arraycopy(positions, 0, grown, 0, rowCount);
+              positions = grown;
+            }
+            positions[rowCount++] = c.getPosition();
+          }
+        }
+        int[] rowPositions = new int[rowCount];
+        System.arraycopy(positions, 0, rowPositions, 0, rowCount);
+        UserTable table =
+            new UserTable(c, tp, tp.getColumnOrder(), rowPositions);
+        dbh.getSlowQueryLog().record(db, "hashJoinQuery", sd.getSql(),
+            sd.getArgs(), start, rowCount);
+        return table;
+      } catch (SQLException e) {
+        Log.e(TAG, "error in hashJoinQuery, leaving the join to SQLite");
+        e.printStackTrace();
+        return null;
+      } finally {
+        if ( c != null && !c.isClosed() ) {
+          c.close();
+        }
+      }
+    }
+
+    /**
+     * Run the query for the row ids and row keys and build a windowed
+     * {@link UserTable} that pages its rows in from this table.
+     * @param sd sql selecting the row id and {@link #ROW_KEY_COLUMN}
+     * @return the table, or null if the query failed
+     */
+    private UserTable windowedDataQuery(SqlData sd) {
+        SQLiteDatabase db = null;
+        Cursor c = null;
+        try {
+          db = dbh.getReadableDatabase();
+          c = db.rawQuery(sd.getSql(), sd.getArgs());
+          return new UserTable(c, tp, tp.getColumnOrder(),
+              new WindowPageSource());
+        } catch (Exception e) {
+          Log.e(TAG, "error in windowedDataQuery");
+          e.printStackTrace();
+          return null;
+        } finally {
+          if ( c != null && !c.isClosed() ) {
+            c.close();
+          }
+        }
+    }
+
+    /**
+     * Fetches pages of rows for a windowed {@link UserTable} by their row
+     * keys.
+     */
+    private class WindowPageSource implements UserTable.RowPageSource {
+
+      @Override
+      public Cursor getRowsForKeys(long[] rowKeys) {
+        // the keys are integers, so they are safe to put inline, and doing
+        // so avoids the limit on the number of bind arguments.
+        StringBuilder b = new StringBuilder();
+        b.append("SELECT ").append(ROW_KEY_COLUMN).append(", * FROM ")
+            .append(tp.getDbTableName()).append(" WHERE ")
+            .append(ROW_KEY_COLUMN).append(" IN (");
+        for (int i = 0; i < rowKeys.length; i++) {
+          if (i != 0) {
+            b.append(", ");
+          }
+          b.append(rowKeys[i]);
+        }
+        b.append(")");
+        SQLiteDatabase db = dbh.getReadableDatabase();
+        return db.rawQuery(b.toString(), null);
+      }
+    }
+
     /**
      * Builds a UserTable with the data from the given cursor.
      * The cursor, but not the columns array, must include the row ID column.
@@ -430,41 +1381,104 @@ public class DbTable {
       return footer;
     }
 
+    /**
+     * Computes the footer for every display column that has a
+     * {@link FooterMode} in a single query, so the table is scanned once
+     * rather than once per footer column. If that query fails the footer
+     * values are fetched column by column instead.
+     */
     private String[] footerQuery(Query query) {
+        return footerQuery(query, null);
+    }
+
+    /**
+     * As {@link #footerQuery(Query)}, but only for the display columns whose
+     * entries in columns are true. The other entries of the footer are null.
+     * @param query
+     * @param columns the columns to compute, or null for all of them
+     */
+    private String[] footerQuery(Query query, boolean[] columns) {
     	int numberOfDisplayColumns = tp.getNumberOfDisplayColumns();
         String[] footer = new String[numberOfDisplayColumns];
+        List<Integer> footerIndices = new ArrayList<Integer>();
+        List<String> footerColumns = new ArrayList<String>();
+        List<Query.GroupQueryType> footerTypes =
+            new ArrayList<Query.GroupQueryType>();
         for (int i = 0; i < numberOfDisplayColumns; i++) {
+          if (columns != null && !columns[i]) {
+            continue;
+          }
           ColumnProperties cp = tp.getColumnByIndex(i);
-            switch (cp.getFooterMode()) {
-            case count:
-                footer[i] = getFooterItem(query, cp,
-                        Query.GroupQueryType.COUNT);
-                break;
-            case maximum:
-                footer[i] = getFooterItem(query, cp,
-                        Query.GroupQueryType.MAXIMUM);
-                break;
-            case minimum:
-                footer[i] = getFooterItem(query, cp,
-                        Query.GroupQueryType.MINIMUM);
-                break;
-            case sum:
-                footer[i] = getFooterItem(query, cp,
-                        Query.GroupQueryType.SUM);
-                break;
-            case mean:
-                footer[i] = getFooterItem(query, cp,
-                        Query.GroupQueryType.AVERAGE);
-                break;
-            case none:
-                // we'll just do nothing?
-              break;
-            default:
-              Log.e(TAG, "unrecognized footer mode: " +
-                  cp.getFooterMode().name());
+          Query.GroupQueryType type = getFooterQueryType(cp);
+          if (type != null) {
+            footerIndices.add(i);
+            footerColumns.add(cp.getElementKey());
+            footerTypes.add(type);
+          }
+        }
+        if (footerIndices.isEmpty()) {
+          return footer;
+        }
+        SQLiteDatabase db = null;
+        Cursor c = null;
+        try {
+          db = dbh.getReadableDatabase();
+          SqlData sd = dbh.getQuerySqlCache().getFooterSql(query,
+              footerColumns, footerTypes);
+          long start = SlowQueryLog.start();
+          c = db.rawQuery(sd.getSql(), sd.getArgs());
+          boolean haveRow = (c.getCount() == 1) && c.moveToFirst();
+          dbh.getSlowQueryLog().record(db, "footerQuery", sd.getSql(),
+              sd.getArgs(), start, c.getCount());
+          for (int j = 0; j < footerIndices.size(); j++) {
+            if (haveRow) {
+              int gColIndex =
+                  c.getColumnIndexOrThrow(Query.getFooterColumnAlias(j));
+              footer[footerIndices.get(j)] = c.getString(gColIndex);
+            } else {
+              footer[footerIndices.get(j)] = ""; // TODO: should this be null ???
             }
+          }
+          return footer;
+        } catch (SQLException e) {
+          Log.e(TAG, "combined footer query failed, querying each column");
+          e.printStackTrace();
+          for (int j = 0; j < footerIndices.size(); j++) {
+            footer[footerIndices.get(j)] = getFooterItem(query,
+                tp.getColumnByIndex(footerIndices.get(j)), footerTypes.get(j));
+          }
+          return footer;
+        } finally {
+          if ( c != null && !c.isClosed() ) {
+            c.close();
+          }
         }
-        return footer;
+    }
+
+    /**
+     * @return the aggregate for the footer of the column, or null if it has
+     * no footer.
+     */
+    private Query.GroupQueryType getFooterQueryType(ColumnProperties cp) {
+      switch (cp.getFooterMode()) {
+      case count:
+        return Query.GroupQueryType.COUNT;
+      case maximum:
+        return Query.GroupQueryType.MAXIMUM;
+      case minimum:
+        return Query.GroupQueryType.MINIMUM;
+      case sum:
+        return Query.GroupQueryType.SUM;
+      case mean:
+        return Query.GroupQueryType.AVERAGE;
+      case none:
+        // we'll just do nothing?
+        return null;
+      default:
+        Log.e(TAG, "unrecognized footer mode: " +
+            cp.getFooterMode().name());
+        return null;
+      }
     }
 
     private String getFooterItem(Query query, ColumnProperties cp,
@@ -474,7 +1488,10 @@ public class DbTable {
     	try {
     		db = dbh.getReadableDatabase();
 	        SqlData sd = query.toFooterSql(cp.getElementKey(), type);
+	        long start = SlowQueryLog.start();
 	        c = db.rawQuery(sd.getSql(), sd.getArgs());
+	        dbh.getSlowQueryLog().record(db, "getFooterItem", sd.getSql(),
+	            sd.getArgs(), start, c.getCount());
 	        if ( c.getCount() == 1 ) {
 		        int gColIndex = c.getColumnIndexOrThrow("g");
 		        c.moveToFirst();
@@ -500,7 +1517,18 @@ public class DbTable {
      */
     public void addRow(String rowId, String formId, String locale,
           Long timestamp, String savepointCreator, Map<String, String> values ) {
+        actualAddRow(getInsertingRowValues(rowId, formId, locale, timestamp,
+            savepointCreator, values));
+    }
 
+    /**
+     * Build the values for a row being added on the phone, as
+     * {@link #addRow(String, String, String, Long, String, Map)} does. These
+     * can be passed to {@link #addRows(Iterator, int, BulkInsertListener)}.
+     */
+    public static ContentValues getInsertingRowValues(String rowId,
+          String formId, String locale, Long timestamp,
+          String savepointCreator, Map<String, String> values) {
         if (timestamp == null) {
         	timestamp = System.currentTimeMillis();
         }
@@ -519,7 +1547,7 @@ public class DbTable {
         cv.put(DataTableColumns.SAVEPOINT_CREATOR, savepointCreator);
         cv.put(DataTableColumns.FORM_ID, formId);
         cv.put(DataTableColumns.LOCALE, locale);
-        actualAddRow(cv);
+        return cv;
     }
 
     /**
@@ -536,6 +1564,114 @@ public class DbTable {
      * @param values the values to put in the row
      */
     public void actualAddRow(ContentValues values) {
+        putInsertDefaults(values);
+        SQLiteDatabase db = dbh.getWritableDatabase();
+        try {
+	        long result = db.insertOrThrow(tp.getDbTableName(), null, values);
+        } finally {
+          // TODO: fix the when to close problem
+//        	db.close();
+          noteModified(values.getAsString(DataTableColumns.ID));
+        }
+    }
+
+    /**
+     * Adds many rows, as {@link #actualAddRow(ContentValues)} would add each
+     * of them. The rows are inserted through one compiled statement and
+     * committed batchSize rows at a time, rather than each row being its own
+     * transaction.
+     * <p>
+     * Every row must only contain columns of this table. Absent columns are
+     * inserted as null.
+     * <p>
+     * Failures are per batch, not per row. If a row cannot be inserted, the
+     * whole batch it is in is rolled back, including the rows before it in
+     * that batch, and the exception is thrown. The batches before it stay
+     * committed, and are the rows last reported to the listener; the rows
+     * after it are not read from the iterator. Callers that need to know
+     * what was added when this throws should pass a listener, and a
+     * batchSize of 1 isolates each row as actualAddRow does.
+     * @param rows the values of each row. These are modified as by
+     * actualAddRow.
+     * @param batchSize the number of rows to commit at a time
+     * @param listener notified after each batch is committed. May be null.
+     * @return the number of rows added
+     */
+    public int addRows(Iterator<ContentValues> rows, int batchSize,
+        BulkInsertListener listener) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("batchSize must be positive: " +
+            batchSize);
+      }
+      List<String> columns = new ArrayList<String>(ADMIN_COLUMNS);
+      columns.addAll(tp.getDatabaseColumns().keySet());
+      StringBuilder sql = new StringBuilder("INSERT INTO ");
+      sql.append(tp.getDbTableName()).append(" (");
+      StringBuilder params = new StringBuilder();
+      for (int i = 0; i < columns.size(); i++) {
+        if (i != 0) {
+          sql.append(", ");
+          params.append(", ");
+        }
+        sql.append(columns.get(i));
+        params.append("?");
+      }
+      sql.append(") VALUES (").append(params).append(")");
+
+      SQLiteDatabase db = dbh.getWritableDatabase();
+      SQLiteStatement insert = db.compileStatement(sql.toString());
+      int rowsInserted = 0;
+      try {
+        while (rows.hasNext()) {
+          int batchCount = 0;
+          List<String> batchRowIds = new ArrayList<String>();
+          db.beginTransaction();
+          try {
+            while (batchCount < batchSize && rows.hasNext()) {
+              ContentValues values = rows.next();
+              putInsertDefaults(values);
+              batchRowIds.add(values.getAsString(DataTableColumns.ID));
+              insert.clearBindings();
+              int found = 0;
+              for (int i = 0; i < columns.size(); i++) {
+                if (values.containsKey(columns.get(i))) {
+                  found++;
+                  // the same binding insertOrThrow uses.
+                  DatabaseUtils.bindObjectToProgram(insert, i + 1,
+                      values.get(columns.get(i)));
+                }
+              }
+              if (found != values.size()) {
+                throw new IllegalArgumentException("row has columns not in " +
+                    tp.getDbTableName() + ": " + values);
+              }
+              insert.executeInsert();
+              batchCount++;
+            }
+            db.setTransactionSuccessful();
+          } finally {
+            db.endTransaction();
+            noteModified(batchRowIds);
+          }
+          rowsInserted += batchCount;
+          if (listener != null) {
+            listener.onRowsInserted(rowsInserted);
+          }
+        }
+      } finally {
+        insert.close();
+        // TODO: fix the when to close problem
+//      db.close();
+      }
+      return rowsInserted;
+    }
+
+    /**
+     * Checks to ensure that all of the columns in {@link DataTableColumns}
+     * that have non-null constraints are present. If not, it adds their
+     * default value. See {@link #actualAddRow(ContentValues)}.
+     */
+    private void putInsertDefaults(ContentValues values) {
         if (!values.containsKey(DataTableColumns.ID)) {
           String id = UUID.randomUUID().toString();
           values.put(DataTableColumns.ID, id);
@@ -562,14 +1698,7 @@ public class DbTable {
           values.put(DataTableColumns.ROW_ETAG,
               DataTableColumns.DEFAULT_ROW_ETAG);
         }
-        SQLiteDatabase db = dbh.getWritableDatabase();
-        try {
-	        values.put(DataTableColumns.SAVEPOINT_TYPE, SavedStatus.COMPLETE.name());
-	        long result = db.insertOrThrow(tp.getDbTableName(), null, values);
-        } finally {
-          // TODO: fix the when to close problem
-//        	db.close();
-        }
+        values.put(DataTableColumns.SAVEPOINT_TYPE, SavedStatus.COMPLETE.name());
     }
 
     /**
@@ -590,6 +1719,7 @@ public class DbTable {
           SyncState.rest.name()
       };
       db.execSQL(sql, args);
+      noteModified();
     }
 
     /**
@@ -645,7 +1775,11 @@ public class DbTable {
      */
     public void actualUpdateRowByRowId(String rowId, ContentValues values) {
         String[] whereArgs = { rowId };
-        actualUpdateRow(values, DataTableColumns.ID + " = ?", whereArgs);
+        try {
+          actualUpdateRow(values, DataTableColumns.ID + " = ?", whereArgs);
+        } finally {
+          noteModified(rowId);
+        }
     }
 
     private void actualUpdateRow(ContentValues values, String where,
@@ -691,6 +1825,7 @@ public class DbTable {
         } finally {
           // TODO: fix the when to close problem
 //        	db.close();
+          noteModified(rowId);
         }
     }
 
@@ -723,6 +1858,7 @@ public class DbTable {
           } finally {
             // TODO: fix the when to close problem
 //        	  db.close();
+            noteModified(rowId);
           }
         }
       }
@@ -735,19 +1871,53 @@ public class DbTable {
     public void deleteRowActual(String rowId) {
         String[] whereArgs = { rowId };
         String whereClause = DataTableColumns.ID + " = ?";
-        deleteRowActual(whereClause, whereArgs);
+        deleteRows(whereClause, whereArgs, Collections.singleton(rowId));
     }
 
     public void deleteRowActual(String whereClause, String[] whereArgs) {
+        deleteRows(whereClause, whereArgs, null);
+    }
+
+    /**
+     * @param rowIds the ids of the rows the where clause selects, or null if
+     * they are not known
+     */
+    private void deleteRows(String whereClause, String[] whereArgs,
+        Collection<String> rowIds) {
         SQLiteDatabase db = dbh.getWritableDatabase();
         try {
         	db.delete(tp.getDbTableName(), whereClause, whereArgs);
         } finally {
           // TODO: fix the when to close problem
 //        	db.close();
+          noteModified(rowIds);
         }
     }
 
+    /**
+     * Invalidate the cached query results that read from this table. This
+     * must be called after every write to the table.
+     * @see QueryResultCache
+     */
+    private void noteModified() {
+      noteModified((Collection<String>) null);
+    }
+
+    private void noteModified(String rowId) {
+      noteModified(Collections.singleton(rowId));
+    }
+
+    /**
+     * As {@link #noteModified()}, also recording which rows were written to,
+     * so that tables built before the write can be refreshed by re-reading
+     * just those rows.
+     * @param rowIds the ids of the rows written to, or null if they are not
+     * known
+     */
+    private void noteModified(Collection<String> rowIds) {
+      dbh.getQueryResultCache().noteRowsModified(tp.getTableId(), rowIds);
+    }
+
     /**
      * @param rowId
      * @return the sync state of the row (see {@link SyncUtil.State}), or -1 if
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Responsible for the secondary indexes on the user data tables.
+ * <p>
+ * Every data table gets an index on the row id, which all single-row reads
+ * and writes use, and on the sync state, conflict type and savepoint type,
+ * which every {@link Query} filters on. The prime columns and the sort
+ * column from {@link TableProperties} get indexes while they are set.
+ * <p>
+ * In addition, the columns used in {@link Query.Constraint}s are counted, and
+ * once a column has been constrained on {@link #ADVISE_AFTER_USES} times it
+ * gets an index of its own. Advised indexes are kept until the column is
+ * removed, including across {@link TableProperties#reformTable}.
+ * <p>
+ * Indexing an existing table can take a while, so the indexes are built on
+ * a background thread, one table at a time, whenever that is asked for from
+ * outside a transaction (a table being opened, the prime or sort columns
+ * changing, or a column being advised). Until an index is built, queries
+ * just run without it. Tables being created or rebuilt are indexed in their
+ * own transaction.
+ * <p>
+ * All of the indexes managed here are named with the db table name followed
+ * by {@link #INDEX_INFIX}, and any others are left alone.
+ */
+public class DbTableIndexes {
+
+  private static final String TAG = "DbTableIndexes";
+
+  /**
+   * The number of queries constraining a column before it is indexed.
+   */
+  static final int ADVISE_AFTER_USES = 3;
+
+  private static final String INDEX_INFIX = "__idx_";
+  private static final String SUFFIX_ID = "id";
+  private static final String SUFFIX_METADATA = "meta";
+  private static final String SUFFIX_PRIME = "prime";
+  private static final String SUFFIX_SORT = "sort";
+  private static final String SUFFIX_ADVISED = "col_";
+
+  private static final String SQL_EXISTING_INDEXES =
+      "SELECT name, sql FROM sqlite_master WHERE type = 'index' AND " +
+      "tbl_name = ?";
+
+  /**
+   * Constraint usage counts, by db table name and then column.
+   */
+  private static final Map<String, Map<String, Integer>> constraintUsage =
+      new HashMap<String, Map<String, Integer>>();
+
+  /**
+   * The db table names whose indexes have been checked since the process
+   * started.
+   */
+  private static final Set<String> checkedTables = new HashSet<String>();
+
+  /**
+   * Builds the indexes, one table at a time. The search indexes of
+   * {@link DbTableSearchIndex} are built here too.
+   */
+  static final ExecutorService indexBuilder =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, TAG);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Make sure the indexes of the table are up to date, but only the first
+   * time this is called for the table in this process. Tables created before
+   * indexes were managed pick them up this way. The indexes are built in the
+   * background.
+   * @param dbh
+   * @param tp
+   */
+  public static void ensureIndexesOnce(DbHelper dbh, TableProperties tp) {
+    synchronized (checkedTables) {
+      if (checkedTables.contains(tp.getDbTableName())) {
+        return;
+      }
+      checkedTables.add(tp.getDbTableName());
+    }
+    ensureIndexesInBackground(dbh, tp, Collections.<String>emptyList());
+  }
+
+  /**
+   * As {@link #ensureIndexes(SQLiteDatabase, TableProperties, Collection)},
+   * but on the background thread, without waiting for it.
+   * @param dbh
+   * @param tp
+   * @param advisedColumns
+   */
+  static void ensureIndexesInBackground(final DbHelper dbh,
+      final TableProperties tp, final Collection<String> advisedColumns) {
+    indexBuilder.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          ensureIndexes(dbh.getWritableDatabase(), tp, advisedColumns);
+        } catch (SQLException e) {
+          // e.g., the table was deleted or rebuilt in the meantime.
+          Log.e(TAG, "unable to update indexes on " + tp.getDbTableName());
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Create any missing indexes on the table, and drop managed indexes that
+   * are no longer wanted or that no longer match their definition.
+   * @param db
+   * @param tp
+   */
+  public static void ensureIndexes(SQLiteDatabase db, TableProperties tp) {
+    ensureIndexes(db, tp, Collections.<String>emptyList());
+  }
+
+  /**
+   * As {@link #ensureIndexes(SQLiteDatabase, TableProperties)}, also indexing
+   * the given columns (e.g., those which had advised indexes before the table
+   * was rebuilt).
+   * @param db
+   * @param tp
+   * @param advisedColumns
+   */
+  static void ensureIndexes(SQLiteDatabase db, TableProperties tp,
+      Collection<String> advisedColumns) {
+    String dbTableName = tp.getDbTableName();
+    Map<String, String> existing = getExistingIndexes(db, dbTableName);
+    Set<String> dbColumns = new HashSet<String>(DbTable.getAdminColumns());
+    dbColumns.addAll(tp.getDatabaseColumns().keySet());
+
+    Map<String, List<String>> desired = getDesiredIndexes(tp);
+    List<String> allAdvised = new ArrayList<String>(advisedColumns);
+    allAdvised.addAll(getAdvisedColumns(existing, dbTableName));
+    for (String column : allAdvised) {
+      desired.put(indexName(dbTableName, SUFFIX_ADVISED + column),
+          Collections.singletonList(column));
+    }
+
+    for (Map.Entry<String, String> index : existing.entrySet()) {
+      List<String> columns = desired.get(index.getKey());
+      if (columns == null || !dbColumns.containsAll(columns) ||
+          !createIndexSql(dbTableName, index.getKey(), columns)
+              .equals(index.getValue())) {
+        Log.d(TAG, "dropping index " + index.getKey());
+        db.execSQL("DROP INDEX IF EXISTS \"" + index.getKey() + "\"");
+      }
+    }
+    for (Map.Entry<String, List<String>> index : desired.entrySet()) {
+      String sql = createIndexSql(dbTableName, index.getKey(),
+          index.getValue());
+      if (!sql.equals(existing.get(index.getKey())) &&
+          dbColumns.containsAll(index.getValue())) {
+        Log.d(TAG, "creating index " + index.getKey());
+        db.execSQL(sql);
+      }
+    }
+  }
+
+  /**
+   * Return the columns that currently have advised indexes on the table.
+   * These are dropped with the table, so callers that rebuild the table
+   * should read them first and pass them back in to
+   * {@link #ensureIndexes(SQLiteDatabase, TableProperties, Collection)}.
+   * @param db
+   * @param tp
+   * @return
+   */
+  static List<String> getAdvisedColumns(SQLiteDatabase db,
+      TableProperties tp) {
+    return getAdvisedColumns(getExistingIndexes(db, tp.getDbTableName()),
+        tp.getDbTableName());
+  }
+
+  /**
+   * Record the constraints used by a query against its table. Any column
+   * that has now been used often enough is indexed on a background thread;
+   * this does not wait for it, and only reads memory, so it is safe to call
+   * on the way into a query.
+   * @param dbh
+   * @param tp
+   * @param query
+   */
+  public static void recordQuery(DbHelper dbh, TableProperties tp,
+      Query query) {
+    List<String> toIndex = new ArrayList<String>();
+    synchronized (constraintUsage) {
+      Map<String, Integer> usage = constraintUsage.get(tp.getDbTableName());
+      if (usage == null) {
+        usage = new HashMap<String, Integer>();
+        constraintUsage.put(tp.getDbTableName(), usage);
+      }
+      for (int i = 0; i < query.getConstraintCount(); i++) {
+        Query.Constraint constraint = query.getConstraint(i);
+        if (!isIndexable(constraint)) {
+          continue;
+        }
+        String column = constraint.getColumnDbName();
+        Integer count = usage.get(column);
+        count = (count == null) ? 1 : count + 1;
+        usage.put(column, count);
+        if (count == ADVISE_AFTER_USES) {
+          toIndex.add(column);
+        }
+      }
+    }
+    if (!toIndex.isEmpty()) {
+      ensureIndexesInBackground(dbh, tp, toIndex);
+    }
+  }
+
+  /**
+   * Return a snapshot of the constraint usage counts for the table.
+   * @param tp
+   * @return map of column to the number of queries constraining it
+   */
+  public static Map<String, Integer> getConstraintUsage(TableProperties tp) {
+    synchronized (constraintUsage) {
+      Map<String, Integer> usage = constraintUsage.get(tp.getDbTableName());
+      return (usage == null) ? new HashMap<String, Integer>() :
+          new HashMap<String, Integer>(usage);
+    }
+  }
+
+  /**
+   * An index only helps comparisons against the start of the value.
+   */
+  private static boolean isIndexable(Query.Constraint constraint) {
+    String column = constraint.getColumnDbName();
+    if (DataTableColumns.ID.equals(column)) {
+      // always indexed.
+      return false;
+    }
+    for (int i = 0; i < constraint.getComparisonCount(); i++) {
+      int comparator = constraint.getComparator(i);
+      if (comparator == Query.Comparator.LIKE ||
+          comparator == Query.Comparator.NOT_EQUALS) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, List<String>> getDesiredIndexes(
+      TableProperties tp) {
+    String dbTableName = tp.getDbTableName();
+    Map<String, List<String>> desired =
+        new LinkedHashMap<String, List<String>>();
+    desired.put(indexName(dbTableName, SUFFIX_ID),
+        Collections.singletonList(DataTableColumns.ID));
+    List<String> metadata = new ArrayList<String>();
+    metadata.add(DataTableColumns.SYNC_STATE);
+    metadata.add(DataTableColumns.CONFLICT_TYPE);
+    metadata.add(DataTableColumns.SAVEPOINT_TYPE);
+    desired.put(indexName(dbTableName, SUFFIX_METADATA), metadata);
+    List<String> primes = tp.getPrimeColumns();
+    String sort = tp.getSortColumn();
+    if (!primes.isEmpty()) {
+      // with the sort column last, this also serves the latest row per group
+      // lookups of the overview query.
+      List<String> primeAndSort = new ArrayList<String>(primes);
+      if (sort != null && !primes.contains(sort)) {
+        primeAndSort.add(sort);
+      }
+      desired.put(indexName(dbTableName, SUFFIX_PRIME), primeAndSort);
+    }
+    if (sort != null) {
+      desired.put(indexName(dbTableName, SUFFIX_SORT),
+          Collections.singletonList(sort));
+    }
+    return desired;
+  }
+
+  /**
+   * Return the managed indexes that exist on the table, as a map of index
+   * name to the sql that created it.
+   */
+  private static Map<String, String> getExistingIndexes(SQLiteDatabase db,
+      String dbTableName) {
+    Map<String, String> existing = new HashMap<String, String>();
+    String prefix = dbTableName + INDEX_INFIX;
+    Cursor c = null;
+    try {
+      c = db.rawQuery(SQL_EXISTING_INDEXES, new String[] { dbTableName });
+      int nameIndex = c.getColumnIndexOrThrow("name");
+      int sqlIndex = c.getColumnIndexOrThrow("sql");
+      while (c.moveToNext()) {
+        String name = c.getString(nameIndex);
+        if (name != null && name.startsWith(prefix)) {
+          existing.put(name, c.getString(sqlIndex));
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return existing;
+  }
+
+  private static List<String> getAdvisedColumns(Map<String, String> existing,
+      String dbTableName) {
+    String prefix = indexName(dbTableName, SUFFIX_ADVISED);
+    List<String> columns = new ArrayList<String>();
+    for (String name : existing.keySet()) {
+      if (name.startsWith(prefix)) {
+        columns.add(name.substring(prefix.length()));
+      }
+    }
+    return columns;
+  }
+
+  private static String indexName(String dbTableName, String suffix) {
+    return dbTableName + INDEX_INFIX + suffix;
+  }
+
+  /**
+   * This must produce exactly the text SQLite stores in sqlite_master, as
+   * that is how existing indexes are compared against their definitions.
+   */
+  private static String createIndexSql(String dbTableName, String indexName,
+      List<String> columns) {
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE INDEX \"").append(indexName).append("\" ON \"")
+        .append(dbTableName).append("\" (");
+    for (int i = 0; i < columns.size(); i++) {
+      if (i != 0) {
+        b.append(", ");
+      }
+      b.append("\"").append(columns.get(i)).append("\"");
+    }
+    b.append(")");
+    return b.toString();
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Responsible for the optional full-text search index of a data table, used
+ * by {@link Query.SearchMode#FULL_TEXT}.
+ * <p>
+ * The index is an FTS3 table named with the db table name followed by
+ * {@link #INDEX_SUFFIX}. It holds one document per row of the data table,
+ * with the row's SQLite rowid as its docid and the values of all of the
+ * row's user columns as its content. Triggers on the data table keep it up
+ * to date on every insert, update and delete, however the write is made
+ * (through {@link DbTable}, by sync, or by a bulk import).
+ * <p>
+ * A table gets its index the first time it is searched, and keeps it until
+ * {@link #dropSearchIndex(SQLiteDatabase, TableProperties)} is called. The
+ * index is built on the background thread of {@link DbTableIndexes}, and
+ * searches use {@link Query.SearchMode#LIKE} until it is ready. The
+ * table must be rebuilt whenever the columns of the data table change (see
+ * {@link #rebuildSearchIndexIfPresent(SQLiteDatabase, TableProperties)}).
+ */
+public class DbTableSearchIndex {
+
+  private static final String TAG = "DbTableSearchIndex";
+
+  private static final String INDEX_SUFFIX = "__fts";
+  private static final String CONTENT_COLUMN = "content";
+  private static final String DOCID_COLUMN = "docid";
+
+  private static final String TRIGGER_INSERT_SUFFIX = "_ai";
+  private static final String TRIGGER_UPDATE_SUFFIX = "_au";
+  private static final String TRIGGER_DELETE_SUFFIX = "_ad";
+
+  /**
+   * The start of the error SQLite gives for a missing virtual table module.
+   */
+  private static final String NO_FTS3_MESSAGE = "no such module";
+
+  private static final String SQL_INDEX_EXISTS =
+      "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?";
+
+  /**
+   * The db table names known to have a search index.
+   */
+  private static final Set<String> indexedTables = new HashSet<String>();
+
+  /**
+   * The db table names whose search index is waiting to be built.
+   */
+  private static final Set<String> pendingTables = new HashSet<String>();
+
+  /**
+   * Set if this SQLite was built without FTS3, so no table can have an
+   * index.
+   */
+  private static boolean fullTextUnavailable = false;
+
+  /**
+   * @param tp
+   * @return the name of the search index table of the data table
+   */
+  public static String getIndexTableName(TableProperties tp) {
+    return tp.getDbTableName() + INDEX_SUFFIX;
+  }
+
+  /**
+   * Return whether the table has a search index that can be used now. If it
+   * has not, the index is built in the background, to be used by later
+   * searches.
+   * @param dbh
+   * @param tp
+   * @return true if the table has a search index
+   */
+  public static boolean isSearchIndexReady(final DbHelper dbh,
+      final TableProperties tp) {
+    String dbTableName = tp.getDbTableName();
+    synchronized (indexedTables) {
+      if (indexedTables.contains(dbTableName)) {
+        return true;
+      }
+      if (fullTextUnavailable || pendingTables.contains(dbTableName)) {
+        return false;
+      }
+      pendingTables.add(dbTableName);
+    }
+    DbTableIndexes.indexBuilder.execute(new Runnable() {
+
+      @Override
+      public void run() {
+        ensureSearchIndex(dbh, tp);
+      }
+    });
+    return false;
+  }
+
+  /**
+   * Make sure the table has a search index, building it if need be.
+   * Building it reads every row of the table, so may take a while the first
+   * time; see {@link #isSearchIndexReady(DbHelper, TableProperties)}.
+   * @param dbh
+   * @param tp
+   * @return true if the table has a search index
+   */
+  public static boolean ensureSearchIndex(DbHelper dbh, TableProperties tp) {
+    String dbTableName = tp.getDbTableName();
+    synchronized (indexedTables) {
+      if (indexedTables.contains(dbTableName)) {
+        return true;
+      }
+      if (fullTextUnavailable) {
+        return false;
+      }
+    }
+    SQLiteDatabase db = dbh.getWritableDatabase();
+    try {
+      if (!searchIndexExists(db, tp)) {
+        db.beginTransaction();
+        try {
+          buildSearchIndex(db, tp);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+      }
+      synchronized (indexedTables) {
+        indexedTables.add(dbTableName);
+      }
+      return true;
+    } catch (SQLException e) {
+      Log.e(TAG, "unable to build the search index for " + dbTableName);
+      e.printStackTrace();
+      // anything else (e.g., the table being deleted meanwhile) is retried by
+      // the next search.
+      if (e.getMessage() != null &&
+          e.getMessage().contains(NO_FTS3_MESSAGE)) {
+        synchronized (indexedTables) {
+          fullTextUnavailable = true;
+        }
+      }
+      return false;
+    } finally {
+      synchronized (indexedTables) {
+        pendingTables.remove(dbTableName);
+      }
+      // TODO: fix the when to close problem
+      // db.close();
+    }
+  }
+
+  /**
+   * Rebuild the search index from the data table, if the table has one.
+   * This must be called when the columns of the table change, or the table
+   * itself is recreated, as the triggers are dropped with the data table.
+   * @param db
+   * @param tp
+   */
+  static void rebuildSearchIndexIfPresent(SQLiteDatabase db,
+      TableProperties tp) {
+    if (searchIndexExists(db, tp)) {
+      buildSearchIndex(db, tp);
+    }
+  }
+
+  /**
+   * Remove the search index of the table, if it has one.
+   * @param db
+   * @param tp
+   */
+  public static void dropSearchIndex(SQLiteDatabase db, TableProperties tp) {
+    dropIndexAndTriggers(db, tp);
+    synchronized (indexedTables) {
+      indexedTables.remove(tp.getDbTableName());
+    }
+  }
+
+  /**
+   * Build the argument of the MATCH for the search terms. Each term matches
+   * any word that it is a prefix of, and all of the terms must match.
+   * @param terms letters and digits only, as produced by
+   * {@link Query#getSearchTerms()}
+   * @return
+   */
+  static String toMatchString(List<String> terms) {
+    StringBuilder sb = new StringBuilder();
+    for (String term : terms) {
+      if (sb.length() != 0) {
+        sb.append(" ");
+      }
+      sb.append(term).append("*");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param tp
+   * @return the columns of the data table that are searched, in a fixed
+   * order
+   */
+  static List<String> getSearchColumns(TableProperties tp) {
+    List<String> columns =
+        new ArrayList<String>(tp.getDatabaseColumns().keySet());
+    Collections.sort(columns);
+    return columns;
+  }
+
+  private static boolean searchIndexExists(SQLiteDatabase db,
+      TableProperties tp) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery(SQL_INDEX_EXISTS,
+          new String[] { getIndexTableName(tp) });
+      return c.moveToFirst() && c.getInt(0) != 0;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  private static void buildSearchIndex(SQLiteDatabase db,
+      TableProperties tp) {
+    String dbTableName = tp.getDbTableName();
+    String indexName = getIndexTableName(tp);
+    List<String> columns = getSearchColumns(tp);
+    dropIndexAndTriggers(db, tp);
+    db.execSQL("CREATE VIRTUAL TABLE \"" + indexName + "\" USING fts3(" +
+        CONTENT_COLUMN + ")");
+    db.execSQL("INSERT INTO \"" + indexName + "\" (" + DOCID_COLUMN + ", " +
+        CONTENT_COLUMN + ") SELECT " + DbTable.ROW_KEY_COLUMN + ", " +
+        contentExpression(null, columns) + " FROM \"" + dbTableName + "\"");
+    db.execSQL("CREATE TRIGGER \"" + indexName + TRIGGER_INSERT_SUFFIX +
+        "\" AFTER INSERT ON \"" + dbTableName + "\" BEGIN INSERT INTO \"" +
+        indexName + "\" (" + DOCID_COLUMN + ", " + CONTENT_COLUMN +
+        ") VALUES (new." + DbTable.ROW_KEY_COLUMN + ", " +
+        contentExpression("new", columns) + "); END");
+    db.execSQL("CREATE TRIGGER \"" + indexName + TRIGGER_UPDATE_SUFFIX +
+        "\" AFTER UPDATE ON \"" + dbTableName + "\" BEGIN UPDATE \"" +
+        indexName + "\" SET " + CONTENT_COLUMN + " = " +
+        contentExpression("new", columns) + " WHERE " + DOCID_COLUMN +
+        " = new." + DbTable.ROW_KEY_COLUMN + "; END");
+    db.execSQL("CREATE TRIGGER \"" + indexName + TRIGGER_DELETE_SUFFIX +
+        "\" AFTER DELETE ON \"" + dbTableName + "\" BEGIN DELETE FROM \"" +
+        indexName + "\" WHERE " + DOCID_COLUMN + " = old." +
+        DbTable.ROW_KEY_COLUMN + "; END");
+    Log.d(TAG, "built search index " + indexName);
+  }
+
+  private static void dropIndexAndTriggers(SQLiteDatabase db,
+      TableProperties tp) {
+    String indexName = getIndexTableName(tp);
+    db.execSQL("DROP TRIGGER IF EXISTS \"" + indexName +
+        TRIGGER_INSERT_SUFFIX + "\"");
+    db.execSQL("DROP TRIGGER IF EXISTS \"" + indexName +
+        TRIGGER_UPDATE_SUFFIX + "\"");
+    db.execSQL("DROP TRIGGER IF EXISTS \"" + indexName +
+        TRIGGER_DELETE_SUFFIX + "\"");
+    db.execSQL("DROP TABLE IF EXISTS \"" + indexName + "\"");
+  }
+
+  /**
+   * The values of the columns of a row, separated by spaces.
+   * @param prefix the row to take the values from (e.g., "new"), or null
+   */
+  private static String contentExpression(String prefix,
+      List<String> columns) {
+    if (columns.isEmpty()) {
+      return "''";
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < columns.size(); i++) {
+      if (i != 0) {
+        sb.append(" || ' ' || ");
+      }
+      sb.append("COALESCE(");
+      if (prefix != null) {
+        sb.append(prefix).append(".");
+      }
+      sb.append("\"").append(columns.get(i)).append("\", '')");
+    }
+    return sb.toString();
+  }
+}
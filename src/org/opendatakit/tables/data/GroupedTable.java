@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * The result of aggregating the rows of a table by group (see
+ * {@link DbTable#getGroupedTable(Query, List, List, List)}): one row per
+ * distinct tuple of values of the group columns, ordered by them, holding
+ * those values and the value of each aggregate over the rows of the group.
+ * <p>
+ * The values are held as strings in two flat arrays, rather than as a
+ * {@link UserTable}, as a grouped table has no row ids or metadata.
+ */
+public class GroupedTable {
+
+  private final List<String> mGroupColumns;
+  private final List<String> mDataColumns;
+  private final List<Query.GroupQueryType> mTypes;
+  private final int mNumberOfGroups;
+  /** The group values, a row of getGroupColumns().size() per group. */
+  private final String[] mGroupValues;
+  /** The aggregate values, a row of getAggregateCount() per group. */
+  private final String[] mAggregateValues;
+
+  /**
+   * Build the table from a cursor on the results of
+   * {@link Query#toGroupSql(List, List, List)} or an equivalent query.
+   */
+  GroupedTable(Cursor c, List<String> groupColumns, List<String> dataColumns,
+      List<Query.GroupQueryType> types) {
+    mGroupColumns =
+        Collections.unmodifiableList(new ArrayList<String>(groupColumns));
+    mDataColumns =
+        Collections.unmodifiableList(new ArrayList<String>(dataColumns));
+    mTypes = Collections.unmodifiableList(
+        new ArrayList<Query.GroupQueryType>(types));
+    int groupWidth = groupColumns.size();
+    int aggregateWidth = types.size();
+    int[] groupIndices = new int[groupWidth];
+    for (int i = 0; i < groupWidth; i++) {
+      groupIndices[i] = c.getColumnIndexOrThrow(groupColumns.get(i));
+    }
+    int[] aggregateIndices = new int[aggregateWidth];
+    for (int i = 0; i < aggregateWidth; i++) {
+      aggregateIndices[i] =
+          c.getColumnIndexOrThrow(Query.getFooterColumnAlias(i));
+    }
+    mNumberOfGroups = c.getCount();
+    mGroupValues = new String[mNumberOfGroups * groupWidth];
+    mAggregateValues = new String[mNumberOfGroups * aggregateWidth];
+    int group = 0;
+    while (c.moveToNext()) {
+      for (int i = 0; i < groupWidth; i++) {
+        mGroupValues[group * groupWidth + i] = c.getString(groupIndices[i]);
+      }
+      for (int i = 0; i < aggregateWidth; i++) {
+        mAggregateValues[group * aggregateWidth + i] =
+            c.getString(aggregateIndices[i]);
+      }
+      group++;
+    }
+  }
+
+  public int getNumberOfGroups() {
+    return mNumberOfGroups;
+  }
+
+  /**
+   * @return the element keys of the columns grouped by
+   */
+  public List<String> getGroupColumns() {
+    return mGroupColumns;
+  }
+
+  /**
+   * @return the number of aggregates computed for each group
+   */
+  public int getAggregateCount() {
+    return mTypes.size();
+  }
+
+  /**
+   * @return the element key of the column of the aggregate, or null for a
+   * count of rows
+   */
+  public String getDataColumn(int aggregate) {
+    return mDataColumns.get(aggregate);
+  }
+
+  public Query.GroupQueryType getAggregateType(int aggregate) {
+    return mTypes.get(aggregate);
+  }
+
+  /**
+   * @param group
+   * @param groupColumn the index of the column in {@link #getGroupColumns()}
+   * @return the value of the column shared by the rows of the group, which
+   * may be null
+   */
+  public String getGroupValue(int group, int groupColumn) {
+    return mGroupValues[group * mGroupColumns.size() + groupColumn];
+  }
+
+  /**
+   * @param group
+   * @param aggregate
+   * @return the value of the aggregate over the rows of the group, which is
+   * null for aggregates other than counts if the column is null in all of
+   * them
+   */
+  public String getAggregateValue(int group, int aggregate) {
+    return mAggregateValues[group * mTypes.size() + aggregate];
+  }
+}
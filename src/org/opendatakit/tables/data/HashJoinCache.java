@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opendatakit.tables.data.Query.Join;
+import org.opendatakit.tables.data.Query.SqlData;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Holds the join sides of {@link Query.Join}s in memory, so that
+ * {@link DbTable} can evaluate joins as hash joins rather than leaving them to
+ * SQLite, which matches on columns that usually have no index and evaluates
+ * the joined query again for every query on the main table.
+ * <p>
+ * A join side is the joined table's query reduced to a hash map from the
+ * values of its match columns to the number of its rows with those values.
+ * Each row of the main table is then kept as many times as the map says, as
+ * the SQL join would. A side is built once and kept for as long as the
+ * modification counts of the tables its query reads (see
+ * {@link QueryResultCache#getStamp(Query)}) are unchanged. Sides with more
+ * than {@link #MAX_JOIN_KEYS} distinct values are not held, and the join is
+ * left to SQLite.
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class HashJoinCache {
+
+  private static final String TAG = "HashJoinCache";
+
+  private static final int MAX_ENTRIES = 10;
+
+  /**
+   * The most distinct tuples of match values a join side may have before
+   * the join is left to SQLite instead.
+   */
+  static final int MAX_JOIN_KEYS = 20000;
+
+  /**
+   * Separates the values of a tuple of match values in a hash key.
+   */
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  private final Map<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(MAX_ENTRIES + 1, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  HashJoinCache() {
+  }
+
+  /**
+   * A join can be evaluated in memory if each pair of match columns has the
+   * same type, so that the values SQLite would find equal are the same
+   * strings. NUMBER columns are excluded, as distinct reals can print the
+   * same.
+   * @param query
+   * @return true if all of the joins of the query can be hash joins
+   */
+  static boolean canHashJoin(Query query) {
+    TableProperties tp = query.getTableProperties();
+    for (int i = 0; i < query.getJoinCount(); i++) {
+      Join join = query.getJoin(i);
+      for (int j = 0; j < join.getMatchCount(); j++) {
+        ColumnProperties key = tp.getColumnByElementKey(join.getMatchKey(j));
+        ColumnProperties arg =
+            join.getJoinTable().getColumnByElementKey(join.getMatchArg(j));
+        if (key == null || arg == null ||
+            key.getColumnType() != arg.getColumnType() ||
+            key.getColumnType() == ColumnType.NUMBER) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the join side of the join, building it if it is not held.
+   * @param dbh
+   * @param join
+   * @return the number of rows of the joined query for each tuple of match
+   * values (see {@link #getMatchKey(Cursor, int[])}), or null if there are
+   * too many tuples to hold or the query fails
+   */
+  Map<String, Integer> getJoinSide(DbHelper dbh, Join join) {
+    TableProperties joinTp = join.getJoinTable();
+    SqlData sd = join.getQuery().toSql(joinTp.getColumnOrder());
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ");
+    for (int i = 0; i < join.getMatchCount(); i++) {
+      if (i != 0) {
+        b.append(", ");
+      }
+      b.append(join.getMatchArg(i));
+    }
+    b.append(" FROM (").append(sd.getSql()).append(")");
+    String sql = b.toString();
+    String[] args = sd.getArgs();
+    StringBuilder keyBuilder = new StringBuilder(sql);
+    for (String arg : args) {
+      keyBuilder.append(KEY_SEPARATOR).append(arg);
+    }
+    String key = keyBuilder.toString();
+
+    QueryResultCache resultCache = dbh.getQueryResultCache();
+    synchronized (this) {
+      Entry entry = mEntries.get(key);
+      if (entry != null && entry.tp == joinTp &&
+          resultCache.isCurrent(entry.stamp)) {
+        mHits++;
+        return entry.side;
+      }
+      mEntries.remove(key);
+      mMisses++;
+    }
+    // stamp before querying, so that a concurrent write is not missed.
+    QueryResultCache.Stamp stamp = resultCache.getStamp(join.getQuery());
+    Map<String, Integer> side = buildJoinSide(dbh, sql, args,
+        join.getMatchCount());
+    if (side != null) {
+      synchronized (this) {
+        if (resultCache.isCurrent(stamp)) {
+          mEntries.put(key, new Entry(joinTp, stamp, side));
+        }
+      }
+    }
+    return side;
+  }
+
+  private Map<String, Integer> buildJoinSide(DbHelper dbh, String sql,
+      String[] args, int matchCount) {
+    int[] indices = new int[matchCount];
+    for (int i = 0; i < matchCount; i++) {
+      indices[i] = i;
+    }
+    Map<String, Integer> side = new HashMap<String, Integer>();
+    SQLiteDatabase db = null;
+    Cursor c = null;
+    try {
+      db = dbh.getReadableDatabase();
+      c = db.rawQuery(sql, args);
+      while (c.moveToNext()) {
+        String matchKey = getMatchKey(c, indices);
+        if (matchKey == null) {
+          // null never matches.
+          continue;
+        }
+        Integer count = side.get(matchKey);
+        if (count == null && side.size() == MAX_JOIN_KEYS) {
+          return null;
+        }
+        side.put(matchKey, (count == null) ? 1 : count + 1);
+      }
+      return Collections.unmodifiableMap(side);
+    } catch (SQLException e) {
+      Log.e(TAG, "error building join side");
+      e.printStackTrace();
+      return null;
+    } finally {
+      if ( c != null && !c.isClosed() ) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @param c a cursor on a row
+   * @param indices the cursor indices of the match columns
+   * @return the hash key of the tuple of match values of the row, or null
+   * if any of them is null
+   */
+  static String getMatchKey(Cursor c, int[] indices) {
+    if (indices.length == 1) {
+      return c.isNull(indices[0]) ? null : c.getString(indices[0]);
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < indices.length; i++) {
+      if (c.isNull(indices[i])) {
+        return null;
+      }
+      if (i != 0) {
+        b.append(KEY_SEPARATOR);
+      }
+      b.append(c.getString(indices[i]));
+    }
+    return b.toString();
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "HashJoinCache[size=" + mEntries.size() + ", hits=" + mHits +
+        ", misses=" + mMisses + "]";
+  }
+
+  private static final class Entry {
+
+    final TableProperties tp;
+    final QueryResultCache.Stamp stamp;
+    final Map<String, Integer> side;
+
+    Entry(TableProperties tp, QueryResultCache.Stamp stamp,
+        Map<String, Integer> side) {
+      this.tp = tp;
+      this.stamp = stamp;
+      this.side = side;
+    }
+  }
+}
@@ -170,6 +170,8 @@ public class KeyValueStore {
   public int clearEntries(String partition, String aspect, SQLiteDatabase db) {
     int count = db.delete(dbBackingName, WHERE_SQL_FOR_PARTITION_ASPECT,
         new String[] {neverNull(this.tableId), neverNull(partition), neverNull(aspect)});
+    dbh.getKeyValueStoreCache().invalidatePartition(dbBackingName,
+        this.tableId, partition);
     return count;
   }
 
@@ -306,6 +308,7 @@ public class KeyValueStore {
   public int clearKeyValuePairs(SQLiteDatabase db) {
     int count = db.delete(dbBackingName, WHERE_SQL_FOR_TABLE,
         new String[] {this.tableId});
+    dbh.getKeyValueStoreCache().invalidateTable(dbBackingName, this.tableId);
     return count;
   }
 
@@ -349,6 +352,32 @@ public class KeyValueStore {
     }
   }
 
+  /**
+   * Return the entry for the given partition, aspect and key, or null if
+   * there is none. The entries of the partition are read once and then
+   * served from the {@link KeyValueStoreCache} until they are written to.
+   * The entry returned is shared, and must not be modified.
+   * @param db
+   * @param partition
+   * @param aspect
+   * @param key
+   * @return
+   */
+  public OdkTablesKeyValueStoreEntry getCachedEntry(SQLiteDatabase db,
+      String partition, String aspect, String key) {
+    KeyValueStoreCache cache = dbh.getKeyValueStoreCache();
+    Map<String, OdkTablesKeyValueStoreEntry> entries =
+        cache.getPartition(this.dbBackingName, this.tableId, partition);
+    if (entries == null) {
+      long generation = cache.getGeneration();
+      List<OdkTablesKeyValueStoreEntry> read =
+          getEntriesForPartition(db, partition);
+      entries = cache.putPartition(this.dbBackingName, this.tableId,
+          partition, generation, read, !db.inTransaction());
+    }
+    return entries.get(KeyValueStoreCache.entryKey(aspect, key));
+  }
+
   /**
    * Retrieve a unique list of all the distinct partitions in the key value
    * store.
@@ -522,6 +551,8 @@ public class KeyValueStore {
       Log.e(TAG, "deleted > 1 entry from the key value store with name: " +
           this.dbBackingName + " and key: " + key);
     }
+    dbh.getKeyValueStoreCache().noteEntryDeleted(this.dbBackingName,
+        this.tableId, partition, aspect, key, db.inTransaction());
     return numDeleted;
   }
 
@@ -573,6 +604,18 @@ public class KeyValueStore {
     values.put(KeyValueStoreColumns.VALUE, neverNull(entry.value));
     values.put(KeyValueStoreColumns.KEY, neverNull(entry.key));
     db.insert(this.dbBackingName, null, values);
+    // cache a copy of the entry as it would be read back, leaving the
+    // caller's entry as it was. The cache is keyed on the other fields as
+    // they were given.
+    OdkTablesKeyValueStoreEntry written = new OdkTablesKeyValueStoreEntry();
+    written.tableId = entry.tableId;
+    written.partition = entry.partition;
+    written.aspect = entry.aspect;
+    written.key = entry.key;
+    written.type = neverNull(entry.type);
+    written.value = neverNull(entry.value);
+    dbh.getKeyValueStoreCache().noteEntryWritten(this.dbBackingName, written,
+        db.inTransaction());
   }
 
   /**
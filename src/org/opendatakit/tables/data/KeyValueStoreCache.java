@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesKeyValueStoreEntry;
+
+import android.util.Log;
+
+/**
+ * An LRU cache of the entries of the key value stores, so that the
+ * properties read over and over while a table is displayed (color rules,
+ * list view files, graph settings, and so on) come from memory rather than
+ * from a query per key.
+ * <p>
+ * Entries are cached a whole partition at a time, keyed by the backing table
+ * of the store, the table id and the partition, so that a key that is not in
+ * the store is answered from memory as well. {@link KeyValueStore} reads
+ * through the cache and tells it about every write it makes. A write made
+ * outside of a transaction is written through to the cached partition; one
+ * made inside a transaction drops the partition instead, as the transaction
+ * may still be rolled back. Partitions read inside a transaction are not
+ * cached for the same reason.
+ * <p>
+ * Every write bumps a generation count. A partition is only cached if no
+ * write was made between taking the count and reading the partition, so that
+ * a read racing a write on another thread cannot cache what the write
+ * replaced. A reader on another thread can still cache a partition while a
+ * transaction writing to it is open, as it does not see the writes until
+ * they are committed; so whoever commits such a transaction must call
+ * {@link TableProperties#markStaleCache(DbHelper, KeyValueStore.Type)},
+ * which drops the store, as the sync and the {@link KeyValueStoreManager}
+ * bulk operations already do.
+ * <p>
+ * Cached entries are shared, and must not be modified. The maps of cached
+ * partitions are never modified either: a write through replaces the map
+ * of its partition with an updated copy, so that a map handed out by
+ * {@link #getPartition(String, String, String)} can be read without the
+ * lock.
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class KeyValueStoreCache {
+
+  private static final String TAG = "KeyValueStoreCache";
+
+  private static final int MAX_PARTITIONS = 200;
+
+  private final Map<String, Map<String, OdkTablesKeyValueStoreEntry>> mPartitions =
+      new LinkedHashMap<String, Map<String, OdkTablesKeyValueStoreEntry>>(
+          MAX_PARTITIONS + 1, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, Map<String, OdkTablesKeyValueStoreEntry>> eldest) {
+          return size() > MAX_PARTITIONS;
+        }
+      };
+
+  private long mGeneration = 0;
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  KeyValueStoreCache() {
+  }
+
+  /**
+   * @return the generation to pass to
+   * {@link #putPartition(String, String, String, long, List, boolean)}. This
+   * must be taken before the partition is read.
+   */
+  public synchronized long getGeneration() {
+    return mGeneration;
+  }
+
+  /**
+   * @param backingName the backing table of the store
+   * @param tableId
+   * @param partition
+   * @return the entries of the partition keyed by
+   * {@link #entryKey(String, String)}, or null if the partition is not
+   * cached. The map is unmodifiable, and is not changed by later writes.
+   */
+  public synchronized Map<String, OdkTablesKeyValueStoreEntry> getPartition(
+      String backingName, String tableId, String partition) {
+    Map<String, OdkTablesKeyValueStoreEntry> entries =
+        mPartitions.get(partitionKey(backingName, tableId, partition));
+    if (entries == null) {
+      mMisses++;
+    } else {
+      mHits++;
+    }
+    return entries;
+  }
+
+  /**
+   * Cache the entries read from a partition, unless the store has been
+   * written to since the generation was taken.
+   * @param backingName
+   * @param tableId
+   * @param partition
+   * @param generation what {@link #getGeneration()} returned before the
+   * partition was read
+   * @param entries all the entries of the partition
+   * @param cacheable false if the partition was read inside a transaction,
+   * in which case it is not cached
+   * @return the entries keyed by {@link #entryKey(String, String)}, whether
+   * or not they were cached, as an unmodifiable map
+   */
+  public synchronized Map<String, OdkTablesKeyValueStoreEntry> putPartition(
+      String backingName, String tableId, String partition, long generation,
+      List<OdkTablesKeyValueStoreEntry> entries, boolean cacheable) {
+    Map<String, OdkTablesKeyValueStoreEntry> byKey =
+        new HashMap<String, OdkTablesKeyValueStoreEntry>();
+    for (OdkTablesKeyValueStoreEntry entry : entries) {
+      String key = entryKey(entry.aspect, entry.key);
+      if (byKey.containsKey(key)) {
+        // keep the first, as a query for the key would have.
+        Log.e(TAG, "key: " + entry.key + " in KVS " + backingName +
+            " for table: " + tableId + " has more than one entry. It should " +
+            "have at most 1, as it is a key in a set.");
+        continue;
+      }
+      byKey.put(key, entry);
+    }
+    Map<String, OdkTablesKeyValueStoreEntry> unmodifiable =
+        Collections.unmodifiableMap(byKey);
+    if (cacheable && generation == mGeneration) {
+      mPartitions.put(partitionKey(backingName, tableId, partition),
+          unmodifiable);
+    }
+    return unmodifiable;
+  }
+
+  /**
+   * Record that an entry has been inserted or replaced.
+   * @param backingName
+   * @param entry the entry as it was written
+   * @param inTransaction true if it was written inside a transaction
+   */
+  public synchronized void noteEntryWritten(String backingName,
+      OdkTablesKeyValueStoreEntry entry, boolean inTransaction) {
+    mGeneration++;
+    String key = partitionKey(backingName, entry.tableId, entry.partition);
+    if (inTransaction) {
+      mPartitions.remove(key);
+      return;
+    }
+    Map<String, OdkTablesKeyValueStoreEntry> entries = mPartitions.get(key);
+    if (entries != null) {
+      Map<String, OdkTablesKeyValueStoreEntry> copy =
+          new HashMap<String, OdkTablesKeyValueStoreEntry>(entries);
+      copy.put(entryKey(entry.aspect, entry.key), entry);
+      mPartitions.put(key, Collections.unmodifiableMap(copy));
+    }
+  }
+
+  /**
+   * Record that an entry has been deleted.
+   * @param backingName
+   * @param tableId
+   * @param partition
+   * @param aspect
+   * @param key
+   * @param inTransaction true if it was deleted inside a transaction
+   */
+  public synchronized void noteEntryDeleted(String backingName, String tableId,
+      String partition, String aspect, String key, boolean inTransaction) {
+    mGeneration++;
+    String pKey = partitionKey(backingName, tableId, partition);
+    if (inTransaction) {
+      mPartitions.remove(pKey);
+      return;
+    }
+    Map<String, OdkTablesKeyValueStoreEntry> entries = mPartitions.get(pKey);
+    if (entries != null) {
+      Map<String, OdkTablesKeyValueStoreEntry> copy =
+          new HashMap<String, OdkTablesKeyValueStoreEntry>(entries);
+      copy.remove(entryKey(aspect, key));
+      mPartitions.put(pKey, Collections.unmodifiableMap(copy));
+    }
+  }
+
+  /**
+   * Drop the cached entries of a partition.
+   * @param backingName
+   * @param tableId
+   * @param partition
+   */
+  public synchronized void invalidatePartition(String backingName,
+      String tableId, String partition) {
+    mGeneration++;
+    mPartitions.remove(partitionKey(backingName, tableId, partition));
+  }
+
+  /**
+   * Drop the cached entries of every partition of the table in the store.
+   * @param backingName
+   * @param tableId
+   */
+  public synchronized void invalidateTable(String backingName,
+      String tableId) {
+    removeByPrefix(backingName + "|" + tableId + "|");
+  }
+
+  /**
+   * Drop the cached entries of every table in the store.
+   * @param backingName
+   */
+  public synchronized void invalidateStore(String backingName) {
+    removeByPrefix(backingName + "|");
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized void clear() {
+    mGeneration++;
+    mPartitions.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "KeyValueStoreCache[size=" + mPartitions.size() + ", hits=" +
+        mHits + ", misses=" + mMisses + "]";
+  }
+
+  /**
+   * @return the key of an entry within the map of its partition
+   */
+  static String entryKey(String aspect, String key) {
+    return aspect + "|" + key;
+  }
+
+  private void removeByPrefix(String prefix) {
+    mGeneration++;
+    Iterator<String> it = mPartitions.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  private static String partitionKey(String backingName, String tableId,
+      String partition) {
+    return backingName + "|" + tableId + "|" + partition;
+  }
+}
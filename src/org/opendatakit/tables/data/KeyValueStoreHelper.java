@@ -369,37 +369,42 @@ public class KeyValueStoreHelper implements KeyValueHelper {
 
   @Override
   public OdkTablesKeyValueStoreEntry getEntry(String key) {
-    return getEntry(DEFAULT_ASPECT, key);
+    return copyOf(getEntry(DEFAULT_ASPECT, key));
   }
 
   /**
    * Return the entry for the given aspect and key, using the partition field.
    * <p>
-   * Return null if the given entry doesn't exist. Logging is done if there is
-   * more than one key matching the specifications, as this as an error. The
-   * first entry in the list is still returned, however.
+   * Return null if the given entry doesn't exist. The entry is read from the
+   * {@link KeyValueStoreCache}, and so is shared and must not be modified.
+   * Logging is done if there is more than one key matching the
+   * specifications, as this as an error. The first entry is still returned,
+   * however.
    * @param aspect
    * @param key
    * @return
    */
   private OdkTablesKeyValueStoreEntry getEntry(String aspect, String key) {
     SQLiteDatabase db = dbh.getReadableDatabase();
-    List<String> keyList = new ArrayList<String>();
-    keyList.add(key);
-    List<OdkTablesKeyValueStoreEntry> entries =
-        kvs.getEntriesForKeys(db, this.partition, aspect, keyList);
-    // Do some sanity checking. There should only ever be one entry per key.
-    if (entries.size() > 1) {
-      Log.e(TAG, "request for key: " + key + " in KVS " +
-          kvs.getDbBackingName() +
-          " for table: " + kvs.getTableId() + " returned " + entries.size() +
-          "entries. It should return at most 1, as it is a key in a set.");
-    }
-    if (entries.size() == 0) {
+    return kvs.getCachedEntry(db, this.partition, aspect, key);
+  }
+
+  /*
+   * Copy a cached entry before handing it out of this class.
+   */
+  private static OdkTablesKeyValueStoreEntry copyOf(
+      OdkTablesKeyValueStoreEntry entry) {
+    if (entry == null) {
       return null;
-    } else {
-      return entries.get(0);
     }
+    OdkTablesKeyValueStoreEntry copy = new OdkTablesKeyValueStoreEntry();
+    copy.tableId = entry.tableId;
+    copy.partition = entry.partition;
+    copy.aspect = entry.aspect;
+    copy.key = entry.key;
+    copy.type = entry.type;
+    copy.value = entry.value;
+    return copy;
   }
 
   /**
@@ -488,7 +493,7 @@ public class KeyValueStoreHelper implements KeyValueHelper {
 
     @Override
     public OdkTablesKeyValueStoreEntry getEntry(String key) {
-      return KeyValueStoreHelper.this.getEntry(aspect, key);
+      return copyOf(KeyValueStoreHelper.this.getEntry(aspect, key));
     }
 
     /**
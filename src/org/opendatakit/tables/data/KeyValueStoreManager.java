@@ -16,18 +16,18 @@
 package org.opendatakit.tables.data;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
 
 import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesKeyValueStoreEntry;
 import org.opendatakit.common.android.database.DataModelDatabaseHelper;
 import org.opendatakit.common.android.provider.KeyValueStoreColumns;
 import org.opendatakit.common.android.provider.SyncState;
-import org.opendatakit.tables.sync.SyncUtil;
 import org.opendatakit.tables.sync.aggregate.SyncTag;
 
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -153,7 +153,7 @@ public class KeyValueStoreManager {
   public static final String WHERE_SQL_KEY_VALUE = KeyValueStoreColumns.KEY + " = ? " + " and " +
       KeyValueStoreColumns.VALUE + " = ? ";
 
-  // The columns to be selected when initializing KeyStoreValueDefault.
+  // The columns of an entry, as copied between the stores.
   private static final String[] INIT_COLUMNS = {
     KeyValueStoreColumns.TABLE_ID,
     KeyValueStoreColumns.PARTITION,
@@ -305,6 +305,63 @@ public class KeyValueStoreManager {
     return getTableIdsForTableType(TableType.shortcut, db, typeOfStore);
   }
 
+  /**
+   * Get the key values in the given partition of the store for every table
+   * in a single query, as a map of table id to aspect to key to value. As in
+   * {@link KeyValueStore#getKeyValues(String, String, SQLiteDatabase)},
+   * empty values are returned as null.
+   * <p>
+   * Does not close the database.
+   * @param db
+   * @param typeOfStore
+   * @param partition
+   * @return
+   */
+  public Map<String, Map<String, Map<String, String>>> getKeyValuesForAllTables(
+      SQLiteDatabase db, KeyValueStore.Type typeOfStore, String partition) {
+    String backingName = getBackingNameForStore(typeOfStore);
+    Map<String, Map<String, Map<String, String>>> allValues =
+        new HashMap<String, Map<String, Map<String, String>>>();
+    Cursor c = null;
+    try {
+      c = db.query(backingName, new String[] {
+            KeyValueStoreColumns.TABLE_ID,
+            KeyValueStoreColumns.ASPECT,
+            KeyValueStoreColumns.KEY,
+            KeyValueStoreColumns.VALUE},
+          KeyValueStoreColumns.PARTITION + " = ?", new String[] {partition},
+          null, null, null);
+      int idIndex = c.getColumnIndexOrThrow(KeyValueStoreColumns.TABLE_ID);
+      int aspectIndex = c.getColumnIndexOrThrow(KeyValueStoreColumns.ASPECT);
+      int keyIndex = c.getColumnIndexOrThrow(KeyValueStoreColumns.KEY);
+      int valueIndex = c.getColumnIndexOrThrow(KeyValueStoreColumns.VALUE);
+      while (c.moveToNext()) {
+        String tableId = c.getString(idIndex);
+        Map<String, Map<String, String>> aspects = allValues.get(tableId);
+        if (aspects == null) {
+          aspects = new HashMap<String, Map<String, String>>();
+          allValues.put(tableId, aspects);
+        }
+        String aspect = c.getString(aspectIndex);
+        Map<String, String> keyValues = aspects.get(aspect);
+        if (keyValues == null) {
+          keyValues = new HashMap<String, String>();
+          aspects.put(aspect, keyValues);
+        }
+        String value = c.getString(valueIndex);
+        if (value == null || value.equals("")) {
+          value = null;
+        }
+        keyValues.put(c.getString(keyIndex), value);
+      }
+      return allValues;
+    } finally {
+      if ( c != null && !c.isClosed() ) {
+        c.close();
+      }
+    }
+  }
+
   /*
    * Return the database backing name for the given type of KVS. This is just
    * intended as a convenience method to avoid having switch statements all
@@ -334,6 +391,16 @@ public class KeyValueStoreManager {
    * @param tableId
    */
   public void copyDefaultToActiveForTable(String tableId) {
+    copyDefaultToActiveForTable(tableId, true);
+  }
+
+  /**
+   * As {@link #copyDefaultToActiveForTable(String)}.
+   * @param tableId
+   * @param diffOnly if true, only the keys that differ are written, otherwise
+   * every key value pair of the table in the active store is replaced
+   */
+  public void copyDefaultToActiveForTable(String tableId, boolean diffOnly) {
     // There is some weirdness here. Elsewhere "properties" have been
     // considered to be ONLY those keys that exist in the init columns of
     // TableProperties. ATM the file pointers for list and box views, etc,
@@ -342,15 +409,8 @@ public class KeyValueStoreManager {
     // default store are copied over in this method.
     SQLiteDatabase db = dbh.getWritableDatabase();
     try {
-	    KeyValueStore activeKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.ACTIVE);
-	    KeyValueStore defaultKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.DEFAULT);
-	    activeKVS.clearKeyValuePairs(db);
-	    List<OdkTablesKeyValueStoreEntry> defaultEntries =
-	        defaultKVS.getEntries(db);
-	    activeKVS.clearKeyValuePairs(db);
-	    activeKVS.addEntriesToStore(db, defaultEntries);
+      replaceEntriesForTable(db, tableId, KeyValueStore.Type.DEFAULT,
+          KeyValueStore.Type.ACTIVE, diffOnly);
     } finally {
       // TODO: fix the when to close problem
 //    	db.close();
@@ -377,41 +437,38 @@ public class KeyValueStoreManager {
    * @param tableId
    */
   public void mergeServerToDefaultForTable(String tableId) {
-    // We're going to use a TreeSet because we need each
-    // OdkTablesKeyValueStoreEntry object to be dependent only on the
-    // partition, aspect, and key. The value should be ignored in the merge.
-    // If we didn't do this, then we would end up not overwriting values as
-    // expected.
-    Set<OdkTablesKeyValueStoreEntry> newDefault =
-        new TreeSet<OdkTablesKeyValueStoreEntry>(
-             new SyncUtil.KVSEntryComparator() );
+    mergeServerToDefaultForTable(tableId, true);
+  }
+
+  /**
+   * As {@link #mergeServerToDefaultForTable(String)}.
+   * @param tableId
+   * @param diffOnly if true, only the keys whose server values differ are
+   * written, otherwise every key in the server store is rewritten
+   */
+  public void mergeServerToDefaultForTable(String tableId, boolean diffOnly) {
     SQLiteDatabase db = dbh.getWritableDatabase();
     try {
-	    KeyValueStore defaultKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.DEFAULT);
-	    KeyValueStore serverKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.SERVER);
-	    List<OdkTablesKeyValueStoreEntry> oldDefaultEntries =
-	        defaultKVS.getEntries(db);
-	    List<OdkTablesKeyValueStoreEntry> serverEntries =
-	        serverKVS.getEntries(db);
-	    // First we get all the server entries as a set. We'll then add all the
-	    // default values. A set is unchanged if the entry is already there, so
-	    // the default entries that already have entries will simply be gone.
-	    for (OdkTablesKeyValueStoreEntry entry : serverEntries) {
-	      newDefault.add(entry);
-	    }
-	    for (OdkTablesKeyValueStoreEntry entry : oldDefaultEntries) {
-	      newDefault.add(entry);
-	    }
-	    List<OdkTablesKeyValueStoreEntry> defaultList =
-	        new ArrayList<OdkTablesKeyValueStoreEntry>();
-	    for (OdkTablesKeyValueStoreEntry entry : newDefault) {
-	      defaultList.add(entry);
-	    }
-	    // TA-DA! And now we have the merged entries. put them in the store.
-	    defaultKVS.clearKeyValuePairs(db);
-	    defaultKVS.addEntriesToStore(db, defaultList);
+      String serverName = getBackingNameForStore(KeyValueStore.Type.SERVER);
+      String defaultName = getBackingNameForStore(KeyValueStore.Type.DEFAULT);
+      int numDeleted;
+      long numInserted;
+      db.beginTransaction();
+      try {
+        // drop the default entries the server entries overwrite, then add
+        // the server entries whose keys are no longer in the default store.
+        String whereOverwritten = KeyValueStoreColumns.TABLE_ID + " = ? AND EXISTS (" +
+            "SELECT 1 FROM " + serverName + " AS s WHERE " + whereSameKey(defaultName) +
+            (diffOnly ? " AND NOT (" + whereSameValue(defaultName) + ")" : "") + ")";
+        numDeleted = db.delete(defaultName, whereOverwritten, new String[] {tableId});
+        numInserted = insertMissingEntries(db, tableId, serverName, defaultName);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+        dbh.getKeyValueStoreCache().invalidateTable(defaultName, tableId);
+      }
+      Log.d(TAG, "merged server into default for table " + tableId + ": " +
+          numDeleted + " entries overwritten, " + numInserted + " written");
     } finally {
       // TODO: fix the when to close problem
 //    	db.close();
@@ -430,19 +487,22 @@ public class KeyValueStoreManager {
    * @param tableId
    */
   public void setCurrentAsDefaultPropertiesForTable(String tableId) {
+    setCurrentAsDefaultPropertiesForTable(tableId, true);
+  }
+
+  /**
+   * As {@link #setCurrentAsDefaultPropertiesForTable(String)}.
+   * @param tableId
+   * @param diffOnly if true, only the keys that differ are written, otherwise
+   * every key value pair of the table in the default store is replaced
+   */
+  public void setCurrentAsDefaultPropertiesForTable(String tableId, boolean diffOnly) {
     // Remove all the key values from the default key value store for the given
     // table and replace them with the key values from the active store.
     SQLiteDatabase db = dbh.getWritableDatabase();
     try {
-	    KeyValueStore activeKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.ACTIVE);
-	    KeyValueStore defaultKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.DEFAULT);
-	    defaultKVS.clearKeyValuePairs(db);
-	    List<OdkTablesKeyValueStoreEntry> activeEntries =
-	        activeKVS.getEntries(db);
-	    defaultKVS.clearKeyValuePairs(db);
-	    defaultKVS.addEntriesToStore(db, activeEntries);
+      replaceEntriesForTable(db, tableId, KeyValueStore.Type.ACTIVE,
+          KeyValueStore.Type.DEFAULT, diffOnly);
     } finally {
       // TODO: fix the when to close problem
 //    	db.close();
@@ -471,33 +531,38 @@ public class KeyValueStoreManager {
    * @param tableId
    */
   public void copyDefaultToServerForTable(String tableId) {
+    copyDefaultToServerForTable(tableId, true);
+  }
+
+  /**
+   * As {@link #copyDefaultToServerForTable(String)}.
+   * @param tableId
+   * @param diffOnly if true, only the keys that differ are written, otherwise
+   * every key value pair of the table in the server store is replaced
+   */
+  public void copyDefaultToServerForTable(String tableId, boolean diffOnly) {
     SQLiteDatabase db = dbh.getWritableDatabase();
     try {
-	    int numClearedFromServerKVS;
-	    KeyValueStore defaultKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.DEFAULT);
-	    KeyValueStore serverKVS = this.getStoreForTable(tableId,
-	        KeyValueStore.Type.SERVER);
-	    numClearedFromServerKVS = serverKVS.clearKeyValuePairs(db);
-	    List<OdkTablesKeyValueStoreEntry> defaultEntries =
-	        defaultKVS.getEntries(db);
-	    serverKVS.addEntriesToStore(db, defaultEntries);
-	    // and now add an entry to the sync KVS.
-	    addIsSetToSyncToSyncKVSForTable(tableId);
-	    // Now try to update the properties tag.
-	    TableProperties tp = TableProperties.getTablePropertiesForTable(dbh,
-	        tableId, KeyValueStore.Type.SERVER);
-	    SyncTag syncTag = tp.getSyncTag();
-	    if (syncTag.getSchemaETag() == null ||
-	        syncTag.getPropertiesETag() == null ) {
-	      // Then it's not been synched and we can rely on it to first be inited
-	      // during the sync.
-	    } else {
-	      // We don't update the properties etag, which should only ever be set
-	      // from the server. The SyncState.updating flag is sufficient to mark
-	      // it as dirty.
-	      tp.setSyncState(SyncState.updating);
-	    }
+      replaceEntriesForTable(db, tableId, KeyValueStore.Type.DEFAULT,
+          KeyValueStore.Type.SERVER, diffOnly);
+      // the server properties are read back below.
+      TableProperties.markStaleCache(dbh, KeyValueStore.Type.SERVER);
+      // and now add an entry to the sync KVS.
+      addIsSetToSyncToSyncKVSForTable(tableId);
+      // Now try to update the properties tag.
+      TableProperties tp = TableProperties.getTablePropertiesForTable(dbh,
+          tableId, KeyValueStore.Type.SERVER);
+      SyncTag syncTag = tp.getSyncTag();
+      if (syncTag.getSchemaETag() == null ||
+          syncTag.getPropertiesETag() == null ) {
+        // Then it's not been synched and we can rely on it to first be inited
+        // during the sync.
+      } else {
+        // We don't update the properties etag, which should only ever be set
+        // from the server. The SyncState.updating flag is sufficient to mark
+        // it as dirty.
+        tp.setSyncState(SyncState.updating);
+      }
     } finally {
       // TODO: fix the when to close problem
 //    	db.close();
@@ -544,6 +609,89 @@ public class KeyValueStoreManager {
     }
   }
 
+  /*
+   * Make the key value pairs of the table in the target store the same as
+   * those in the source store, in a single transaction. If diffOnly, the
+   * entries that are missing from the source or differ in type or value are
+   * deleted, and only the keys then missing from the target are copied, so
+   * that unchanged entries are not rewritten. Otherwise every entry of the
+   * table in the target is deleted and the source entries copied over.
+   */
+  private void replaceEntriesForTable(SQLiteDatabase db, String tableId,
+      KeyValueStore.Type fromStore, KeyValueStore.Type toStore,
+      boolean diffOnly) {
+    String fromName = getBackingNameForStore(fromStore);
+    String toName = getBackingNameForStore(toStore);
+    int numDeleted;
+    long numInserted;
+    db.beginTransaction();
+    try {
+      String whereStale = KeyValueStoreColumns.TABLE_ID + " = ?";
+      if (diffOnly) {
+        whereStale += " AND NOT EXISTS (SELECT 1 FROM " + fromName + " AS s WHERE " +
+            whereSameKey(toName) + " AND " + whereSameValue(toName) + ")";
+      }
+      numDeleted = db.delete(toName, whereStale, new String[] {tableId});
+      numInserted = insertMissingEntries(db, tableId, fromName, toName);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      dbh.getKeyValueStoreCache().invalidateTable(toName, tableId);
+    }
+    Log.d(TAG, "copied " + fromStore.name() + " to " + toStore.name() +
+        " for table " + tableId + ": " + numDeleted + " entries deleted, " +
+        numInserted + " written");
+  }
+
+  /*
+   * Copy the entries of the table in the source store whose keys are not in
+   * the target store. Returns the number of entries copied.
+   */
+  private long insertMissingEntries(SQLiteDatabase db, String tableId,
+      String fromName, String toName) {
+    StringBuilder columns = new StringBuilder();
+    StringBuilder sourceColumns = new StringBuilder();
+    for (String column : INIT_COLUMNS) {
+      if (columns.length() != 0) {
+        columns.append(", ");
+        sourceColumns.append(", ");
+      }
+      columns.append(column);
+      sourceColumns.append("s.").append(column);
+    }
+    db.execSQL("INSERT INTO " + toName + " (" + columns + ") SELECT " +
+        sourceColumns + " FROM " + fromName + " AS s WHERE s." +
+        KeyValueStoreColumns.TABLE_ID + " = ? AND NOT EXISTS (SELECT 1 FROM " +
+        toName + " WHERE " + whereSameKey(toName) + ")", new String[] {tableId});
+    return DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+  }
+
+  /*
+   * The condition that the entry of the source store, aliased s, has the same
+   * table id, partition, aspect, and key as the entry of the target store.
+   */
+  private static String whereSameKey(String toName) {
+    return "s." + KeyValueStoreColumns.TABLE_ID + " = " + toName + "." +
+          KeyValueStoreColumns.TABLE_ID +
+        " AND s." + KeyValueStoreColumns.PARTITION + " = " + toName + "." +
+          KeyValueStoreColumns.PARTITION +
+        " AND s." + KeyValueStoreColumns.ASPECT + " = " + toName + "." +
+          KeyValueStoreColumns.ASPECT +
+        " AND s." + KeyValueStoreColumns.KEY + " = " + toName + "." +
+          KeyValueStoreColumns.KEY;
+  }
+
+  /*
+   * The condition that the entry of the source store, aliased s, has the same
+   * type and value as the entry of the target store.
+   */
+  private static String whereSameValue(String toName) {
+    return "s." + KeyValueStoreColumns.VALUE_TYPE + " IS " + toName + "." +
+          KeyValueStoreColumns.VALUE_TYPE +
+        " AND s." + KeyValueStoreColumns.VALUE + " IS " + toName + "." +
+          KeyValueStoreColumns.VALUE;
+  }
+
   /*
    * This does a simple query for all the tables that have rows where the
    * key and the value equal the passed in parameters.
@@ -16,6 +16,7 @@
 package org.opendatakit.tables.data;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -23,6 +24,9 @@ import java.util.Set;
 import org.opendatakit.common.android.provider.ConflictType;
 import org.opendatakit.common.android.provider.DataTableColumns;
 import org.opendatakit.common.android.provider.SyncState;
+import org.opendatakit.tables.data.QueryPlanCache.BoundConstraint;
+import org.opendatakit.tables.data.QueryPlanCache.BoundJoin;
+import org.opendatakit.tables.data.QueryPlanCache.Plan;
 
 
 public class Query {
@@ -56,9 +60,35 @@ public class Query {
 
   private TablePropertiesContainer tpc = null;
 
-    public enum GroupQueryType { COUNT, AVERAGE, MINIMUM, MAXIMUM, SUM }
+    /**
+     * The aggregates of footers and of {@link #toGroupSql(List, List, List)}.
+     * COUNT of a null column counts rows; COUNT_DISTINCT counts distinct
+     * non-null values.
+     */
+    public enum GroupQueryType { COUNT, AVERAGE, MINIMUM, MAXIMUM, SUM,
+        COUNT_DISTINCT }
+
+    /**
+     * How the latest row of each prime column group is found for the
+     * overview of a table with a sort column. See
+     * {@link Query#toOverviewSql(List, OverviewStrategy)}.
+     */
+    public enum OverviewStrategy { SELF_JOIN, LATEST_PER_GROUP }
 
-    private static final String KW_JOIN = "join";
+    /**
+     * How the free-text search terms of a query are matched. Both ignore the
+     * case of ASCII letters only, and need every term to match.
+     * <p>
+     * The two do not find quite the same rows. LIKE matches each term
+     * anywhere in any column, including inside a word, by scanning the
+     * table. FULL_TEXT only matches each term against the start of the
+     * words in the table's {@link DbTableSearchIndex}, which must exist: a
+     * search for "port" finds "Portland" either way, but only LIKE finds
+     * "Newport". As {@link DbTable} uses LIKE until the index has been
+     * built, the first searches of a table may find more rows than later
+     * ones.
+     */
+    public enum SearchMode { LIKE, FULL_TEXT }
 
     public class Comparator {
         public static final int EQUALS = 0;
@@ -82,6 +112,8 @@ public class Query {
     private List<Join> joins;
     private String orderBy;
     private int sortOrder;
+    private String searchText;
+    private SearchMode searchMode;
 
     private Query(TablePropertiesContainer tpc, TableProperties tp) {
       this.tpc = tpc;
@@ -89,12 +121,18 @@ public class Query {
       constraints = new ArrayList<Constraint>();
       joins = new ArrayList<Join>();
       orderBy = tp.getSortColumn();
+      searchText = null;
+      searchMode = SearchMode.LIKE;
     }
 
     public Query(DbHelper dbh, KeyValueStore.Type storeType, TableProperties tp) {
       this(new TablePropertiesContainer(dbh, storeType), tp);
     }
 
+    TableProperties getTableProperties() {
+        return tp;
+    }
+
     public int getConstraintCount() {
         return constraints.size();
     }
@@ -114,231 +152,186 @@ public class Query {
     public void clear() {
         constraints.clear();
         joins.clear();
+        searchText = null;
+    }
+
+    /**
+     * @return the free-text search of the query, or null if there is none
+     */
+    public String getSearchText() {
+        return searchText;
+    }
+
+    /**
+     * Restrict the query to rows containing every word of the given text.
+     * @param searchText the text, or null to remove the search
+     */
+    public void setSearchText(String searchText) {
+        this.searchText = searchText;
+    }
+
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    /**
+     * {@link DbTable} sets this to {@link SearchMode#FULL_TEXT} when the
+     * table has a search index.
+     */
+    public void setSearchMode(SearchMode searchMode) {
+        this.searchMode = searchMode;
+    }
+
+    /**
+     * @return the words of the search text, split as the search index splits
+     * them, with the ASCII letters in lower case. Empty if there is no search.
+     */
+    List<String> getSearchTerms() {
+        List<String> terms = new ArrayList<String>();
+        if (searchText == null) {
+            return terms;
+        }
+        for (String term : toLowerAscii(searchText).split("[^\\p{L}\\p{N}]+")) {
+            if (term.length() != 0) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Lower case only the ASCII letters, as the FTS3 simple tokenizer and
+     * LIKE both do. Unlike {@link String#toLowerCase()} this does not depend
+     * on the default locale (e.g., "I" is not made a dotless i in Turkish).
+     */
+    static String toLowerAscii(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+        }
+        return sb.toString();
     }
 
     /**
      * Attempts to parse a user query. If the query is malformed, it may return
      * false, but this is not guaranteed (if it does return false though, the
      * query is definitely malformed).
+     * <p>
+     * Any text before the first key:value pair is a free-text search (see
+     * {@link #setSearchText(String)}). It restricts the rows of the SQL but
+     * is not a constraint, so callers that only read the constraints do not
+     * see it. The query is parsed by {@link QueryParser}, and the plan bound
+     * from it is kept in the {@link QueryPlanCache} for the next time the
+     * same query is run.
      */
     public boolean loadFromUserQuery(String query) {
-        List<String> keys = new ArrayList<String>();
-        List<String> values = new ArrayList<String>();
-        int startIndex = 0;
-        int colonIndex = query.indexOf(':');
-        if ((colonIndex < 0) || (colonIndex == query.length() - 1)) {
-            return false;
-        }
-        while (startIndex < query.length()) {
-            // when starting an iteration, there must be at least one more
-            // colon, and it must not be the last character
-            colonIndex = query.indexOf(':', startIndex);
-            String key = query.substring(startIndex, colonIndex);
-            keys.add(key);
-            int nextColonIndex = query.indexOf(':', colonIndex + 1);
-            if (nextColonIndex < 0 || nextColonIndex == (query.length() - 1)) {
-                // either there aren't any more colons, or the only remaining
-                // colon is the last character, so call whatever remains the
-                // value and break out of the loop
-                values.add(query.substring(colonIndex + 1));
-                break;
-            }
-            String value = null;
-            int nextStartIndex = query.lastIndexOf(' ', nextColonIndex);
-            while (nextStartIndex < colonIndex + 2) {
-                if (query.indexOf(' ', nextColonIndex) < 0) {
-                    // we've reached the end of the string
-                    value = query.substring(colonIndex + 1);
-                    break;
-                }
-                // nextStartIndex needs to be the index of the space before the
-                // word before the next colon. Loop until this space is not
-                // before (or immediately after) the current colon. This may
-                // get to the end of the string, in which case it will break
-                // out of this loop, call the remainder of the string the
-                // value, and also break out of the outer loop.
-                nextColonIndex = query.indexOf(':', nextColonIndex + 1);
-                nextStartIndex = query.lastIndexOf(' ', nextColonIndex);
-                if (nextColonIndex < 0 ||
-                        nextColonIndex == (query.length() - 1)) {
-                    value = query.substring(colonIndex + 1);
-                    break;
-                }
-            }
-            if (value != null) {
-                values.add(value);
-                break;
-            }
-            if (!KW_JOIN.equalsIgnoreCase(key)) {
-                // if it's just a constraint, not a join, we don't need to
-                // worry about anything else
-                startIndex = nextStartIndex + 1;
-                values.add(query.substring(colonIndex + 1, nextStartIndex));
-                continue;
-            }
-            // it's a join, so the parentheses have to match up
-            int parenIndex = query.indexOf('(', colonIndex);
-            if (parenIndex > nextColonIndex) {
-                // there aren't any parentheses until after the next colon
-                // (i.e., there aren't any parentheses within the value)
-                // (because there aren't any constraints on the join table), so
-                // handle it just like a constraint
-                startIndex = nextStartIndex + 1;
-                values.add(query.substring(colonIndex + 1, nextStartIndex));
-                continue;
-            }
-            int openParenCount = 1;
-            while (openParenCount != 0) {
-                int leftParenIndex = query.indexOf('(', parenIndex + 1);
-                int rightParenIndex = query.indexOf(')', parenIndex + 1);
-                if (rightParenIndex < 0) {
-                    // there aren't any more close parentheses, so it's
-                    // invalid; treat it as a normal value
-                    value = query.substring(colonIndex + 1, nextStartIndex);
-                    break;
-                }
-                if ((leftParenIndex < 0) || (rightParenIndex < leftParenIndex)) {
-                    parenIndex = rightParenIndex;
-                    openParenCount -= 1;
-                } else {
-                    parenIndex = leftParenIndex;
-                    openParenCount += 1;
-                }
-            }
-            if (value != null) {
-                startIndex = nextStartIndex + 1;
-                values.add(value);
-                continue;
-            }
-            nextColonIndex = query.indexOf(':', parenIndex);
-            if ((nextColonIndex < 0) ||
-                    (nextColonIndex == query.length() - 1)) {
-                // we've reached the end of the string
-                values.add(query.substring(colonIndex + 1));
-                break;
-            }
-            nextStartIndex = query.lastIndexOf(' ', nextColonIndex);
-            while (nextStartIndex < parenIndex) {
-                nextColonIndex = query.indexOf(':', nextColonIndex + 1);
-                if (nextColonIndex < 0 ||
-                        nextColonIndex == (query.length() - 1)) {
-                    value = query.substring(colonIndex + 1);
-                    break;
+        QueryPlanCache cache = tpc.dbh.getQueryPlanCache();
+        Plan plan = cache.get(tp, query);
+        if (plan == null) {
+            plan = bind(QueryParser.parse(query));
+            cache.put(tp, query, plan);
+        }
+        apply(plan);
+        return plan.isValid();
+    }
+
+    /**
+     * Resolve the column labels and table names of a parsed query. A join
+     * that cannot be resolved is taken as a constraint on a column named by
+     * its key. The plan is invalid from the first unknown column, but the
+     * pairs before it are kept.
+     */
+    private Plan bind(QueryParser.ParsedQuery parsed) {
+        String freeText = parsed.getFreeText();
+        List<BoundConstraint> boundConstraints =
+            new ArrayList<BoundConstraint>();
+        List<BoundJoin> boundJoins = new ArrayList<BoundJoin>();
+        boolean valid = !parsed.isEmpty();
+        for (QueryParser.Node node : parsed.getNodes()) {
+            if (node instanceof QueryParser.JoinNode) {
+                BoundJoin join = bindJoin((QueryParser.JoinNode) node);
+                if (join != null) {
+                    boundJoins.add(join);
+                    continue;
                 }
-                nextStartIndex = query.lastIndexOf(' ', nextColonIndex);
             }
-            if (value != null) {
-                values.add(value);
+            String cdn = getColumnByUserString(node.getKey());
+            if (cdn == null || node.getValue().length() == 0) {
+                valid = false;
                 break;
             }
-            values.add(query.substring(colonIndex + 1, nextStartIndex));
-            startIndex = nextStartIndex + 1;
-        }
-        for (int i = 0; i < keys.size(); i++) {
-            String key = keys.get(i);
-            String value = values.get(i);
-            if (!KW_JOIN.equals(key)) {
-                String cdn = getColumnByUserString(key);
-                if (cdn == null) {
-                    return false;
-                }
-                constraints.add(new Constraint(cdn, Comparator.EQUALS, value));
-                continue;
-            }
-            String tableName;
-            String queryString;
-            String matchString;
-            if (value.contains("(")) {
-                int leftParenIndex = value.indexOf('(');
-                int rightParenIndex = value.lastIndexOf(')');
-                if (rightParenIndex < leftParenIndex) {
-                    String cdn = getColumnByUserString(key);
-                    if (cdn == null) {
-                        return false;
-                    }
-                    constraints.add(new Constraint(cdn, Comparator.EQUALS,
-                            value));
-                    continue;
-                }
-                tableName = value.substring(0, leftParenIndex).trim();
-                queryString = value.substring(leftParenIndex + 1,
-                        rightParenIndex);
-                matchString = value.substring(rightParenIndex + 1);
-            } else {
-                int firstSpaceIndex = value.indexOf(' ');
-                if (firstSpaceIndex < 0) {
-                    String cdn = getColumnByUserString(key);
-                    if (cdn == null) {
-                        return false;
-                    }
-                    constraints.add(new Constraint(cdn, Comparator.EQUALS,
-                            value));
-                    continue;
-                }
-                tableName = value.substring(0, firstSpaceIndex);
-                queryString = null;
-                matchString = value.substring(firstSpaceIndex + 1);
+            boundConstraints.add(new BoundConstraint(cdn, node.getValue()));
+        }
+        return new Plan(valid, (freeText.length() == 0) ? null : freeText,
+                boundConstraints, boundJoins);
+    }
+
+    /**
+     * @return the bound join, or null if the table or any of the columns to
+     * match on cannot be found
+     */
+    private BoundJoin bindJoin(QueryParser.JoinNode node) {
+        TableProperties joinTp = getTableByDisplayName(node.getTableName());
+        if (joinTp == null) {
+            return null;
+        }
+        String[] matchKeys = new String[node.getMatchCount()];
+        String[] matchArgs = new String[node.getMatchCount()];
+        for (int i = 0; i < node.getMatchCount(); i++) {
+            String matchKey = getColumnByUserString(node.getMatchKey(i));
+            ColumnProperties matchArgCp =
+                joinTp.getColumnByUserLabel(node.getMatchArg(i));
+            if ((matchKey == null) || (matchArgCp == null)) {
+                return null;
             }
-            TableProperties joinTp = null;
-            if ( this.tp.getDisplayName().toLowerCase().equals(tableName.toLowerCase()) ) {
-              joinTp = this.tp;
-            } else {
-              TableProperties[] tps = tpc.getTableProperties();
-              for (TableProperties tp : tps) {
-                  if (tp.getDisplayName().toLowerCase().equals(
-                        tableName.toLowerCase())) {
-                      joinTp = tp;
-                  }
-              }
+            matchKeys[i] = matchKey;
+            matchArgs[i] = matchArgCp.getElementKey();
+        }
+        Plan joinPlan = null;
+        if (node.getSubquery() != null) {
+            Plan p = new Query(tpc, joinTp).bind(node.getSubquery());
+            if (p.isValid()) {
+                joinPlan = p;
             }
-            if (joinTp == null) {
-                String cdn = getColumnByUserString(key);
-                if (cdn == null) {
-                    return false;
-                }
-                constraints.add(new Constraint(cdn, Comparator.EQUALS, value));
-                continue;
+        }
+        return new BoundJoin(joinTp, joinPlan, matchKeys, matchArgs);
+    }
+
+    private TableProperties getTableByDisplayName(String tableName) {
+        if (this.tp.getDisplayName().equalsIgnoreCase(tableName)) {
+            return this.tp;
+        }
+        TableProperties joinTp = null;
+        for (TableProperties tp : tpc.getTableProperties()) {
+            if (tp.getDisplayName().equalsIgnoreCase(tableName)) {
+                joinTp = tp;
             }
+        }
+        return joinTp;
+    }
+
+    /**
+     * Add the constraints, joins and search of a plan to this query. The
+     * plan is shared, so everything is copied out of it.
+     */
+    private void apply(Plan plan) {
+        if (plan.searchText != null) {
+            searchText = plan.searchText;
+        }
+        for (BoundConstraint constraint : plan.constraints) {
+            constraints.add(new Constraint(constraint.elementKey,
+                    Comparator.EQUALS, constraint.value));
+        }
+        for (BoundJoin join : plan.joins) {
             Query joinQuery = null;
-            if (queryString != null) {
-                Query q = new Query(tpc, joinTp);
-                if (q.loadFromUserQuery(queryString)) {
-                    joinQuery = q;
-                }
-            }
-            String[] matchSplit = matchString.trim().split("\\s+");
-            String[] matchKeys = new String[matchSplit.length];
-            String[] matchArgs = new String[matchSplit.length];
-            boolean allValid = true;
-            for (int j = 0; j < matchSplit.length; j++) {
-                String match = matchSplit[j];
-                boolean valid = match.contains("/");
-                if (!valid) {
-                    allValid = false;
-                    continue;
-                }
-                String[] split = matchSplit[j].split("/");
-                String matchKey = getColumnByUserString(split[0]);
-                ColumnProperties matchArgCp =
-                    joinTp.getColumnByUserLabel(split[1]);
-                if ((matchKey == null) || (matchArgCp == null)) {
-                    allValid = false;
-                    continue;
-                }
-                matchKeys[j] = matchKey;
-                matchArgs[j] = matchArgCp.getElementKey();
-            }
-            if (allValid) {
-                joins.add(new Join(joinTp, joinQuery, matchKeys, matchArgs));
-            } else {
-                String cdn = getColumnByUserString(key);
-                if (cdn == null) {
-                    return false;
-                }
-                constraints.add(new Constraint(cdn, Comparator.EQUALS, value));
+            if (join.plan != null) {
+                joinQuery = new Query(tpc, join.tp);
+                joinQuery.apply(join.plan);
             }
+            joins.add(new Join(join.tp, joinQuery, join.matchKeys.clone(),
+                    join.matchArgs.clone()));
         }
-        return true;
     }
 
     private String getColumnByUserString(String us) {
@@ -373,6 +366,21 @@ public class Query {
         constraints.remove(index);
     }
 
+    /**
+     * @return the comma-separated element keys the query orders by, or null
+     * if it is not ordered
+     */
+    String getOrderBy() {
+        return orderBy;
+    }
+
+    /**
+     * @return the {@link SortOrder} of {@link #getOrderBy()}
+     */
+    int getSortOrder() {
+        return sortOrder;
+    }
+
     public void setOrderBy(int sortOrder, ColumnProperties firstCp,
             ColumnProperties... cps) {
         StringBuilder orderByBuilder =
@@ -385,7 +393,20 @@ public class Query {
     }
 
     public SqlData toSql(String[] columns) {
-        SqlData sd = toSql(columns, true);
+        return appendOrderBy(toSql(columns, true));
+    }
+
+    /**
+     * As {@link #toSql(String[])}, but leaving out the joins, for
+     * {@link DbTable} to evaluate them itself (see {@link HashJoinCache}).
+     * @param columns
+     * @return
+     */
+    SqlData toSqlWithoutJoins(String[] columns) {
+        return appendOrderBy(toSql(buildSelection(columns, true), false));
+    }
+
+    private SqlData appendOrderBy(SqlData sd) {
         if (orderBy != null) {
             if (sortOrder == SortOrder.ASCENDING) {
                 sd.appendSql(" ORDER BY " + orderBy + " ASC");
@@ -396,7 +417,22 @@ public class Query {
         return sd;
     }
 
+    /**
+     * Builds the SQL for the query without its ORDER BY, for callers that
+     * add their own ordering and conditions (see
+     * {@link DbTable#getRowPager(Query, int)}).
+     * @param columns the columns to select, besides the row id
+     * @return
+     */
+    SqlData toUnorderedSql(String[] columns) {
+        return toSql(columns, true);
+    }
+
     private SqlData toSql(String[] columns, boolean includeId) {
+        return toSql(buildSelection(columns, includeId));
+    }
+
+    private String buildSelection(String[] columns, boolean includeId) {
         String dbTn = tp.getDbTableName();
         StringBuilder sb = new StringBuilder();
         if (includeId) {
@@ -408,14 +444,18 @@ public class Query {
         for (int i = (includeId ? 0 : 1); i < columns.length; i++) {
             sb.append(", " + dbTn + "." + columns[i] + " AS " + columns[i]);
         }
-        return toSql(sb.toString());
+        return sb.toString();
     }
 
     private SqlData toSql(String selection) {
+        return toSql(selection, true);
+    }
+
+    private SqlData toSql(String selection, boolean includeJoins) {
         SqlData sd = new SqlData();
         sd.appendSql("SELECT " + selection);
         sd.appendSql(" FROM " + tp.getDbTableName());
-        for (int i = 0; i < joins.size(); i++) {
+        for (int i = 0; includeJoins && i < joins.size(); i++) {
             SqlData joinSd = joins.get(i).toSql();
             sd.appendSql(" " + joinSd.getSql());
             sd.appendArgs(joinSd.getArgList());
@@ -441,10 +481,56 @@ public class Query {
             sd.appendSql(" AND " + csd.getSql());
             sd.appendArgs(csd.getArgList());
         }
+        List<String> searchTerms = getSearchTerms();
+        if (!searchTerms.isEmpty()) {
+            SqlData ssd = searchToSql(searchTerms);
+            sd.appendSql(" AND " + ssd.getSql());
+            sd.appendArgs(ssd.getArgList());
+        }
         //Log.i(TAG, "sql query: " + sd.getSql());
         return sd;
     }
 
+    private SqlData searchToSql(List<String> searchTerms) {
+        String dbTn = tp.getDbTableName();
+        SqlData sd = new SqlData();
+        if (searchMode == SearchMode.FULL_TEXT) {
+            sd.appendSql(dbTn + "." + DbTable.ROW_KEY_COLUMN +
+                    " IN (SELECT docid FROM " +
+                    DbTableSearchIndex.getIndexTableName(tp) +
+                    " WHERE content MATCH ?)");
+            sd.appendArg(DbTableSearchIndex.toMatchString(searchTerms));
+            return sd;
+        }
+        List<String> columns = DbTableSearchIndex.getSearchColumns(tp);
+        if (columns.isEmpty()) {
+            // nothing to find the terms in.
+            sd.appendSql("0");
+            return sd;
+        }
+        for (int i = 0; i < searchTerms.size(); i++) {
+            sd.appendSql((i == 0) ? "(" : " AND (");
+            for (int j = 0; j < columns.size(); j++) {
+                if (j != 0) {
+                    sd.appendSql(" OR ");
+                }
+                sd.appendSql(dbTn + "." + columns.get(j) + " LIKE ? ESCAPE '\\'");
+                sd.appendArg("%" + escapeLike(searchTerms.get(i)) + "%");
+            }
+            sd.appendSql(")");
+        }
+        return sd;
+    }
+
+    /**
+     * Escape the LIKE wildcards in a search term, so that it only matches
+     * itself. Goes with ESCAPE '\'.
+     */
+    private static String escapeLike(String term) {
+        return term.replace("\\", "\\\\").replace("%", "\\%")
+                .replace("_", "\\_");
+    }
+
     /**
      * Builds the SQL string for querying the database table.
      *
@@ -467,6 +553,42 @@ public class Query {
      * @return a SqlData object, with the SQL string and an array of arguments
      */
     public SqlData toOverviewSql(List<String> arrayList) {
+        return toOverviewSql(arrayList, OverviewStrategy.SELF_JOIN);
+    }
+
+    /**
+     * Builds the SQL string for the overview of the table using the given
+     * strategy.
+     * <p>
+     * {@link OverviewStrategy#SELF_JOIN} is the query described at
+     * {@link #toOverviewSql(List)}. It joins two full passes over the table
+     * and groups the result, which gets slow as the table grows.
+     * <p>
+     * {@link OverviewStrategy#LATEST_PER_GROUP} finds the distinct prime
+     * column values and then, for each one, looks up the row with the
+     * greatest sort value directly. With the index on the prime and sort
+     * columns (see {@link DbTableIndexes}) that lookup is a single seek.
+     * Supposing t, a, b and c are as at {@link #toOverviewSql(List)}:
+     * SELECT d.id, d.a, d.b, d.c FROM t d WHERE d.rowid IN (
+     *   SELECT (
+     *     SELECT t.rowid FROM t WHERE c = 12 AND t.a = g.a
+     *     AND t.b IS NOT NULL ORDER BY t.b DESC, t.id DESC LIMIT 1
+     *   ) FROM (SELECT DISTINCT a FROM t WHERE c = 12) g
+     * )
+     * This selects the same rows, the ties on the sort column also going to
+     * the greatest id. It only differs from SELF_JOIN when there is a sort
+     * column; otherwise both use the single grouping query.
+     * @param arrayList the columns to select
+     * @param strategy
+     * @return a SqlData object, with the SQL string and an array of arguments
+     */
+    public SqlData toOverviewSql(List<String> arrayList,
+            OverviewStrategy strategy) {
+        if (strategy == OverviewStrategy.LATEST_PER_GROUP &&
+                tp.getPrimeColumns().size() != 0 &&
+                tp.getSortColumn() != null) {
+            return toLatestPerGroupSql(arrayList);
+        }
         if (tp.getPrimeColumns().size() == 0) {
             return toSql(arrayList);
         }
@@ -535,61 +657,188 @@ public class Query {
         return sd;
     }
 
+    private SqlData toLatestPerGroupSql(List<String> columns) {
+        String dbTn = tp.getDbTableName();
+        String sort = dbTn + "." + tp.getSortColumn();
+        List<String> primes = tp.getPrimeColumns();
+        SqlData sd = new SqlData();
+        sd.appendSql("SELECT d." + DataTableColumns.ID);
+        for (String column : columns) {
+            sd.appendSql(", d." + column);
+        }
+        sd.appendSql(" FROM " + dbTn + " d WHERE d." + DbTable.ROW_KEY_COLUMN +
+                " IN (SELECT (");
+        // the latest row of group g. The unaliased table here is the
+        // innermost, so the constraints apply to it.
+        SqlData latestSd = toSql(dbTn + "." + DbTable.ROW_KEY_COLUMN);
+        sd.appendSql(latestSd.getSql());
+        sd.appendArgs(latestSd.getArgList());
+        for (String prime : primes) {
+            sd.appendSql(" AND " + dbTn + "." + prime + " = g." + prime);
+        }
+        sd.appendSql(" AND " + sort + " IS NOT NULL ORDER BY " + sort +
+                " DESC, " + dbTn + "." + DataTableColumns.ID +
+                " DESC LIMIT 1)");
+        // the groups.
+        StringBuilder groupSelection = new StringBuilder("DISTINCT ");
+        for (int i = 0; i < primes.size(); i++) {
+            if (i != 0) {
+                groupSelection.append(", ");
+            }
+            groupSelection.append(dbTn + "." + primes.get(i) + " AS " +
+                    primes.get(i));
+        }
+        SqlData groupSd = toSql(groupSelection.toString());
+        sd.appendSql(" FROM (" + groupSd.getSql() + ") g)");
+        sd.appendArgs(groupSd.getArgList());
+        return sd;
+    }
+
     public SqlData toSql(List<String> columns) {
         return toSql(columns.toArray(new String[0]));
     }
 
     public SqlData toFooterSql(String dataColumn, GroupQueryType type) {
-        String typeSql;
-        switch (type) {
-        case AVERAGE:
-            typeSql = "(SUM(" + dataColumn + ") / COUNT(" + dataColumn +
-                    "))";
-            break;
-        case COUNT:
-            typeSql = "COUNT(" + dataColumn + ")";
-            break;
-        case MAXIMUM:
-            typeSql = "MAX(" + dataColumn + ")";
-            break;
-        case MINIMUM:
-            typeSql = "MIN(" + dataColumn + ")";
-            break;
-        case SUM:
-            typeSql = "SUM(" + dataColumn + ")";
-            break;
-        default:
-            throw new RuntimeException();
-        }
-        SqlData sd = toSql(typeSql + " AS g");
+        SqlData sd = toSql(aggregateToSql(dataColumn, type) + " AS g");
         return sd;
     }
 
+    /**
+     * Builds the SQL for computing several footer values in a single pass
+     * over the table. The value for dataColumns[i] aggregated by types[i] is
+     * returned in the column named {@link #getFooterColumnAlias(int)}.
+     * @param dataColumns the element keys of the columns to aggregate
+     * @param types the aggregate for each of the columns
+     * @return a SqlData object, with the SQL string and an array of arguments
+     */
+    public SqlData toFooterSql(List<String> dataColumns,
+            List<GroupQueryType> types) {
+        if (dataColumns.size() != types.size() || dataColumns.isEmpty()) {
+            throw new IllegalArgumentException("need one aggregate per " +
+                    "footer column");
+        }
+        StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < dataColumns.size(); i++) {
+            if (i != 0) {
+                selection.append(", ");
+            }
+            selection.append(aggregateToSql(dataColumns.get(i), types.get(i)));
+            selection.append(" AS " + getFooterColumnAlias(i));
+        }
+        return toSql(selection.toString());
+    }
+
+    /**
+     * The name of the result column holding the i-th value computed by
+     * {@link #toFooterSql(List, List)} or
+     * {@link #toGroupSql(List, List, List)}.
+     */
+    public static String getFooterColumnAlias(int index) {
+        return "g" + index;
+    }
+
     public SqlData toGroupSql(String groupColumn, GroupQueryType type) {
-        String typeSql;
+        String typeSql = aggregateToSql(groupColumn, type);
+        SqlData sd = toSql(groupColumn + ", " + typeSql + " AS g");
+        sd.appendSql(" GROUP BY " + groupColumn);
+        return sd;
+    }
+
+    /**
+     * Builds the SQL for aggregating the rows of the query by the values of
+     * the group columns, computing every aggregate in a single pass over the
+     * table. There is one result row per distinct tuple of group values,
+     * ordered by them. The group values are returned in columns named by the
+     * group columns, and the value for dataColumns[i] aggregated by types[i]
+     * in the column named {@link #getFooterColumnAlias(int)}.
+     * @param groupColumns the element keys of the columns to group by, which
+     * may be empty to aggregate the whole query as one group
+     * @param dataColumns the element keys of the columns to aggregate. A
+     * COUNT may have a null column to count the rows.
+     * @param types the aggregate for each of the columns
+     * @return a SqlData object, with the SQL string and an array of arguments
+     */
+    public SqlData toGroupSql(List<String> groupColumns,
+            List<String> dataColumns, List<GroupQueryType> types) {
+        String prefix = tp.getDbTableName() + ".";
+        SqlData sd = toSql(buildGroupSelection(prefix, groupColumns,
+                dataColumns, types));
+        sd.appendSql(buildGroupBy(prefix, groupColumns));
+        return sd;
+    }
+
+    /**
+     * The select list of {@link #toGroupSql(List, List, List)}.
+     * @param prefix what to qualify the column names with, e.g. the table
+     * name and a period, or the empty string
+     */
+    static String buildGroupSelection(String prefix, List<String> groupColumns,
+            List<String> dataColumns, List<GroupQueryType> types) {
+        if (dataColumns.size() != types.size() || types.isEmpty()) {
+            throw new IllegalArgumentException("need one aggregate per " +
+                    "data column");
+        }
+        StringBuilder selection = new StringBuilder();
+        for (String groupColumn : groupColumns) {
+            selection.append(prefix + groupColumn + " AS " + groupColumn);
+            selection.append(", ");
+        }
+        for (int i = 0; i < types.size(); i++) {
+            if (i != 0) {
+                selection.append(", ");
+            }
+            String dataColumn = dataColumns.get(i);
+            if (dataColumn == null && types.get(i) == GroupQueryType.COUNT) {
+                selection.append("COUNT(*)");
+            } else if (dataColumn == null) {
+                throw new IllegalArgumentException("only COUNT may have no " +
+                        "data column");
+            } else {
+                selection.append(aggregateToSql(prefix + dataColumn,
+                        types.get(i)));
+            }
+            selection.append(" AS " + getFooterColumnAlias(i));
+        }
+        return selection.toString();
+    }
+
+    /**
+     * The GROUP BY and ORDER BY clauses of
+     * {@link #toGroupSql(List, List, List)}, or the empty string if there
+     * are no group columns.
+     * @see #buildGroupSelection(String, List, List, List)
+     */
+    static String buildGroupBy(String prefix, List<String> groupColumns) {
+        if (groupColumns.isEmpty()) {
+            return "";
+        }
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i < groupColumns.size(); i++) {
+            if (i != 0) {
+                columns.append(", ");
+            }
+            columns.append(prefix + groupColumns.get(i));
+        }
+        return " GROUP BY " + columns + " ORDER BY " + columns;
+    }
+
+    private static String aggregateToSql(String column, GroupQueryType type) {
         switch (type) {
         case AVERAGE:
-            typeSql = "(SUM(" + groupColumn + ") / COUNT(" + groupColumn +
-                    "))";
-            break;
+            return "(SUM(" + column + ") / COUNT(" + column + "))";
         case COUNT:
-            typeSql = "COUNT(" + groupColumn + ")";
-            break;
+            return "COUNT(" + column + ")";
+        case COUNT_DISTINCT:
+            return "COUNT(DISTINCT " + column + ")";
         case MAXIMUM:
-            typeSql = "MAX(" + groupColumn + ")";
-            break;
+            return "MAX(" + column + ")";
         case MINIMUM:
-            typeSql = "MIN(" + groupColumn + ")";
-            break;
+            return "MIN(" + column + ")";
         case SUM:
-            typeSql = "SUM(" + groupColumn + ")";
-            break;
+            return "SUM(" + column + ")";
         default:
             throw new RuntimeException();
         }
-        SqlData sd = toSql(groupColumn + ", " + typeSql + " AS g");
-        sd.appendSql(" GROUP BY " + groupColumn);
-        return sd;
     }
 
     @SuppressWarnings("unused")
@@ -638,8 +887,95 @@ public class Query {
         return sd;
     }
 
+    /**
+     * Appends a description of the shape of this query to sb: everything
+     * that determines the SQL built by {@link #toSql(String[])} and friends
+     * other than the values of the constraints. Two queries with the same
+     * shape produce the same SQL string, differing only in their arguments.
+     * @see QuerySqlCache
+     */
+    void appendSqlShape(StringBuilder sb) {
+        sb.append(tp.getDbTableName());
+        for (Join j : joins) {
+            sb.append(" j(");
+            j.appendSqlShape(sb);
+            sb.append(")");
+        }
+        for (Constraint c : constraints) {
+            sb.append(" c(").append(c.cdn);
+            for (int comparator : c.comparators) {
+                sb.append(",").append(comparator);
+            }
+            sb.append(")");
+        }
+        sb.append(" o(").append(orderBy).append(",").append(sortOrder)
+            .append(")");
+        List<String> searchTerms = getSearchTerms();
+        if (!searchTerms.isEmpty()) {
+            sb.append(" s(").append(searchMode).append(",")
+                .append(searchTerms.size()).append(",")
+                .append(DbTableSearchIndex.getSearchColumns(tp)).append(")");
+        }
+    }
+
+    /**
+     * Appends the arguments of this query to args, in the order in which
+     * {@link #toSql(String)} binds them: the arguments of the joins followed
+     * by those of the constraints.
+     */
+    void appendSqlArgs(List<String> args) {
+        for (Join j : joins) {
+            j.query.appendSqlArgs(args);
+        }
+        for (Constraint c : constraints) {
+            args.addAll(c.values);
+        }
+        List<String> searchTerms = getSearchTerms();
+        if (!searchTerms.isEmpty()) {
+            args.addAll(searchToSql(searchTerms).getArgList());
+        }
+    }
+
+    /**
+     * Appends the arguments bound by
+     * {@link #toOverviewSql(List, OverviewStrategy)}, which are the same for
+     * every strategy. This must be kept in step with that method.
+     */
+    void appendOverviewSqlArgs(List<String> args) {
+        appendSqlArgs(args);
+        if (tp.getPrimeColumns().size() != 0 && tp.getSortColumn() != null) {
+            // the x and y subqueries each bind the full set of arguments.
+            appendSqlArgs(args);
+        }
+    }
+
+    /**
+     * Adds the ids of the tables this query reads from (its own and those of
+     * its joins) to tableIds.
+     * @see QueryResultCache
+     */
+    void appendTableIds(Collection<String> tableIds) {
+        tableIds.add(tp.getTableId());
+        for (Join j : joins) {
+            j.query.appendTableIds(tableIds);
+        }
+    }
+
+    /**
+     * Wrap an already-built SQL string and its arguments.
+     */
+    SqlData newSqlData(String sql, List<String> args) {
+        SqlData sd = new SqlData();
+        sd.appendSql(sql);
+        sd.appendArgs(args);
+        return sd;
+    }
+
     public String toUserQuery() {
         StringBuilder sb = new StringBuilder();
+        if (searchText != null) {
+            sb.append(searchText + " ");
+        }
         for (Constraint c : constraints) {
             sb.append(c.toUserQuery() + " ");
         }
@@ -666,6 +1002,10 @@ public class Query {
                 ((orderBy != null) && !orderBy.equals(other.orderBy))) {
             return false;
         }
+        if ((searchText == null) ? (other.searchText != null) :
+                !searchText.equals(other.searchText)) {
+            return false;
+        }
         Set<Integer> indices = new HashSet<Integer>();
         for (int i = 0; i < constraints.size(); i++) {
             indices.add(i);
@@ -704,6 +1044,9 @@ public class Query {
         if (orderBy != null) {
             hashCode += orderBy.hashCode() + sortOrder;
         }
+        if (searchText != null) {
+            hashCode += searchText.hashCode();
+        }
         for (Constraint c : constraints) {
             hashCode += c.hashCode();
         }
@@ -719,6 +1062,9 @@ public class Query {
         if (orderBy != null) {
             sb.append("/order:" + orderBy + "-" + sortOrder);
         }
+        if (searchText != null) {
+            sb.append("/search:" + searchText);
+        }
         sb.append(constraints.toString());
         sb.append(joins.toString());
         return sb.toString();
@@ -926,6 +1272,14 @@ public class Query {
             return matchKeys[index] + " = " + matchArgs[index];
         }
 
+        private void appendSqlShape(StringBuilder sb) {
+            sb.append(tp.getColumnOrder()).append(" ");
+            query.appendSqlShape(sb);
+            for (int i = 0; i < matchKeys.length; i++) {
+                sb.append(" ").append(matchToSql(i));
+            }
+        }
+
         public String toUserQuery() {
             StringBuilder sb = new StringBuilder();
             sb.append("join:" + tp.getDisplayName());
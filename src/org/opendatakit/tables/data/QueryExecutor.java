@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs the queries behind the table screens on a small pool of worker
+ * threads, so that loading a large table does not block the UI thread, and
+ * delivers the resulting {@link UserTable}s back on the UI thread.
+ * <p>
+ * Each query is submitted on behalf of an owner (e.g., the activity showing
+ * the table). A new query from the same owner cancels the one before it, as
+ * happens when the user searches again before the last search has finished,
+ * so only the result of the latest query is ever delivered. Queries for the
+ * screen the user is looking at ({@link #PRIORITY_VISIBLE}) run before those
+ * for screens in the background.
+ * <p>
+ * A query that is already running cannot be interrupted; cancelling it just
+ * means its result is dropped. Submitting and cancelling must be done on the
+ * UI thread.
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class QueryExecutor {
+
+  private static final String TAG = "QueryExecutor";
+
+  /** The priority of queries for the screen the user is looking at. */
+  public static final int PRIORITY_VISIBLE = 0;
+  /** The priority of queries for screens that are not in front. */
+  public static final int PRIORITY_BACKGROUND = 10;
+
+  private static final int NUM_THREADS = 2;
+
+  /**
+   * Does the work of a query on a worker thread.
+   */
+  public interface Loader {
+
+    /**
+     * @return the table, or null if it could not be loaded
+     */
+    UserTable load();
+  }
+
+  /**
+   * Receives the result of a query on the UI thread. Not called if the query
+   * was cancelled.
+   */
+  public interface Callback {
+
+    /**
+     * @param table the table, or null if it could not be loaded
+     */
+    void onQueryFinished(UserTable table);
+  }
+
+  private final ThreadPoolExecutor mExecutor;
+  private final Handler mHandler;
+  private final Map<Object, Request> mCurrentRequests =
+      new HashMap<Object, Request>();
+  private long mNextSequence = 0;
+
+  QueryExecutor() {
+    mExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 0L,
+        TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+
+          private int mCount = 0;
+
+          @Override
+          public synchronized Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+
+              @Override
+              public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+              }
+            }, TAG + " #" + (++mCount));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    mHandler = new Handler(Looper.getMainLooper());
+  }
+
+  /**
+   * Run a query, cancelling any query of the same owner that has not yet
+   * delivered its result.
+   * @param owner whoever the result is for
+   * @param priority {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_BACKGROUND},
+   * or anything in between. Lower numbers run first.
+   * @param loader the query
+   * @param callback
+   * @return the request, which can be used to cancel it
+   */
+  public Request submit(Object owner, int priority, Loader loader,
+      Callback callback) {
+    cancel(owner);
+    Request request;
+    synchronized (this) {
+      request = new Request(owner, priority, mNextSequence++, loader,
+          callback);
+      mCurrentRequests.put(owner, request);
+    }
+    mExecutor.execute(request);
+    return request;
+  }
+
+  /**
+   * Cancel the query of the owner, if it has one that has not yet delivered
+   * its result. Owners should call this when they are destroyed.
+   * @param owner
+   */
+  public void cancel(Object owner) {
+    Request request;
+    synchronized (this) {
+      request = mCurrentRequests.remove(owner);
+    }
+    if (request != null) {
+      request.cancel();
+    }
+  }
+
+  /**
+   * @return true if the owner has a query that has not yet delivered its
+   * result
+   */
+  public synchronized boolean isLoading(Object owner) {
+    return mCurrentRequests.containsKey(owner);
+  }
+
+  private synchronized void finish(Request request) {
+    if (mCurrentRequests.get(request.mOwner) == request) {
+      mCurrentRequests.remove(request.mOwner);
+    }
+  }
+
+  /**
+   * A query waiting for, or running on, a worker thread.
+   */
+  public final class Request implements Runnable, Comparable<Request> {
+
+    private final Object mOwner;
+    private final int mPriority;
+    private final long mSequence;
+    private final Loader mLoader;
+    private final Callback mCallback;
+    private volatile boolean mCancelled = false;
+
+    private Request(Object owner, int priority, long sequence, Loader loader,
+        Callback callback) {
+      mOwner = owner;
+      mPriority = priority;
+      mSequence = sequence;
+      mLoader = loader;
+      mCallback = callback;
+    }
+
+    /**
+     * Cancel the query. If it has not started it will not be run, and
+     * either way its result will not be delivered.
+     */
+    public void cancel() {
+      mCancelled = true;
+      finish(this);
+    }
+
+    public boolean isCancelled() {
+      return mCancelled;
+    }
+
+    @Override
+    public void run() {
+      if (mCancelled) {
+        return;
+      }
+      UserTable table = null;
+      try {
+        table = mLoader.load();
+      } catch (RuntimeException e) {
+        Log.e(TAG, "query failed");
+        e.printStackTrace();
+      }
+      final UserTable result = table;
+      mHandler.post(new Runnable() {
+
+        @Override
+        public void run() {
+          if (mCancelled) {
+            return;
+          }
+          finish(Request.this);
+          mCallback.onQueryFinished(result);
+        }
+      });
+    }
+
+    @Override
+    public int compareTo(Request another) {
+      if (mPriority != another.mPriority) {
+        return (mPriority < another.mPriority) ? -1 : 1;
+      }
+      if (mSequence != another.mSequence) {
+        return (mSequence < another.mSequence) ? -1 : 1;
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses the queries users type into the search box into a syntax tree,
+ * which {@link Query#loadFromUserQuery(String)} then binds to the columns and
+ * tables they name.
+ * <p>
+ * A query is some optional free text followed by key:value pairs. A value
+ * runs up to the word before the next colon, so it may contain spaces (e.g.,
+ * "name:John Smith age:12"). A colon only starts a new pair when it follows
+ * a whole word and the current value is not empty, so "time:12:30" is a
+ * single pair. The key "join" introduces a join, whose value is the name of
+ * the table to join with, an optional parenthesized query on that table, and
+ * the key/arg column pairs to join on (e.g.,
+ * "join:fridges (District:Seattle) ID/ID"). Colons inside the parentheses
+ * belong to the join.
+ * <p>
+ * Parsing does not depend on any table, so the trees can be shared.
+ */
+public class QueryParser {
+
+  static final String KW_JOIN = "join";
+
+  private QueryParser() {
+  }
+
+  /**
+   * @param query
+   * @return the syntax tree of the query. Never null.
+   */
+  public static ParsedQuery parse(String query) {
+    List<Token> tokens = lex(query);
+    return parseTokens(query, tokens, 0, tokens.size());
+  }
+
+  enum TokenType { TEXT, SPACE, COLON, OPEN_PAREN, CLOSE_PAREN }
+
+  static final class Token {
+
+    final TokenType type;
+    final int start;
+    final int end;
+
+    Token(TokenType type, int start, int end) {
+      this.type = type;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public String toString() {
+      return type + "[" + start + "," + end + ")";
+    }
+  }
+
+  /**
+   * Split the query into runs of whitespace, runs of other text, and the
+   * single characters ':', '(' and ')'.
+   */
+  static List<Token> lex(String query) {
+    List<Token> tokens = new ArrayList<Token>();
+    int i = 0;
+    while (i < query.length()) {
+      char c = query.charAt(i);
+      if (c == ':') {
+        tokens.add(new Token(TokenType.COLON, i, i + 1));
+        i++;
+      } else if (c == '(') {
+        tokens.add(new Token(TokenType.OPEN_PAREN, i, i + 1));
+        i++;
+      } else if (c == ')') {
+        tokens.add(new Token(TokenType.CLOSE_PAREN, i, i + 1));
+        i++;
+      } else if (Character.isWhitespace(c)) {
+        int start = i;
+        while (i < query.length() && Character.isWhitespace(query.charAt(i))) {
+          i++;
+        }
+        tokens.add(new Token(TokenType.SPACE, start, i));
+      } else {
+        int start = i;
+        while (i < query.length() && !isSpecial(query.charAt(i))) {
+          i++;
+        }
+        tokens.add(new Token(TokenType.TEXT, start, i));
+      }
+    }
+    return tokens;
+  }
+
+  private static boolean isSpecial(char c) {
+    return c == ':' || c == '(' || c == ')' || Character.isWhitespace(c);
+  }
+
+  private static ParsedQuery parseTokens(String query, List<Token> tokens,
+      int from, int to) {
+    int firstKey = -1;
+    for (int i = from; i < to; i++) {
+      if (isKeyAt(tokens, from, to, i, false)) {
+        firstKey = i;
+        break;
+      }
+    }
+    if (firstKey < 0) {
+      return new ParsedQuery(text(query, tokens, from, to),
+          Collections.<Node>emptyList());
+    }
+    String freeText = text(query, tokens, from, firstKey);
+    List<Node> nodes = new ArrayList<Node>();
+    int keyIndex = firstKey;
+    while (keyIndex >= 0) {
+      String key = query.substring(tokens.get(keyIndex).start,
+          tokens.get(keyIndex).end);
+      int valueStart = keyIndex + 2;
+      boolean isJoin = KW_JOIN.equalsIgnoreCase(key);
+      int nextKey = findNextKey(tokens, from, to, valueStart, isJoin);
+      if (isJoin && nextKey == UNBALANCED) {
+        // the parentheses don't match up, so treat them as plain text.
+        nextKey = findNextKey(tokens, from, to, valueStart, false);
+      }
+      int valueEnd = (nextKey < 0) ? to : nextKey;
+      String value = text(query, tokens, valueStart, valueEnd);
+      nodes.add(isJoin ? parseJoin(key, value) :
+          new ConstraintNode(key, value));
+      keyIndex = nextKey;
+    }
+    return new ParsedQuery(freeText, nodes);
+  }
+
+  private static final int UNBALANCED = -2;
+
+  /**
+   * @return the index of the key token of the next pair, -1 if there is
+   * none, or {@link #UNBALANCED} if trackParens is set and a parenthesis is
+   * still open at the end of the query.
+   */
+  private static int findNextKey(List<Token> tokens, int from, int to,
+      int valueStart, boolean trackParens) {
+    int depth = 0;
+    for (int i = valueStart; i < to; i++) {
+      TokenType type = tokens.get(i).type;
+      if (trackParens && type == TokenType.OPEN_PAREN) {
+        depth++;
+      } else if (trackParens && type == TokenType.CLOSE_PAREN) {
+        depth = Math.max(0, depth - 1);
+      } else if (depth == 0 && i > valueStart &&
+          isKeyAt(tokens, from, to, i, true) &&
+          hasText(tokens, valueStart, i)) {
+        return i;
+      }
+    }
+    return (depth == 0) ? -1 : UNBALANCED;
+  }
+
+  /**
+   * A key is a whole word followed by a colon. Except for the first key, the
+   * colon must not end the query.
+   */
+  private static boolean isKeyAt(List<Token> tokens, int from, int to,
+      int i, boolean needsValue) {
+    if (tokens.get(i).type != TokenType.TEXT) {
+      return false;
+    }
+    if (i > from && tokens.get(i - 1).type != TokenType.SPACE) {
+      return false;
+    }
+    if (i + 1 >= to || tokens.get(i + 1).type != TokenType.COLON) {
+      return false;
+    }
+    return !needsValue || (i + 2 < to);
+  }
+
+  private static boolean hasText(List<Token> tokens, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (tokens.get(i).type != TokenType.SPACE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String text(String query, List<Token> tokens, int from,
+      int to) {
+    if (from >= to) {
+      return "";
+    }
+    return query.substring(tokens.get(from).start,
+        tokens.get(to - 1).end).trim();
+  }
+
+  private static Node parseJoin(String key, String value) {
+    String tableName;
+    ParsedQuery subquery = null;
+    String matchString;
+    if (value.contains("(")) {
+      int leftParenIndex = value.indexOf('(');
+      int rightParenIndex = value.lastIndexOf(')');
+      if (rightParenIndex < leftParenIndex) {
+        return new ConstraintNode(key, value);
+      }
+      tableName = value.substring(0, leftParenIndex).trim();
+      subquery = parse(value.substring(leftParenIndex + 1, rightParenIndex));
+      matchString = value.substring(rightParenIndex + 1);
+    } else {
+      int firstSpaceIndex = value.indexOf(' ');
+      if (firstSpaceIndex < 0) {
+        return new ConstraintNode(key, value);
+      }
+      tableName = value.substring(0, firstSpaceIndex);
+      matchString = value.substring(firstSpaceIndex + 1);
+    }
+    String[] matches = matchString.trim().split("\\s+");
+    List<String[]> matchPairs = new ArrayList<String[]>();
+    for (String match : matches) {
+      String[] split = match.split("/");
+      if (split.length != 2 || split[0].length() == 0) {
+        // not a valid join after all.
+        return new ConstraintNode(key, value);
+      }
+      matchPairs.add(split);
+    }
+    return new JoinNode(key, value, tableName, subquery, matchPairs);
+  }
+
+  /**
+   * The syntax tree of a query: its free text and its pairs, in order.
+   */
+  public static final class ParsedQuery {
+
+    private final String freeText;
+    private final List<Node> nodes;
+
+    ParsedQuery(String freeText, List<Node> nodes) {
+      this.freeText = freeText;
+      this.nodes = Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * @return the text before the first pair, or the empty string
+     */
+    public String getFreeText() {
+      return freeText;
+    }
+
+    public List<Node> getNodes() {
+      return nodes;
+    }
+
+    /**
+     * @return true if there is neither free text nor any pair
+     */
+    public boolean isEmpty() {
+      return freeText.length() == 0 && nodes.isEmpty();
+    }
+  }
+
+  /**
+   * A key:value pair of a query.
+   */
+  public static abstract class Node {
+
+    private final String key;
+    private final String value;
+
+    Node(String key, String value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    /**
+     * @return the key, as the user typed it
+     */
+    public String getKey() {
+      return key;
+    }
+
+    /**
+     * @return the value, with surrounding whitespace removed
+     */
+    public String getValue() {
+      return value;
+    }
+  }
+
+  /**
+   * A column:value constraint.
+   */
+  public static final class ConstraintNode extends Node {
+
+    ConstraintNode(String key, String value) {
+      super(key, value);
+    }
+  }
+
+  /**
+   * A join with another table. If the join cannot be bound (e.g., there is
+   * no such table) it is treated as a constraint on a column named by the
+   * key, as that is what the user may have meant.
+   */
+  public static final class JoinNode extends Node {
+
+    private final String tableName;
+    private final ParsedQuery subquery;
+    private final List<String[]> matchPairs;
+
+    JoinNode(String key, String value, String tableName,
+        ParsedQuery subquery, List<String[]> matchPairs) {
+      super(key, value);
+      this.tableName = tableName;
+      this.subquery = subquery;
+      this.matchPairs = Collections.unmodifiableList(matchPairs);
+    }
+
+    /**
+     * @return the display name of the table to join with
+     */
+    public String getTableName() {
+      return tableName;
+    }
+
+    /**
+     * @return the query on the joined table, or null if there is none
+     */
+    public ParsedQuery getSubquery() {
+      return subquery;
+    }
+
+    public int getMatchCount() {
+      return matchPairs.size();
+    }
+
+    /**
+     * @return the label of the column of this table to match on
+     */
+    public String getMatchKey(int index) {
+      return matchPairs.get(index)[0];
+    }
+
+    /**
+     * @return the label of the column of the joined table to match on
+     */
+    public String getMatchArg(int index) {
+      return matchPairs.get(index)[1];
+    }
+  }
+}
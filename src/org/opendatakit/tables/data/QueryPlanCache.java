@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An LRU cache of the plans that {@link Query#loadFromUserQuery(String)}
+ * makes from user queries, so that running the same search again (e.g., on
+ * every refresh of a list or graph) does not re-parse it or look up its
+ * column labels and join tables again.
+ * <p>
+ * Entries are keyed by the table id and the query string, and are only
+ * returned for the same {@link TableProperties} object they were made with.
+ * The plans hold the element keys and tables the labels resolved to, so the
+ * whole cache is cleared whenever a table or column label may have changed:
+ * when tables or columns are renamed, added or removed, and when the cached
+ * {@link TableProperties} are marked stale.
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class QueryPlanCache {
+
+  private static final int MAX_ENTRIES = 50;
+
+  private final Map<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(MAX_ENTRIES + 1, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  QueryPlanCache() {
+  }
+
+  /**
+   * @param tp
+   * @param query the query as the user typed it
+   * @return the plan, or null if there is none for this tp
+   */
+  public synchronized Plan get(TableProperties tp, String query) {
+    String key = buildKey(tp, query);
+    Entry entry = mEntries.get(key);
+    if (entry != null && entry.tp != tp) {
+      mEntries.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return entry.plan;
+  }
+
+  public synchronized void put(TableProperties tp, String query, Plan plan) {
+    mEntries.put(buildKey(tp, query), new Entry(tp, plan));
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "QueryPlanCache[size=" + mEntries.size() + ", hits=" + mHits +
+        ", misses=" + mMisses + "]";
+  }
+
+  private static String buildKey(TableProperties tp, String query) {
+    return tp.getTableId() + "|" + query;
+  }
+
+  /**
+   * A user query bound to the columns and tables it names. Plans are shared
+   * through the cache, and so must not be changed once built.
+   */
+  public static final class Plan {
+
+    final boolean valid;
+    final String searchText;
+    final List<BoundConstraint> constraints;
+    final List<BoundJoin> joins;
+
+    Plan(boolean valid, String searchText, List<BoundConstraint> constraints,
+        List<BoundJoin> joins) {
+      this.valid = valid;
+      this.searchText = searchText;
+      this.constraints = new ArrayList<BoundConstraint>(constraints);
+      this.joins = new ArrayList<BoundJoin>(joins);
+    }
+
+    /**
+     * @return false if the query named a column that does not exist
+     */
+    public boolean isValid() {
+      return valid;
+    }
+  }
+
+  /**
+   * A column = value constraint.
+   */
+  static final class BoundConstraint {
+
+    final String elementKey;
+    final String value;
+
+    BoundConstraint(String elementKey, String value) {
+      this.elementKey = elementKey;
+      this.value = value;
+    }
+  }
+
+  /**
+   * A join with another table, and the plan of the query on that table, if
+   * any.
+   */
+  static final class BoundJoin {
+
+    final TableProperties tp;
+    final Plan plan;
+    final String[] matchKeys;
+    final String[] matchArgs;
+
+    BoundJoin(TableProperties tp, Plan plan, String[] matchKeys,
+        String[] matchArgs) {
+      this.tp = tp;
+      this.plan = plan;
+      this.matchKeys = matchKeys;
+      this.matchArgs = matchArgs;
+    }
+  }
+
+  private static final class Entry {
+
+    final TableProperties tp;
+    final Plan plan;
+
+    Entry(TableProperties tp, Plan plan) {
+      this.tp = tp;
+      this.plan = plan;
+    }
+  }
+}
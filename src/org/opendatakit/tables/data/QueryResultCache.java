@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.opendatakit.tables.data.Query.SqlData;
+
+/**
+ * An LRU cache of the {@link UserTable}s built by {@link DbTable} for
+ * {@link Query}s, so that re-running an identical query (e.g., when an
+ * activity is resumed or rotated) does not go back to the database.
+ * <p>
+ * Entries are keyed by the table id and the SQL and arguments of the query.
+ * The SQL is built from the query and the projection, so it identifies both
+ * without depending on the Query object, which is mutable.
+ * <p>
+ * Each table has a modification count, which {@link DbTable} bumps whenever
+ * it writes to the table. An entry is only valid while the counts of all the
+ * tables it read from (its own and those of any joins) are unchanged. Entries
+ * are also only returned for the same {@link TableProperties} object they
+ * were built with, as a refreshed TableProperties may mean the table has
+ * changed shape.
+ * <p>
+ * Where the writer knows them, the ids of the rows changed by each of the
+ * recent writes to a table are kept as well (see
+ * {@link #getRowsModifiedSince(Stamp, String)}), so that a table built before
+ * a write can be brought up to date by re-reading just those rows (see
+ * {@link DbTable#refreshUserTable(UserTable, Query)}).
+ * <p>
+ * The cache is bounded by the total number of cells held, as well as by the
+ * number of entries. Cached tables are shared by everyone who asks for the
+ * same query, and so must not be modified;
+ * {@link DbTable#refreshUserTable(UserTable, Query)} patches a copy.
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class QueryResultCache {
+
+  private static final int MAX_ENTRIES = 20;
+
+  /**
+   * The maximum number of values (rows times columns) held by all of the
+   * cached tables together.
+   */
+  static final int MAX_CELLS = 100000;
+
+  /**
+   * The number of writes per table whose changed row ids are remembered.
+   */
+  private static final int MAX_ROW_CHANGES = 32;
+
+  private final Map<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(MAX_ENTRIES + 1, 0.75f, true);
+
+  private final Map<String, Long> mModificationCounts =
+      new HashMap<String, Long>();
+
+  private final Map<String, RowChangeLog> mRowChanges =
+      new HashMap<String, RowChangeLog>();
+
+  private int mCells = 0;
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  QueryResultCache() {
+  }
+
+  /**
+   * Get the modification counts of the tables read by the query. This must
+   * be called before the query is run, and the result passed to
+   * {@link #put(TableProperties, SqlData, Stamp, UserTable)}, so that
+   * a write made while the query was running is not missed.
+   * @param query
+   * @return
+   */
+  public synchronized Stamp getStamp(Query query) {
+    Set<String> tableIds = new HashSet<String>();
+    query.appendTableIds(tableIds);
+    String[] ids = tableIds.toArray(new String[tableIds.size()]);
+    long[] counts = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      counts[i] = getModificationCount(ids[i]);
+    }
+    return new Stamp(ids, counts);
+  }
+
+  /**
+   * @param tp the properties the table will be built with
+   * @param sd the sql the table would be built from
+   * @return the cached table, or null if there is none or it is out of date
+   */
+  public synchronized UserTable get(TableProperties tp, SqlData sd) {
+    String key = buildKey(tp, sd);
+    Entry entry = mEntries.get(key);
+    if (entry != null && (entry.tp != tp || !isCurrent(entry.stamp))) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      mMisses++;
+      return null;
+    }
+    mHits++;
+    return entry.table;
+  }
+
+  /**
+   * Cache a table, unless any table it was read from has been written to
+   * since the stamp was taken, or it is too big.
+   * @param tp
+   * @param sd
+   * @param stamp the stamp from before the query was run
+   * @param table
+   */
+  public synchronized void put(TableProperties tp, SqlData sd, Stamp stamp,
+      UserTable table) {
+    if (table == null || !isCurrent(stamp)) {
+      return;
+    }
+    int cells = table.getNumberOfRows() *
+        (table.getWidth() + DbTable.getAdminColumns().size());
+    if (cells > MAX_CELLS / 2) {
+      // it would push out nearly everything else.
+      return;
+    }
+    String key = buildKey(tp, sd);
+    remove(key);
+    mEntries.put(key, new Entry(tp, stamp, table, cells));
+    mCells += cells;
+    Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+    while ((mCells > MAX_CELLS || mEntries.size() > MAX_ENTRIES) &&
+        it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      mCells -= eldest.cells;
+      it.remove();
+    }
+  }
+
+  /**
+   * Record that the table has been written to. All cached results that read
+   * from it are dropped.
+   * @param tableId
+   */
+  public synchronized void noteTableModified(String tableId) {
+    noteRowsModified(tableId, null);
+  }
+
+  /**
+   * Record that the given rows of the table have been written to (inserted,
+   * updated or deleted). All cached results that read from the table are
+   * dropped.
+   * @param tableId
+   * @param rowIds the ids of the rows, or null if they are not known
+   */
+  public synchronized void noteRowsModified(String tableId,
+      Collection<String> rowIds) {
+    long count = getModificationCount(tableId) + 1;
+    mModificationCounts.put(tableId, count);
+    RowChangeLog log = mRowChanges.get(tableId);
+    if (log == null) {
+      log = new RowChangeLog();
+      mRowChanges.put(tableId, log);
+    }
+    log.add(count, rowIds);
+    Iterator<Entry> it = mEntries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (Arrays.asList(entry.stamp.tableIds).contains(tableId)) {
+        mCells -= entry.cells;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Return the ids of the rows of the table written to since the stamp was
+   * taken.
+   * @param stamp
+   * @param tableId
+   * @return the row ids, or null if they are not all known (e.g., the whole
+   * table was written to, or too many writes have been made since), or if
+   * any other table in the stamp has been written to.
+   */
+  public synchronized Set<String> getRowsModifiedSince(Stamp stamp,
+      String tableId) {
+    long since = -1;
+    for (int i = 0; i < stamp.tableIds.length; i++) {
+      if (stamp.tableIds[i].equals(tableId)) {
+        since = stamp.counts[i];
+      } else if (getModificationCount(stamp.tableIds[i]) != stamp.counts[i]) {
+        return null;
+      }
+    }
+    if (since < 0) {
+      return null;
+    }
+    Set<String> rowIds = new HashSet<String>();
+    if (getModificationCount(tableId) == since) {
+      return rowIds;
+    }
+    RowChangeLog log = mRowChanges.get(tableId);
+    return (log == null) ? null : log.getRowsSince(since, rowIds);
+  }
+
+  public synchronized long getModificationCount(String tableId) {
+    Long count = mModificationCounts.get(tableId);
+    return (count == null) ? 0 : count;
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized void clear() {
+    mEntries.clear();
+    mCells = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "QueryResultCache[size=" + mEntries.size() + ", cells=" + mCells +
+        ", hits=" + mHits + ", misses=" + mMisses + "]";
+  }
+
+  /**
+   * @return true if none of the tables in the stamp have been written to
+   * since it was taken
+   */
+  synchronized boolean isCurrent(Stamp stamp) {
+    for (int i = 0; i < stamp.tableIds.length; i++) {
+      if (getModificationCount(stamp.tableIds[i]) != stamp.counts[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void remove(String key) {
+    Entry entry = mEntries.remove(key);
+    if (entry != null) {
+      mCells -= entry.cells;
+    }
+  }
+
+  private static String buildKey(TableProperties tp, SqlData sd) {
+    StringBuilder sb = new StringBuilder(tp.getTableId());
+    sb.append("|").append(sd.getSql()).append("|");
+    sb.append(Arrays.toString(sd.getArgs()));
+    return sb.toString();
+  }
+
+  /**
+   * The row ids changed by the most recent writes to a table.
+   */
+  private static final class RowChangeLog {
+
+    /**
+     * The latest modification count whose changed rows are not known.
+     */
+    private long mUnknownThrough = 0;
+    private final LinkedList<Long> mCounts = new LinkedList<Long>();
+    private final LinkedList<String[]> mRowIds = new LinkedList<String[]>();
+
+    void add(long count, Collection<String> rowIds) {
+      if (rowIds == null) {
+        mUnknownThrough = count;
+        mCounts.clear();
+        mRowIds.clear();
+        return;
+      }
+      mCounts.addLast(count);
+      mRowIds.addLast(rowIds.toArray(new String[rowIds.size()]));
+      if (mCounts.size() > MAX_ROW_CHANGES) {
+        mUnknownThrough = mCounts.removeFirst();
+        mRowIds.removeFirst();
+      }
+    }
+
+    /**
+     * Add the ids of the rows changed after the given count to rowIds.
+     * @return rowIds, or null if they are not all known
+     */
+    Set<String> getRowsSince(long since, Set<String> rowIds) {
+      if (since < mUnknownThrough) {
+        return null;
+      }
+      Iterator<Long> counts = mCounts.iterator();
+      Iterator<String[]> ids = mRowIds.iterator();
+      while (counts.hasNext()) {
+        long count = counts.next();
+        String[] changed = ids.next();
+        if (count > since) {
+          rowIds.addAll(Arrays.asList(changed));
+        }
+      }
+      return rowIds;
+    }
+  }
+
+  /**
+   * The modification counts of a set of tables at some point in time.
+   */
+  public static final class Stamp {
+
+    private final String[] tableIds;
+    private final long[] counts;
+
+    private Stamp(String[] tableIds, long[] counts) {
+      this.tableIds = tableIds;
+      this.counts = counts;
+    }
+  }
+
+  private static final class Entry {
+
+    final TableProperties tp;
+    final Stamp stamp;
+    final UserTable table;
+    final int cells;
+
+    Entry(TableProperties tp, Stamp stamp, UserTable table, int cells) {
+      this.tp = tp;
+      this.stamp = stamp;
+      this.table = table;
+      this.cells = cells;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.tables.data.Query.SqlData;
+
+/**
+ * An LRU cache of the SQL generated by {@link Query}, keyed by the shape of
+ * the query (see {@link Query#appendSqlShape(StringBuilder)}). The
+ * constraint values are always bound as arguments, so queries that differ
+ * only in their values share one SQL string. A hit skips building the SQL,
+ * and because the string is identical SQLite finds the statement already
+ * compiled in the connection's statement cache (see
+ * {@link DbHelper#SQL_STATEMENT_CACHE_SIZE}).
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class QuerySqlCache {
+
+  private static final int MAX_ENTRIES = 50;
+
+  private static final String KIND_DATA = "data";
+  private static final String KIND_OVERVIEW = "overview";
+  private static final String KIND_FOOTER = "footer";
+  private static final String KIND_GROUP = "group";
+
+  private final Map<String, String> mSqlByShape =
+      new LinkedHashMap<String, String>(MAX_ENTRIES + 1, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  QuerySqlCache() {
+  }
+
+  /**
+   * The cached equivalent of {@link Query#toSql(List)}.
+   */
+  public SqlData getSql(Query query, List<String> columns) {
+    String key = buildKey(KIND_DATA, query, columns.toString());
+    String sql = lookup(key);
+    if (sql != null) {
+      List<String> args = new ArrayList<String>();
+      query.appendSqlArgs(args);
+      return query.newSqlData(sql, args);
+    }
+    SqlData sd = query.toSql(columns);
+    store(key, sd.getSql());
+    return sd;
+  }
+
+  /**
+   * The cached equivalent of {@link Query#toOverviewSql(List)}.
+   */
+  public SqlData getOverviewSql(Query query, List<String> columns) {
+    return getOverviewSql(query, columns, Query.OverviewStrategy.SELF_JOIN);
+  }
+
+  /**
+   * The cached equivalent of
+   * {@link Query#toOverviewSql(List, Query.OverviewStrategy)}.
+   */
+  public SqlData getOverviewSql(Query query, List<String> columns,
+      Query.OverviewStrategy strategy) {
+    TableProperties tp = query.getTableProperties();
+    String key = buildKey(KIND_OVERVIEW, query, columns.toString() +
+        tp.getPrimeColumns() + tp.getSortColumn() + strategy);
+    String sql = lookup(key);
+    if (sql != null) {
+      List<String> args = new ArrayList<String>();
+      query.appendOverviewSqlArgs(args);
+      return query.newSqlData(sql, args);
+    }
+    SqlData sd = query.toOverviewSql(columns, strategy);
+    store(key, sd.getSql());
+    return sd;
+  }
+
+  /**
+   * The cached equivalent of {@link Query#toFooterSql(List, List)}.
+   */
+  public SqlData getFooterSql(Query query, List<String> dataColumns,
+      List<Query.GroupQueryType> types) {
+    String key = buildKey(KIND_FOOTER, query, dataColumns.toString() + types);
+    String sql = lookup(key);
+    if (sql != null) {
+      List<String> args = new ArrayList<String>();
+      query.appendSqlArgs(args);
+      return query.newSqlData(sql, args);
+    }
+    SqlData sd = query.toFooterSql(dataColumns, types);
+    store(key, sd.getSql());
+    return sd;
+  }
+
+  /**
+   * The cached equivalent of {@link Query#toGroupSql(List, List, List)}.
+   */
+  public SqlData getGroupSql(Query query, List<String> groupColumns,
+      List<String> dataColumns, List<Query.GroupQueryType> types) {
+    String key = buildKey(KIND_GROUP, query, groupColumns.toString() +
+        dataColumns + types);
+    String sql = lookup(key);
+    if (sql != null) {
+      List<String> args = new ArrayList<String>();
+      query.appendSqlArgs(args);
+      return query.newSqlData(sql, args);
+    }
+    SqlData sd = query.toGroupSql(groupColumns, dataColumns, types);
+    store(key, sd.getSql());
+    return sd;
+  }
+
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  public synchronized void clear() {
+    mSqlByShape.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "QuerySqlCache[size=" + mSqlByShape.size() + ", hits=" + mHits +
+        ", misses=" + mMisses + "]";
+  }
+
+  private String buildKey(String kind, Query query, String extra) {
+    StringBuilder sb = new StringBuilder(kind);
+    sb.append("|").append(extra).append("|");
+    query.appendSqlShape(sb);
+    return sb.toString();
+  }
+
+  private synchronized String lookup(String key) {
+    String sql = mSqlByShape.get(key);
+    if (sql == null) {
+      mMisses++;
+    } else {
+      mHits++;
+    }
+    return sql;
+  }
+
+  private synchronized void store(String key, String sql) {
+    mSqlByShape.put(key, sql);
+  }
+}
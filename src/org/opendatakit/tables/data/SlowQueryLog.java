@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2013 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.tables.data;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times the queries {@link DbTable} runs, so that slow queries on devices in
+ * the field can be found.
+ * <p>
+ * Every query is counted against a label naming the kind of query (e.g.
+ * "dataQuery"), with its time and the number of rows it returned. Queries
+ * taking {@link #SLOW_QUERY_MILLIS} or longer are also written, with the
+ * output of EXPLAIN QUERY PLAN, to {@link #LOG_FILE_NAME} in the debug
+ * folder. Only the number of their arguments is written, as the arguments
+ * are the user's data. The plan is read and the file written on a
+ * background thread, so a slow query is not made slower still by logging
+ * it. That file is rotated once it passes
+ * {@link #MAX_LOG_BYTES}, keeping one old file. The per-label summary can be
+ * read with {@link #getSummary()} or written to the debug folder with
+ * {@link #exportSummary()}.
+ * <p>
+ * There is one of these per {@link DbHelper}.
+ */
+public class SlowQueryLog {
+
+  private static final String TAG = "SlowQueryLog";
+
+  /** Queries taking at least this long are logged with their plans. */
+  static final long SLOW_QUERY_MILLIS = 250;
+
+  /** The size past which the log is rotated. */
+  static final long MAX_LOG_BYTES = 256 * 1024;
+
+  public static final String LOG_FILE_NAME = "slow_queries.log";
+  public static final String SUMMARY_FILE_NAME = "query_summary.txt";
+
+  private static final String ROTATED_SUFFIX = ".1";
+
+  /**
+   * Explains and writes the slow queries, in the order they were recorded.
+   */
+  private static final ExecutorService logWriter =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, TAG);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final String mDebugFolder;
+  private final Map<String, Stats> mStats = new HashMap<String, Stats>();
+  private final SimpleDateFormat mDateFormat =
+      new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+
+  /**
+   * @param debugFolder the folder to write the log and summary to
+   */
+  SlowQueryLog(String debugFolder) {
+    mDebugFolder = debugFolder;
+  }
+
+  /**
+   * @return the time to pass to
+   * {@link #record(SQLiteDatabase, String, String, String[], long, int)}
+   * once the query is done
+   */
+  public static long start() {
+    return SystemClock.uptimeMillis();
+  }
+
+  /**
+   * Record a query that has finished. If it was slow, its plan is read from
+   * the database and it is written to the log, in the background.
+   * @param db the database it ran against
+   * @param label the kind of query
+   * @param sql
+   * @param args
+   * @param startMillis what {@link #start()} returned before it ran
+   * @param rows the number of rows it returned
+   */
+  public void record(final SQLiteDatabase db, final String label,
+      final String sql, final String[] args, long startMillis,
+      final int rows) {
+    final long millis = SystemClock.uptimeMillis() - startMillis;
+    boolean slow = millis >= SLOW_QUERY_MILLIS;
+    String slowAt = null;
+    synchronized (this) {
+      Stats stats = mStats.get(label);
+      if (stats == null) {
+        stats = new Stats(label);
+        mStats.put(label, stats);
+      }
+      stats.count++;
+      stats.totalMillis += millis;
+      stats.totalRows += rows;
+      if (millis >= stats.maxMillis) {
+        stats.maxMillis = millis;
+        stats.slowestSql = sql;
+      }
+      if (slow) {
+        stats.slowCount++;
+        slowAt = mDateFormat.format(new Date());
+      }
+    }
+    if (slow) {
+      final String when = slowAt;
+      Log.w(TAG, label + " took " + millis + "ms for " + rows + " rows");
+      logWriter.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          writeSlowQuery(when, label, sql, (args == null) ? 0 : args.length,
+              millis, rows, explain(db, sql, args));
+        }
+      });
+    }
+  }
+
+  private String explain(SQLiteDatabase db, String sql, String[] args) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+      int detailIndex = c.getColumnIndex("detail");
+      StringBuilder b = new StringBuilder();
+      while (c.moveToNext()) {
+        b.append("  ");
+        b.append((detailIndex < 0) ? c.getString(c.getColumnCount() - 1) :
+            c.getString(detailIndex));
+        b.append("\n");
+      }
+      return b.toString();
+    } catch (SQLException e) {
+      return "  (no plan: " + e.getMessage() + ")\n";
+    } finally {
+      if ( c != null && !c.isClosed() ) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Only called on the log writer thread.
+   */
+  private void writeSlowQuery(String when, String label, String sql,
+      int argCount, long millis, int rows, String plan) {
+    File folder = new File(mDebugFolder);
+    folder.mkdirs();
+    File log = new File(folder, LOG_FILE_NAME);
+    if (log.length() > MAX_LOG_BYTES) {
+      File rotated = new File(folder, LOG_FILE_NAME + ROTATED_SUFFIX);
+      rotated.delete();
+      if (!log.renameTo(rotated)) {
+        log.delete();
+      }
+    }
+    PrintWriter writer = null;
+    try {
+      writer = new PrintWriter(new OutputStreamWriter(
+          new FileOutputStream(log, true), "UTF-8"));
+      writer.println(when + " " + label + ": " + millis + "ms, " + rows +
+          " rows");
+      writer.println("  " + sql);
+      if (argCount != 0) {
+        writer.println("  args: " + argCount + " (not logged)");
+      }
+      writer.print(plan);
+      writer.println();
+    } catch (FileNotFoundException e) {
+      Log.e(TAG, "could not write to " + log.getAbsolutePath());
+      e.printStackTrace();
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  /**
+   * @return a summary of the queries recorded since the app started or
+   * {@link #clear()} was called, one line per label, the labels taking the
+   * most time in total first
+   */
+  public synchronized String getSummary() {
+    List<Stats> all = new ArrayList<Stats>(mStats.values());
+    Collections.sort(all, new Comparator<Stats>() {
+
+      @Override
+      public int compare(Stats lhs, Stats rhs) {
+        if (lhs.totalMillis != rhs.totalMillis) {
+          return (lhs.totalMillis > rhs.totalMillis) ? -1 : 1;
+        }
+        return lhs.label.compareTo(rhs.label);
+      }
+    });
+    StringBuilder b = new StringBuilder();
+    if (all.isEmpty()) {
+      b.append("No queries recorded.\n");
+    }
+    for (Stats stats : all) {
+      b.append(stats.label + ": " + stats.count + " queries, " +
+          stats.totalMillis + "ms total, " +
+          (stats.totalMillis / stats.count) + "ms average, " +
+          stats.maxMillis + "ms max, " + stats.slowCount + " slow, " +
+          (stats.totalRows / stats.count) + " rows average\n");
+    }
+    return b.toString();
+  }
+
+  /**
+   * Write the summary, followed by the slowest query of each label, to
+   * {@link #SUMMARY_FILE_NAME} in the debug folder.
+   * @return the path of the file, or null if it could not be written
+   */
+  public String exportSummary() {
+    String summary;
+    String now;
+    StringBuilder slowest = new StringBuilder();
+    synchronized (this) {
+      summary = getSummary();
+      now = mDateFormat.format(new Date());
+      for (Stats stats : mStats.values()) {
+        slowest.append(stats.label + " (" + stats.maxMillis + "ms): " +
+            stats.slowestSql + "\n");
+      }
+    }
+    File folder = new File(mDebugFolder);
+    folder.mkdirs();
+    File file = new File(folder, SUMMARY_FILE_NAME);
+    PrintWriter writer = null;
+    try {
+      writer = new PrintWriter(file, "UTF-8");
+      writer.println("Query summary at " + now);
+      writer.println();
+      writer.print(summary);
+      writer.println();
+      writer.println("Slowest query of each kind:");
+      writer.print(slowest);
+      writer.println();
+      writer.println("Slow queries and their plans are in " + LOG_FILE_NAME);
+      return file.getAbsolutePath();
+    } catch (FileNotFoundException e) {
+      Log.e(TAG, "could not write " + file.getAbsolutePath());
+      e.printStackTrace();
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    mStats.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "SlowQueryLog[labels=" + mStats.size() + "]";
+  }
+
+  private static final class Stats {
+
+    final String label;
+    int count = 0;
+    long totalMillis = 0;
+    long maxMillis = 0;
+    long totalRows = 0;
+    int slowCount = 0;
+    String slowestSql = null;
+
+    Stats(String label) {
+      this.label = label;
+    }
+  }
+}
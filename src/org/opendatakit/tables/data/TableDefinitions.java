@@ -151,6 +151,51 @@ public class TableDefinitions {
     return tableDefMap;
   }
 
+  /**
+   * Return the map of columnName->Value of {@link #getFields(String,
+   * SQLiteDatabase)} for every table, keyed by table id, in a single query.
+   * <p>
+   * Does not close the database.
+   * @param db
+   * @return
+   */
+  public static Map<String, Map<String, String>> getFieldsForAllTables(
+      SQLiteDatabase db) {
+    Cursor c = null;
+    Map<String, Map<String, String>> allFields =
+        new HashMap<String, Map<String, String>>();
+    try {
+      c = db.query(DB_BACKING_NAME,
+          columnNames.toArray(new String[columnNames.size()]), null, null,
+          null, null, null);
+      int dbTableIdIndex = c.getColumnIndexOrThrow(TableDefinitionsColumns.TABLE_ID);
+      int dbDbTableNameIndex = c.getColumnIndexOrThrow(TableDefinitionsColumns.DB_TABLE_NAME);
+      int dbSyncTagIndex = c.getColumnIndexOrThrow(TableDefinitionsColumns.SYNC_TAG);
+      int dbLastSyncTimeIndex = c.getColumnIndexOrThrow(TableDefinitionsColumns.LAST_SYNC_TIME);
+      int dbSyncStateIndex = c.getColumnIndexOrThrow(TableDefinitionsColumns.SYNC_STATE);
+      int dbTransactioningIndex = c.getColumnIndexOrThrow(TableDefinitionsColumns.TRANSACTIONING);
+      while (c.moveToNext()) {
+        String tableId = c.getString(dbTableIdIndex);
+        Map<String, String> tableDefMap = new HashMap<String, String>();
+        tableDefMap.put(TableDefinitionsColumns.TABLE_ID, tableId);
+        tableDefMap.put(TableDefinitionsColumns.DB_TABLE_NAME, c.getString(dbDbTableNameIndex));
+        tableDefMap.put(TableDefinitionsColumns.SYNC_TAG, c.getString(dbSyncTagIndex));
+        tableDefMap.put(TableDefinitionsColumns.LAST_SYNC_TIME, c.getString(dbLastSyncTimeIndex));
+        tableDefMap.put(TableDefinitionsColumns.SYNC_STATE, c.getString(dbSyncStateIndex));
+        tableDefMap.put(TableDefinitionsColumns.TRANSACTIONING,
+            Integer.toString(c.getInt(dbTransactioningIndex)));
+        if (allFields.put(tableId, tableDefMap) != null) {
+          Log.e(TAG, "tableId: " + tableId + " has >1 row in TableDefinitions");
+        }
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+    return allFields;
+  }
+
   /**
    * Set the value of the givenColumn name for the row where table_id matches
    * the passed in tableId.
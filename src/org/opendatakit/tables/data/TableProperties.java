@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.codehaus.jackson.JsonGenerationException;
 import org.codehaus.jackson.JsonParseException;
@@ -151,44 +152,82 @@ public class TableProperties {
     mapper.setVisibilityChecker(mapper.getVisibilityChecker().withFieldVisibility(Visibility.ANY));
   }
 
-  private static List<String> allTableIds = new ArrayList<String>();
+  /*
+   * The TableProperties of the ACTIVE store are cached in an immutable
+   * snapshot, so that the UI, sync, the SMS receiver and the javascript
+   * interface can all read them without taking a lock. Anything that changes
+   * which tables exist, or changes their properties other than through the
+   * setters of the cached TableProperties, bumps the generation (see
+   * markStaleCache()). A reader compares the generation of the snapshot with
+   * the current one, and only if they differ takes the lock and loads a new
+   * snapshot, which replaces the old one in a single write.
+   */
+  private static final AtomicLong activeGeneration = new AtomicLong(0);
+  private static final Object activeCacheLock = new Object();
+  private static volatile CacheSnapshot activeCache = null;
+  private static final AtomicLong activeHits = new AtomicLong(0);
+  private static final AtomicLong activeLoads = new AtomicLong(0);
 
-  private static boolean staleActiveCache = true;
-  private static List<String> idsInActiveKVS = new ArrayList<String>();
-  private static List<String> dataIdsInActiveKVS = new ArrayList<String>();
-  private static List<String> securityIdsInActiveKVS = new ArrayList<String>();
-  private static List<String> shortcutIdsInActiveKVS = new ArrayList<String>();
-  private static Map<String, TableProperties> activeTableIdMap = new HashMap<String, TableProperties>();
+  /*
+   * The DEFAULT and SERVER stores are cached a table at a time instead, as
+   * they are mostly read by the sync, which changes the sync state of the
+   * tables, and so bumps the generations, as it goes. Reloading every table
+   * after each such change would cost more than it saved; this way only the
+   * table asked for is rebuilt.
+   */
+  private static final TableCache defaultCache = new TableCache(KeyValueStore.Type.DEFAULT);
+  private static final TableCache serverCache = new TableCache(KeyValueStore.Type.SERVER);
 
-  /**
-   * Return the TableProperties for all the tables in the specified KVS. store.
-   *
-   * @param dbh
-   * @param typeOfStore
-   *          the KVS from which to get the store
-   * @return
+  private static TableCache getTableCache(KeyValueStore.Type typeOfStore) {
+    switch (typeOfStore) {
+    case DEFAULT:
+      return defaultCache;
+    case SERVER:
+      return serverCache;
+    default:
+      throw new IllegalArgumentException("no table cache for store: " + typeOfStore.name());
+    }
+  }
+
+  /*
+   * Return the current snapshot of the ACTIVE store, loading it if the
+   * cached one is out of date.
+   */
+  private static CacheSnapshot getActiveCache(DbHelper dbh) {
+    CacheSnapshot cache = activeCache;
+    if ( cache != null && cache.generation == activeGeneration.get() ) {
+      activeHits.incrementAndGet();
+      return cache;
+    }
+    synchronized (activeCacheLock) {
+      // another thread may have loaded it while we waited.
+      cache = activeCache;
+      long generation = activeGeneration.get();
+      if ( cache == null || cache.generation != generation ) {
+        cache = loadActiveCache(dbh, generation);
+        activeCache = cache;
+        activeLoads.incrementAndGet();
+      } else {
+        activeHits.incrementAndGet();
+      }
+      return cache;
+    }
+  }
+
+  /*
+   * Load the TableProperties for all the tables in the ACTIVE store. The
+   * generation must be taken before loading, so that a change made while
+   * loading leaves the snapshot out of date.
    */
-  private static synchronized void refreshActiveCache(DbHelper dbh) {
+  private static CacheSnapshot loadActiveCache(DbHelper dbh, long generation) {
     SQLiteDatabase db = null;
     try {
       KeyValueStore.Type typeOfStore = KeyValueStore.Type.ACTIVE;
       db = dbh.getReadableDatabase();
       KeyValueStoreManager kvsm = KeyValueStoreManager.getKVSManager(dbh);
-      idsInActiveKVS = kvsm.getAllIdsFromStore(db, typeOfStore);
-      dataIdsInActiveKVS = kvsm.getDataTableIds(db, typeOfStore);
-      securityIdsInActiveKVS = kvsm.getSecurityTableIds(db, typeOfStore);
-      shortcutIdsInActiveKVS = kvsm.getShortcutTableIds(db, typeOfStore);
-
-      activeTableIdMap.clear();
-      for ( String tableId : idsInActiveKVS ) {
-        Map<String, String> propPairs = getMapOfPropertiesForTable(dbh, tableId, typeOfStore);
-        TableProperties tp = constructPropertiesFromMap(dbh, propPairs, typeOfStore);
-        if ( tp == null ) {
-          throw new IllegalStateException("Unexpectedly missing " + tableId);
-        }
-        activeTableIdMap.put(tp.getTableId(), tp);
-      }
-      staleActiveCache = false;
+      List<String> ids = kvsm.getAllIdsFromStore(db, typeOfStore);
+      return new CacheSnapshot(generation, ids,
+          constructPropertiesForIds(ids, dbh, db, kvsm, typeOfStore));
     } finally {
       // TODO: resolve and fix this
       // if ( db != null ) {
@@ -197,20 +236,51 @@ public class TableProperties {
     }
   }
 
-  private static synchronized void ensureActiveTableIdMapLoaded(DbHelper dbh) {
-    // A pre-requisite to having an update cache is to have agreement on
-    // all the known table ids.
-    List<String> allIds = TableDefinitions.getAllTableIds(dbh.getReadableDatabase());
-    if ( staleActiveCache || allTableIds.size() != allIds.size() || !allTableIds.containsAll(allIds) ) {
-      allTableIds = allIds;
-      refreshActiveCache(dbh);
+  /**
+   * Mark the cached properties of the given store as out of date, so that
+   * they are reloaded on their next use. This must be called after any change
+   * to which tables exist, or to their properties, that is not made through
+   * the setters of the cached TableProperties, once it is committed.
+   *
+   * @param dbh
+   * @param typeOfStore
+   *          the store that changed, or null if all of them did
+   */
+  public static void markStaleCache(DbHelper dbh, KeyValueStore.Type typeOfStore) {
+    if ( typeOfStore == null || typeOfStore == KeyValueStore.Type.ACTIVE ) {
+      activeGeneration.incrementAndGet();
+    }
+    if ( typeOfStore == null || typeOfStore == KeyValueStore.Type.DEFAULT ) {
+      defaultCache.generation.incrementAndGet();
+    }
+    if ( typeOfStore == null || typeOfStore == KeyValueStore.Type.SERVER ) {
+      serverCache.generation.incrementAndGet();
+    }
+    if ( dbh != null ) {
+      // the plans hold the TableProperties they were bound against.
+      dbh.getQueryPlanCache().clear();
+      // the store may have been written in a transaction read around.
+      if ( typeOfStore == null ) {
+        dbh.getKeyValueStoreCache().clear();
+      } else {
+        dbh.getKeyValueStoreCache().invalidateStore(typeOfStore.getBackingName());
+      }
     }
   }
 
-  public static synchronized void markStaleCache(DbHelper dbh, KeyValueStore.Type typeOfStore) {
-    if ( typeOfStore == null || typeOfStore == KeyValueStore.Type.ACTIVE ) {
-      staleActiveCache = true;
+  /**
+   * @return how often the cached TableProperties of each store were used, and
+   * how often they had to be rebuilt, since the app started
+   */
+  public static String getCacheStatistics() {
+    StringBuilder b = new StringBuilder();
+    b.append("TableProperties ACTIVE: " + activeHits.get() + " served from cache, " +
+        activeLoads.get() + " loads of all tables\n");
+    for ( TableCache cache : new TableCache[] { defaultCache, serverCache } ) {
+      b.append("TableProperties " + cache.typeOfStore.name() + ": " + cache.hits.get() +
+          " served from cache, " + cache.rebuilds.get() + " tables rebuilt\n");
     }
+    return b.toString();
   }
 
   /**
@@ -227,17 +297,15 @@ public class TableProperties {
   public static TableProperties getTablePropertiesForTable(DbHelper dbh, String tableId,
       KeyValueStore.Type typeOfStore) {
 
-    ensureActiveTableIdMapLoaded(dbh);
     if ( typeOfStore == KeyValueStore.Type.ACTIVE ) {
       // just use the cached value...
-      return activeTableIdMap.get(tableId);
+      return getActiveCache(dbh).propsById.get(tableId);
     }
 
-    Map<String, String> mapProps = getMapOfPropertiesForTable(dbh, tableId, typeOfStore);
-    TableProperties tp = constructPropertiesFromMap(dbh, mapProps, typeOfStore);
-    if (tp != null && typeOfStore == KeyValueStore.Type.ACTIVE) {
-      // update the cache...
-      activeTableIdMap.put(tp.getTableId(), tp);
+    TableCache cache = getTableCache(typeOfStore);
+    TableProperties tp = cache.get(tableId);
+    if ( tp == null ) {
+      tp = refreshTablePropertiesForTable(dbh, tableId, typeOfStore);
     }
     return tp;
   }
@@ -245,11 +313,20 @@ public class TableProperties {
   public static TableProperties refreshTablePropertiesForTable(DbHelper dbh, String tableId,
       KeyValueStore.Type typeOfStore) {
 
+    // taken before reading, so that a change made meanwhile is not missed.
+    long generation = (typeOfStore == KeyValueStore.Type.ACTIVE) ? 0 :
+        getTableCache(typeOfStore).generation.get();
     Map<String, String> mapProps = getMapOfPropertiesForTable(dbh, tableId, typeOfStore);
     TableProperties tp = constructPropertiesFromMap(dbh, mapProps, typeOfStore);
     if (tp != null && typeOfStore == KeyValueStore.Type.ACTIVE) {
       // update the cache...
-      activeTableIdMap.put(tp.getTableId(), tp);
+      synchronized (activeCacheLock) {
+        if ( activeCache != null ) {
+          activeCache = activeCache.withTable(tp);
+        }
+      }
+    } else if (tp != null) {
+      getTableCache(typeOfStore).put(tp, generation);
     }
     return tp;
   }
@@ -269,10 +346,9 @@ public class TableProperties {
       db = dbh.getReadableDatabase();
       KeyValueStoreManager kvsm = KeyValueStoreManager.getKVSManager(dbh);
       if (typeOfStore == KeyValueStore.Type.ACTIVE) {
-        ensureActiveTableIdMapLoaded(dbh);
-        return activeTableIdMap.values().toArray(new TableProperties[activeTableIdMap.size()]);
+        CacheSnapshot cache = getActiveCache(dbh);
+        return cache.getProperties(cache.ids);
       }
-      // don't do caching for other KVS's
       List<String> allIds = kvsm.getAllIdsFromStore(db, typeOfStore);
       return constructPropertiesFromIds(allIds, dbh, db, kvsm, typeOfStore);
     } finally {
@@ -304,7 +380,6 @@ public class TableProperties {
     try {
       db = dbh.getReadableDatabase();
       KeyValueStoreManager kvsm = KeyValueStoreManager.getKVSManager(dbh);
-      // don't do caching for other KVS's
       List<String> synchedIds = kvsm.getSynchronizedTableIds(db);
       return constructPropertiesFromIds(synchedIds, dbh, db, kvsm, typeOfStore);
     } finally {
@@ -331,17 +406,8 @@ public class TableProperties {
       db = dbh.getReadableDatabase();
       KeyValueStoreManager kvsm = KeyValueStoreManager.getKVSManager(dbh);
       if ( typeOfStore == KeyValueStore.Type.ACTIVE ) {
-        ensureActiveTableIdMapLoaded(dbh);
-        List<TableProperties> properties = new ArrayList<TableProperties>();
-        for ( String tableId : dataIdsInActiveKVS ) {
-          TableProperties tp = activeTableIdMap.get(tableId);
-          if ( tp != null ) {
-            properties.add(tp);
-          } else {
-            Log.w(t, "Unexpectedly did not find data table in active tables map: " + tableId);
-          }
-        }
-        return properties.toArray(new TableProperties[properties.size()]);
+        CacheSnapshot cache = getActiveCache(dbh);
+        return cache.getProperties(cache.dataIds);
       } else {
         List<String> dataIds = kvsm.getDataTableIds(db, typeOfStore);
         return constructPropertiesFromIds(dataIds, dbh, db, kvsm, typeOfStore);
@@ -370,17 +436,8 @@ public class TableProperties {
       db = dbh.getReadableDatabase();
       KeyValueStoreManager kvsm = KeyValueStoreManager.getKVSManager(dbh);
       if ( typeOfStore == KeyValueStore.Type.ACTIVE ) {
-        ensureActiveTableIdMapLoaded(dbh);
-        List<TableProperties> properties = new ArrayList<TableProperties>();
-        for ( String tableId : securityIdsInActiveKVS ) {
-          TableProperties tp = activeTableIdMap.get(tableId);
-          if ( tp != null ) {
-            properties.add(tp);
-          } else {
-            Log.w(t, "Unexpectedly did not find security table in active tables map: " + tableId);
-          }
-        }
-        return properties.toArray(new TableProperties[properties.size()]);
+        CacheSnapshot cache = getActiveCache(dbh);
+        return cache.getProperties(cache.securityIds);
       } else {
         List<String> securityIds = kvsm.getSecurityTableIds(db, typeOfStore);
         return constructPropertiesFromIds(securityIds, dbh, db, kvsm, typeOfStore);
@@ -409,17 +466,8 @@ public class TableProperties {
       db = dbh.getReadableDatabase();
       KeyValueStoreManager kvsm = KeyValueStoreManager.getKVSManager(dbh);
       if ( typeOfStore == KeyValueStore.Type.ACTIVE ) {
-        ensureActiveTableIdMapLoaded(dbh);
-        List<TableProperties> properties = new ArrayList<TableProperties>();
-        for ( String tableId : shortcutIdsInActiveKVS ) {
-          TableProperties tp = activeTableIdMap.get(tableId);
-          if ( tp != null ) {
-            properties.add(tp);
-          } else {
-            Log.w(t, "Unexpectedly did not find shortcut table in active tables map: " + tableId);
-          }
-        }
-        return properties.toArray(new TableProperties[properties.size()]);
+        CacheSnapshot cache = getActiveCache(dbh);
+        return cache.getProperties(cache.shortcutIds);
       } else {
         List<String> shortcutIds = kvsm.getShortcutTableIds(db, typeOfStore);
         return constructPropertiesFromIds(shortcutIds, dbh, db, kvsm, typeOfStore);
@@ -492,7 +540,7 @@ public class TableProperties {
       // TableViewType collectionViewType,
       // String detailViewFilename,
       String sumDisplayFormat, SyncState syncState, boolean transactioning,
-      KeyValueStore.Type backingStore) {
+      KeyValueStore.Type backingStore, Map<String, ColumnProperties> columns) {
     this.dbh = dbh;
     whereArgs = new String[] { tableId };
     this.tableId = tableId;
@@ -517,7 +565,11 @@ public class TableProperties {
     this.transactioning = transactioning;
     this.backingStore = backingStore;
     this.tableKVSH = this.getKeyValueStoreHelper(TableProperties.KVS_PARTITION);
-    refreshColumns();
+    if (columns == null) {
+      refreshColumns();
+    } else {
+      this.mElementKeyToColumnProperties = columns;
+    }
     if (columnOrder.size() == 0) {
 
       for (ColumnProperties cp : mElementKeyToColumnProperties.values()) {
@@ -588,6 +640,16 @@ public class TableProperties {
    */
   private static TableProperties constructPropertiesFromMap(DbHelper dbh,
       Map<String, String> props, KeyValueStore.Type backingStore) {
+    return constructPropertiesFromMap(dbh, props, backingStore, null);
+  }
+
+  /*
+   * As above, with the columns already constructed, or null to read them from
+   * the database.
+   */
+  private static TableProperties constructPropertiesFromMap(DbHelper dbh,
+      Map<String, String> props, KeyValueStore.Type backingStore,
+      Map<String, ColumnProperties> columns) {
     // first we have to get the appropriate type for the non-string fields.
     String syncStateStr = props.get(TableDefinitionsColumns.SYNC_STATE);
     if ( syncStateStr == null ) {
@@ -677,26 +739,97 @@ public class TableProperties {
         // overviewViewType,
         // collectionViewType,
         // props.get(KEY_DETAIL_VIEW_FILE),
-        props.get(KEY_SUM_DISPLAY_FORMAT), syncState, transactioning, backingStore);
+        props.get(KEY_SUM_DISPLAY_FORMAT), syncState, transactioning, backingStore,
+        columns);
   }
 
   /*
    * Construct an array of table properties for the given ids. The properties
-   * are collected from the intededStore.
+   * are collected from the intededStore, which must not be the ACTIVE store.
+   * Those in the cache of the store are taken from there, and the rest are
+   * built together and added to it.
    */
   private static TableProperties[] constructPropertiesFromIds(List<String> ids, DbHelper dbh,
       SQLiteDatabase db, KeyValueStoreManager kvsm, KeyValueStore.Type typeOfStore) {
+    TableCache cache = getTableCache(typeOfStore);
+    long generation = cache.generation.get();
     TableProperties[] allProps = new TableProperties[ids.size()];
+    List<String> missingIds = new ArrayList<String>();
     for (int i = 0; i < ids.size(); i++) {
-      String tableId = ids.get(i);
-      // KeyValueStore intendedKVS =
-      // kvsm.getStoreForTable(tableId, typeOfStore);
-      // Map<String, String> propPairs = intendedKVS.getProperties(db);
-      Map<String, String> propPairs = getMapOfPropertiesForTable(dbh, tableId, typeOfStore);
-      allProps[i] = constructPropertiesFromMap(dbh, propPairs, typeOfStore);
+      allProps[i] = cache.get(ids.get(i));
       if ( allProps[i] == null ) {
+        missingIds.add(ids.get(i));
+      }
+    }
+    if ( missingIds.isEmpty() ) {
+      return allProps;
+    }
+    Map<String, TableProperties> propsById = constructPropertiesForIds(missingIds, dbh, db, kvsm,
+        typeOfStore);
+    for (int i = 0; i < ids.size(); i++) {
+      if ( allProps[i] == null ) {
+        allProps[i] = propsById.get(ids.get(i));
+        cache.put(allProps[i], generation);
+      }
+    }
+    return allProps;
+  }
+
+  /*
+   * Construct the table properties for the given ids, keyed by table id.
+   *
+   * Building the properties of one table takes a query of TableDefinitions
+   * and of the store, and then another two per column. Instead, the table
+   * and column definitions of all the tables, and the table and column
+   * partitions of the store, are read here in four queries and grouped by
+   * table in memory, so that startup does not take hundreds of queries when
+   * there are many tables. Every id must have a table definition and
+   * properties in the store.
+   */
+  private static Map<String, TableProperties> constructPropertiesForIds(List<String> ids,
+      DbHelper dbh, SQLiteDatabase db, KeyValueStoreManager kvsm,
+      KeyValueStore.Type typeOfStore) {
+    Map<String, Map<String, String>> tableDefinitions =
+        TableDefinitions.getFieldsForAllTables(db);
+    Map<String, Map<String, Map<String, String>>> columnDefinitions =
+        ColumnDefinitions.getColumnDefinitionFieldsForAllTables(db);
+    Map<String, Map<String, Map<String, String>>> tableKVS =
+        kvsm.getKeyValuesForAllTables(db, typeOfStore, KVS_PARTITION);
+    Map<String, Map<String, Map<String, String>>> columnKVS =
+        kvsm.getKeyValuesForAllTables(db, typeOfStore, ColumnProperties.KVS_PARTITION);
+
+    Map<String, TableProperties> allProps = new HashMap<String, TableProperties>();
+    for (String tableId : ids) {
+      Map<String, String> mapProps = new HashMap<String, String>();
+      // only the INIT_KEYS, as KeyValueStore.getProperties() would return.
+      Map<String, Map<String, String>> aspects = tableKVS.get(tableId);
+      Map<String, String> kvsMap = (aspects == null) ? null :
+          aspects.get(KeyValueStoreHelper.DEFAULT_ASPECT);
+      if (kvsMap != null) {
+        for (String key : INIT_KEYS) {
+          if (kvsMap.containsKey(key)) {
+            mapProps.put(key, kvsMap.get(key));
+          }
+        }
+      }
+      // table definitions wins -- apply it 2nd
+      Map<String, String> tableDefinitionsMap = tableDefinitions.get(tableId);
+      if (tableDefinitionsMap == null || mapProps.get(KEY_TABLE_TYPE) == null) {
+        throw new IllegalStateException("Unexpectedly missing " + tableId);
+      }
+      mapProps.putAll(tableDefinitionsMap);
+      Map<String, Map<String, String>> tableColumns = columnDefinitions.get(tableId);
+      if (tableColumns == null) {
+        tableColumns = new HashMap<String, Map<String, String>>();
+      }
+      Map<String, ColumnProperties> columns =
+          ColumnProperties.constructColumnPropertiesForTable(dbh, tableId, tableColumns,
+              columnKVS.get(tableId), typeOfStore);
+      TableProperties tp = constructPropertiesFromMap(dbh, mapProps, typeOfStore, columns);
+      if ( tp == null ) {
         throw new IllegalStateException("Unexpectedly missing " + tableId);
       }
+      allProps.put(tableId, tp);
     }
     return allProps;
   }
@@ -882,6 +1015,8 @@ public class TableProperties {
         e.printStackTrace();
       } finally {
         db.endTransaction();
+        // there is a new table definition.
+        markStaleCache(dbh, null);
       }
       return tp;
     } finally {
@@ -917,6 +1052,7 @@ public class TableProperties {
       db.beginTransaction();
       try {
         db.execSQL("DROP TABLE " + dbTableName);
+        DbTableSearchIndex.dropSearchIndex(db, this);
         for (ColumnProperties cp : columns.values()) {
           cp.deleteColumn(db);
         }
@@ -938,6 +1074,7 @@ public class TableProperties {
       markStaleCache(dbh, KeyValueStore.Type.ACTIVE);
       markStaleCache(dbh, KeyValueStore.Type.DEFAULT);
       markStaleCache(dbh, KeyValueStore.Type.SERVER);
+      dbh.getQueryResultCache().noteTableModified(tableId);
     }
   }
 
@@ -974,6 +1111,8 @@ public class TableProperties {
   public void setDisplayName(String displayName) {
     tableKVSH.setString(KEY_DISPLAY_NAME, displayName);
     this.displayName = displayName;
+    // joins in user queries name tables by their display names.
+    dbh.getQueryPlanCache().clear();
   }
 
   /**
@@ -1329,6 +1468,7 @@ public class TableProperties {
         setColumnOrder(db, newColumnOrder);
 
         mElementKeyToColumnProperties.put(cp.getElementKey(), cp);
+        DbTableSearchIndex.rebuildSearchIndexIfPresent(db, this);
         Log.d(t, "addColumn successful: " + cp.getElementKey());
         db.setTransactionSuccessful();
       } catch (Exception e) {
@@ -1337,6 +1477,8 @@ public class TableProperties {
         Log.e(t, "error adding column: " + displayName);
       } finally {
         db.endTransaction();
+        dbh.getQueryResultCache().noteTableModified(tableId);
+        dbh.getQueryPlanCache().clear();
       }
       // newColumns[columns.length] = cp;
       // columns = newColumns;
@@ -1424,12 +1566,20 @@ public class TableProperties {
       }
     }
     String csv = csvBuilder.toString();
+    // the indexes go with the table, so remember which were advised.
+    List<String> advisedColumns = DbTableIndexes.getAdvisedColumns(db, this);
     db.execSQL("CREATE TEMPORARY TABLE backup_(" + csv + ")");
     db.execSQL("INSERT INTO backup_(" + csv + ") SELECT " + csv + " FROM " + dbTableName);
     db.execSQL("DROP TABLE " + dbTableName);
-    DbTable.createDbTable(db, this);
+    DbTable.createDbTable(db, this, false);
     db.execSQL("INSERT INTO " + dbTableName + "(" + csv + ") SELECT " + csv + " FROM backup_");
     db.execSQL("DROP TABLE backup_");
+    // building the indexes after the copy is cheaper than maintaining them
+    // during it.
+    DbTableIndexes.ensureIndexes(db, this, advisedColumns);
+    DbTableSearchIndex.rebuildSearchIndexIfPresent(db, this);
+    dbh.getQueryResultCache().noteTableModified(tableId);
+    dbh.getQueryPlanCache().clear();
   }
 
   public KeyValueStore.Type getBackingStoreType() {
@@ -1531,6 +1681,7 @@ public class TableProperties {
       primesStr = mapper.writeValueAsString(primes);
       tableKVSH.setString(KEY_PRIME_COLUMNS, primesStr);
       this.primeColumns = primes;
+      updateIndexes();
     } catch (JsonParseException e) {
       e.printStackTrace();
       throw new IllegalArgumentException("setPrimeColumns failed: " + primes.toString(), e);
@@ -1563,6 +1714,21 @@ public class TableProperties {
     }
     tableKVSH.setString(KEY_SORT_COLUMN, sortColumn);
     this.sortColumn = sortColumn;
+    updateIndexes();
+  }
+
+  /**
+   * Bring the indexes on the data table in line with the prime and sort
+   * columns, in the background. See {@link DbTableIndexes}. Only the active
+   * properties are used by queries, so the other stores leave the indexes
+   * alone.
+   */
+  private void updateIndexes() {
+    if (backingStore != KeyValueStore.Type.ACTIVE) {
+      return;
+    }
+    DbTableIndexes.ensureIndexesInBackground(dbh, this,
+        Collections.<String>emptyList());
   }
 
   /**
@@ -1977,4 +2143,139 @@ public class TableProperties {
     return displayName;
   }
 
+  /**
+   * The TableProperties of the tables of a store, each tagged with the
+   * generation of the store it was built at, so that it is only used while
+   * the store is unchanged. The entries are held in an immutable map that is
+   * replaced, rather than changed, when a table is added.
+   */
+  private static final class TableCache {
+
+    final KeyValueStore.Type typeOfStore;
+    final AtomicLong generation = new AtomicLong(0);
+    final AtomicLong hits = new AtomicLong(0);
+    final AtomicLong rebuilds = new AtomicLong(0);
+    private final Object lock = new Object();
+    private volatile Map<String, TableCacheEntry> entries =
+        Collections.<String, TableCacheEntry> emptyMap();
+
+    TableCache(KeyValueStore.Type typeOfStore) {
+      this.typeOfStore = typeOfStore;
+    }
+
+    /**
+     * @return the cached properties of the table, or null if there are none
+     * or they are out of date
+     */
+    TableProperties get(String tableId) {
+      TableCacheEntry entry = entries.get(tableId);
+      if ( entry != null && entry.generation == generation.get() ) {
+        hits.incrementAndGet();
+        return entry.tp;
+      }
+      return null;
+    }
+
+    /**
+     * Cache the properties of a table, built from what was read after the
+     * given generation was taken. Out of date entries are dropped.
+     */
+    void put(TableProperties tp, long builtAt) {
+      rebuilds.incrementAndGet();
+      synchronized (lock) {
+        long current = generation.get();
+        Map<String, TableCacheEntry> newEntries = new HashMap<String, TableCacheEntry>();
+        for ( Map.Entry<String, TableCacheEntry> e : entries.entrySet() ) {
+          if ( e.getValue().generation == current ) {
+            newEntries.put(e.getKey(), e.getValue());
+          }
+        }
+        if ( builtAt == current ) {
+          newEntries.put(tp.getTableId(), new TableCacheEntry(tp, builtAt));
+        }
+        entries = Collections.unmodifiableMap(newEntries);
+      }
+    }
+  }
+
+  private static final class TableCacheEntry {
+
+    final TableProperties tp;
+    final long generation;
+
+    TableCacheEntry(TableProperties tp, long generation) {
+      this.tp = tp;
+      this.generation = generation;
+    }
+  }
+
+  /**
+   * An immutable snapshot of the TableProperties of all the tables in a
+   * store, as of a generation of the cache.
+   */
+  private static final class CacheSnapshot {
+
+    final long generation;
+    final List<String> ids;
+    final List<String> dataIds;
+    final List<String> securityIds;
+    final List<String> shortcutIds;
+    final Map<String, TableProperties> propsById;
+
+    CacheSnapshot(long generation, List<String> ids,
+        Map<String, TableProperties> propsById) {
+      this.generation = generation;
+      this.ids = Collections.unmodifiableList(new ArrayList<String>(ids));
+      this.propsById = Collections.unmodifiableMap(
+          new HashMap<String, TableProperties>(propsById));
+      // the table types come from the same key value store entries that
+      // getDataTableIds() and the like would query for.
+      List<String> data = new ArrayList<String>();
+      List<String> security = new ArrayList<String>();
+      List<String> shortcut = new ArrayList<String>();
+      for ( String tableId : this.ids ) {
+        switch ( propsById.get(tableId).getTableType() ) {
+        case data:
+          data.add(tableId);
+          break;
+        case security:
+          security.add(tableId);
+          break;
+        case shortcut:
+          shortcut.add(tableId);
+          break;
+        default:
+          break;
+        }
+      }
+      this.dataIds = Collections.unmodifiableList(data);
+      this.securityIds = Collections.unmodifiableList(security);
+      this.shortcutIds = Collections.unmodifiableList(shortcut);
+    }
+
+    /**
+     * @return a copy of this snapshot with the given properties in place of
+     * those of the same table
+     */
+    CacheSnapshot withTable(TableProperties tp) {
+      List<String> newIds = ids;
+      if ( !propsById.containsKey(tp.getTableId()) ) {
+        newIds = new ArrayList<String>(ids);
+        newIds.add(tp.getTableId());
+      }
+      Map<String, TableProperties> newProps =
+          new HashMap<String, TableProperties>(propsById);
+      newProps.put(tp.getTableId(), tp);
+      return new CacheSnapshot(generation, newIds, newProps);
+    }
+
+    TableProperties[] getProperties(List<String> tableIds) {
+      TableProperties[] properties = new TableProperties[tableIds.size()];
+      for ( int i = 0; i < properties.length; i++ ) {
+        properties[i] = propsById.get(tableIds.get(i));
+      }
+      return properties;
+    }
+  }
+
 }
@@ -18,12 +18,19 @@ package org.opendatakit.tables.data;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
@@ -40,6 +47,7 @@ import org.opendatakit.tables.utils.TableFileUtils;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Process;
 import android.util.Log;
 
 /**
@@ -51,6 +59,11 @@ import android.util.Log;
  * footer. The footer is only important to the user when viewing a table in
  * certain conditions, and many other uses where the contents of a table need to
  * be accessed do not require the footer. For this reason it alone is mutable.
+ * <p>
+ * {@link DbTable#refreshUserTable(UserTable, Query)} brings a table up to
+ * date after a few of its rows have been written to by patching the rows of
+ * a copy of it. The table itself is left as it was, as it may be shared
+ * through the {@link QueryResultCache}.
  *
  * @author unknown
  * @author sudar.sam@gmail.com
@@ -60,9 +73,44 @@ public class UserTable {
 
   private static final String TAG = UserTable.class.getSimpleName();
 
+  /**
+   * The number of rows fetched at a time by a windowed table.
+   */
+  static final int WINDOW_PAGE_SIZE = 200;
+
+  /**
+   * The maximum number of pages a windowed table keeps in memory. The least
+   * recently used page is dropped when another is faulted in.
+   */
+  static final int WINDOW_MAX_PAGES = 8;
+
   private final String[] header;
   private String[] footer;
-  private final ArrayList<Row> mRows;
+  /**
+   * The row ids of the table, in row order.
+   */
+  private String[] mRowIds;
+  /**
+   * Maps row id to row number. Built lazily by {@link #getRowIdIndex()} the
+   * first time a row is looked up by id, and must be discarded or updated
+   * whenever the rows of the table change.
+   */
+  private Map<String, Integer> mRowIdIndex = null;
+  /**
+   * The user-defined data of a fully materialized table, by column. Null if
+   * the table is windowed.
+   */
+  private final ColumnStore mDataStore;
+  /**
+   * The ODKTables-specified metadata of a fully materialized table, by column.
+   * Null if the table is windowed.
+   */
+  private final ColumnStore mMetadataStore;
+  /**
+   * The window over the rows of a lazily paged table. Null if the table is
+   * fully materialized.
+   */
+  private final RowWindow mRowWindow;
   /**
    * The {@link TableProperties} associated with this table. Included so that
    * more intelligent things can be done with regards to interpretation of type.
@@ -75,6 +123,54 @@ public class UserTable {
   // e.g., reloadCacheOfColumnProperties()
   private final ArrayList<ColumnProperties> mColumnProperties = new ArrayList<ColumnProperties>();
 
+  /**
+   * The most display texts cached for a column. A column whose cache is full
+   * drops its least recently used text for each new one, which bounds the
+   * memory held for columns of mostly distinct values.
+   */
+  static final int MAX_DISPLAY_TEXTS_PER_COLUMN = 5000;
+
+  /**
+   * Runs {@link #precomputeDisplayTextInBackground(Context)}, one table at a
+   * time.
+   */
+  private static final ExecutorService displayTextRenderer =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+              Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+              r.run();
+            }
+          }, "UserTable display text");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * The pending or running precompute of this table's display text, or null
+   * if none has been started. Only used on the thread that draws the table.
+   */
+  private Future<?> mPrecomputeTask = null;
+
+  /**
+   * The display texts of the values of the columns that need rendering
+   * (dates, times and media), by column index. Display text depends only on
+   * the value and the column type, so it is cached by value, and is carried
+   * over to the copy that a refresh patches. Filled lazily by
+   * {@link #getDisplayTextOfData(Context, int, int, boolean)} and by
+   * {@link #precomputeDisplayText(Context, int)}, and dropped for a column by
+   * {@link #reloadCacheOfColumnProperties()} if its type has changed.
+   * Guarded by its own lock, as it may be filled on a background thread.
+   */
+  private final Map<Integer, DisplayTextCache> mDisplayTexts =
+      new HashMap<Integer, DisplayTextCache>();
+
   /**
    * Maps the element key of user-defined columns to the corresponding index in
    * the Row objects.
@@ -89,6 +185,15 @@ public class UserTable {
   private Map<String, Integer> mUnmodifiableCachedDataKeyToIndex = null;
   private Map<String, Integer> mUnmodifiableCachedMetadataKeyToIndex = null;
 
+  /**
+   * The sql the table was built from, and the modification counts of the
+   * tables it read at the time. Set by {@link DbTable} for the tables it can
+   * refresh. See {@link #setSource(Query.SqlData, QueryResultCache.Stamp)}.
+   */
+  private String mSourceSql = null;
+  private String[] mSourceArgs = null;
+  private QueryResultCache.Stamp mSourceStamp = null;
+
   private DateTimeZone tz;
   private DateTimeFormatter dateFormatter;
   private DateTimeFormatter dateTimeFormatter;
@@ -108,75 +213,220 @@ public class UserTable {
       Map<String, Integer> metadataElementKeyToIndex, String[] footer) {
     buildFormatters();
     this.header = header;
-    mRows = new ArrayList<Row>(userDefinedData.length);
-    for (int i = 0; i < userDefinedData.length; i++) {
-      Row nextRow = new Row(rowIds[i], userDefinedData[i], odkTablesMetadata[i]);
-      mRows.add(nextRow);
-    }
     this.mTp = tp;
     this.footer = footer;
     mDataKeyToIndex = dataElementKeyToIndex;
     mMetadataKeyToIndex = metadataElementKeyToIndex;
     mElementKeyForIndex = elementKeyForIndex;
+    mRowIds = rowIds.clone();
+    mDataStore = new ColumnStore(getUserColumnTypes(), rowIds.length);
+    mMetadataStore = new ColumnStore(
+        new ColumnType[metadataElementKeyToIndex.size()], rowIds.length);
+    for (int i = 0; i < userDefinedData.length; i++) {
+      for (int j = 0; j < userDefinedData[i].length; j++) {
+        mDataStore.set(i, j, userDefinedData[i][j]);
+      }
+      for (int j = 0; j < odkTablesMetadata[i].length; j++) {
+        mMetadataStore.set(i, j, odkTablesMetadata[i][j]);
+      }
+    }
+    mRowWindow = null;
+  }
+
+  /**
+   * Construct a copy of a fully materialized table, to be patched by
+   * {@link DbTable#refreshUserTable(UserTable, Query)}. The values are
+   * copied, so patching the copy does not change the table. The display
+   * texts rendered so far are kept.
+   * @param table
+   */
+  UserTable(UserTable table) {
+    table.checkMaterialized();
+    buildFormatters();
+    this.header = table.header;
+    this.mTp = table.mTp;
+    this.footer = (table.footer == null) ? null : table.footer.clone();
+    mDataKeyToIndex = table.mDataKeyToIndex;
+    mMetadataKeyToIndex = table.mMetadataKeyToIndex;
+    mElementKeyForIndex = table.mElementKeyForIndex;
+    mRowIds = table.mRowIds.clone();
+    mDataStore = table.mDataStore.copy();
+    mMetadataStore = table.mMetadataStore.copy();
+    mRowWindow = null;
+    mSourceSql = table.mSourceSql;
+    mSourceArgs = table.mSourceArgs;
+    mSourceStamp = table.mSourceStamp;
+    synchronized (table.mDisplayTexts) {
+      for (Map.Entry<Integer, DisplayTextCache> entry :
+          table.mDisplayTexts.entrySet()) {
+        DisplayTextCache cache = new DisplayTextCache(entry.getValue().type);
+        cache.texts.putAll(entry.getValue().texts);
+        mDisplayTexts.put(entry.getKey(), cache);
+      }
+    }
   }
 
   public UserTable(Cursor c, TableProperties tableProperties, 
       List<String> userColumnOrder) {
+    this(c, tableProperties, userColumnOrder, (int[]) null);
+  }
+
+  /**
+   * Construct a table from only the given rows of the cursor.
+   * @param c
+   * @param tableProperties
+   * @param userColumnOrder the user-specified column order
+   * @param positions the cursor positions of the rows, in the order they
+   * should appear in the table. A position may appear more than once. If
+   * null, every row of the cursor is used.
+   */
+  UserTable(Cursor c, TableProperties tableProperties,
+      List<String> userColumnOrder, int[] positions) {
     buildFormatters();
     mTp = tableProperties;
-    List<String> adminColumnOrder = DbTable.getAdminColumns();
+    mDataKeyToIndex = new HashMap<String, Integer>();
+    mMetadataKeyToIndex = new HashMap<String, Integer>();
+    mElementKeyForIndex = new String[userColumnOrder.size()];
+    header = new String[userColumnOrder.size()];
+    initColumnMaps(userColumnOrder);
+
     int rowIdIndex = c.getColumnIndexOrThrow(DataTableColumns.ID);
+    int[] userColumnCursorIndex = getUserColumnCursorIndices(c);
+    int[] adminColumnCursorIndex = getAdminColumnCursorIndices(c);
+    int rowCount = (positions == null) ? c.getCount() : positions.length;
+    mRowIds = new String[rowCount];
+    mDataStore = new ColumnStore(getUserColumnTypes(), rowCount);
+    mMetadataStore = new ColumnStore(
+        new ColumnType[adminColumnCursorIndex.length], rowCount);
+    mRowWindow = null;
+    for (int i = 0; i < rowCount; i++) {
+      if (!c.moveToPosition((positions == null) ? i : positions[i])) {
+        throw new IllegalArgumentException("no row at cursor position " +
+            ((positions == null) ? i : positions[i]));
+      }
+      mRowIds[i] = c.getString(rowIdIndex);
+      mDataStore.read(c, userColumnCursorIndex, i);
+      mMetadataStore.read(c, adminColumnCursorIndex, i);
+    }
+    footer = null;
+  }
+
+  /**
+   * Construct a windowed table. Only the row ids and the row keys (see
+   * {@link DbTable#ROW_KEY_COLUMN}) are read from keyCursor. The rows
+   * themselves are fetched from pageSource a page at a time as they are
+   * accessed, and at most {@link #WINDOW_MAX_PAGES} pages are held in memory.
+   * <p>
+   * The public API is identical to that of a fully materialized table.
+   * @param keyCursor cursor over the row id and row key columns, in the
+   * order the rows should appear in the table
+   * @param tableProperties
+   * @param userColumnOrder the user-specified column order
+   * @param pageSource source of the full rows for a page of row keys
+   */
+  UserTable(Cursor keyCursor, TableProperties tableProperties,
+      List<String> userColumnOrder, RowPageSource pageSource) {
+    buildFormatters();
+    mTp = tableProperties;
+    mDataKeyToIndex = new HashMap<String, Integer>();
+    mMetadataKeyToIndex = new HashMap<String, Integer>();
+    mElementKeyForIndex = new String[userColumnOrder.size()];
+    header = new String[userColumnOrder.size()];
+    initColumnMaps(userColumnOrder);
+
+    int rowIdIndex = keyCursor.getColumnIndexOrThrow(DataTableColumns.ID);
+    int rowKeyIndex = keyCursor.getColumnIndexOrThrow(DbTable.ROW_KEY_COLUMN);
+    int rowCount = keyCursor.getCount();
+    String[] rowIds = new String[rowCount];
+    long[] rowKeys = new long[rowCount];
+    int i = 0;
+    if (keyCursor.moveToFirst()) {
+      do {
+        rowIds[i] = keyCursor.getString(rowIdIndex);
+        rowKeys[i] = keyCursor.getLong(rowKeyIndex);
+        ++i;
+      } while (keyCursor.moveToNext());
+    }
+    mRowIds = rowIds;
+    mDataStore = null;
+    mMetadataStore = null;
+    mRowWindow = new RowWindow(pageSource, rowKeys);
+    footer = null;
+  }
+
+  /**
+   * Fill in the header and the element key maps for the given user column
+   * order and the admin columns.
+   * @param userColumnOrder
+   */
+  private void initColumnMaps(List<String> userColumnOrder) {
     // These maps will map the element key to the corresponding index in
     // either data or metadata. If the user has defined a column with the
     // element key _my_data, and this column is at index 5 in the data
     // array, dataKeyToIndex would then have a mapping of _my_data:5.
     // The sync_state column, if present at index 7, would have a mapping
     // in metadataKeyToIndex of sync_state:7.
-    mDataKeyToIndex = new HashMap<String, Integer>();
-    mElementKeyForIndex = new String[userColumnOrder.size()];
-    header = new String[userColumnOrder.size()];
-    int[] userColumnCursorIndex = new int[userColumnOrder.size()];
     for (int i = 0; i < userColumnOrder.size(); i++) {
       String elementKey = userColumnOrder.get(i);
       mElementKeyForIndex[i] = elementKey;
       mDataKeyToIndex.put(elementKey, i);
       header[i] = mTp.getColumnByElementKey(elementKey).getDisplayName();
-      userColumnCursorIndex[i] = c.getColumnIndexOrThrow(elementKey);
     }
-    mMetadataKeyToIndex = new HashMap<String, Integer>();
-    int[] adminColumnCursorIndex = new int[adminColumnOrder.size()];
+    List<String> adminColumnOrder = DbTable.getAdminColumns();
     for (int i = 0; i < adminColumnOrder.size(); i++) {
       // TODO: problem is here. unclear how to best get just the
       // metadata in here. hmm.
-      String elementKey = adminColumnOrder.get(i);
-      mMetadataKeyToIndex.put(elementKey, i);
-      adminColumnCursorIndex[i] = c.getColumnIndexOrThrow(elementKey);
+      mMetadataKeyToIndex.put(adminColumnOrder.get(i), i);
     }
+  }
 
-    c.moveToFirst();
-    int rowCount = c.getCount();
-    mRows = new ArrayList<Row>(rowCount);
+  /**
+   * The types of the user-defined columns, used to pick their storage.
+   * Columns without properties are treated as strings.
+   */
+  private ColumnType[] getUserColumnTypes() {
+    ColumnType[] types = new ColumnType[mElementKeyForIndex.length];
+    for (int i = 0; i < mElementKeyForIndex.length; i++) {
+      ColumnProperties cp = mTp.getColumnByElementKey(mElementKeyForIndex[i]);
+      types[i] = (cp == null) ? null : cp.getColumnType();
+    }
+    return types;
+  }
 
-    String[] rowData = new String[userColumnOrder.size()];
-    String[] rowMetadata = new String[adminColumnOrder.size()];
-    if (c.moveToFirst()) {
-      do {
-        String rowId = c.getString(rowIdIndex);
-        // First get the user-defined data for this row.
-        for (int i = 0; i < userColumnOrder.size(); i++) {
-          String value = getIndexAsString(c, userColumnCursorIndex[i]);
-          rowData[i] = value;
-        }
-        // Now get the metadata for this row.
-        for (int i = 0; i < adminColumnOrder.size(); i++) {
-          String value = getIndexAsString(c, adminColumnCursorIndex[i]);
-          rowMetadata[i] = value;
-        }
-        Row nextRow = new Row(rowId, rowData.clone(), rowMetadata.clone());
-        mRows.add(nextRow);
-      } while (c.moveToNext());
+  private int[] getUserColumnCursorIndices(Cursor c) {
+    int[] userColumnCursorIndex = new int[mElementKeyForIndex.length];
+    for (int i = 0; i < mElementKeyForIndex.length; i++) {
+      userColumnCursorIndex[i] = c.getColumnIndexOrThrow(mElementKeyForIndex[i]);
     }
-    footer = null;
+    return userColumnCursorIndex;
+  }
+
+  private int[] getAdminColumnCursorIndices(Cursor c) {
+    List<String> adminColumnOrder = DbTable.getAdminColumns();
+    int[] adminColumnCursorIndex = new int[adminColumnOrder.size()];
+    for (int i = 0; i < adminColumnOrder.size(); i++) {
+      adminColumnCursorIndex[i] = c.getColumnIndexOrThrow(adminColumnOrder.get(i));
+    }
+    return adminColumnCursorIndex;
+  }
+
+  /**
+   * Read the row the cursor is currently positioned on.
+   */
+  private Row readRow(Cursor c, int rowIdIndex, int[] userColumnCursorIndex,
+      int[] adminColumnCursorIndex) {
+    String rowId = c.getString(rowIdIndex);
+    // First get the user-defined data for this row.
+    String[] rowData = new String[userColumnCursorIndex.length];
+    for (int i = 0; i < userColumnCursorIndex.length; i++) {
+      rowData[i] = getIndexAsString(c, userColumnCursorIndex[i]);
+    }
+    // Now get the metadata for this row.
+    String[] rowMetadata = new String[adminColumnCursorIndex.length];
+    for (int i = 0; i < adminColumnCursorIndex.length; i++) {
+      rowMetadata[i] = getIndexAsString(c, adminColumnCursorIndex[i]);
+    }
+    return new Row(rowId, rowData, rowMetadata);
   }
 
   /**
@@ -190,7 +440,7 @@ public class UserTable {
    * @return
    */
   @SuppressLint("NewApi")
-  private static final String getIndexAsString(Cursor c, int i) {
+  static final String getIndexAsString(Cursor c, int i) {
     // If you add additional return types here be sure to modify the javadoc.
     int version = android.os.Build.VERSION.SDK_INT;
     if (version < 11) {
@@ -232,7 +482,23 @@ public class UserTable {
   }
 
   public Row getRowAtIndex(int index) {
-    return this.mRows.get(index);
+    if (this.mRowWindow != null) {
+      return this.mRowWindow.getRow(index);
+    }
+    if (index < 0 || index >= this.mRowIds.length) {
+      throw new IndexOutOfBoundsException("Invalid row index " + index +
+          ", size is " + this.mRowIds.length);
+    }
+    return new Row(index);
+  }
+
+  /**
+   * True if this table pages its rows in from the database as they are
+   * accessed rather than holding all of them in memory.
+   * @return
+   */
+  public boolean isWindowed() {
+    return this.mRowWindow != null;
   }
 
   public String getHeader(int colNum) {
@@ -259,7 +525,62 @@ public class UserTable {
   }
 
   public String getData(int rowNum, int colNum) {
-    return mRows.get(rowNum).getDataAtIndex(colNum);
+    if (this.mDataStore != null) {
+      return this.mDataStore.getString(rowNum, colNum);
+    }
+    return getRowAtIndex(rowNum).getDataAtIndex(colNum);
+  }
+
+  /**
+   * True if the user-defined datum at the given row and column is null.
+   * @param rowNum
+   * @param colNum
+   * @return
+   */
+  public boolean isNull(int rowNum, int colNum) {
+    if (this.mDataStore != null) {
+      return this.mDataStore.isNull(rowNum, colNum);
+    }
+    return getData(rowNum, colNum) == null;
+  }
+
+  /**
+   * Get the user-defined datum at the given row and column as a long. For
+   * INTEGER columns this does not go through the String representation.
+   * @param rowNum
+   * @param colNum
+   * @return
+   * @throws NumberFormatException if the value is null or not an integer
+   */
+  public long getDataAsLong(int rowNum, int colNum) {
+    if (this.mDataStore != null) {
+      return this.mDataStore.getLong(rowNum, colNum);
+    }
+    String value = getData(rowNum, colNum);
+    if (value == null) {
+      throw new NumberFormatException("null value");
+    }
+    return Long.parseLong(value);
+  }
+
+  /**
+   * Get the user-defined datum at the given row and column as a double. For
+   * INTEGER and NUMBER columns this does not go through the String
+   * representation.
+   * @param rowNum
+   * @param colNum
+   * @return
+   * @throws NumberFormatException if the value is null or not a number
+   */
+  public double getDataAsDouble(int rowNum, int colNum) {
+    if (this.mDataStore != null) {
+      return this.mDataStore.getDouble(rowNum, colNum);
+    }
+    String value = getData(rowNum, colNum);
+    if (value == null) {
+      throw new NumberFormatException("null value");
+    }
+    return Double.parseDouble(value);
   }
   
   /**
@@ -281,13 +602,39 @@ public class UserTable {
   }
 
   public String getDisplayTextOfData(Context context, int rowNum, int colNum, boolean showErrorText) {
-    // TODO: share processing with CollectUtil.writeRowDataToBeEdited(...)
     String raw = getData(rowNum,colNum);
     if ( raw == null ) {
       return null;
     }
     ColumnProperties cp = mColumnProperties.get(colNum);
     ColumnType type = cp.getColumnType();
+    if ( !needsRendering(type) ) {
+      return raw;
+    }
+    String text = getCachedDisplayText(colNum, type, raw);
+    if ( text == null ) {
+      text = renderDisplayText(context, type, raw);
+      cacheDisplayText(colNum, type, raw, text);
+    }
+    return text;
+  }
+
+  /**
+   * @return true if the display text of values of the type differs from the
+   * values themselves, and is worth caching
+   */
+  private static boolean needsRendering(ColumnType type) {
+    return type == ColumnType.AUDIOURI ||
+        type == ColumnType.IMAGEURI ||
+        type == ColumnType.MIMEURI ||
+        type == ColumnType.VIDEOURI ||
+        type == ColumnType.DATE ||
+        type == ColumnType.DATETIME ||
+        type == ColumnType.TIME;
+  }
+
+  private String renderDisplayText(Context context, ColumnType type, String raw) {
+    // TODO: share processing with CollectUtil.writeRowDataToBeEdited(...)
     if ( type == ColumnType.AUDIOURI ||
          type == ColumnType.IMAGEURI ||
          type == ColumnType.MIMEURI ||
@@ -339,6 +686,170 @@ public class UserTable {
       String elementKey = mElementKeyForIndex[i];
       mColumnProperties.add(mTp.getColumnByElementKey(elementKey));
     }
+    synchronized (mDisplayTexts) {
+      for ( int i = 0 ; i < mColumnProperties.size() ; ++i ) {
+        DisplayTextCache cache = mDisplayTexts.get(i);
+        if ( cache != null &&
+             cache.type != mColumnProperties.get(i).getColumnType() ) {
+          mDisplayTexts.remove(i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Render the display text of every value of the column into the cache, so
+   * that {@link #getDisplayTextOfData(Context, int, int, boolean)} does not
+   * have to. Stops once the column's cache is full, rather than push out the
+   * texts already in it, or if the thread is interrupted. Does nothing for
+   * windowed tables, as it would page in the whole table.
+   * <p>
+   * This may take a while for a large table, so it should not be called on
+   * the UI thread; see {@link #precomputeDisplayTextInBackground(Context)}.
+   * The cache of column properties must have been loaded.
+   * @param context
+   * @param colNum
+   */
+  public void precomputeDisplayText(Context context, int colNum) {
+    precomputeDisplayText(context, colNum,
+        mColumnProperties.get(colNum).getColumnType());
+  }
+
+  /**
+   * Queue {@link #precomputeDisplayText(Context, int)} for every column that
+   * needs rendering, on a low priority thread shared by all tables. Does
+   * nothing if this table's is already queued or running. Call this on the
+   * thread that draws the table, and call
+   * {@link #cancelPrecomputeDisplayText()} once the table is no longer shown.
+   * @param context only its application context is kept
+   */
+  public void precomputeDisplayTextInBackground(Context context) {
+    if ( isWindowed() ) {
+      return;
+    }
+    if ( mPrecomputeTask != null && !mPrecomputeTask.isDone() ) {
+      return;
+    }
+    if ( mColumnProperties.size() != getWidth() ) {
+      reloadCacheOfColumnProperties();
+    }
+    // the types are read here, as the cache of column properties belongs to
+    // the calling thread.
+    final List<Integer> columns = new ArrayList<Integer>();
+    final List<ColumnType> types = new ArrayList<ColumnType>();
+    for ( int i = 0 ; i < mColumnProperties.size() ; ++i ) {
+      ColumnType type = mColumnProperties.get(i).getColumnType();
+      if ( needsRendering(type) ) {
+        columns.add(i);
+        types.add(type);
+      }
+    }
+    if ( columns.isEmpty() ) {
+      return;
+    }
+    // the activity may be finished before this is done.
+    final Context appContext = context.getApplicationContext();
+    mPrecomputeTask = displayTextRenderer.submit(new Runnable() {
+
+      @Override
+      public void run() {
+        try {
+          for ( int i = 0 ; i < columns.size() ; ++i ) {
+            precomputeDisplayText(appContext, columns.get(i), types.get(i));
+          }
+        } catch (RuntimeException e) {
+          // a value that cannot be rendered; it will fail again when drawn.
+          Log.e(TAG, "error precomputing display text");
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stop the precompute started by
+   * {@link #precomputeDisplayTextInBackground(Context)}, if it is queued or
+   * running. The display texts already rendered stay cached.
+   */
+  public void cancelPrecomputeDisplayText() {
+    if ( mPrecomputeTask != null ) {
+      mPrecomputeTask.cancel(true);
+      mPrecomputeTask = null;
+    }
+  }
+
+  private void precomputeDisplayText(Context context, int colNum,
+      ColumnType type) {
+    if ( isWindowed() || !needsRendering(type) ) {
+      return;
+    }
+    for ( int rowNum = 0 ; ; ++rowNum ) {
+      if ( rowNum >= getNumberOfRows() ||
+           Thread.currentThread().isInterrupted() ) {
+        return;
+      }
+      String raw = getData(rowNum, colNum);
+      if ( raw == null || getCachedDisplayText(colNum, type, raw) != null ) {
+        continue;
+      }
+      synchronized (mDisplayTexts) {
+        DisplayTextCache cache = mDisplayTexts.get(colNum);
+        if ( cache != null && cache.type == type &&
+             cache.texts.size() >= MAX_DISPLAY_TEXTS_PER_COLUMN ) {
+          return;
+        }
+      }
+      cacheDisplayText(colNum, type, raw, renderDisplayText(context, type, raw));
+    }
+  }
+
+  /**
+   * @return the cached display text of the value, or null if there is none
+   * for a column of this type
+   */
+  private String getCachedDisplayText(int colNum, ColumnType type, String raw) {
+    synchronized (mDisplayTexts) {
+      DisplayTextCache cache = mDisplayTexts.get(colNum);
+      if ( cache == null || cache.type != type ) {
+        return null;
+      }
+      return cache.texts.get(raw);
+    }
+  }
+
+  private void cacheDisplayText(int colNum, ColumnType type, String raw, String text) {
+    synchronized (mDisplayTexts) {
+      DisplayTextCache cache = mDisplayTexts.get(colNum);
+      if ( cache == null || cache.type != type ) {
+        cache = new DisplayTextCache(type);
+        mDisplayTexts.put(colNum, cache);
+      }
+      cache.texts.put(raw, text);
+    }
+  }
+
+  /**
+   * The display texts of the values of a column, as rendered for its type.
+   * The texts are kept in access order, and the least recently used is
+   * dropped once there are more than {@link #MAX_DISPLAY_TEXTS_PER_COLUMN}.
+   */
+  private static final class DisplayTextCache {
+
+    final ColumnType type;
+    @SuppressWarnings("serial")
+    final Map<String, String> texts =
+        new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<String, String> eldest) {
+            return size() > MAX_DISPLAY_TEXTS_PER_COLUMN;
+          }
+        };
+
+    DisplayTextCache(ColumnType type) {
+      this.type = type;
+    }
   }
 
   /**
@@ -350,7 +861,11 @@ public class UserTable {
    * @return
    */
   public String getMetadataByElementKey(int rowNum, String elementKey) {
-    return mRows.get(rowNum).getMetadataAtIndex(mMetadataKeyToIndex.get(elementKey));
+    int index = mMetadataKeyToIndex.get(elementKey);
+    if (this.mMetadataStore != null) {
+      return this.mMetadataStore.getString(rowNum, index);
+    }
+    return getRowAtIndex(rowNum).getMetadataAtIndex(index);
   }
   
   /**
@@ -360,7 +875,7 @@ public class UserTable {
    * @return
    */
   public String getDataByElementKey(int rowNum, String elementKey) {
-    return mRows.get(rowNum).getDataOrMetadataByElementKey(elementKey);
+    return getRowAtIndex(rowNum).getDataOrMetadataByElementKey(elementKey);
   }
 
   public String getFooter(int colNum) {
@@ -422,17 +937,16 @@ public class UserTable {
   }
 
   public String[] getAllMetadataForRow(int rowNum) {
-    return mRows.get(rowNum).getAllMetadata();
+    return getRowAtIndex(rowNum).getAllMetadata();
   }
 
   public int getNumberOfRows() {
-    return this.mRows.size();
+    return this.mRowIds.length;
   }
 
   /**
-   * Scan the rowIds to get the row number. As the rowIds are not sorted, this
-   * is a potentially expensive operation, scanning the entire array, as well as
-   * the cost of checking String equality. Should be used only when necessary.
+   * Get the row number of the row with the given id. The first lookup builds
+   * a hash index of the row ids, after which lookups are constant time.
    * <p>
    * Return -1 if the row Id is not found.
    *
@@ -440,12 +954,309 @@ public class UserTable {
    * @return
    */
   public int getRowNumFromId(String rowId) {
-    for (int i = 0; i < this.mRows.size(); i++) {
-      if (this.mRows.get(i).mRowId.equals(rowId)) {
-        return i;
+    Integer rowNum = getRowIdIndex().get(rowId);
+    return (rowNum == null) ? -1 : rowNum;
+  }
+
+  /**
+   * Get the row numbers of many row ids at once. The result is in the
+   * iteration order of rowIds, with -1 for any row id that is not found.
+   * @param rowIds
+   * @return
+   * @see #getRowNumFromId(String)
+   */
+  public int[] getRowNumsFromIds(Collection<String> rowIds) {
+    Map<String, Integer> index = getRowIdIndex();
+    int[] rowNums = new int[rowIds.size()];
+    int i = 0;
+    for (String rowId : rowIds) {
+      Integer rowNum = index.get(rowId);
+      rowNums[i++] = (rowNum == null) ? -1 : rowNum;
+    }
+    return rowNums;
+  }
+
+  /**
+   * Return the map of row id to row number, building it on first use. If a
+   * row id appears more than once, the first row wins.
+   * @return
+   */
+  private synchronized Map<String, Integer> getRowIdIndex() {
+    if (this.mRowIdIndex == null) {
+      Map<String, Integer> index =
+          new HashMap<String, Integer>(this.mRowIds.length * 4 / 3 + 1);
+      for (int i = this.mRowIds.length - 1; i >= 0; i--) {
+        index.put(this.mRowIds[i], i);
+      }
+      this.mRowIdIndex = index;
+    }
+    return this.mRowIdIndex;
+  }
+
+  /**
+   * Record the sql the table was built from, and the stamp taken before it was
+   * run, so that it can later be brought up to date by
+   * {@link DbTable#refreshUserTable(UserTable, Query)}.
+   */
+  void setSource(Query.SqlData sd, QueryResultCache.Stamp stamp) {
+    this.mSourceSql = sd.getSql();
+    this.mSourceArgs = sd.getArgs();
+    this.mSourceStamp = stamp;
+  }
+
+  /**
+   * @return the sql the table was built from, or null if it was not built
+   * from a {@link Query}
+   */
+  String getSourceSql() {
+    return this.mSourceSql;
+  }
+
+  String[] getSourceArgs() {
+    return this.mSourceArgs;
+  }
+
+  /**
+   * @return true if the table was built from exactly the given sql
+   */
+  boolean isBuiltFrom(Query.SqlData sd) {
+    return sd.getSql().equals(this.mSourceSql) &&
+        Arrays.equals(sd.getArgs(), this.mSourceArgs);
+  }
+
+  /**
+   * @return the stamp from when the table was built or last refreshed, or
+   * null if it was not built from a {@link Query}.
+   */
+  QueryResultCache.Stamp getSourceStamp() {
+    return this.mSourceStamp;
+  }
+
+  /**
+   * @return true if any row id appears more than once in the table
+   */
+  boolean hasDuplicateRowIds() {
+    return getRowIdIndex().size() != this.mRowIds.length;
+  }
+
+  /**
+   * Replace the values of a row with those of a row of another table with
+   * the same columns (e.g., one from {@link DbTable#getTableForSingleRow}).
+   * The row keeps its place.
+   * @param rowNum
+   * @param source
+   * @param sourceRowNum
+   */
+  synchronized void replaceRow(int rowNum, UserTable source,
+      int sourceRowNum) {
+    checkMaterialized();
+    if (!this.mRowIds[rowNum].equals(source.mRowIds[sourceRowNum])) {
+      throw new IllegalArgumentException("cannot replace row " +
+          this.mRowIds[rowNum] + " with row " + source.mRowIds[sourceRowNum]);
+    }
+    this.mDataStore.resetRow(rowNum);
+    this.mMetadataStore.resetRow(rowNum);
+    copyRow(rowNum, source, sourceRowNum);
+  }
+
+  /**
+   * Insert a row of another table with the same columns at rowNum, moving the
+   * rows from rowNum on down by one.
+   * @param rowNum
+   * @param source
+   * @param sourceRowNum
+   */
+  synchronized void insertRow(int rowNum, UserTable source,
+      int sourceRowNum) {
+    checkMaterialized();
+    String rowId = source.mRowIds[sourceRowNum];
+    this.mDataStore.insertRow(rowNum);
+    this.mMetadataStore.insertRow(rowNum);
+    copyRow(rowNum, source, sourceRowNum);
+    String[] rowIds = new String[this.mRowIds.length + 1];
+    System.arraycopy(this.mRowIds, 0, rowIds, 0, rowNum);
+    rowIds[rowNum] = rowId;
+    System.arraycopy(this.mRowIds, rowNum, rowIds, rowNum + 1,
+        this.mRowIds.length - rowNum);
+    this.mRowIds = rowIds;
+    if (this.mRowIdIndex != null) {
+      for (Map.Entry<String, Integer> entry : this.mRowIdIndex.entrySet()) {
+        if (entry.getValue() >= rowNum) {
+          entry.setValue(entry.getValue() + 1);
+        }
+      }
+      Integer existing = this.mRowIdIndex.get(rowId);
+      if (existing == null || existing > rowNum) {
+        this.mRowIdIndex.put(rowId, rowNum);
+      }
+    }
+  }
+
+  /**
+   * Remove the row at rowNum, moving the rows after it up by one.
+   * @param rowNum
+   */
+  synchronized void removeRow(int rowNum) {
+    checkMaterialized();
+    String rowId = this.mRowIds[rowNum];
+    this.mDataStore.removeRow(rowNum);
+    this.mMetadataStore.removeRow(rowNum);
+    String[] rowIds = new String[this.mRowIds.length - 1];
+    System.arraycopy(this.mRowIds, 0, rowIds, 0, rowNum);
+    System.arraycopy(this.mRowIds, rowNum + 1, rowIds, rowNum,
+        rowIds.length - rowNum);
+    this.mRowIds = rowIds;
+    if (this.mRowIdIndex != null) {
+      if (this.mRowIdIndex.size() != rowIds.length + 1) {
+        // there are duplicate row ids, which are simplest to rebuild.
+        this.mRowIdIndex = null;
+        return;
+      }
+      this.mRowIdIndex.remove(rowId);
+      for (Map.Entry<String, Integer> entry : this.mRowIdIndex.entrySet()) {
+        if (entry.getValue() > rowNum) {
+          entry.setValue(entry.getValue() - 1);
+        }
+      }
+    }
+  }
+
+  private void checkMaterialized() {
+    if (this.mRowWindow != null) {
+      throw new IllegalStateException("windowed tables cannot be modified");
+    }
+  }
+
+  /**
+   * Set the values of the row from the row of the source table, matching the
+   * user-defined columns up by element key.
+   */
+  private void copyRow(int rowNum, UserTable source, int sourceRowNum) {
+    for (int i = 0; i < this.mElementKeyForIndex.length; i++) {
+      Integer sourceIndex = source.mDataKeyToIndex.get(
+          this.mElementKeyForIndex[i]);
+      this.mDataStore.set(rowNum, i, (sourceIndex == null) ? null :
+          source.getData(sourceRowNum, sourceIndex));
+    }
+    for (Map.Entry<String, Integer> entry :
+        this.mMetadataKeyToIndex.entrySet()) {
+      Integer sourceIndex = source.mMetadataKeyToIndex.get(entry.getKey());
+      this.mMetadataStore.set(rowNum, entry.getValue(),
+          (sourceIndex == null) ? null :
+          source.getRowAtIndex(sourceRowNum).getMetadataAtIndex(sourceIndex));
+    }
+  }
+
+  /**
+   * Supplies the rows of a windowed table a page at a time.
+   */
+  interface RowPageSource {
+
+    /**
+     * Return a cursor over the rows with the given row keys. The cursor must
+     * contain the {@link DbTable#ROW_KEY_COLUMN}, the row id, the user-defined
+     * columns and the admin columns. The rows may be in any order. The caller
+     * closes the cursor.
+     * @param rowKeys
+     * @return
+     */
+    Cursor getRowsForKeys(long[] rowKeys);
+  }
+
+  /**
+   * Holds the ordered row keys of a windowed table, and a bounded,
+   * least-recently-used set of the pages of rows that have been faulted in.
+   */
+  private final class RowWindow {
+
+    private final RowPageSource mPageSource;
+    private final long[] mRowKeys;
+    private final LinkedHashMap<Integer, Row[]> mPages;
+
+    RowWindow(RowPageSource pageSource, long[] rowKeys) {
+      this.mPageSource = pageSource;
+      this.mRowKeys = rowKeys;
+      this.mPages = new LinkedHashMap<Integer, Row[]>(WINDOW_MAX_PAGES + 1,
+          0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Row[]> eldest) {
+          return size() > WINDOW_MAX_PAGES;
+        }
+      };
+    }
+
+    synchronized Row getRow(int index) {
+      if (index < 0 || index >= mRowKeys.length) {
+        throw new IndexOutOfBoundsException("Invalid row index " + index +
+            ", size is " + mRowKeys.length);
+      }
+      Integer pageNum = index / WINDOW_PAGE_SIZE;
+      Row[] page = mPages.get(pageNum);
+      if (page == null) {
+        page = loadPage(pageNum);
+        mPages.put(pageNum, page);
       }
+      return page[index % WINDOW_PAGE_SIZE];
+    }
+
+    private Row[] loadPage(int pageNum) {
+      int start = pageNum * WINDOW_PAGE_SIZE;
+      int end = Math.min(start + WINDOW_PAGE_SIZE, mRowKeys.length);
+      long[] keys = new long[end - start];
+      // a row key appears more than once when a join matches its row more
+      // than once, so each key maps to all of its positions in the page.
+      Map<Long, List<Integer>> keyToPositions =
+          new HashMap<Long, List<Integer>>();
+      for (int i = start; i < end; i++) {
+        keys[i - start] = mRowKeys[i];
+        List<Integer> positions = keyToPositions.get(mRowKeys[i]);
+        if (positions == null) {
+          positions = new ArrayList<Integer>(1);
+          keyToPositions.put(mRowKeys[i], positions);
+        }
+        positions.add(i - start);
+      }
+      Row[] page = new Row[keys.length];
+      Cursor c = null;
+      try {
+        c = mPageSource.getRowsForKeys(keys);
+        int rowKeyIndex = c.getColumnIndexOrThrow(DbTable.ROW_KEY_COLUMN);
+        int rowIdIndex = c.getColumnIndexOrThrow(DataTableColumns.ID);
+        int[] userColumnCursorIndex = getUserColumnCursorIndices(c);
+        int[] adminColumnCursorIndex = getAdminColumnCursorIndices(c);
+        if (c.moveToFirst()) {
+          do {
+            List<Integer> positions =
+                keyToPositions.get(c.getLong(rowKeyIndex));
+            if (positions != null) {
+              // rows are not modified, so the positions can share one.
+              Row row = readRow(c, rowIdIndex, userColumnCursorIndex,
+                  adminColumnCursorIndex);
+              for (int position : positions) {
+                page[position] = row;
+              }
+            }
+          } while (c.moveToNext());
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+      // Rows deleted since the keys were read come back empty rather than
+      // shifting the rest of the table.
+      for (int i = 0; i < page.length; i++) {
+        if (page[i] == null) {
+          Log.w(TAG, "row " + mRowIds[start + i] + " no longer in database");
+          page[i] = new Row(mRowIds[start + i],
+              new String[mElementKeyForIndex.length],
+              new String[mMetadataKeyToIndex.size()]);
+        }
+      }
+      return page;
     }
-    return -1;
   }
 
   /**
@@ -468,16 +1279,24 @@ public class UserTable {
 
     /**
      * Holds the actual data in the row. To index into the array correctly, must
-     * use the information contained in UserTable.
+     * use the information contained in UserTable. Null if this row is a view
+     * onto the column stores of the table.
      */
     private final String[] mData;
 
     /**
      * Holds the metadata for the row. to index into the array correctly, must
-     * use the information contained in UserTable.
+     * use the information contained in UserTable. Null if this row is a view
+     * onto the column stores of the table.
      */
     private final String[] mMetadata;
 
+    /**
+     * The row number in the table's column stores, or -1 if the values are
+     * held in mData and mMetadata.
+     */
+    private final int mRowNum;
+
     /**
      * Construct the row.
      *
@@ -491,6 +1310,18 @@ public class UserTable {
       this.mRowId = rowId;
       this.mData = data;
       this.mMetadata = metadata;
+      this.mRowNum = -1;
+    }
+
+    /**
+     * Construct a row backed by the column stores of the table.
+     * @param rowNum
+     */
+    private Row(int rowNum) {
+      this.mRowId = UserTable.this.mRowIds[rowNum];
+      this.mData = null;
+      this.mMetadata = null;
+      this.mRowNum = rowNum;
     }
 
     /**
@@ -500,6 +1331,9 @@ public class UserTable {
      * @return
      */
     public String getDataAtIndex(int index) {
+      if (mData == null) {
+        return UserTable.this.mDataStore.getString(mRowNum, index);
+      }
       return mData[index];
     }
 
@@ -510,6 +1344,9 @@ public class UserTable {
      * @return
      */
     public String getMetadataAtIndex(int index) {
+      if (mMetadata == null) {
+        return UserTable.this.mMetadataStore.getString(mRowNum, index);
+      }
       return mMetadata[index];
     }
     
@@ -537,10 +1374,12 @@ public class UserTable {
      */
     public String getDataOrMetadataByElementKey(String elementKey) {
       String result;
-      if (UserTable.this.mDataKeyToIndex.containsKey(elementKey)) {
-        result = this.mData[UserTable.this.mDataKeyToIndex.get(elementKey)];
-      } else if (UserTable.this.mMetadataKeyToIndex.containsKey(elementKey)) {
-        result = this.mMetadata[UserTable.this.mMetadataKeyToIndex.get(elementKey)];
+      Integer index;
+      if ((index = UserTable.this.mDataKeyToIndex.get(elementKey)) != null) {
+        result = getDataAtIndex(index);
+      } else if ((index = UserTable.this.mMetadataKeyToIndex.get(elementKey))
+          != null) {
+        result = getMetadataAtIndex(index);
       } else {
         // The elementKey was not in the table. Probable error or misuse.
         Log.e(TAG, "elementKey [" + elementKey + "] was not found in table");
@@ -553,15 +1392,72 @@ public class UserTable {
     }
 
     /**
-     * Get the array backing the entire row.
+     * True if the user-defined column with the given element key is null or
+     * the empty string in this row, or if it is not in the table.
+     * @param elementKey
+     * @return
+     */
+    public boolean isEmptyByElementKey(String elementKey) {
+      Integer index = UserTable.this.mDataKeyToIndex.get(elementKey);
+      if (index == null) {
+        return true;
+      }
+      if (mData == null && UserTable.this.mDataStore.isNull(mRowNum, index)) {
+        return true;
+      }
+      String value = getDataAtIndex(index);
+      return value == null || value.length() == 0;
+    }
+
+    /**
+     * Return the value of the user-defined column with the given element key
+     * as a double. Numeric columns of a fully materialized table are read
+     * without going through their String representation.
+     * @param elementKey
+     * @return
+     * @throws NumberFormatException if the value is missing or not a number
+     */
+    public double getDataAsDoubleByElementKey(String elementKey) {
+      Integer index = UserTable.this.mDataKeyToIndex.get(elementKey);
+      if (index == null) {
+        throw new NumberFormatException("elementKey [" + elementKey +
+            "] was not found in table");
+      }
+      if (mData == null) {
+        return UserTable.this.mDataStore.getDouble(mRowNum, index);
+      }
+      if (mData[index] == null) {
+        throw new NumberFormatException("null value");
+      }
+      return Double.parseDouble(mData[index]);
+    }
+
+    /**
+     * Get the array backing the entire row. For rows backed by the column
+     * stores of the table this is a newly built array.
      *
      * @return
      */
     public String[] getAllData() {
+      if (mData == null) {
+        String[] data = new String[UserTable.this.mDataStore.getColumnCount()];
+        for (int i = 0; i < data.length; i++) {
+          data[i] = getDataAtIndex(i);
+        }
+        return data;
+      }
       return mData;
     }
 
     public String[] getAllMetadata() {
+      if (mMetadata == null) {
+        String[] metadata =
+            new String[UserTable.this.mMetadataStore.getColumnCount()];
+        for (int i = 0; i < metadata.length; i++) {
+          metadata[i] = getMetadataAtIndex(i);
+        }
+        return metadata;
+      }
       return mMetadata;
     }
 
@@ -570,8 +1466,13 @@ public class UserTable {
       final int PRIME = 31;
       int result = 1;
       result = result * PRIME + this.mRowId.hashCode();
-      result = result * PRIME + this.mData.hashCode();
-      result = result * PRIME + this.mMetadata.hashCode();
+      if (mData == null) {
+        result = result * PRIME + UserTable.this.hashCode();
+        result = result * PRIME + this.mRowNum;
+      } else {
+        result = result * PRIME + this.mData.hashCode();
+        result = result * PRIME + this.mMetadata.hashCode();
+      }
       return result;
     }
 
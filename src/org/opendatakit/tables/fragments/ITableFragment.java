@@ -8,6 +8,11 @@ package org.opendatakit.tables.fragments;
 public interface ITableFragment {
   /** Called when there is a change in data, or if the fragment is being created. */
   public void init();
+  /**
+   * Called when the data is being reloaded in the background. init() is called
+   * once it has loaded; until then the activity's table is the old one, or null.
+   */
+  public void onLoading();
   /** Called when the user is searching in the fragment. */
   public void onSearch();
 }
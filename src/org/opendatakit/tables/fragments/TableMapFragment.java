@@ -111,9 +111,19 @@ public class TableMapFragment extends Fragment implements ITableFragment,
 
   @Override
   public void init() {
+    // The table may finish loading before the inner fragments exist, in which
+    // case they set themselves up from it when they are created.
+    if (!isAdded() || getMap() == null) {
+      return;
+    }
     getMap().init();
   }
 
+  @Override
+  public void onLoading() {
+    // The markers for the old table stay up until the new one has loaded.
+  }
+
   @Override
   public void onSearch() {
     // TODO When searching, do something? Not really sure how the search would
@@ -235,6 +235,10 @@ public class TableMapInnerFragment extends SherlockMapFragment {
 
     TableProperties tp = ((TableActivity) getActivity()).getTableProperties();
     UserTable table = ((TableActivity) getActivity()).getTable();
+    if (table == null) {
+      // still loading; init() is called again once it has loaded.
+      return;
+    }
 
     // Try to find the map columns in the store.
     ColumnProperties latitudeColumn = tp.getColumnByElementKey(latitudeElementKey);
@@ -592,6 +596,9 @@ public class TableMapInnerFragment extends SherlockMapFragment {
    */
   public void focusOnMarker(String rowId) {
     UserTable table = ((TableActivity) getActivity()).getTable();
+    if (table == null) {
+      return;
+    }
     int index = table.getRowNumFromId(rowId);
     for (final Marker marker : mMarkerIds.keySet()) {
       if (index == mMarkerIds.get(marker)) {
@@ -76,6 +76,10 @@ public class TableMapListFragment extends SherlockFragment {
     if (mIndexes != null && mIndexes.size() > 0) {
       TableProperties tp = ((TableActivity) getActivity()).getTableProperties();
       UserTable table = ((TableActivity) getActivity()).getTable();
+      if (table == null) {
+        // still loading.
+        return;
+      }
       // Grab the key value store helper from the map fragment.
       final KeyValueStoreHelper kvsHelper = tp
           .getKeyValueStoreHelper(TableMapFragment.KVS_PARTITION);
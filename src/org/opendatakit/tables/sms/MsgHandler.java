@@ -32,6 +32,7 @@ import org.opendatakit.tables.data.ColumnType;
 import org.opendatakit.tables.data.DataUtil;
 import org.opendatakit.tables.data.DbHelper;
 import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.GroupedTable;
 import org.opendatakit.tables.data.KeyValueStore;
 import org.opendatakit.tables.data.Query;
 import org.opendatakit.tables.data.Query.Constraint;
@@ -50,6 +51,8 @@ public class MsgHandler {
 
     private static final String SPACE_QUESTION_MARK_SYMBOL = " ?";
 
+    private static final String SPACE_CARET_SYMBOL = " ^";
+
 	private static final String SPACE_TILDE_SYMBOL = " ~";
 
 	private static final String SPACE_SLASH_SYMBOL = " /";
@@ -342,7 +345,8 @@ public class MsgHandler {
                 msg.indexOf(SPACE_BANG_SYMBOL, spaceIndex),
                 msg.indexOf(SPACE_SLASH_SYMBOL, spaceIndex),
                 msg.indexOf(SPACE_TILDE_SYMBOL, spaceIndex),
-                msg.indexOf(SPACE_QUESTION_MARK_SYMBOL, spaceIndex));
+                msg.indexOf(SPACE_QUESTION_MARK_SYMBOL, spaceIndex),
+                msg.indexOf(SPACE_CARET_SYMBOL, spaceIndex));
         while (charIndex > 0) {
             indices.add(charIndex + 1);
             int index = charIndex + 2;
@@ -352,10 +356,12 @@ public class MsgHandler {
                     msg.indexOf(SPACE_BANG_SYMBOL, index),
                     msg.indexOf(SPACE_SLASH_SYMBOL, index),
                     msg.indexOf(SPACE_TILDE_SYMBOL, index),
-                    msg.indexOf(SPACE_QUESTION_MARK_SYMBOL, index));
+                    msg.indexOf(SPACE_QUESTION_MARK_SYMBOL, index),
+                    msg.indexOf(SPACE_CARET_SYMBOL, index));
         }
         indices.add(msg.length());
         List<ColumnProperties> cols = new ArrayList<ColumnProperties>();
+        List<ColumnProperties> groupCols = new ArrayList<ColumnProperties>();
         Query query = new Query(dbh, KeyValueStore.Type.ACTIVE, tp);
         ColumnProperties drSlotColumn = null;
         int drSlotDuration = 0;
@@ -373,6 +379,8 @@ public class MsgHandler {
             }
             if (c == '?') {
                 cols.add(cp);
+            } else if (c == '^') {
+                groupCols.add(cp);
             } else if (c == '~') {
                 if ((value != null) && value.startsWith("d")) {
                     query.setOrderBy(Query.SortOrder.DESCENDING, cp);
@@ -396,7 +404,12 @@ public class MsgHandler {
                 }
             }
         }
-        if (drSlotColumn == null) {
+        if (!groupCols.isEmpty()) {
+            if (drSlotColumn != null) {
+                return false;
+            }
+            return respondToGroupQuery(phoneNum, tp, groupCols, cols, query);
+        } else if (drSlotColumn == null) {
             return respondToSimpleQuery(phoneNum, tp, cols, query);
         } else {
             return respondToDrSlotQuery(phoneNum, tp, query, drSlotColumn,
@@ -545,6 +558,68 @@ public class MsgHandler {
         return true;
     }
 
+    /**
+     * Responds with the number of rows in each group of the values of the
+     * group columns, and the average of each numeric column asked for, e.g.
+     * "North:12,Temp avg:4.5;South:3,Temp avg:5.1". The groups are counted
+     * in the database rather than by fetching their rows.
+     */
+    private boolean respondToGroupQuery(String phoneNum, TableProperties tp,
+            List<ColumnProperties> groupCols, List<ColumnProperties> cols,
+            Query query) {
+        List<String> groupColumns = new ArrayList<String>();
+        for (ColumnProperties cp : groupCols) {
+            groupColumns.add(cp.getElementKey());
+        }
+        List<String> dataColumns = new ArrayList<String>();
+        List<Query.GroupQueryType> types =
+            new ArrayList<Query.GroupQueryType>();
+        List<String> labels = new ArrayList<String>();
+        dataColumns.add(null);
+        types.add(Query.GroupQueryType.COUNT);
+        for (ColumnProperties cp : cols) {
+            if (cp.getColumnType() == ColumnType.NUMBER ||
+                cp.getColumnType() == ColumnType.INTEGER) {
+                dataColumns.add(cp.getElementKey());
+                types.add(Query.GroupQueryType.AVERAGE);
+                String label = cp.getSmsLabel();
+                labels.add((label == null) ? cp.getDisplayName() : label);
+            }
+        }
+        DbTable dbt = DbTable.getDbTable(dbh, tp);
+        GroupedTable groups = dbt.getGroupedTable(query, groupColumns,
+            dataColumns, types);
+        if (groups == null) {
+            return false;
+        }
+        String resp;
+        if (groups.getNumberOfGroups() == 0) {
+            resp = "No rows found.";
+        } else {
+            int limit = Math.min(DEFAULT_LIMIT, groups.getNumberOfGroups());
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < limit; i++) {
+                if (i != 0) {
+                    sb.append(";");
+                }
+                for (int j = 0; j < groupColumns.size(); j++) {
+                    if (j != 0) {
+                        sb.append("/");
+                    }
+                    sb.append(groups.getGroupValue(i, j));
+                }
+                sb.append(":" + groups.getAggregateValue(i, 0));
+                for (int j = 0; j < labels.size(); j++) {
+                    sb.append("," + labels.get(j) + " avg:" +
+                        groups.getAggregateValue(i, j + 1));
+                }
+            }
+            resp = sb.toString();
+        }
+        smsSender.sendSMSWithCutoff(phoneNum, resp);
+        return true;
+    }
+
     private boolean respondToDrSlotQuery(String phoneNum, TableProperties tp,
             Query query, ColumnProperties drSlotColumn, int drSlotDuration) {
         Set<Constraint> constraints = new HashSet<Constraint>();
@@ -18,6 +18,7 @@ package org.opendatakit.tables.sync;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -200,8 +201,8 @@ public class SyncProcessor {
     // tp.setSyncState(SyncState.rest);
     // tp.setSyncTag(null);
 
-    // is this necessary?
-    tp = TableProperties.refreshTablePropertiesForTable(dbh, tp.getTableId(),
+    // the cached SERVER properties are current unless the store has changed.
+    tp = TableProperties.getTablePropertiesForTable(dbh, tp.getTableId(),
         KeyValueStore.Type.SERVER);
 
     DbTable table = DbTable.getDbTable(dbh, tp);
@@ -944,26 +945,55 @@ public class SyncProcessor {
   }
 
   private void insertRowsInDb(DbTable table, List<SyncRow> rows) {
-    for (SyncRow row : rows) {
-      ContentValues values = new ContentValues();
+    final Iterator<SyncRow> syncRows = rows.iterator();
+    Iterator<ContentValues> rowValues = new Iterator<ContentValues>() {
 
-      values.put(DataTableColumns.ID, row.getRowId());
-      values.put(DataTableColumns.ROW_ETAG, row.getRowETag());
-      values.put(DataTableColumns.SYNC_STATE, SyncState.rest.name());
-      values.put(DataTableColumns.FORM_ID, row.getFormId());
-      values.put(DataTableColumns.LOCALE, row.getLocale());
-      values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, row.getSavepointTimestamp());
-      values.put(DataTableColumns.SAVEPOINT_CREATOR, row.getSavepointCreator());
+      @Override
+      public boolean hasNext() {
+        return syncRows.hasNext();
+      }
 
-      for (Entry<String, String> entry : row.getValues().entrySet()) {
-        String colName = entry.getKey();
-        values.put(colName, entry.getValue());
+      @Override
+      public ContentValues next() {
+        SyncRow row = syncRows.next();
+        ContentValues values = new ContentValues();
+
+        values.put(DataTableColumns.ID, row.getRowId());
+        values.put(DataTableColumns.ROW_ETAG, row.getRowETag());
+        values.put(DataTableColumns.SYNC_STATE, SyncState.rest.name());
+        values.put(DataTableColumns.FORM_ID, row.getFormId());
+        values.put(DataTableColumns.LOCALE, row.getLocale());
+        values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, row.getSavepointTimestamp());
+        values.put(DataTableColumns.SAVEPOINT_CREATOR, row.getSavepointCreator());
+
+        for (Entry<String, String> entry : row.getValues().entrySet()) {
+          String colName = entry.getKey();
+          values.put(colName, entry.getValue());
+        }
+        return values;
       }
 
-      table.actualAddRow(values);
-      syncResult.stats.numInserts++;
-      syncResult.stats.numEntries++;
-    }
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    // Count the rows as each batch is committed, so that if a row fails the
+    // stats still show the batches before it. The failed batch is rolled
+    // back, and as the sync tag is then not updated the server sends those
+    // rows again on the next sync.
+    table.addRows(rowValues, DbTable.DEFAULT_BULK_INSERT_BATCH_SIZE,
+        new DbTable.BulkInsertListener() {
+
+          private int counted = 0;
+
+          @Override
+          public void onRowsInserted(int rowsInserted) {
+            syncResult.stats.numInserts += rowsInserted - counted;
+            syncResult.stats.numEntries += rowsInserted - counted;
+            counted = rowsInserted;
+          }
+        });
   }
 
   private void updateRowsInDb(DbTable table, List<SyncRow> rows) {
@@ -1150,7 +1180,7 @@ public class SyncProcessor {
                                                         SyncTag syncTag) throws JsonParseException,
       JsonMappingException, IOException, SchemaMismatchException {
     KeyValueStore.Type kvsType = KeyValueStore.Type.SERVER;
-    TableProperties tp = TableProperties.refreshTablePropertiesForTable(dbh,
+    TableProperties tp = TableProperties.getTablePropertiesForTable(dbh,
         definitionResource.getTableId(), kvsType);
     if (tp == null) {
       tp = TableProperties
@@ -1243,6 +1273,8 @@ public class SyncProcessor {
     KeyValueStore kvs = kvsm.getStoreForTable(tp.getTableId(), kvsType);
     kvs.clearKeyValuePairs(dbh.getWritableDatabase());
     kvs.addEntriesToStore(dbh.getWritableDatabase(), propertiesResource.getKeyValueStoreEntries());
+    // the cached properties of the store no longer match it.
+    TableProperties.markStaleCache(dbh, kvsType);
   }
 
   /**
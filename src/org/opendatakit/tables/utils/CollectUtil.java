@@ -1317,6 +1317,8 @@ public class CollectUtil {
     }
     Query currentQuery = new Query(DbHelper.getDbHelper(context, appName), KeyValueStore.Type.ACTIVE, tp);
     currentQuery.loadFromUserQuery(queryString);
+    // only the key:value pairs fill in the form; any free-text search before
+    // them has no column to go in.
     for (int i = 0; i < currentQuery.getConstraintCount(); i++) {
       Constraint constraint = currentQuery.getConstraint(i);
       // NB: This is predicated on their only ever being a single
@@ -30,8 +30,10 @@ import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
 
@@ -61,6 +63,7 @@ import org.opendatakit.tables.tasks.ExportTask;
 import org.opendatakit.tables.tasks.ImportTask;
 import org.opendatakit.tables.tasks.InitializeTask;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.util.Log;
 import au.com.bytecode.opencsv.CSVReader;
@@ -553,69 +556,143 @@ public class CsvUtil {
     }
   }
 
-  private boolean importTable(Context c, CSVReader reader, TableProperties tableProperties,
+  private boolean importTable(final Context c, CSVReader reader, TableProperties tableProperties,
                               List<String> columns, int idxRowId, int idxFormId, int idxLocale,
                               int idxSavepointTimestamp, int idxSavepointCreator,
                               boolean exportedWithProperties) {
 
     DbTable dbt = DbTable.getDbTable(dbh, tableProperties);
 
-    try {
-      Set<Integer> idxMetadata = new HashSet<Integer>();
-      idxMetadata.add(idxRowId);
-      idxMetadata.add(idxFormId);
-      idxMetadata.add(idxLocale);
-      idxMetadata.add(idxSavepointTimestamp);
-      idxMetadata.add(idxSavepointCreator);
-      ColumnProperties[] cps = new ColumnProperties[columns.size()];
-      for (int i = 0; i < columns.size(); ++i) {
-        if (!idxMetadata.contains(i)) {
-          cps[i] = tableProperties.getColumnByElementKey(columns.get(i));
-        } else {
-          cps[i] = null;
-        }
+    Set<Integer> idxMetadata = new HashSet<Integer>();
+    idxMetadata.add(idxRowId);
+    idxMetadata.add(idxFormId);
+    idxMetadata.add(idxLocale);
+    idxMetadata.add(idxSavepointTimestamp);
+    idxMetadata.add(idxSavepointCreator);
+    ColumnProperties[] cps = new ColumnProperties[columns.size()];
+    for (int i = 0; i < columns.size(); ++i) {
+      if (!idxMetadata.contains(i)) {
+        cps[i] = tableProperties.getColumnByElementKey(columns.get(i));
+      } else {
+        cps[i] = null;
       }
+    }
 
-      String[] row = reader.readNext();
-      int rowCount = 0;
-      while (row != null) {
-        String rowId = idxRowId == -1 ? null : row[idxRowId];
-        if (rowId == null) {
-          rowId = UUID.randomUUID().toString();
-        }
-        Map<String, String> values = new HashMap<String, String>();
-        for (int i = 0; i < columns.size(); i++) {
-          if (cps[i] != null) {
-            String value = du.validifyValue(cps[i], row[i]);
-            values.put(columns.get(i), value);
-            ColumnType type = cps[i].getColumnType();
-            if (type == ColumnType.IMAGEURI || type == ColumnType.AUDIOURI
-                || type == ColumnType.VIDEOURI || type == ColumnType.MIMEURI) {
-              value = du.serializeAsMimeUri(c, tableProperties, rowId, type.baseContentType(),
-                  value);
-            }
-          }
-        }
-        String formId = idxFormId == -1 ? null : row[idxFormId];
-        String locale = idxLocale == -1 ? null : row[idxLocale];
-        String lastModTime = idxSavepointTimestamp == -1 ? du.formatNowForDb() : row[idxSavepointTimestamp];
-        DateTime t = du.parseDateTimeFromDb(lastModTime);
-        String savepointCreator = idxSavepointCreator == -1 ? null : row[idxSavepointCreator];
-        dbt.addRow(rowId, formId, locale, t.getMillis(), savepointCreator, values);
-
-        if (rowCount % 30 == 0 && it != null) {
-          it.updateLineCount(c.getString(R.string.import_thru_row, 1 + rowCount));
+    CsvRowIterator rows = new CsvRowIterator(c, reader, tableProperties, columns, cps,
+        idxRowId, idxFormId, idxLocale, idxSavepointTimestamp, idxSavepointCreator);
+    dbt.addRows(rows, DbTable.DEFAULT_BULK_INSERT_BATCH_SIZE, new DbTable.BulkInsertListener() {
+      @Override
+      public void onRowsInserted(int rowsInserted) {
+        if (it != null) {
+          it.updateLineCount(c.getString(R.string.import_thru_row, rowsInserted));
         }
-        values.clear();
-        rowCount++;
-        row = reader.readNext();
       }
+    });
+    try {
       reader.close();
-      return true;
     } catch (IOException e) {
       e.printStackTrace();
+    }
+    if (rows.getException() != null) {
+      rows.getException().printStackTrace();
       return false;
     }
+    return true;
+  }
+
+  /**
+   * Reads the rows of a csv file as they are needed by
+   * {@link DbTable#addRows(Iterator, int, DbTable.BulkInsertListener)}. An
+   * IOException ends the iteration early, and is available from
+   * {@link #getException()}.
+   */
+  private class CsvRowIterator implements Iterator<ContentValues> {
+
+    private final Context c;
+    private final CSVReader reader;
+    private final TableProperties tableProperties;
+    private final List<String> columns;
+    private final ColumnProperties[] cps;
+    private final int idxRowId;
+    private final int idxFormId;
+    private final int idxLocale;
+    private final int idxSavepointTimestamp;
+    private final int idxSavepointCreator;
+
+    private String[] nextRow = null;
+    private boolean readNext = true;
+    private IOException exception = null;
+
+    CsvRowIterator(Context c, CSVReader reader, TableProperties tableProperties,
+        List<String> columns, ColumnProperties[] cps, int idxRowId, int idxFormId,
+        int idxLocale, int idxSavepointTimestamp, int idxSavepointCreator) {
+      this.c = c;
+      this.reader = reader;
+      this.tableProperties = tableProperties;
+      this.columns = columns;
+      this.cps = cps;
+      this.idxRowId = idxRowId;
+      this.idxFormId = idxFormId;
+      this.idxLocale = idxLocale;
+      this.idxSavepointTimestamp = idxSavepointTimestamp;
+      this.idxSavepointCreator = idxSavepointCreator;
+    }
+
+    IOException getException() {
+      return exception;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (readNext) {
+        readNext = false;
+        try {
+          nextRow = reader.readNext();
+        } catch (IOException e) {
+          exception = e;
+          nextRow = null;
+        }
+      }
+      return nextRow != null;
+    }
+
+    @Override
+    public ContentValues next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      String[] row = nextRow;
+      readNext = true;
+      String rowId = idxRowId == -1 ? null : row[idxRowId];
+      if (rowId == null) {
+        rowId = UUID.randomUUID().toString();
+      }
+      Map<String, String> values = new HashMap<String, String>();
+      for (int i = 0; i < columns.size(); i++) {
+        if (cps[i] != null) {
+          String value = du.validifyValue(cps[i], row[i]);
+          values.put(columns.get(i), value);
+          ColumnType type = cps[i].getColumnType();
+          if (type == ColumnType.IMAGEURI || type == ColumnType.AUDIOURI
+              || type == ColumnType.VIDEOURI || type == ColumnType.MIMEURI) {
+            value = du.serializeAsMimeUri(c, tableProperties, rowId, type.baseContentType(),
+                value);
+          }
+        }
+      }
+      String formId = idxFormId == -1 ? null : row[idxFormId];
+      String locale = idxLocale == -1 ? null : row[idxLocale];
+      String lastModTime = idxSavepointTimestamp == -1 ? du.formatNowForDb() : row[idxSavepointTimestamp];
+      DateTime t = du.parseDateTimeFromDb(lastModTime);
+      String savepointCreator = idxSavepointCreator == -1 ? null : row[idxSavepointCreator];
+      return DbTable.getInsertingRowValues(rowId, formId, locale, t.getMillis(),
+          savepointCreator, values);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
   }
 
   // ===========================================================================================
@@ -771,7 +848,9 @@ public class CsvUtil {
     };
     String[] selectionArgs = { DbTable.SavedStatus.COMPLETE.name()
     };
-    UserTable table = dbt.getRaw(userColumns, selectionKeys, selectionArgs, null);
+    // read the rows a page at a time, so that large tables can be exported.
+    DbTable.RowPager pager = dbt.getRawRowPager(userColumns, selectionKeys, selectionArgs, null,
+        DbTable.DEFAULT_PAGE_SIZE);
     // writing data
     OutputStreamWriter output = null;
     try {
@@ -826,21 +905,24 @@ public class CsvUtil {
       }
       cw.writeNext(headerRow.toArray(new String[headerRow.size()]));
       String[] row = new String[columnCount];
-      for (int i = 0; i < table.getNumberOfRows(); i++) {
-        for (int j = 0; j < columns.size(); ++j) {
-          if (j >= idxFirstUserColumns && j < idxFirstUserColumns + userColumns.size()) {
-            row[j] = table.getData(i, j - idxFirstUserColumns);
-          } else {
-            row[j] = table.getMetadataByElementKey(i, columns.get(j));
+      UserTable table;
+      while ((table = pager.nextPage()) != null) {
+        for (int i = 0; i < table.getNumberOfRows(); i++) {
+          for (int j = 0; j < columns.size(); ++j) {
+            if (j >= idxFirstUserColumns && j < idxFirstUserColumns + userColumns.size()) {
+              row[j] = table.getData(i, j - idxFirstUserColumns);
+            } else {
+              row[j] = table.getMetadataByElementKey(i, columns.get(j));
+            }
           }
+          if (idxTimestamp != -1) {
+            // reformat the timestamp to be a nice string
+            Long timestamp = TableConstants.milliSecondsFromNanos(row[idxTimestamp]);
+            DateTime dt = new DateTime(timestamp);
+            row[idxTimestamp] = du.formatDateTimeForDb(dt);
+          }
+          cw.writeNext(row);
         }
-        if (idxTimestamp != -1) {
-          // reformat the timestamp to be a nice string
-          Long timestamp = TableConstants.milliSecondsFromNanos(row[idxTimestamp]);
-          DateTime dt = new DateTime(timestamp);
-          row[idxTimestamp] = du.formatDateTimeForDb(dt);
-        }
-        cw.writeNext(row);
       }
       cw.flush();
       cw.close();
@@ -91,7 +91,7 @@ public class CustomGraphView extends CustomView {
 
   public void display() {
     control = new Control(mParentActivity);
-    tableData = new TableData(table);
+    tableData = new TableData(mParentActivity, table);
     addJavascriptInterface(control.getJavascriptInterfaceWithWeakReference(), "control");
     addJavascriptInterface(tableData.getJavascriptInterfaceWithWeakReference(), "data");
     addJavascriptInterface(graphData.getJavascriptInterfaceWithWeakReference(), "graph_data");
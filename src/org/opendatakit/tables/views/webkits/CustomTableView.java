@@ -226,7 +226,7 @@ public class CustomTableView extends CustomView
     // Load a basic screen as you're getting the other stuff ready to
     // clear the old data.
     control = new Control(mParentActivity);
-    tableData = new TableData(table);
+    tableData = new TableData(mParentActivity, table);
     addJavascriptInterface(control.getJavascriptInterfaceWithWeakReference(), 
         "control");
     addJavascriptInterface(tableData.getJavascriptInterfaceWithWeakReference(),
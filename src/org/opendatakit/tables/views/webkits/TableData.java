@@ -2,16 +2,23 @@ package org.opendatakit.tables.views.webkits;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.opendatakit.tables.data.ColorRuleGroup;
 import org.opendatakit.tables.data.ColumnProperties;
 import org.opendatakit.tables.data.ColumnType;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTable;
+import org.opendatakit.tables.data.GroupedTable;
+import org.opendatakit.tables.data.Query;
 import org.opendatakit.tables.data.TableProperties;
 import org.opendatakit.tables.data.UserTable;
 import org.opendatakit.tables.data.ColorRuleGroup.ColorGuide;
+import org.opendatakit.tables.utils.TableFileUtils;
 
 import android.app.Activity;
 import android.util.Log;
@@ -25,6 +32,21 @@ public class TableData {
 
      private static final String TAG = "TableData";
 
+     /**
+      * The aggregates of {@link #getGroupedData(String, String)}, by the
+      * names the javascript uses for them.
+      */
+     private static final Map<String, Query.GroupQueryType> AGGREGATE_OPS =
+         new HashMap<String, Query.GroupQueryType>();
+     static {
+       AGGREGATE_OPS.put("count", Query.GroupQueryType.COUNT);
+       AGGREGATE_OPS.put("sum", Query.GroupQueryType.SUM);
+       AGGREGATE_OPS.put("min", Query.GroupQueryType.MINIMUM);
+       AGGREGATE_OPS.put("max", Query.GroupQueryType.MAXIMUM);
+       AGGREGATE_OPS.put("avg", Query.GroupQueryType.AVERAGE);
+       AGGREGATE_OPS.put("count_distinct", Query.GroupQueryType.COUNT_DISTINCT);
+     }
+
      public TableDataIf getJavascriptInterfaceWithWeakReference() {
         return new TableDataIf(this);
      }
@@ -203,4 +225,90 @@ public class TableData {
        return mTable.getRowAtIndex(index).getRowId();
      }
 
+     /**
+      * @see {@link TableDataIf#getGroupedData(String, String)}.
+      */
+     public String getGroupedData(String groupElementPaths,
+         String aggregates) {
+       if (mActivity == null) {
+         Log.e(TAG, "grouped data needs an activity for the database");
+         return null;
+       }
+       TableProperties tp = mTable.getTableProperties();
+       List<String> groupPaths = new ArrayList<String>();
+       List<String> groupColumns = new ArrayList<String>();
+       List<String> specs = new ArrayList<String>();
+       List<String> dataColumns = new ArrayList<String>();
+       List<Query.GroupQueryType> types = new ArrayList<Query.GroupQueryType>();
+       try {
+         JSONArray paths = new JSONArray(groupElementPaths);
+         for (int i = 0; i < paths.length(); i++) {
+           String path = paths.getString(i);
+           String elementKey = tp.getElementKeyFromElementPath(path);
+           if (tp.getColumnByElementKey(elementKey) == null) {
+             Log.e(TAG, "no column to group by with element path: " + path);
+             return null;
+           }
+           groupPaths.add(path);
+           groupColumns.add(elementKey);
+         }
+         JSONArray aggs = new JSONArray(aggregates);
+         for (int i = 0; i < aggs.length(); i++) {
+           String spec = aggs.getString(i);
+           int colonIndex = spec.indexOf(':');
+           String op = (colonIndex < 0) ? spec : spec.substring(0, colonIndex);
+           Query.GroupQueryType type = AGGREGATE_OPS.get(op);
+           String elementKey = null;
+           if (colonIndex >= 0) {
+             elementKey = tp.getElementKeyFromElementPath(
+                 spec.substring(colonIndex + 1));
+             if (tp.getColumnByElementKey(elementKey) == null) {
+               elementKey = null;
+             }
+           }
+           if (type == null ||
+               (elementKey == null && type != Query.GroupQueryType.COUNT)) {
+             Log.e(TAG, "invalid aggregate: " + spec);
+             return null;
+           }
+           specs.add(spec);
+           dataColumns.add(elementKey);
+           types.add(type);
+         }
+       } catch (JSONException e) {
+         Log.e(TAG, "grouped data arguments are not JSON arrays");
+         e.printStackTrace();
+         return null;
+       }
+       DbHelper dbh = DbHelper.getDbHelper(mActivity,
+           TableFileUtils.ODK_TABLES_APP_NAME);
+       GroupedTable groups = DbTable.getDbTable(dbh, tp).getGroupedTable(
+           mTable, groupColumns, dataColumns, types);
+       if (groups == null) {
+         return null;
+       }
+       JSONArray result = new JSONArray();
+       try {
+         for (int i = 0; i < groups.getNumberOfGroups(); i++) {
+           JSONObject group = new JSONObject();
+           for (int j = 0; j < groupPaths.size(); j++) {
+             group.put(groupPaths.get(j), jsonValue(groups.getGroupValue(i, j)));
+           }
+           for (int j = 0; j < specs.size(); j++) {
+             group.put(specs.get(j), jsonValue(groups.getAggregateValue(i, j)));
+           }
+           result.put(group);
+         }
+       } catch (JSONException e) {
+         Log.e(TAG, "could not build grouped data");
+         e.printStackTrace();
+         return null;
+       }
+       return result.toString();
+     }
+
+     private static Object jsonValue(String value) {
+       return (value == null) ? JSONObject.NULL : value;
+     }
+
 }
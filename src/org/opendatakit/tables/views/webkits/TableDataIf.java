@@ -144,5 +144,30 @@ public class TableDataIf {
 	public String get(String elementPath) {
 	  return this.getData(0, elementPath);
 	}
+
+	/**
+	 * Aggregate the rows of the table by the values of some of its columns,
+	 * in the database rather than by iterating over them with
+	 * {@link #getData(int, String)}. This is what graphs and summaries
+	 * should use.
+	 * <p>
+	 * The aggregates are given as strings of the form "op:elementPath", where
+	 * op is one of count, sum, min, max, avg or count_distinct. "count" on its
+	 * own counts the rows. For example, getGroupedData('["District"]',
+	 * '["count", "avg:Temperature"]') might return
+	 * [{"District":"North","count":"12","avg:Temperature":"4.5"}, ...].
+	 * @param groupElementPaths a stringified JSONArray of the element paths
+	 * of the columns to group by, which may be empty for a single group
+	 * @param aggregates a stringified JSONArray of the aggregates
+	 * @return a stringified JSONArray with an object for each group, ordered
+	 * by the group values, holding the values of the group columns and of the
+	 * aggregates keyed by the element paths and aggregates as they were
+	 * given. Null if the arguments are invalid or the table was not loaded
+	 * from a query.
+	 */
+	// @JavascriptInterface
+	public String getGroupedData(String groupElementPaths, String aggregates) {
+		return weakTable.get().getGroupedData(groupElementPaths, aggregates);
+	}
 	
 }
\ No newline at end of file
@@ -1,9 +1,11 @@
 package data;
 
 import java.util.Locale;
+import java.util.Random;
 import java.util.TimeZone;
 import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Interval;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -13,6 +15,10 @@ import junit.framework.TestCase;
 
 public class DataUtilTests extends TestCase {
     
+    /** The storage format, as DataUtil printed and parsed it with Joda. */
+    private static final DateTimeFormatter JODA_DB_FORMATTER =
+        DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ").withZoneUTC();
+    
     private Locale locale;
     private TimeZone tz;
     private DataUtil du;
@@ -92,4 +98,139 @@ public class DataUtilTests extends TestCase {
             assertNull(du.tryParseInterval(input));
         }
     }
+    
+    public void testDbDateTimeRoundTrip() {
+        String[] values = {
+                "1970-01-01T00:00:00.000+0000",
+                "1970-01-01T00:00:00.001+0000",
+                "1969-12-31T23:59:59.999+0000",
+                "2013-04-05T13:05:09.050+0000",
+                "2000-02-29T12:00:00.500+0000",
+                "2100-03-01T00:00:00.000+0000",
+                "1900-02-28T23:59:59.999+0000",
+                "1600-02-29T06:30:15.123+0000",
+                "0001-01-01T00:00:00.000+0000",
+                "9999-12-31T23:59:59.999+0000"
+        };
+        for (String value : values) {
+            DateTime dt = JODA_DB_FORMATTER.parseDateTime(value);
+            assertEquals(value, du.formatDateTimeForDb(dt));
+            assertEquals(dt, du.parseDateTimeFromDb(value));
+        }
+    }
+    
+    public void testDbDateTimeMatchesJoda() {
+        long min = JODA_DB_FORMATTER.parseMillis(
+                "0001-01-01T00:00:00.000+0000");
+        long max = JODA_DB_FORMATTER.parseMillis(
+                "9999-12-31T23:59:59.999+0000");
+        DateTimeZone[] zones = {
+                DateTimeZone.UTC,
+                DateTimeZone.forID("America/Los_Angeles"),
+                DateTimeZone.forID("Asia/Kolkata")
+        };
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long millis = min + (long) (random.nextDouble() * (max - min));
+            DateTime dt = new DateTime(millis, zones[i % zones.length]);
+            String expected = JODA_DB_FORMATTER.print(dt);
+            assertEquals(expected, du.formatDateTimeForDb(dt));
+            assertEquals(JODA_DB_FORMATTER.parseDateTime(expected),
+                    du.parseDateTimeFromDb(expected));
+        }
+    }
+    
+    public void testDbDateTimeOffsets() {
+        String[] values = {
+                "2013-04-05T13:05:00.000+0530",
+                "2013-04-05T13:05:00.000-0800",
+                "2013-04-05T00:30:00.000+0100",
+                "2013-04-05T23:30:00.000-0100",
+                "2013-04-05T13:05:00.000-0000",
+                "2013-04-05T13:05:00.000+2359",
+                "2013-04-05T13:05:00.000-2359",
+                "1969-12-31T23:00:00.000-0100",
+                "1850-06-15T12:00:00.250+0945"
+        };
+        for (String value : values) {
+            DateTime expected = JODA_DB_FORMATTER.parseDateTime(value);
+            assertEquals(value, expected, du.parseDateTimeFromDb(value));
+            assertEquals(value, expected.getMillis(),
+                    du.tryParseInstant(value).getMillis());
+            // printed back in UTC, as Joda did
+            assertEquals(JODA_DB_FORMATTER.print(expected),
+                    du.formatDateTimeForDb(du.parseDateTimeFromDb(value)));
+        }
+    }
+    
+    public void testMalformedDbDateTimesBehaveAsJoda() {
+        String[] values = {
+                "2013-02-29T00:00:00.000+0000",
+                "1900-02-29T00:00:00.000+0000",
+                "2013-13-01T00:00:00.000+0000",
+                "2013-00-10T00:00:00.000+0000",
+                "2013-04-31T00:00:00.000+0000",
+                "2013-04-05T24:00:00.000+0000",
+                "2013-04-05T13:60:00.000+0000",
+                "2013-04-05T13:05:60.000+0000",
+                "2013-04-05T13:05:00.000+2400",
+                "2013-04-05T13:05:00.000+0060",
+                "2013-04-05T13:05:00.000*0000",
+                "2013-04-05 13:05:00.000+0000",
+                "2013-04-05T13:05:00.000",
+                "2013-04-05T13:05:00+0000",
+                "2013-4-05T13:05:00.000+00000",
+                "2013-04-05T13:05:00.000+00:00",
+                "2013-04-05T13:05:00.0x0+0000",
+                "20130405T130500.000+0000",
+                "2013-04-05",
+                "apple",
+                ""
+        };
+        for (String value : values) {
+            DateTime expected = null;
+            RuntimeException expectedError = null;
+            try {
+                expected = JODA_DB_FORMATTER.parseDateTime(value);
+            } catch (RuntimeException e) {
+                expectedError = e;
+            }
+            try {
+                DateTime actual = du.parseDateTimeFromDb(value);
+                assertNull(value + " should not parse", expectedError);
+                assertEquals(value, expected, actual);
+            } catch (RuntimeException e) {
+                assertNotNull(value + " should parse", expectedError);
+                assertEquals(value, expectedError.getClass(), e.getClass());
+            }
+        }
+    }
+    
+    public void testDbIntervalRoundTrip() {
+        DateTime start = JODA_DB_FORMATTER.parseDateTime(
+                "1969-12-31T22:15:30.125+0000");
+        DateTime end = JODA_DB_FORMATTER.parseDateTime(
+                "1970-01-01T01:00:00.875+0000");
+        String value = du.formatIntervalForDb(new Interval(start, end));
+        assertEquals(JODA_DB_FORMATTER.print(start) + "/" +
+                JODA_DB_FORMATTER.print(end), value);
+        assertEquals(new Interval(start, end), du.parseIntervalFromDb(value));
+    }
+    
+    public void testParseDbDateIntervals() {
+        DateTimeZone zone = DateTimeZone.forTimeZone(tz);
+        String[] inputs = {"2010-10-11", "2000-02-29", "1969-12-31",
+                "1900-01-01"};
+        for (String input : inputs) {
+            DateTime start = new DateMidnight(
+                    Integer.parseInt(input.substring(0, 4)),
+                    Integer.parseInt(input.substring(5, 7)),
+                    Integer.parseInt(input.substring(8, 10)),
+                    zone).toDateTime();
+            Interval interval = du.tryParseInterval(input);
+            assertNotNull(input, interval);
+            assertEquals(input, start, interval.getStart());
+            assertEquals(input, start.plusDays(1), interval.getEnd());
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package data;
+
+import org.opendatakit.tables.data.QueryParser;
+import org.opendatakit.tables.data.QueryParser.ConstraintNode;
+import org.opendatakit.tables.data.QueryParser.JoinNode;
+import org.opendatakit.tables.data.QueryParser.ParsedQuery;
+import junit.framework.TestCase;
+
+
+public class QueryParserTests extends TestCase {
+
+    public void testFreeText() {
+        ParsedQuery pq = QueryParser.parse("  red fridge ");
+        assertEquals("red fridge", pq.getFreeText());
+        assertEquals(0, pq.getNodes().size());
+        assertTrue(QueryParser.parse("   ").isEmpty());
+    }
+
+    public void testMultipleConstraints() {
+        ParsedQuery pq = QueryParser.parse("name:John Smith age:12");
+        assertEquals("", pq.getFreeText());
+        assertEquals(2, pq.getNodes().size());
+        assertEquals("name", pq.getNodes().get(0).getKey());
+        assertEquals("John Smith", pq.getNodes().get(0).getValue());
+        assertEquals("age", pq.getNodes().get(1).getKey());
+        assertEquals("12", pq.getNodes().get(1).getValue());
+    }
+
+    public void testColonInsideValue() {
+        ParsedQuery pq = QueryParser.parse("time:12:30 note:a b:");
+        assertEquals(2, pq.getNodes().size());
+        assertEquals("12:30", pq.getNodes().get(0).getValue());
+        assertEquals("a b:", pq.getNodes().get(1).getValue());
+    }
+
+    public void testFreeTextBeforeConstraint() {
+        ParsedQuery pq = QueryParser.parse("broken district:Seattle");
+        assertEquals("broken", pq.getFreeText());
+        assertEquals(1, pq.getNodes().size());
+        assertEquals("district", pq.getNodes().get(0).getKey());
+    }
+
+    public void testNestedJoin() {
+        ParsedQuery pq = QueryParser.parse("join:fridges (join:districts " +
+                "(Name:Northwest) District/Name) ID/ID Temperature:4");
+        assertEquals(2, pq.getNodes().size());
+        assertTrue(pq.getNodes().get(0) instanceof JoinNode);
+        JoinNode join = (JoinNode) pq.getNodes().get(0);
+        assertEquals("fridges", join.getTableName());
+        assertEquals(1, join.getMatchCount());
+        assertEquals("ID", join.getMatchKey(0));
+        assertEquals("ID", join.getMatchArg(0));
+        ParsedQuery sub = join.getSubquery();
+        assertEquals(1, sub.getNodes().size());
+        JoinNode subJoin = (JoinNode) sub.getNodes().get(0);
+        assertEquals("districts", subJoin.getTableName());
+        assertEquals("Name:Northwest",
+                subJoin.getSubquery().getNodes().get(0).getKey() + ":" +
+                subJoin.getSubquery().getNodes().get(0).getValue());
+        assertEquals("Temperature", pq.getNodes().get(1).getKey());
+        assertEquals("4", pq.getNodes().get(1).getValue());
+    }
+
+    public void testMalformedJoinIsConstraint() {
+        ParsedQuery pq = QueryParser.parse("join:fridges ID");
+        assertTrue(pq.getNodes().get(0) instanceof ConstraintNode);
+        assertEquals("fridges ID", pq.getNodes().get(0).getValue());
+        pq = QueryParser.parse("join:fridges (District:Seattle ID/ID");
+        assertTrue(pq.getNodes().get(0) instanceof ConstraintNode);
+    }
+}
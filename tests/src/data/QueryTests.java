@@ -1,11 +1,24 @@
 package data;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
 import testutil.DataTest;
+import org.opendatakit.tables.data.ColumnProperties;
+import org.opendatakit.tables.data.DbHelper;
+import org.opendatakit.tables.data.DbTableSearchIndex;
+import org.opendatakit.tables.data.KeyValueStore;
 import org.opendatakit.tables.data.Query;
+import org.opendatakit.tables.data.TableProperties;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 
 public class QueryTests extends DataTest {
     
+    private TableProperties searchTp;
+    
     @Override
     public void setUp() throws Exception {
         super.setUp();
@@ -106,4 +119,53 @@ public class QueryTests extends DataTest {
         assertEquals(Query.Comparator.EQUALS,
                 secondJq.getConstraint(0).getComparator(0));
     }
+    
+    public void testLikeSearchSql() {
+        Query query = searchQuery(Query.SearchMode.LIKE);
+        Query.SqlData sd = query.toSql(new String[] {"_name"});
+        String sql = sd.getSql();
+        assertTrue(sql, sql.contains(" AND (_tableA._name LIKE ? ESCAPE '\\'" +
+                " OR _tableA._topic LIKE ? ESCAPE '\\')" +
+                " AND (_tableA._name LIKE ? ESCAPE '\\'" +
+                " OR _tableA._topic LIKE ? ESCAPE '\\')"));
+        assertFalse(sql, sql.contains("MATCH"));
+        // the % in the text is a separator, not a wildcard.
+        assertEquals(Arrays.asList("%100%", "%100%", "%cats%", "%cats%"),
+                Arrays.asList(sd.getArgs()));
+    }
+    
+    public void testFullTextSearchSql() {
+        Query query = searchQuery(Query.SearchMode.FULL_TEXT);
+        Query.SqlData sd = query.toSql(new String[] {"_name"});
+        String sql = sd.getSql();
+        assertTrue(sql, sql.contains(" AND _tableA.rowid IN (SELECT docid" +
+                " FROM " + DbTableSearchIndex.getIndexTableName(searchTp) +
+                " WHERE content MATCH ?)"));
+        assertFalse(sql, sql.contains("LIKE"));
+        assertEquals(Arrays.asList("100* cats*"), Arrays.asList(sd.getArgs()));
+    }
+    
+    public void testNoSearchSql() {
+        Query query = searchQuery(Query.SearchMode.LIKE);
+        query.setSearchText(" %_ ");
+        Query.SqlData sd = query.toSql(new String[] {"_name"});
+        assertFalse(sd.getSql().contains("LIKE"));
+        assertEquals(0, sd.getArgs().length);
+    }
+    
+    private Query searchQuery(Query.SearchMode mode) {
+        TableProperties tp = mock(TableProperties.class);
+        searchTp = tp;
+        when(tp.getDbTableName()).thenReturn("_tableA");
+        Map<String, ColumnProperties> columns =
+                new HashMap<String, ColumnProperties>();
+        columns.put("_topic", mock(ColumnProperties.class));
+        columns.put("_name", mock(ColumnProperties.class));
+        when(tp.getDatabaseColumns()).thenReturn(columns);
+        Query query = new Query(mock(DbHelper.class),
+                KeyValueStore.Type.ACTIVE, tp);
+        query.setSearchMode(mode);
+        query.setSearchText("100% CATS");
+        return query;
+    }
 }
@@ -0,0 +1,207 @@
+package org.opendatakit.tables.data;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the typed column storage behind {@link UserTable}.
+ */
+public class ColumnStoreTests extends TestCase {
+
+    private static final ColumnType[] TYPES = {
+        ColumnType.INTEGER, ColumnType.NUMBER, ColumnType.STRING, null
+    };
+
+    // one column per type. Each value must come back exactly as it was set,
+    // whether it is held natively, in the dictionary or verbatim.
+    private static final String[][] ROWS = {
+        {"12", "1.5", "red", "x"},
+        {null, null, null, null},
+        {"-7", "2", "red", ""},
+        {"007", "1e3", "", "x"},
+        {"abc", "not a number", "blue", null},
+        {"9223372036854775807", "-0.0", "red", "y"},
+        {"", "", null, "x"}
+    };
+
+    public void testRoundTripMixedAndNullValues() {
+        ColumnStore store = buildStore(ROWS);
+        assertEquals(ROWS.length, store.getRowCount());
+        assertEquals(TYPES.length, store.getColumnCount());
+        assertStoreEquals(ROWS, store);
+    }
+
+    public void testNumericAccess() {
+        ColumnStore store = buildStore(ROWS);
+        assertEquals(12L, store.getLong(0, 0));
+        assertEquals(-7L, store.getLong(2, 0));
+        // kept verbatim, but still parsed as a number.
+        assertEquals(7L, store.getLong(3, 0));
+        assertEquals(Long.MAX_VALUE, store.getLong(5, 0));
+        assertEquals(1.5, store.getDouble(0, 1), 0.0);
+        assertEquals(2.0, store.getDouble(2, 1), 0.0);
+        assertEquals(1000.0, store.getDouble(3, 1), 0.0);
+        assertEquals(12.0, store.getDouble(0, 0), 0.0);
+        try {
+            store.getLong(1, 0);
+            fail("null read as a long");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        try {
+            store.getDouble(1, 1);
+            fail("null read as a double");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+        try {
+            store.getLong(4, 0);
+            fail("abc read as a long");
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+
+    public void testResetRow() {
+        ColumnStore store = buildStore(ROWS);
+        // a null row and a row of verbatim values are overwritten.
+        store.resetRow(1);
+        store.resetRow(4);
+        String[][] expected = copy(ROWS);
+        expected[1] = new String[] {"5", "5.5", "green", "z"};
+        expected[4] = new String[] {"6", "6.5", "red", "w"};
+        setRow(store, 1, expected[1]);
+        setRow(store, 4, expected[4]);
+        assertStoreEquals(expected, store);
+    }
+
+    public void testInsertAtStartMiddleAndEnd() {
+        ColumnStore store = buildStore(ROWS);
+        String[][] expected = copy(ROWS);
+        String[] first = {"1", "0.5", "first", null};
+        String[] middle = {null, "bad", null, "m"};
+        String[] last = {"x1", null, "last", "l"};
+
+        store.insertRow(0);
+        setRow(store, 0, first);
+        expected = insert(expected, 0, first);
+        assertStoreEquals(expected, store);
+
+        store.insertRow(4);
+        setRow(store, 4, middle);
+        expected = insert(expected, 4, middle);
+        assertStoreEquals(expected, store);
+
+        store.insertRow(store.getRowCount());
+        setRow(store, store.getRowCount() - 1, last);
+        expected = insert(expected, expected.length, last);
+        assertStoreEquals(expected, store);
+    }
+
+    public void testRemoveAtStartMiddleAndEnd() {
+        ColumnStore store = buildStore(ROWS);
+        String[][] expected = copy(ROWS);
+
+        store.removeRow(0);
+        expected = remove(expected, 0);
+        assertStoreEquals(expected, store);
+
+        // the verbatim values of the row after it move up.
+        store.removeRow(2);
+        expected = remove(expected, 2);
+        assertStoreEquals(expected, store);
+
+        store.removeRow(store.getRowCount() - 1);
+        expected = remove(expected, expected.length - 1);
+        assertStoreEquals(expected, store);
+    }
+
+    public void testGrowFromEmpty() {
+        ColumnStore store = new ColumnStore(TYPES, 0);
+        String[][] expected = new String[0][];
+        for (int i = 0; i < 100; i++) {
+            String[] row = ROWS[i % ROWS.length];
+            // alternate between the end and the front.
+            int rowNum = (i % 2 == 0) ? store.getRowCount() : 0;
+            store.insertRow(rowNum);
+            setRow(store, rowNum, row);
+            expected = insert(expected, rowNum, row);
+        }
+        assertStoreEquals(expected, store);
+        while (store.getRowCount() > 0) {
+            int rowNum = store.getRowCount() / 2;
+            store.removeRow(rowNum);
+            expected = remove(expected, rowNum);
+            assertStoreEquals(expected, store);
+        }
+    }
+
+    public void testOutOfRange() {
+        ColumnStore store = buildStore(ROWS);
+        try {
+            store.insertRow(ROWS.length + 1);
+            fail("inserted past the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            store.removeRow(ROWS.length);
+            fail("removed past the end");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    private static ColumnStore buildStore(String[][] rows) {
+        ColumnStore store = new ColumnStore(TYPES, rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            setRow(store, i, rows[i]);
+        }
+        return store;
+    }
+
+    private static void setRow(ColumnStore store, int rowNum, String[] row) {
+        for (int j = 0; j < row.length; j++) {
+            store.set(rowNum, j, row[j]);
+        }
+    }
+
+    private static void assertStoreEquals(String[][] expected,
+            ColumnStore store) {
+        assertEquals(expected.length, store.getRowCount());
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[i].length; j++) {
+                String where = "row " + i + " column " + j;
+                assertEquals(where, expected[i][j], store.getString(i, j));
+                assertEquals(where, expected[i][j] == null,
+                        store.isNull(i, j));
+            }
+        }
+    }
+
+    private static String[][] copy(String[][] rows) {
+        String[][] copy = new String[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            copy[i] = rows[i].clone();
+        }
+        return copy;
+    }
+
+    private static String[][] insert(String[][] rows, int rowNum,
+            String[] row) {
+        String[][] result = new String[rows.length + 1][];
+        System.arraycopy(rows, 0, result, 0, rowNum);
+        result[rowNum] = row;
+        System.arraycopy(rows, rowNum, result, rowNum + 1,
+                rows.length - rowNum);
+        return result;
+    }
+
+    private static String[][] remove(String[][] rows, int rowNum) {
+        String[][] result = new String[rows.length - 1][];
+        System.arraycopy(rows, 0, result, 0, rowNum);
+        System.arraycopy(rows, rowNum + 1, result, rowNum,
+                result.length - rowNum);
+        return result;
+    }
+}
@@ -0,0 +1,96 @@
+package org.opendatakit.tables.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesKeyValueStoreEntry;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests that the partition maps handed out by {@link KeyValueStoreCache}
+ * are not changed by later writes.
+ */
+public class KeyValueStoreCacheTests extends TestCase {
+
+    private static final String STORE = "store";
+    private static final String TABLE = "table";
+    private static final String PARTITION = "partition";
+    private static final String ASPECT = "aspect";
+
+    private KeyValueStoreCache cache;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        cache = new KeyValueStoreCache();
+        List<OdkTablesKeyValueStoreEntry> entries =
+                new ArrayList<OdkTablesKeyValueStoreEntry>();
+        entries.add(entry("a", "1"));
+        entries.add(entry("b", "2"));
+        cache.putPartition(STORE, TABLE, PARTITION, cache.getGeneration(),
+                entries, true);
+    }
+
+    public void testWriteReplacesPartition() {
+        Map<String, OdkTablesKeyValueStoreEntry> before = getPartition();
+        cache.noteEntryWritten(STORE, entry("a", "3"), false);
+        cache.noteEntryWritten(STORE, entry("c", "4"), false);
+        assertEquals("1", before.get(key("a")).value);
+        assertNull(before.get(key("c")));
+        Map<String, OdkTablesKeyValueStoreEntry> after = getPartition();
+        assertEquals("3", after.get(key("a")).value);
+        assertEquals("2", after.get(key("b")).value);
+        assertEquals("4", after.get(key("c")).value);
+    }
+
+    public void testDeleteReplacesPartition() {
+        Map<String, OdkTablesKeyValueStoreEntry> before = getPartition();
+        cache.noteEntryDeleted(STORE, TABLE, PARTITION, ASPECT, "a", false);
+        assertEquals("1", before.get(key("a")).value);
+        Map<String, OdkTablesKeyValueStoreEntry> after = getPartition();
+        assertNull(after.get(key("a")));
+        assertEquals("2", after.get(key("b")).value);
+    }
+
+    public void testWriteInTransactionDropsPartition() {
+        Map<String, OdkTablesKeyValueStoreEntry> before = getPartition();
+        cache.noteEntryWritten(STORE, entry("a", "3"), true);
+        assertEquals("1", before.get(key("a")).value);
+        assertNull(cache.getPartition(STORE, TABLE, PARTITION));
+    }
+
+    public void testPartitionIsUnmodifiable() {
+        try {
+            getPartition().remove(key("a"));
+            fail("modified a cached partition");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    private Map<String, OdkTablesKeyValueStoreEntry> getPartition() {
+        Map<String, OdkTablesKeyValueStoreEntry> entries =
+                cache.getPartition(STORE, TABLE, PARTITION);
+        assertNotNull(entries);
+        return entries;
+    }
+
+    private static String key(String key) {
+        return KeyValueStoreCache.entryKey(ASPECT, key);
+    }
+
+    private static OdkTablesKeyValueStoreEntry entry(String key,
+            String value) {
+        OdkTablesKeyValueStoreEntry entry = new OdkTablesKeyValueStoreEntry();
+        entry.tableId = TABLE;
+        entry.partition = PARTITION;
+        entry.aspect = ASPECT;
+        entry.key = key;
+        entry.type = "string";
+        entry.value = value;
+        return entry;
+    }
+}
@@ -0,0 +1,152 @@
+package org.opendatakit.tables.data;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the row edits {@link DbTable#refreshUserTable} makes to a copy of
+ * a {@link UserTable}.
+ */
+public class UserTableEditTests extends TestCase {
+
+    private static final String COUNT = "_count";
+    private static final String NAME = "_name";
+    private static final String[] ELEMENT_KEYS = {COUNT, NAME};
+
+    private TableProperties tp;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        tp = mock(TableProperties.class);
+        mockColumn(COUNT, ColumnType.INTEGER);
+        mockColumn(NAME, ColumnType.STRING);
+    }
+
+    private void mockColumn(String elementKey, ColumnType type) {
+        ColumnProperties cp = mock(ColumnProperties.class);
+        when(cp.getColumnType()).thenReturn(type);
+        when(cp.getDisplayName()).thenReturn(elementKey);
+        when(tp.getColumnByElementKey(elementKey)).thenReturn(cp);
+    }
+
+    public void testInsertAtStartMiddleAndEnd() {
+        UserTable table = buildTable(new String[] {"a", "b", "c"},
+                new String[][] {{"1", "one"}, {null, "two"}, {"x3", null}});
+        UserTable source = buildTable(new String[] {"d", "e", "f"},
+                new String[][] {{"4", "four"}, {"5", null}, {null, "six"}});
+        // build the row id index first, so that it has to be kept up.
+        assertEquals(1, table.getRowNumFromId("b"));
+
+        table.insertRow(0, source, 0);
+        assertTable(table, new String[] {"d", "a", "b", "c"},
+                new String[][] {{"4", "four"}, {"1", "one"}, {null, "two"},
+                    {"x3", null}});
+        table.insertRow(2, source, 1);
+        assertTable(table, new String[] {"d", "a", "e", "b", "c"},
+                new String[][] {{"4", "four"}, {"1", "one"}, {"5", null},
+                    {null, "two"}, {"x3", null}});
+        table.insertRow(5, source, 2);
+        assertTable(table, new String[] {"d", "a", "e", "b", "c", "f"},
+                new String[][] {{"4", "four"}, {"1", "one"}, {"5", null},
+                    {null, "two"}, {"x3", null}, {null, "six"}});
+    }
+
+    public void testRemoveAtStartMiddleAndEnd() {
+        UserTable table = buildTable(new String[] {"a", "b", "c", "d", "e"},
+                new String[][] {{"1", "one"}, {null, "two"}, {"x3", null},
+                    {"4", "four"}, {"5", "five"}});
+        assertEquals(4, table.getRowNumFromId("e"));
+
+        table.removeRow(0);
+        assertTable(table, new String[] {"b", "c", "d", "e"},
+                new String[][] {{null, "two"}, {"x3", null}, {"4", "four"},
+                    {"5", "five"}});
+        table.removeRow(1);
+        assertTable(table, new String[] {"b", "d", "e"},
+                new String[][] {{null, "two"}, {"4", "four"},
+                    {"5", "five"}});
+        table.removeRow(2);
+        assertTable(table, new String[] {"b", "d"},
+                new String[][] {{null, "two"}, {"4", "four"}});
+        assertEquals(-1, table.getRowNumFromId("a"));
+        assertEquals(-1, table.getRowNumFromId("e"));
+    }
+
+    public void testReplaceRow() {
+        UserTable table = buildTable(new String[] {"a", "b"},
+                new String[][] {{"x1", null}, {null, "two"}});
+        UserTable source = buildTable(new String[] {"b", "a"},
+                new String[][] {{"2", null}, {"1", "one"}});
+        table.replaceRow(0, source, 1);
+        table.replaceRow(1, source, 0);
+        assertTable(table, new String[] {"a", "b"},
+                new String[][] {{"1", "one"}, {"2", null}});
+        try {
+            table.replaceRow(0, source, 0);
+            fail("replaced a row with a different row");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testEditsToCopyLeaveTableUnchanged() {
+        String[] rowIds = {"a", "b", "c"};
+        String[][] data = {{"1", "one"}, {null, "two"}, {"x3", null}};
+        UserTable table = buildTable(rowIds, data);
+        UserTable source = buildTable(new String[] {"d", "b"},
+                new String[][] {{"4", "four"}, {"2", null}});
+        table.setFooter(new String[] {"3", null});
+        assertEquals(2, table.getRowNumFromId("c"));
+
+        UserTable copy = new UserTable(table);
+        copy.insertRow(0, source, 0);
+        copy.replaceRow(2, source, 1);
+        copy.removeRow(3);
+        copy.setFooter(new String[] {"4", null});
+        assertTable(copy, new String[] {"d", "a", "b"},
+                new String[][] {{"4", "four"}, {"1", "one"}, {"2", null}});
+        assertTable(table, rowIds, data);
+        assertEquals("3", table.getFooter(0));
+    }
+
+    private UserTable buildTable(String[] rowIds, String[][] data) {
+        Map<String, Integer> dataKeyToIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < ELEMENT_KEYS.length; i++) {
+            dataKeyToIndex.put(ELEMENT_KEYS[i], i);
+        }
+        Map<String, Integer> metadataKeyToIndex =
+                new HashMap<String, Integer>();
+        metadataKeyToIndex.put(DataTableColumns.ID, 0);
+        String[][] metadata = new String[rowIds.length][];
+        for (int i = 0; i < rowIds.length; i++) {
+            metadata[i] = new String[] {rowIds[i]};
+        }
+        return new UserTable(tp, rowIds, ELEMENT_KEYS.clone(), data,
+                ELEMENT_KEYS.clone(), dataKeyToIndex, metadata,
+                metadataKeyToIndex, null);
+    }
+
+    private static void assertTable(UserTable table, String[] rowIds,
+            String[][] data) {
+        assertEquals(rowIds.length, table.getNumberOfRows());
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals(rowIds[i], table.getRowAtIndex(i).getRowId());
+            assertEquals(rowIds[i], table.getMetadataByElementKey(i,
+                    DataTableColumns.ID));
+            assertEquals(i, table.getRowNumFromId(rowIds[i]));
+            for (int j = 0; j < data[i].length; j++) {
+                assertEquals("row " + i + " column " + j, data[i][j],
+                        table.getData(i, j));
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.opendatakit.tables.data;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import junit.framework.TestCase;
+
+
+/**
+ * Tests of the windowed tables built by
+ * {@link DbTable#getWindowedUserTable(Query)}, which page their rows in by
+ * row key.
+ */
+public class WindowedUserTableTests extends TestCase {
+
+    private static final String NAME = "_name";
+
+    private TableProperties tp;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        tp = mock(TableProperties.class);
+        ColumnProperties cp = mock(ColumnProperties.class);
+        when(cp.getDisplayName()).thenReturn("Name");
+        when(cp.getColumnType()).thenReturn(ColumnType.STRING);
+        when(tp.getColumnByElementKey(NAME)).thenReturn(cp);
+    }
+
+    /**
+     * A join that matches a row more than once repeats its row key. Every
+     * position of the key must get the row.
+     */
+    public void testDuplicateRowKeysFromJoin() {
+        // rows 1 and 2 of the base table, matched 3 times and once.
+        String[] rowIds = {"a", "a", "b", "a"};
+        long[] rowKeys = {1, 1, 2, 1};
+        final List<long[]> requested = new ArrayList<long[]>();
+        UserTable.RowPageSource source = new UserTable.RowPageSource() {
+
+            @Override
+            public Cursor getRowsForKeys(long[] keys) {
+                requested.add(keys);
+                // as the IN query over the keys returns it: each row once.
+                return pageCursor(new long[] {1, 2},
+                        new String[] {"a", "b"},
+                        new String[] {"first", "second"});
+            }
+        };
+        UserTable table = new UserTable(keyCursor(rowIds, rowKeys), tp,
+                Arrays.asList(NAME), source);
+        assertEquals(4, table.getNumberOfRows());
+        assertEquals("first", table.getData(0, 0));
+        assertEquals("first", table.getData(1, 0));
+        assertEquals("second", table.getData(2, 0));
+        assertEquals("first", table.getData(3, 0));
+        for (int i = 0; i < rowIds.length; i++) {
+            assertEquals(rowIds[i], table.getRowAtIndex(i).getRowId());
+        }
+        // all four rows are on one page.
+        assertEquals(1, requested.size());
+    }
+
+    public void testDeletedRowIsEmpty() {
+        UserTable.RowPageSource source = new UserTable.RowPageSource() {
+
+            @Override
+            public Cursor getRowsForKeys(long[] keys) {
+                return pageCursor(new long[] {2}, new String[] {"b"},
+                        new String[] {"second"});
+            }
+        };
+        UserTable table = new UserTable(keyCursor(new String[] {"a", "b"},
+                new long[] {1, 2}), tp, Arrays.asList(NAME), source);
+        assertNull(table.getData(0, 0));
+        assertEquals("a", table.getRowAtIndex(0).getRowId());
+        assertEquals("second", table.getData(1, 0));
+    }
+
+    private static Cursor keyCursor(String[] rowIds, long[] rowKeys) {
+        MatrixCursor c = new MatrixCursor(new String[] {
+                DataTableColumns.ID, DbTable.ROW_KEY_COLUMN});
+        for (int i = 0; i < rowIds.length; i++) {
+            c.addRow(new Object[] {rowIds[i], rowKeys[i]});
+        }
+        return c;
+    }
+
+    private static Cursor pageCursor(long[] rowKeys, String[] rowIds,
+            String[] names) {
+        List<String> columns = new ArrayList<String>();
+        columns.add(DbTable.ROW_KEY_COLUMN);
+        columns.add(NAME);
+        columns.addAll(DbTable.getAdminColumns());
+        MatrixCursor c = new MatrixCursor(
+                columns.toArray(new String[columns.size()]));
+        for (int i = 0; i < rowKeys.length; i++) {
+            Object[] row = new Object[columns.size()];
+            row[0] = rowKeys[i];
+            row[1] = names[i];
+            row[2 + DbTable.getAdminColumns().indexOf(
+                    DataTableColumns.ID)] = rowIds[i];
+            c.addRow(row);
+        }
+        return c;
+    }
+}